@@ -0,0 +1,333 @@
+/*
+ * Runs the Lox programs in this directory on each implementation and compares them.
+ *
+ * Every program runs --runs times per implementation in a fresh process. The output of each run
+ * must match the first implementation's, and the report gives the median and 95th percentile
+ * wall time along with the peak resident set size over all runs, as CSV or JSON. With
+ * --baseline, results are checked against an earlier CSV report and anything slower or larger
+ * than --threshold percent is flagged; the exit status is then 1.
+ *
+ * Implementations are given as name=command, where the command is split on spaces and the
+ * program path appended. The defaults expect to run from this directory.
+ */
+#include <fcntl.h>
+#include <math.h>
+#include <spawn.h>
+#include <stdbool.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/resource.h>
+#include <sys/wait.h>
+#include <time.h>
+#include <unistd.h>
+
+extern char** environ;
+
+#define MAX_IMPLEMENTATIONS 8
+#define MAX_ARGS 32
+
+typedef struct {
+    char* name;
+    char* argv[MAX_ARGS];
+    int argc;
+} Implementation;
+
+typedef struct {
+    char* output;
+    size_t length;
+    double seconds;
+    long maxRssKb;
+} Run;
+
+typedef struct {
+    const char* program;
+    const char* implementation;
+    int runs;
+    double medianMs;
+    double p95Ms;
+    long peakRssKb;
+    const char* status;
+} Result;
+
+typedef struct {
+    char program[256];
+    char implementation[64];
+    double medianMs;
+    long peakRssKb;
+} BaselineEntry;
+
+static Implementation implementations[MAX_IMPLEMENTATIONS];
+static int implementationCount = 0;
+
+static BaselineEntry* baseline = NULL;
+static int baselineCount = 0;
+
+static double now() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+static int compareDoubles(const void* a, const void* b) {
+    double x = *(const double*)a;
+    double y = *(const double*)b;
+    return (x > y) - (x < y);
+}
+
+static void addImplementation(const char* spec) {
+    char* equals = strchr(spec, '=');
+    if (equals == NULL || implementationCount == MAX_IMPLEMENTATIONS) {
+        fprintf(stderr, "Invalid implementation \"%s\".\n", spec);
+        exit(64);
+    }
+
+    Implementation* impl = &implementations[implementationCount++];
+    impl->name = strndup(spec, equals - spec);
+    impl->argc = 0;
+    char* command = strdup(equals + 1);
+    for (char* arg = strtok(command, " "); arg != NULL; arg = strtok(NULL, " ")) {
+        if (impl->argc == MAX_ARGS - 2) {
+            fprintf(stderr, "Too many arguments for \"%s\".\n", impl->name);
+            exit(64);
+        }
+        impl->argv[impl->argc++] = arg;
+    }
+}
+
+// Runs one process with its stdout captured; wait4() reports the child's peak RSS in KB
+static bool run(Implementation* impl, const char* program, Run* result) {
+    int fds[2];
+    if (pipe(fds) != 0) return false;
+
+    impl->argv[impl->argc] = (char*)program;
+    impl->argv[impl->argc + 1] = NULL;
+
+    posix_spawn_file_actions_t actions;
+    posix_spawn_file_actions_init(&actions);
+    posix_spawn_file_actions_adddup2(&actions, fds[1], 1);
+    posix_spawn_file_actions_addclose(&actions, fds[0]);
+    posix_spawn_file_actions_addclose(&actions, fds[1]);
+
+    double start = now();
+    pid_t pid;
+    int spawned = posix_spawnp(&pid, impl->argv[0], &actions, NULL, impl->argv, environ);
+    posix_spawn_file_actions_destroy(&actions);
+    close(fds[1]);
+    if (spawned != 0) {
+        close(fds[0]);
+        return false;
+    }
+
+    size_t capacity = 4096;
+    result->output = malloc(capacity);
+    result->length = 0;
+    for (;;) {
+        if (result->length == capacity) {
+            capacity *= 2;
+            result->output = realloc(result->output, capacity);
+        }
+        ssize_t n = read(fds[0], result->output + result->length, capacity - result->length);
+        if (n <= 0) break;
+        result->length += n;
+    }
+    close(fds[0]);
+
+    int status;
+    struct rusage usage;
+    wait4(pid, &status, 0, &usage);
+    result->seconds = now() - start;
+    result->maxRssKb = usage.ru_maxrss;
+    return WIFEXITED(status) && WEXITSTATUS(status) == 0;
+}
+
+static void loadBaseline(const char* path) {
+    FILE* file = fopen(path, "r");
+    if (file == NULL) {
+        fprintf(stderr, "Could not open baseline \"%s\".\n", path);
+        exit(74);
+    }
+
+    char line[512];
+    int capacity = 0;
+    while (fgets(line, sizeof(line), file) != NULL) {
+        BaselineEntry entry;
+        double p95;
+        int runs;
+        if (sscanf(line, "%255[^,],%63[^,],%d,%lf,%lf,%ld", entry.program, entry.implementation,
+                   &runs, &entry.medianMs, &p95, &entry.peakRssKb) != 6) {
+            continue;
+        }
+        if (baselineCount == capacity) {
+            capacity = capacity < 8 ? 8 : capacity * 2;
+            baseline = realloc(baseline, sizeof(BaselineEntry) * capacity);
+        }
+        baseline[baselineCount++] = entry;
+    }
+    fclose(file);
+}
+
+static const char* compareToBaseline(Result* result, double threshold) {
+    for (int i = 0; i < baselineCount; i++) {
+        BaselineEntry* entry = &baseline[i];
+        if (strcmp(entry->program, result->program) != 0 ||
+            strcmp(entry->implementation, result->implementation) != 0) {
+            continue;
+        }
+
+        double limit = 1.0 + threshold / 100.0;
+        if (result->medianMs > entry->medianMs * limit) return "slower";
+        if (result->peakRssKb > entry->peakRssKb * limit) return "larger";
+        return "ok";
+    }
+    return "new";
+}
+
+static const char* baseName(const char* path) {
+    const char* slash = strrchr(path, '/');
+    return slash == NULL ? path : slash + 1;
+}
+
+static void measure(const char* program, int runs, Result* results) {
+    char* expected = NULL;
+    size_t expectedLength = 0;
+
+    for (int i = 0; i < implementationCount; i++) {
+        Implementation* impl = &implementations[i];
+        Result* result = &results[i];
+        double* times = malloc(sizeof(double) * runs);
+        result->program = baseName(program);
+        result->implementation = impl->name;
+        result->runs = runs;
+        result->peakRssKb = 0;
+        result->status = "ok";
+
+        for (int r = 0; r < runs; r++) {
+            Run current = {0};
+            if (!run(impl, program, &current)) {
+                fprintf(stderr, "%s failed on %s.\n", impl->name, program);
+                result->status = "failed";
+            } else if (expected == NULL) {
+                expected = current.output;
+                expectedLength = current.length;
+                current.output = NULL;
+            } else if ((current.length != expectedLength ||
+                        memcmp(current.output, expected, expectedLength) != 0) &&
+                       strcmp(result->status, "ok") == 0) {
+                fprintf(stderr, "%s output differs from %s on %s.\n", impl->name,
+                        implementations[0].name, program);
+                result->status = "mismatch";
+            }
+            free(current.output);
+
+            times[r] = current.seconds * 1000;
+            if (current.maxRssKb > result->peakRssKb) result->peakRssKb = current.maxRssKb;
+        }
+
+        qsort(times, runs, sizeof(double), compareDoubles);
+        result->medianMs = times[runs / 2];
+        result->p95Ms = times[(int)ceil(runs * 0.95) - 1];
+        free(times);
+    }
+    free(expected);
+}
+
+static void printCsv(FILE* out, Result* results, int count) {
+    fprintf(out, "program,implementation,runs,median_ms,p95_ms,peak_rss_kb,status\n");
+    for (int i = 0; i < count; i++) {
+        Result* r = &results[i];
+        fprintf(out, "%s,%s,%d,%.2f,%.2f,%ld,%s\n", r->program, r->implementation, r->runs,
+                r->medianMs, r->p95Ms, r->peakRssKb, r->status);
+    }
+}
+
+static void printJson(FILE* out, Result* results, int count) {
+    fprintf(out, "[\n");
+    for (int i = 0; i < count; i++) {
+        Result* r = &results[i];
+        fprintf(out, "  {\"program\": \"%s\", \"implementation\": \"%s\", \"runs\": %d, "
+                "\"median_ms\": %.2f, \"p95_ms\": %.2f, \"peak_rss_kb\": %ld, "
+                "\"status\": \"%s\"}%s\n", r->program, r->implementation, r->runs,
+                r->medianMs, r->p95Ms, r->peakRssKb, r->status, i < count - 1 ? "," : "");
+    }
+    fprintf(out, "]\n");
+}
+
+static void usage() {
+    fprintf(stderr, "Usage: run [--runs N] [--format csv|json] [--baseline path] "
+            "[--threshold percent]\n"
+            "           [--save path] [--impl name=command]... program.lox...\n");
+    exit(64);
+}
+
+int main(int argc, char** argv) {
+    int runs = 5;
+    bool json = false;
+    const char* baselinePath = NULL;
+    const char* savePath = NULL;
+    double threshold = 20;
+
+    int arg = 1;
+    for (; arg < argc && strncmp(argv[arg], "--", 2) == 0; arg++) {
+        if (arg + 1 == argc) usage();
+        if (strcmp(argv[arg], "--runs") == 0) {
+            runs = atoi(argv[++arg]);
+        } else if (strcmp(argv[arg], "--format") == 0) {
+            json = strcmp(argv[++arg], "json") == 0;
+        } else if (strcmp(argv[arg], "--baseline") == 0) {
+            baselinePath = argv[++arg];
+        } else if (strcmp(argv[arg], "--threshold") == 0) {
+            threshold = atof(argv[++arg]);
+        } else if (strcmp(argv[arg], "--save") == 0) {
+            savePath = argv[++arg];
+        } else if (strcmp(argv[arg], "--impl") == 0) {
+            addImplementation(argv[++arg]);
+        } else {
+            usage();
+        }
+    }
+    if (arg == argc || runs < 1) usage();
+
+    if (implementationCount == 0) {
+        addImplementation("clox=../c/clox");
+        addImplementation("jlox=java -cp ../java/target/classes com.simonnordberg.lox.Lox");
+    }
+    if (baselinePath != NULL) loadBaseline(baselinePath);
+
+    int count = (argc - arg) * implementationCount;
+    Result* results = malloc(sizeof(Result) * count);
+    bool failed = false;
+    for (int i = arg; i < argc; i++) {
+        Result* programResults = &results[(i - arg) * implementationCount];
+        measure(argv[i], runs, programResults);
+
+        for (int j = 0; j < implementationCount; j++) {
+            Result* result = &programResults[j];
+            if (strcmp(result->status, "ok") == 0 && baselinePath != NULL) {
+                result->status = compareToBaseline(result, threshold);
+            }
+            if (strcmp(result->status, "ok") != 0 && strcmp(result->status, "new") != 0) {
+                failed = true;
+            }
+        }
+    }
+
+    if (json) {
+        printJson(stdout, results, count);
+    } else {
+        printCsv(stdout, results, count);
+    }
+
+    if (savePath != NULL) {
+        FILE* file = fopen(savePath, "w");
+        if (file == NULL) {
+            fprintf(stderr, "Could not write \"%s\".\n", savePath);
+            exit(74);
+        }
+        printCsv(file, results, count);
+        fclose(file);
+    }
+
+    free(results);
+    return failed ? 1 : 0;
+}
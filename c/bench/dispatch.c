@@ -0,0 +1,92 @@
+/*
+ * Times the VM on a large generated chunk of arithmetic. Built twice by `make bench`, once with
+ * computed-goto dispatch and once with -DNO_COMPUTED_GOTO, so the two can be compared.
+ */
+#include <stdio.h>
+#include <stdlib.h>
+#include <time.h>
+#include "../common.h"
+#include "../chunk.h"
+#include "../object.h"
+#include "../vm.h"
+
+#define CONSTANTS 200
+
+static double now() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+static int compareDoubles(const void* a, const void* b) {
+    double x = *(const double*)a;
+    double y = *(const double*)b;
+    return (x > y) - (x < y);
+}
+
+// Keeps the stack one value deep and the result finite, with an unpredictable opcode sequence
+static int generate(Chunk* chunk, int groups) {
+    for (int i = 0; i < CONSTANTS; i++) {
+        addConstant(chunk, NUMBER_VAL(0.5 + (double)i / CONSTANTS));
+    }
+
+    unsigned int seed = 12345;
+    int instructions = 1;
+    writeChunk(chunk, OP_CONSTANT, 1);
+    writeChunk(chunk, 0, 1);
+    for (int i = 0; i < groups; i++) {
+        seed = seed * 1103515245 + 12345;
+        uint8_t op;
+        switch ((seed >> 16) % 5) {
+            case 0: op = OP_ADD; break;
+            case 1: op = OP_SUBTRACT; break;
+            case 2: op = OP_MULTIPLY; break;
+            case 3: op = OP_DIVIDE; break;
+            default: op = OP_NEGATE; break;
+        }
+        if (op != OP_NEGATE) {
+            writeChunk(chunk, OP_CONSTANT, 1);
+            writeChunk(chunk, (seed >> 8) % CONSTANTS, 1);
+            instructions++;
+        }
+        writeChunk(chunk, op, 1);
+        instructions++;
+    }
+    writeChunk(chunk, OP_POP, 1);
+    writeChunk(chunk, OP_NIL, 1);
+    writeChunk(chunk, OP_RETURN, 1);
+    return instructions + 3;
+}
+
+int main(int argc, char** argv) {
+    int groups = argc > 1 ? atoi(argv[1]) : 5000000;
+    int runs = argc > 2 ? atoi(argv[2]) : 11;
+
+    initVM();
+    // The script function stays on the stack, out of the collector's reach, while it is built
+    ObjFunction* script = newFunction();
+    push(OBJ_VAL(script));
+    int instructions = generate(&script->chunk, groups);
+
+    double* times = malloc(sizeof(double) * runs);
+    for (int i = 0; i < runs; i++) {
+        double start = now();
+        interpretFunction(script);
+        times[i] = now() - start;
+    }
+    qsort(times, runs, sizeof(double), compareDoubles);
+
+#ifdef COMPUTED_GOTO
+    const char* dispatch = "computed goto";
+#else
+    const char* dispatch = "switch";
+#endif
+    double median = times[runs / 2];
+    printf("%-14s %d instructions, median %.1f ms, %.2f ns/instruction\n",
+           dispatch, instructions, median * 1000, median * 1e9 / instructions);
+
+    free(times);
+    pop();
+    freeVM();
+    return 0;
+}
@@ -0,0 +1,128 @@
+/*
+ * Times the collector on a generated chunk that concatenates strings. A block of large strings
+ * stays live on the stack for the whole run while a long tail of short concatenations becomes
+ * garbage as soon as the next link of its chain is built. Built twice by `make bench-gc`, once
+ * normally and once with DEBUG_STRESS_GC, which collects on every allocation. Both builds define
+ * GC_STATS, which the VM needs in order to count collections and time their pauses.
+ */
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include "../common.h"
+#include "../chunk.h"
+#include "../memory.h"
+#include "../object.h"
+#include "../vm.h"
+
+#ifndef GC_STATS
+#error "bench/gc.c reads the collector statistics, so build it with -DGC_STATS"
+#endif
+
+#define CONSTANTS 64
+#define LIVE 128
+#define LIVE_LENGTH 16384
+#define CHAIN 8
+
+static double now() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+static Value makeString(int length, char fill) {
+    char* chars = malloc(length);
+    memset(chars, fill, length);
+    Value value = OBJ_VAL(copyString(chars, length));
+    free(chars);
+    return value;
+}
+
+static void emitConstant(Chunk* chunk, int constant) {
+    writeChunk(chunk, OP_CONSTANT, 1);
+    writeChunk(chunk, constant, 1);
+}
+
+// Returns the number of strings the chunk allocates when run
+static int generate(Chunk* chunk, int groups) {
+    int large = addConstant(chunk, makeString(LIVE_LENGTH, 'x'));
+    for (int i = 1; i < CONSTANTS; i++) {
+        addConstant(chunk, makeString(1 + i % 32, 'a' + i % 26));
+    }
+
+    for (int i = 0; i < LIVE; i++) {
+        emitConstant(chunk, large);
+        emitConstant(chunk, 1 + i % (CONSTANTS - 1));
+        writeChunk(chunk, OP_ADD, 1);
+    }
+
+    // Strings are interned, so the garbage is built as short random chains to keep it distinct
+    unsigned int seed = 12345;
+    emitConstant(chunk, 1);
+    for (int i = 0; i < groups; i++) {
+        seed = seed * 1103515245 + 12345;
+        if (i % CHAIN == 0) writeChunk(chunk, OP_POP, 1);
+        emitConstant(chunk, 1 + (seed >> 8) % (CONSTANTS - 1));
+        if (i % CHAIN != 0) writeChunk(chunk, OP_ADD, 1);
+    }
+    writeChunk(chunk, OP_POP, 1);
+
+    for (int i = 0; i < LIVE; i++) {
+        writeChunk(chunk, OP_POP, 1);
+    }
+    writeChunk(chunk, OP_NIL, 1);
+    writeChunk(chunk, OP_RETURN, 1);
+    return LIVE + groups - (groups + CHAIN - 1) / CHAIN;
+}
+
+int main(int argc, char** argv) {
+#ifdef DEBUG_STRESS_GC
+    int defaultGroups = 20000;
+    const char* mode = "stress";
+#else
+    int defaultGroups = 2000000;
+    const char* mode = "threshold";
+#endif
+    int groups = argc > 1 ? atoi(argv[1]) : defaultGroups;
+    int runs = argc > 2 ? atoi(argv[2]) : 5;
+
+    initVM();
+    // The script function stays on the stack, out of the collector's reach, while it is built
+    ObjFunction* script = newFunction();
+    push(OBJ_VAL(script));
+    int strings = generate(&script->chunk, groups);
+
+    double elapsed = 0;
+    int collections = 0;
+    double pauseTotal = 0;
+    double pauseMax = 0;
+    size_t requested = 0;
+    for (int i = 0; i < runs; i++) {
+        vm.gcCount = 0;
+        vm.gcPauseTotal = 0;
+        vm.gcPauseMax = 0;
+        vm.gcBytesRequested = 0;
+
+        double start = now();
+        interpretFunction(script);
+        elapsed += now() - start;
+
+        collections += vm.gcCount;
+        pauseTotal += vm.gcPauseTotal;
+        if (vm.gcPauseMax > pauseMax) pauseMax = vm.gcPauseMax;
+        requested += vm.gcBytesRequested;
+    }
+
+    printf("%-9s %d strings/run, %d collections/run, pause mean %.3f ms max %.3f ms, "
+            "%.1f%% of time in gc\n",
+            mode, strings, collections / runs,
+            collections > 0 ? pauseTotal * 1000 / collections : 0, pauseMax * 1000,
+            elapsed > 0 ? pauseTotal * 100 / elapsed : 0);
+    printf("%-9s throughput %.2f M strings/s, %.1f MB/s allocated\n",
+            mode, strings * (double)runs / elapsed / 1e6,
+            requested / elapsed / (1024 * 1024));
+
+    pop();
+    freeVM();
+    return 0;
+}
@@ -0,0 +1,127 @@
+/*
+ * Compares the startup of clox on source against the same program precompiled to an image.
+ * Generates scripts of a few sizes that mostly declare functions and classes and run little,
+ * so that scanning and compiling dominate, then times fresh clox processes on each.
+ */
+#include <fcntl.h>
+#include <spawn.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/wait.h>
+#include <time.h>
+
+extern char** environ;
+
+#define MODULE_SIZE 100
+
+static const int SIZES[] = {10, 1000, 10000};
+
+static double now() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+static int compareDoubles(const void* a, const void* b) {
+    double x = *(const double*)a;
+    double y = *(const double*)b;
+    return (x > y) - (x < y);
+}
+
+// Functions are grouped into modules of locals, since a chunk holds at most 256 named constants
+static void generate(const char* path, int functions) {
+    FILE* file = fopen(path, "w");
+    if (file == NULL) {
+        fprintf(stderr, "Could not write \"%s\".\n", path);
+        exit(74);
+    }
+
+    int modules = (functions + MODULE_SIZE - 1) / MODULE_SIZE;
+    for (int m = 0; m < modules; m++) {
+        fprintf(file, "fun module%d() {\n", m);
+        int count = functions - m * MODULE_SIZE < MODULE_SIZE
+                    ? functions - m * MODULE_SIZE : MODULE_SIZE;
+        for (int i = 0; i < count; i++) {
+            fprintf(file, "  fun f%d(a, b) {\n", i);
+            fprintf(file, "    var s = \"f%d\";\n", m * MODULE_SIZE + i);
+            fprintf(file, "    for (var i = 0; i < a; i = i + 1) { if (i > b) s = s + i; }\n");
+            fprintf(file, "    return s + %d.5;\n", i);
+            fprintf(file, "  }\n");
+            if (i % 10 == 0) {
+                fprintf(file, "  class C%d { init(x) { this.x = x; } get() { return this.x * %d; } }\n",
+                        i, i);
+            }
+        }
+        fprintf(file, "  return f%d(2, 0);\n", count - 1);
+        fprintf(file, "}\n");
+    }
+    fprintf(file, "print module%d();\n", modules - 1);
+    fclose(file);
+}
+
+static int run(char* const argv[]) {
+    pid_t pid;
+    posix_spawn_file_actions_t actions;
+    posix_spawn_file_actions_init(&actions);
+    posix_spawn_file_actions_addopen(&actions, 1, "/dev/null", O_WRONLY, 0);
+    int status = -1;
+    if (posix_spawn(&pid, argv[0], &actions, NULL, argv, environ) == 0) {
+        waitpid(pid, &status, 0);
+    }
+    posix_spawn_file_actions_destroy(&actions);
+    return status;
+}
+
+static double medianRun(char* const argv[], int runs) {
+    double* times = malloc(sizeof(double) * runs);
+    for (int i = 0; i < runs; i++) {
+        double start = now();
+        if (run(argv) != 0) {
+            fprintf(stderr, "%s %s failed.\n", argv[0], argv[1]);
+            exit(70);
+        }
+        times[i] = now() - start;
+    }
+    qsort(times, runs, sizeof(double), compareDoubles);
+    double median = times[runs / 2];
+    free(times);
+    return median;
+}
+
+int main(int argc, char** argv) {
+    char* clox = argc > 1 ? argv[1] : "./clox";
+    int runs = argc > 2 ? atoi(argv[2]) : 21;
+
+    printf("%-10s %10s %10s %10s %8s\n", "functions", "source KB", "source ms", "image ms",
+           "speedup");
+    for (size_t i = 0; i < sizeof(SIZES) / sizeof(int); i++) {
+        char source[64];
+        char image[64];
+        snprintf(source, sizeof(source), "/tmp/clox-startup-%d.lox", SIZES[i]);
+        snprintf(image, sizeof(image), "/tmp/clox-startup-%d.loxi", SIZES[i]);
+        generate(source, SIZES[i]);
+
+        char* compileArgs[] = {clox, "--compile", source, image, NULL};
+        if (run(compileArgs) != 0) {
+            fprintf(stderr, "Could not compile \"%s\".\n", source);
+            return 70;
+        }
+
+        FILE* file = fopen(source, "r");
+        fseek(file, 0L, SEEK_END);
+        long size = ftell(file);
+        fclose(file);
+
+        char* sourceArgs[] = {clox, source, NULL};
+        char* imageArgs[] = {clox, image, NULL};
+        double sourceTime = medianRun(sourceArgs, runs);
+        double imageTime = medianRun(imageArgs, runs);
+        printf("%-10d %10ld %10.2f %10.2f %7.2fx\n", SIZES[i], size / 1024,
+               sourceTime * 1000, imageTime * 1000, sourceTime / imageTime);
+
+        remove(source);
+        remove(image);
+    }
+    return 0;
+}
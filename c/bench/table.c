@@ -0,0 +1,113 @@
+/*
+ * Times hash table lookups of interned strings at several load factors. Built by `make
+ * bench-table` with TABLE_MAX_LOAD raised to 0.95 so that every table below shares one
+ * capacity and only its fill changes. Hits look up keys that were inserted, misses look up
+ * interned strings that were not.
+ */
+#include <stdio.h>
+#include <stdlib.h>
+#include <stdint.h>
+#include <time.h>
+#include "../common.h"
+#include "../memory.h"
+#include "../object.h"
+#include "../table.h"
+#include "../vm.h"
+
+#define CAPACITY (1 << 16)
+#define LOOKUPS 20000000
+
+static const double LOAD_FACTORS[] = {0.5, 0.6, 0.7, 0.75, 0.8, 0.85, 0.9};
+
+static double now() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+static ObjString** makeKeys(const char* prefix, int count) {
+    ObjString** keys = malloc(sizeof(ObjString*) * count);
+    char buffer[32];
+    for (int i = 0; i < count; i++) {
+        int length = snprintf(buffer, sizeof(buffer), "%s%d", prefix, i);
+        keys[i] = copyString(buffer, length);
+    }
+    return keys;
+}
+
+// Buckets visited to find a key that is present, counting its own
+static double averageProbe(Table* table, ObjString** keys, int count) {
+    long probes = 0;
+    for (int i = 0; i < count; i++) {
+        uint32_t index = keys[i]->hash & (table->capacity - 1);
+        probes++;
+        while (table->entries[index].key != keys[i]) {
+            index = (index + 1) & (table->capacity - 1);
+            probes++;
+        }
+    }
+    return (double)probes / count;
+}
+
+// Walks a fixed pseudo-random sequence of the keys so that the loop cannot be hoisted
+static double timeLookups(Table* table, ObjString** keys, int count, int* found) {
+    unsigned int seed = 12345;
+    int hits = 0;
+    Value value;
+    double start = now();
+    for (int i = 0; i < LOOKUPS; i++) {
+        seed = seed * 1103515245 + 12345;
+        if (tableGet(table, keys[(seed >> 4) % count], &value)) hits++;
+    }
+    double elapsed = now() - start;
+    *found = hits;
+    return elapsed * 1e9 / LOOKUPS;
+}
+
+int main(int argc, char** argv) {
+    initVM();
+    // The keys are referenced only from the tables under test, which are not GC roots
+    vm.nextGC = SIZE_MAX;
+
+    int maxKeys = (int)(CAPACITY * LOAD_FACTORS[sizeof(LOAD_FACTORS) / sizeof(double) - 1]);
+    ObjString** keys = makeKeys("key", maxKeys);
+    ObjString** misses = makeKeys("miss", maxKeys);
+
+    printf("%-6s %8s %10s %10s %10s %10s\n",
+           "load", "keys", "probe", "hit ns", "miss ns", "M hits/s");
+    for (size_t i = 0; i < sizeof(LOAD_FACTORS) / sizeof(double); i++) {
+        int count = (int)(CAPACITY * LOAD_FACTORS[i]);
+
+        Table table;
+        initTable(&table);
+        for (int k = 0; k < count; k++) {
+            tableSet(&table, keys[k], NUMBER_VAL(k));
+        }
+        if (table.capacity != CAPACITY) {
+            fprintf(stderr, "Expected capacity %d, got %d.\n", CAPACITY, table.capacity);
+            return 1;
+        }
+
+        int found;
+        double hit = timeLookups(&table, keys, count, &found);
+        if (found != LOOKUPS) {
+            fprintf(stderr, "Lost keys at load %.2f.\n", LOAD_FACTORS[i]);
+            return 1;
+        }
+        double miss = timeLookups(&table, misses, count, &found);
+        if (found != 0) {
+            fprintf(stderr, "Found missing keys at load %.2f.\n", LOAD_FACTORS[i]);
+            return 1;
+        }
+
+        printf("%-6.2f %8d %10.2f %10.1f %10.1f %10.1f\n",
+               (double)table.count / table.capacity, count,
+               averageProbe(&table, keys, count), hit, miss, 1e3 / hit);
+        freeTable(&table);
+    }
+
+    free(keys);
+    free(misses);
+    freeVM();
+    return 0;
+}
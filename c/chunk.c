@@ -1,18 +1,28 @@
+#include <stdio.h>
 #include <stdlib.h>
+#include <string.h>
 #include "chunk.h"
 #include "memory.h"
+#include "vm.h"
 
 void initChunk(Chunk* chunk) {
     chunk->count = 0;
     chunk->capacity = 0;
     chunk->code = NULL;
+    chunk->lineCount = 0;
+    chunk->lineCapacity = 0;
     chunk->lines = NULL;
     initValueArray(&chunk->constants);
+    chunk->constantSlotCount = 0;
+    chunk->constantSlots = NULL;
 }
 
 void freeChunk(Chunk* chunk) {
-    FREE_ARRAY(uint8_t, chunk->code, chunk->capacity);
-    FREE_ARRAY(int, chunk->lines, chunk->capacity);
+    // A chunk loaded from an image borrows its code and lines from the mapping
+    if (chunk->capacity > 0) FREE_ARRAY(uint8_t, chunk->code, chunk->capacity);
+    if (chunk->lineCapacity > 0) FREE_ARRAY(LineRun, chunk->lines, chunk->lineCapacity);
+    freeValueArray(&chunk->constants);
+    FREE_ARRAY(int, chunk->constantSlots, chunk->constantSlotCount);
     initChunk(chunk);
 }
 
@@ -21,15 +31,135 @@ void writeChunk(Chunk* chunk, uint8_t byte, int line) {
         int oldCapacity = chunk->capacity;
         chunk->capacity = GROW_CAPACITY(oldCapacity);
         chunk->code = GROW_ARRAY(uint8_t, chunk->code, oldCapacity, chunk->capacity);
-        chunk->lines = GROW_ARRAY(int, chunk->lines, oldCapacity, chunk->capacity);
     }
 
     chunk->code[chunk->count] = byte;
-    chunk->lines[chunk->count] = line;
     chunk->count++;
+
+    if (chunk->lineCount > 0 && chunk->lines[chunk->lineCount - 1].line == line) {
+        chunk->lines[chunk->lineCount - 1].count++;
+        return;
+    }
+
+    if (chunk->lineCapacity < chunk->lineCount + 1) {
+        int oldCapacity = chunk->lineCapacity;
+        chunk->lineCapacity = GROW_CAPACITY(oldCapacity);
+        chunk->lines = GROW_ARRAY(LineRun, chunk->lines, oldCapacity, chunk->lineCapacity);
+    }
+
+    LineRun* run = &chunk->lines[chunk->lineCount++];
+    run->line = line;
+    run->count = 1;
+}
+
+/*
+ * Constants are shared when they are the same value bit for bit, rather than by valuesEqual():
+ * 0 and -0 must stay distinct and NaN must still find itself.
+ */
+static uint32_t hashConstant(Value value) {
+    uint64_t bits;
+#ifdef NAN_BOXING
+    bits = value;
+#else
+    switch (value.type) {
+        case VAL_NUMBER: memcpy(&bits, &value.as.number, sizeof(double)); break;
+        case VAL_OBJ:    bits = (uint64_t)(uintptr_t)value.as.obj; break;
+        case VAL_BOOL:   bits = value.as.boolean; break;
+        default:         bits = 0; break;
+    }
+    bits ^= (uint64_t)value.type << 56;
+#endif
+    // 64-bit finalizer from MurmurHash3
+    bits ^= bits >> 33;
+    bits *= 0xff51afd7ed558ccdULL;
+    bits ^= bits >> 33;
+    return (uint32_t)bits;
+}
+
+static bool sameConstant(Value a, Value b) {
+#ifdef NAN_BOXING
+    return a == b;
+#else
+    if (a.type != b.type) return false;
+    switch (a.type) {
+        case VAL_NUMBER: return memcmp(&a.as.number, &b.as.number, sizeof(double)) == 0;
+        case VAL_OBJ:    return a.as.obj == b.as.obj;
+        case VAL_BOOL:   return a.as.boolean == b.as.boolean;
+        default:         return true;
+    }
+#endif
+}
+
+static int* findConstantSlot(int* slots, int slotCount, ValueArray* constants, Value value) {
+    uint32_t index = hashConstant(value) & (slotCount - 1);
+    for (;;) {
+        int* slot = &slots[index];
+        if (*slot == 0 || sameConstant(constants->values[*slot - 1], value)) return slot;
+        index = (index + 1) & (slotCount - 1);
+    }
+}
+
+static void growConstantSlots(Chunk* chunk) {
+    int slotCount = GROW_CAPACITY(chunk->constantSlotCount);
+    int* slots = GROW_ARRAY(int, NULL, 0, slotCount);
+    for (int i = 0; i < slotCount; i++) slots[i] = 0;
+
+    for (int i = 0; i < chunk->constants.count; i++) {
+        *findConstantSlot(slots, slotCount, &chunk->constants, chunk->constants.values[i]) = i + 1;
+    }
+
+    FREE_ARRAY(int, chunk->constantSlots, chunk->constantSlotCount);
+    chunk->constantSlots = slots;
+    chunk->constantSlotCount = slotCount;
 }
 
 int addConstant(Chunk *chunk, Value value) {
+    // Growing either array can collect garbage, so keep the value reachable until it is stored
+    push(value);
+
+    // Keep the table at most three quarters full
+    if ((chunk->constants.count + 1) * 4 > chunk->constantSlotCount * 3) {
+        growConstantSlots(chunk);
+    }
+
+    int* slot = findConstantSlot(chunk->constantSlots, chunk->constantSlotCount,
+                                 &chunk->constants, value);
+    if (*slot != 0) {
+        pop();
+        return *slot - 1;
+    }
+
     writeValueArray(&chunk->constants, value);
+    *slot = chunk->constants.count;
+    pop();
     return chunk->constants.count - 1;
 }
+
+void writeConstant(Chunk* chunk, Value value, int line) {
+    int constant = addConstant(chunk, value);
+    if (constant <= UINT8_MAX) {
+        writeChunk(chunk, OP_CONSTANT, line);
+        writeChunk(chunk, (uint8_t)constant, line);
+        return;
+    }
+
+    if (constant > CONSTANT_LONG_MAX) {
+        fprintf(stderr, "Too many constants in one chunk.\n");
+        exit(1);
+    }
+
+    writeChunk(chunk, OP_CONSTANT_LONG, line);
+    writeChunk(chunk, (uint8_t)(constant >> 16), line);
+    writeChunk(chunk, (uint8_t)(constant >> 8), line);
+    writeChunk(chunk, (uint8_t)constant, line);
+}
+
+// Walks the runs from the start; only disassembly and error reporting need lines
+int getLine(Chunk* chunk, int offset) {
+    int start = 0;
+    for (int i = 0; i < chunk->lineCount; i++) {
+        start += chunk->lines[i].count;
+        if (offset < start) return chunk->lines[i].line;
+    }
+    return -1;
+}
@@ -4,22 +4,88 @@
 #include "common.h"
 #include "value.h"
 
+// Largest constant index an OP_CONSTANT_LONG can address
+#define CONSTANT_LONG_MAX 0xffffff
+
 typedef enum {
     OP_CONSTANT,
+    OP_CONSTANT_LONG,
+    OP_NIL,
+    OP_TRUE,
+    OP_FALSE,
+    OP_POP,
+    OP_GET_LOCAL,
+    OP_SET_LOCAL,
+    OP_GET_GLOBAL,
+    OP_DEFINE_GLOBAL,
+    OP_SET_GLOBAL,
+    OP_GET_UPVALUE,
+    OP_SET_UPVALUE,
+    OP_GET_PROPERTY,
+    OP_SET_PROPERTY,
+    OP_GET_SUPER,
+    OP_EQUAL,
+    OP_GREATER,
+    OP_LESS,
+    OP_ADD,
+    OP_SUBTRACT,
+    OP_MULTIPLY,
+    OP_DIVIDE,
+    OP_NOT,
+    OP_NEGATE,
+    OP_PRINT,
+    OP_JUMP,
+    OP_JUMP_IF_FALSE,
+    OP_LOOP,
+    OP_CALL,
+    OP_INVOKE,
+    OP_SUPER_INVOKE,
+    OP_CLOSURE,
+    OP_CLOSE_UPVALUE,
     OP_RETURN,
+    OP_CLASS,
+    OP_INHERIT,
+    OP_METHOD,
+    // Long forms of the instructions that name a constant, used once a chunk has more than 256
+    // constants. Their index is three bytes, big-endian, like OP_CONSTANT_LONG's.
+    OP_GET_GLOBAL_LONG,
+    OP_DEFINE_GLOBAL_LONG,
+    OP_SET_GLOBAL_LONG,
+    OP_GET_PROPERTY_LONG,
+    OP_SET_PROPERTY_LONG,
+    OP_GET_SUPER_LONG,
+    OP_INVOKE_LONG,
+    OP_SUPER_INVOKE_LONG,
+    OP_CLOSURE_LONG,
+    OP_CLASS_LONG,
+    OP_METHOD_LONG,
 } OpCode;
 
+// Consecutive code bytes that came from the same source line
+typedef struct {
+    int line;
+    int count;
+} LineRun;
+
+// capacity and lineCapacity are zero when code and lines point into a mapped image
 typedef struct {
     int count;
     int capacity;
     uint8_t* code;
-    int *lines;
+    int lineCount;
+    int lineCapacity;
+    LineRun* lines;
     ValueArray constants;
+    // Open-addressed table of constant indexes plus one, zero for empty, for deduplication
+    int constantSlotCount;
+    int* constantSlots;
 } Chunk;
 
 void initChunk(Chunk* chunk);
 void freeChunk(Chunk* chunk);
 void writeChunk(Chunk* chunk, uint8_t byte, int line);
 int addConstant(Chunk* chunk, Value value);
+void writeConstant(Chunk* chunk, Value value, int line);
+int getLine(Chunk* chunk, int offset);
 
 #endif
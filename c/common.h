@@ -5,4 +5,31 @@
 #include <stddef.h>
 #include <stdint.h>
 
+// Represent values as NaN-boxed 64-bit words instead of 16-byte tagged unions
+#ifndef NO_NAN_BOXING
+#define NAN_BOXING
+#endif
+
+// Disassemble each function once it has compiled
+//#define DEBUG_PRINT_CODE
+
+// Print the stack and each instruction as the VM executes it
+//#define DEBUG_TRACE_EXECUTION
+
+// Collect garbage on every allocation that grows the heap, to shake out missing roots
+//#define DEBUG_STRESS_GC
+
+// Log every allocation, mark, blacken and free the collector performs
+//#define DEBUG_LOG_GC
+
+// Count collections, their pause times and the bytes requested, for the GC benchmark
+//#define GC_STATS
+
+// Dispatch with GCC's labels-as-values unless told otherwise or unavailable
+#if defined(__GNUC__) && !defined(NO_COMPUTED_GOTO)
+#define COMPUTED_GOTO
+#endif
+
+#define UINT8_COUNT (UINT8_MAX + 1)
+
 #endif
@@ -0,0 +1,645 @@
+#include <fcntl.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+#include "image.h"
+#include "memory.h"
+#include "vm.h"
+
+/*
+ * Layout of an image, in the byte order of the machine that wrote it:
+ *
+ *   ImageHeader
+ *   ImageFunction[functionCount]    the script is function zero
+ *   data                            code, line runs, constants and names, per function
+ *
+ * Code and line runs are laid out so that a mapped image can be used in place. Constants are
+ * rebuilt as heap values on load: a tag byte, then eight bytes of double for a number, a
+ * length-prefixed string, or the index of a function. A function's nested functions always
+ * have higher indexes than it does.
+ */
+
+#define IMAGE_BYTE_ORDER 0x01020304
+#define IMAGE_NO_NAME 0xffffffff
+// Deepest nesting of functions a loaded image may have. Each level takes a slot on the VM stack
+// and a C stack frame while it loads.
+#define IMAGE_MAX_DEPTH 256
+
+typedef struct {
+    char magic[4];
+    uint32_t version;
+    uint32_t byteOrder;
+    uint32_t functionCount;
+} ImageHeader;
+
+typedef struct {
+    uint32_t codeOffset;
+    uint32_t codeLength;
+    uint32_t linesOffset;
+    uint32_t lineCount;
+    uint32_t constantsOffset;
+    uint32_t constantCount;
+    uint32_t nameOffset;
+    uint16_t arity;
+    uint16_t upvalueCount;
+} ImageFunction;
+
+typedef enum {
+    CONSTANT_NIL,
+    CONSTANT_FALSE,
+    CONSTANT_TRUE,
+    CONSTANT_NUMBER,
+    CONSTANT_STRING,
+    CONSTANT_FUNCTION
+} ConstantTag;
+
+typedef struct {
+    uint8_t* bytes;
+    size_t count;
+    size_t capacity;
+} Buffer;
+
+static size_t append(Buffer* buffer, const void* data, size_t length) {
+    if (buffer->count + length > buffer->capacity) {
+        while (buffer->count + length > buffer->capacity) {
+            buffer->capacity = GROW_CAPACITY(buffer->capacity);
+        }
+        buffer->bytes = realloc(buffer->bytes, buffer->capacity);
+        if (buffer->bytes == NULL) exit(1);
+    }
+
+    size_t offset = buffer->count;
+    memcpy(buffer->bytes + offset, data, length);
+    buffer->count += length;
+    return offset;
+}
+
+static void align(Buffer* buffer, size_t alignment) {
+    static const uint8_t padding[8] = {0};
+    size_t extra = buffer->count % alignment;
+    if (extra != 0) append(buffer, padding, alignment - extra);
+}
+
+static uint32_t appendString(Buffer* buffer, ObjString* string) {
+    uint32_t length = (uint32_t)string->length;
+    uint32_t offset = (uint32_t)append(buffer, &length, sizeof(length));
+    append(buffer, string->chars, length);
+    return offset;
+}
+
+typedef struct {
+    ObjFunction** functions;
+    int count;
+    int capacity;
+} FunctionList;
+
+static int addFunction(FunctionList* list, ObjFunction* function) {
+    if (list->count == list->capacity) {
+        list->capacity = GROW_CAPACITY(list->capacity);
+        list->functions = realloc(list->functions, sizeof(ObjFunction*) * list->capacity);
+        if (list->functions == NULL) exit(1);
+    }
+    list->functions[list->count] = function;
+    return list->count++;
+}
+
+static int indexOfFunction(FunctionList* list, ObjFunction* function) {
+    for (int i = 0; i < list->count; i++) {
+        if (list->functions[i] == function) return i;
+    }
+    return -1;
+}
+
+// Breadth first, so that every nested function comes after the one that contains it
+static void collectFunctions(FunctionList* list, ObjFunction* script) {
+    addFunction(list, script);
+    for (int i = 0; i < list->count; i++) {
+        ValueArray* constants = &list->functions[i]->chunk.constants;
+        for (int j = 0; j < constants->count; j++) {
+            if (IS_FUNCTION(constants->values[j])) {
+                addFunction(list, AS_FUNCTION(constants->values[j]));
+            }
+        }
+    }
+}
+
+static void appendConstant(Buffer* buffer, FunctionList* list, Value value) {
+    uint8_t tag;
+    if (IS_NIL(value)) {
+        tag = CONSTANT_NIL;
+        append(buffer, &tag, 1);
+    } else if (IS_BOOL(value)) {
+        tag = AS_BOOL(value) ? CONSTANT_TRUE : CONSTANT_FALSE;
+        append(buffer, &tag, 1);
+    } else if (IS_NUMBER(value)) {
+        double number = AS_NUMBER(value);
+        tag = CONSTANT_NUMBER;
+        append(buffer, &tag, 1);
+        append(buffer, &number, sizeof(number));
+    } else if (IS_STRING(value)) {
+        tag = CONSTANT_STRING;
+        append(buffer, &tag, 1);
+        appendString(buffer, AS_STRING(value));
+    } else {
+        // The compiler only puts numbers, strings and functions in the constant pool
+        uint32_t index = (uint32_t)indexOfFunction(list, AS_FUNCTION(value));
+        tag = CONSTANT_FUNCTION;
+        append(buffer, &tag, 1);
+        append(buffer, &index, sizeof(index));
+    }
+}
+
+bool writeImage(ObjFunction* script, const char* path) {
+    FunctionList list = {NULL, 0, 0};
+    collectFunctions(&list, script);
+
+    Buffer buffer = {NULL, 0, 0};
+    ImageHeader header;
+    memcpy(header.magic, IMAGE_MAGIC, sizeof(header.magic));
+    header.version = IMAGE_VERSION;
+    header.byteOrder = IMAGE_BYTE_ORDER;
+    header.functionCount = (uint32_t)list.count;
+    append(&buffer, &header, sizeof(header));
+
+    // The table is filled in once the data offsets are known
+    size_t tableOffset = buffer.count;
+    ImageFunction* table = calloc(list.count, sizeof(ImageFunction));
+    if (table == NULL) exit(1);
+    append(&buffer, table, sizeof(ImageFunction) * list.count);
+
+    for (int i = 0; i < list.count; i++) {
+        ObjFunction* function = list.functions[i];
+        Chunk* chunk = &function->chunk;
+        ImageFunction* entry = &table[i];
+
+        entry->arity = (uint16_t)function->arity;
+        entry->upvalueCount = (uint16_t)function->upvalueCount;
+        entry->nameOffset = function->name != NULL
+                            ? appendString(&buffer, function->name) : IMAGE_NO_NAME;
+
+        entry->codeLength = (uint32_t)chunk->count;
+        entry->codeOffset = (uint32_t)append(&buffer, chunk->code, chunk->count);
+
+        align(&buffer, sizeof(int));
+        entry->lineCount = (uint32_t)chunk->lineCount;
+        entry->linesOffset = (uint32_t)append(&buffer, chunk->lines,
+                                              sizeof(LineRun) * chunk->lineCount);
+
+        entry->constantCount = (uint32_t)chunk->constants.count;
+        entry->constantsOffset = (uint32_t)buffer.count;
+        for (int j = 0; j < chunk->constants.count; j++) {
+            appendConstant(&buffer, &list, chunk->constants.values[j]);
+        }
+    }
+    memcpy(buffer.bytes + tableOffset, table, sizeof(ImageFunction) * list.count);
+
+    bool written = false;
+    FILE* file = fopen(path, "wb");
+    if (file != NULL) {
+        written = fwrite(buffer.bytes, 1, buffer.count, file) == buffer.count;
+        written = fclose(file) == 0 && written;
+    }
+
+    free(table);
+    free(buffer.bytes);
+    free(list.functions);
+    return written;
+}
+
+typedef struct {
+    const uint8_t* base;
+    size_t size;
+    const ImageFunction* table;
+    uint32_t functionCount;
+    // Scratch space for verifyCode(), one int per code byte, reused from function to function
+    int* heights;
+    int* worklist;
+    int scratchCapacity;
+} Loader;
+
+static bool inBounds(Loader* loader, size_t offset, size_t length) {
+    return offset <= loader->size && length <= loader->size - offset;
+}
+
+static ObjString* readString(Loader* loader, size_t* offset) {
+    uint32_t length;
+    if (!inBounds(loader, *offset, sizeof(length))) return NULL;
+    memcpy(&length, loader->base + *offset, sizeof(length));
+    *offset += sizeof(length);
+
+    if (!inBounds(loader, *offset, length)) return NULL;
+    ObjString* string = copyString((const char*)loader->base + *offset, (int)length);
+    *offset += length;
+    return string;
+}
+
+// One instruction of a loaded function, as far as verifying it needs
+typedef struct {
+    int length;    // opcode plus operand bytes
+    int pops;      // values it needs on the stack
+    int pushes;    // values it leaves there in their place
+    int local;     // highest stack slot it reads or captures, or -1
+    int target;    // where it jumps, or -1
+    bool falls;    // whether it can go on to the next instruction
+} Instruction;
+
+// What an opcode's operands are, for decode()
+typedef enum {
+    OPERANDS_NONE,
+    OPERANDS_CONSTANT,   // a constant index
+    OPERANDS_NAME,       // a constant index naming a string
+    OPERANDS_LOCAL,      // a stack slot
+    OPERANDS_UPVALUE,    // an upvalue index
+    OPERANDS_CALL,       // an argument count
+    OPERANDS_INVOKE,     // a constant index naming a string, then an argument count
+    OPERANDS_JUMP,       // a two-byte offset
+    OPERANDS_CLOSURE,    // a function constant index, then two bytes per upvalue it captures
+} OperandKind;
+
+typedef struct {
+    uint8_t kind;
+    uint8_t indexBytes;    // bytes of constant index: one, or three for the long forms
+    uint8_t operandBytes;  // all operand bytes, apart from a closure's upvalue pairs
+    uint8_t pops;          // values it needs on the stack, besides any arguments
+    uint8_t pushes;        // values it leaves there in their place
+    bool falls;            // whether it can go on to the next instruction
+} OpcodeInfo;
+
+// Indexed by opcode. Every opcode in chunk.h needs an entry; anything past the end is unknown.
+static const OpcodeInfo opcodes[] = {
+    [OP_CONSTANT] =            {OPERANDS_CONSTANT, 1, 1, 0, 1, true},
+    [OP_CONSTANT_LONG] =       {OPERANDS_CONSTANT, 3, 3, 0, 1, true},
+    [OP_NIL] =                 {OPERANDS_NONE,     0, 0, 0, 1, true},
+    [OP_TRUE] =                {OPERANDS_NONE,     0, 0, 0, 1, true},
+    [OP_FALSE] =               {OPERANDS_NONE,     0, 0, 0, 1, true},
+    [OP_POP] =                 {OPERANDS_NONE,     0, 0, 1, 0, true},
+    [OP_GET_LOCAL] =           {OPERANDS_LOCAL,    0, 1, 0, 1, true},
+    [OP_SET_LOCAL] =           {OPERANDS_LOCAL,    0, 1, 1, 1, true},
+    [OP_GET_GLOBAL] =          {OPERANDS_NAME,     1, 1, 0, 1, true},
+    [OP_DEFINE_GLOBAL] =       {OPERANDS_NAME,     1, 1, 1, 0, true},
+    [OP_SET_GLOBAL] =          {OPERANDS_NAME,     1, 1, 1, 1, true},
+    [OP_GET_UPVALUE] =         {OPERANDS_UPVALUE,  0, 1, 0, 1, true},
+    [OP_SET_UPVALUE] =         {OPERANDS_UPVALUE,  0, 1, 1, 1, true},
+    [OP_GET_PROPERTY] =        {OPERANDS_NAME,     1, 1, 1, 1, true},
+    [OP_SET_PROPERTY] =        {OPERANDS_NAME,     1, 1, 2, 1, true},
+    [OP_GET_SUPER] =           {OPERANDS_NAME,     1, 1, 2, 1, true},
+    [OP_EQUAL] =               {OPERANDS_NONE,     0, 0, 2, 1, true},
+    [OP_GREATER] =             {OPERANDS_NONE,     0, 0, 2, 1, true},
+    [OP_LESS] =                {OPERANDS_NONE,     0, 0, 2, 1, true},
+    [OP_ADD] =                 {OPERANDS_NONE,     0, 0, 2, 1, true},
+    [OP_SUBTRACT] =            {OPERANDS_NONE,     0, 0, 2, 1, true},
+    [OP_MULTIPLY] =            {OPERANDS_NONE,     0, 0, 2, 1, true},
+    [OP_DIVIDE] =              {OPERANDS_NONE,     0, 0, 2, 1, true},
+    [OP_NOT] =                 {OPERANDS_NONE,     0, 0, 1, 1, true},
+    [OP_NEGATE] =              {OPERANDS_NONE,     0, 0, 1, 1, true},
+    [OP_PRINT] =               {OPERANDS_NONE,     0, 0, 1, 0, true},
+    [OP_JUMP] =                {OPERANDS_JUMP,     0, 2, 0, 0, false},
+    // The condition stays on the stack for the code after the jump to pop
+    [OP_JUMP_IF_FALSE] =       {OPERANDS_JUMP,     0, 2, 1, 1, true},
+    [OP_LOOP] =                {OPERANDS_JUMP,     0, 2, 0, 0, false},
+    // The callee, then the arguments
+    [OP_CALL] =                {OPERANDS_CALL,     0, 1, 1, 1, true},
+    // The receiver, then the arguments, and for a super call the superclass above them
+    [OP_INVOKE] =              {OPERANDS_INVOKE,   1, 2, 1, 1, true},
+    [OP_SUPER_INVOKE] =        {OPERANDS_INVOKE,   1, 2, 2, 1, true},
+    [OP_CLOSURE] =             {OPERANDS_CLOSURE,  1, 1, 0, 1, true},
+    [OP_CLOSE_UPVALUE] =       {OPERANDS_NONE,     0, 0, 1, 0, true},
+    [OP_RETURN] =              {OPERANDS_NONE,     0, 0, 1, 0, false},
+    [OP_CLASS] =               {OPERANDS_NAME,     1, 1, 0, 1, true},
+    // Leaves the superclass, which becomes the "super" local
+    [OP_INHERIT] =             {OPERANDS_NONE,     0, 0, 2, 1, true},
+    [OP_METHOD] =              {OPERANDS_NAME,     1, 1, 2, 1, true},
+    [OP_GET_GLOBAL_LONG] =     {OPERANDS_NAME,     3, 3, 0, 1, true},
+    [OP_DEFINE_GLOBAL_LONG] =  {OPERANDS_NAME,     3, 3, 1, 0, true},
+    [OP_SET_GLOBAL_LONG] =     {OPERANDS_NAME,     3, 3, 1, 1, true},
+    [OP_GET_PROPERTY_LONG] =   {OPERANDS_NAME,     3, 3, 1, 1, true},
+    [OP_SET_PROPERTY_LONG] =   {OPERANDS_NAME,     3, 3, 2, 1, true},
+    [OP_GET_SUPER_LONG] =      {OPERANDS_NAME,     3, 3, 2, 1, true},
+    [OP_INVOKE_LONG] =         {OPERANDS_INVOKE,   3, 4, 1, 1, true},
+    [OP_SUPER_INVOKE_LONG] =   {OPERANDS_INVOKE,   3, 4, 2, 1, true},
+    [OP_CLOSURE_LONG] =        {OPERANDS_CLOSURE,  3, 3, 0, 1, true},
+    [OP_CLASS_LONG] =          {OPERANDS_NAME,     3, 3, 0, 1, true},
+    [OP_METHOD_LONG] =         {OPERANDS_NAME,     3, 3, 2, 1, true},
+};
+
+/*
+ * Decodes the instruction at offset, checking that its operands lie inside the code, that any
+ * constant it names exists and has the type it expects, and that any upvalue it names exists.
+ */
+static bool decode(ObjFunction* function, int offset, Instruction* instruction) {
+    Chunk* chunk = &function->chunk;
+    uint8_t opcode = chunk->code[offset];
+    if (opcode >= sizeof(opcodes) / sizeof(opcodes[0])) return false;
+    const OpcodeInfo* info = &opcodes[opcode];
+    if (offset + info->operandBytes >= chunk->count) return false;
+    const uint8_t* operands = chunk->code + offset + 1;
+
+    instruction->length = 1 + info->operandBytes;
+    instruction->pops = info->pops;
+    instruction->pushes = info->pushes;
+    instruction->local = -1;
+    instruction->target = -1;
+    instruction->falls = info->falls;
+
+    uint32_t constant = 0;
+    if (info->indexBytes == 1) {
+        constant = operands[0];
+    } else if (info->indexBytes == 3) {
+        constant = ((uint32_t)operands[0] << 16) | (operands[1] << 8) | operands[2];
+    }
+    if (info->indexBytes > 0 && constant >= (uint32_t)chunk->constants.count) return false;
+    Value* constants = chunk->constants.values;
+
+    switch (info->kind) {
+        case OPERANDS_NONE:
+        case OPERANDS_CONSTANT:
+            return true;
+        case OPERANDS_NAME:
+            return IS_STRING(constants[constant]);
+        case OPERANDS_LOCAL:
+            instruction->local = operands[0];
+            return true;
+        case OPERANDS_UPVALUE:
+            return operands[0] < function->upvalueCount;
+        case OPERANDS_CALL:
+            instruction->pops += operands[0];
+            return true;
+        case OPERANDS_INVOKE:
+            instruction->pops += operands[info->indexBytes];
+            return IS_STRING(constants[constant]);
+        case OPERANDS_JUMP: {
+            int jump = (operands[0] << 8) | operands[1];
+            instruction->target = opcode == OP_LOOP ? offset + 3 - jump : offset + 3 + jump;
+            return instruction->target >= 0 && instruction->target < chunk->count;
+        }
+        case OPERANDS_CLOSURE: {
+            if (!IS_FUNCTION(constants[constant])) return false;
+            int upvalueCount = AS_FUNCTION(constants[constant])->upvalueCount;
+            instruction->length += 2 * upvalueCount;
+            if (offset + instruction->length > chunk->count) return false;
+            const uint8_t* pairs = operands + info->indexBytes;
+            for (int i = 0; i < upvalueCount; i++) {
+                uint8_t isLocal = pairs[2 * i];
+                uint8_t index = pairs[2 * i + 1];
+                if (isLocal) {
+                    if (index > instruction->local) instruction->local = index;
+                } else if (index >= function->upvalueCount) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    return false;
+}
+
+// Marks in verifyCode()'s height table for bytes no path has reached, and for operand bytes
+#define UNREACHED -1
+#define OPERAND -2
+
+/*
+ * Checks the code of a loaded function before the VM ever runs it, since the VM trusts its
+ * bytecode. Following every path from the entry, each instruction must decode, jumps must land
+ * on the start of an instruction and no path may run off the end of the code. The stack must
+ * have the same height wherever paths meet, never drop below what an instruction pops, and
+ * hold every local slot an instruction reads or captures. Code no path reaches is never run,
+ * so it is not checked.
+ */
+static bool verifyCode(Loader* loader, ObjFunction* function) {
+    Chunk* chunk = &function->chunk;
+    int count = chunk->count;
+    if (count == 0) return false;
+
+    if (count > loader->scratchCapacity) {
+        loader->heights = realloc(loader->heights, sizeof(int) * count);
+        loader->worklist = realloc(loader->worklist, sizeof(int) * count);
+        if (loader->heights == NULL || loader->worklist == NULL) exit(1);
+        loader->scratchCapacity = count;
+    }
+    // Stack height on entry to each instruction
+    int* heights = loader->heights;
+    int* worklist = loader->worklist;
+    for (int i = 0; i < count; i++) heights[i] = UNREACHED;
+
+    // Slot zero holds the function being called, followed by its parameters
+    heights[0] = 1 + function->arity;
+    int worklistCount = 0;
+    worklist[worklistCount++] = 0;
+    while (worklistCount > 0) {
+        // Follows straight-line code directly, queueing only the other side of each branch
+        int offset = worklist[--worklistCount];
+        while (offset >= 0) {
+            Instruction instruction;
+            if (!decode(function, offset, &instruction)) return false;
+            for (int i = offset + 1; i < offset + instruction.length; i++) {
+                // An operand byte that some path treats as an instruction
+                if (heights[i] >= 0) return false;
+                heights[i] = OPERAND;
+            }
+
+            int height = heights[offset];
+            if (height < instruction.pops || instruction.local >= height) return false;
+            height += instruction.pushes - instruction.pops;
+            if (height > STACK_MAX) return false;
+
+            int next[2];
+            int nextCount = 0;
+            if (instruction.falls) next[nextCount++] = offset + instruction.length;
+            if (instruction.target >= 0) next[nextCount++] = instruction.target;
+            offset = -1;
+            for (int i = 0; i < nextCount; i++) {
+                if (next[i] >= count) return false;
+                if (heights[next[i]] == UNREACHED) {
+                    heights[next[i]] = height;
+                    if (offset < 0) {
+                        offset = next[i];
+                    } else {
+                        worklist[worklistCount++] = next[i];
+                    }
+                } else if (heights[next[i]] != height) {
+                    // Paths disagree on the height, or one jumps into an instruction's operands
+                    return false;
+                }
+            }
+        }
+    }
+    return true;
+}
+
+/*
+ * The function is kept on the VM stack while it is being filled in, so everything it already
+ * refers to survives any collection triggered by the strings and functions loaded after it.
+ */
+static ObjFunction* loadFunction(Loader* loader, uint32_t index, int depth) {
+    const ImageFunction* entry = &loader->table[index];
+    if (depth > IMAGE_MAX_DEPTH) return NULL;
+    // The script is called with no arguments and closes over nothing
+    if (index == 0 && (entry->arity != 0 || entry->upvalueCount != 0)) return NULL;
+    if (!inBounds(loader, entry->codeOffset, entry->codeLength) ||
+        !inBounds(loader, entry->linesOffset, sizeof(LineRun) * (size_t)entry->lineCount) ||
+        entry->linesOffset % sizeof(int) != 0) {
+        return NULL;
+    }
+
+    // Every constant takes at least its tag byte, so a larger count cannot be genuine
+    if (entry->constantsOffset > loader->size ||
+        entry->constantCount > loader->size - entry->constantsOffset) {
+        return NULL;
+    }
+
+    ObjFunction* function = newFunction();
+    push(OBJ_VAL(function));
+    function->arity = entry->arity;
+    function->upvalueCount = entry->upvalueCount;
+
+    if (entry->nameOffset != IMAGE_NO_NAME) {
+        size_t offset = entry->nameOffset;
+        function->name = readString(loader, &offset);
+        if (function->name == NULL) return NULL;
+    }
+
+    Chunk* chunk = &function->chunk;
+    chunk->code = (uint8_t*)loader->base + entry->codeOffset;
+    chunk->count = (int)entry->codeLength;
+    chunk->lines = (LineRun*)(loader->base + entry->linesOffset);
+    chunk->lineCount = (int)entry->lineCount;
+
+    ValueArray* constants = &chunk->constants;
+    constants->values = ALLOCATE(Value, entry->constantCount);
+    constants->capacity = (int)entry->constantCount;
+
+    size_t offset = entry->constantsOffset;
+    for (uint32_t i = 0; i < entry->constantCount; i++) {
+        if (!inBounds(loader, offset, 1)) return NULL;
+        uint8_t tag = loader->base[offset++];
+
+        Value value;
+        switch (tag) {
+            case CONSTANT_NIL: value = NIL_VAL; break;
+            case CONSTANT_FALSE: value = BOOL_VAL(false); break;
+            case CONSTANT_TRUE: value = BOOL_VAL(true); break;
+            case CONSTANT_NUMBER: {
+                double number;
+                if (!inBounds(loader, offset, sizeof(number))) return NULL;
+                memcpy(&number, loader->base + offset, sizeof(number));
+                offset += sizeof(number);
+                value = NUMBER_VAL(number);
+                break;
+            }
+            case CONSTANT_STRING: {
+                ObjString* string = readString(loader, &offset);
+                if (string == NULL) return NULL;
+                value = OBJ_VAL(string);
+                break;
+            }
+            case CONSTANT_FUNCTION: {
+                uint32_t child;
+                if (!inBounds(loader, offset, sizeof(child))) return NULL;
+                memcpy(&child, loader->base + offset, sizeof(child));
+                offset += sizeof(child);
+                // Only forward references, so a damaged image cannot recurse forever
+                if (child <= index || child >= loader->functionCount) return NULL;
+                ObjFunction* nested = loadFunction(loader, child, depth + 1);
+                if (nested == NULL) return NULL;
+                value = OBJ_VAL(nested);
+                break;
+            }
+            default:
+                return NULL;
+        }
+
+        constants->values[i] = value;
+        constants->count = (int)i + 1;
+    }
+
+    if (!verifyCode(loader, function)) return NULL;
+
+    pop();
+    return function;
+}
+
+bool isImageFile(const char* path) {
+    char magic[4];
+    FILE* file = fopen(path, "rb");
+    if (file == NULL) return false;
+    bool matches = fread(magic, 1, sizeof(magic), file) == sizeof(magic) &&
+                   memcmp(magic, IMAGE_MAGIC, sizeof(magic)) == 0;
+    fclose(file);
+    return matches;
+}
+
+ObjFunction* loadImage(const char* path, Image* image) {
+    image->base = NULL;
+    image->size = 0;
+
+    int fd = open(path, O_RDONLY);
+    if (fd < 0) {
+        fprintf(stderr, "Could not open file \"%s\".\n", path);
+        return NULL;
+    }
+
+    struct stat status;
+    if (fstat(fd, &status) != 0 || (size_t)status.st_size < sizeof(ImageHeader)) {
+        fprintf(stderr, "Could not read image \"%s\".\n", path);
+        close(fd);
+        return NULL;
+    }
+
+    void* base = mmap(NULL, status.st_size, PROT_READ, MAP_PRIVATE, fd, 0);
+    close(fd);
+    if (base == MAP_FAILED) {
+        fprintf(stderr, "Could not map image \"%s\".\n", path);
+        return NULL;
+    }
+    image->base = base;
+    image->size = status.st_size;
+
+    ImageHeader header;
+    memcpy(&header, base, sizeof(header));
+    if (memcmp(header.magic, IMAGE_MAGIC, sizeof(header.magic)) != 0 ||
+        header.byteOrder != IMAGE_BYTE_ORDER) {
+        fprintf(stderr, "\"%s\" is not a clox image for this machine.\n", path);
+        closeImage(image);
+        return NULL;
+    }
+    if (header.version != IMAGE_VERSION) {
+        fprintf(stderr, "Image \"%s\" has version %u, expected %d.\n",
+                path, header.version, IMAGE_VERSION);
+        closeImage(image);
+        return NULL;
+    }
+
+    Loader loader;
+    loader.base = base;
+    loader.size = image->size;
+    loader.table = (const ImageFunction*)((const uint8_t*)base + sizeof(ImageHeader));
+    loader.functionCount = header.functionCount;
+    loader.heights = NULL;
+    loader.worklist = NULL;
+    loader.scratchCapacity = 0;
+
+    ObjFunction* script = NULL;
+    if (header.functionCount > 0 &&
+        inBounds(&loader, sizeof(ImageHeader), sizeof(ImageFunction) * header.functionCount)) {
+        script = loadFunction(&loader, 0, 1);
+    }
+    free(loader.heights);
+    free(loader.worklist);
+
+    if (script == NULL) {
+        fprintf(stderr, "Image \"%s\" is damaged.\n", path);
+        // Leave the stack as it was before any partly loaded functions were pushed
+        vm.stackTop = vm.stack;
+    }
+    return script;
+}
+
+// Only once the functions that borrow from the mapping are gone
+void closeImage(Image* image) {
+    if (image->base != NULL) munmap(image->base, image->size);
+    image->base = NULL;
+    image->size = 0;
+}
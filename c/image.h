@@ -0,0 +1,24 @@
+#ifndef clox_image_h
+#define clox_image_h
+
+#include "common.h"
+#include "object.h"
+
+// Starts with a byte that is not text, as ELF's magic does, so isImageFile() never takes a Lox
+// script for an image
+#define IMAGE_MAGIC "\177LXI"
+// Version 2 added the long forms of the instructions that name constants
+#define IMAGE_VERSION 2
+
+// A loaded image; its functions' code and lines point into the mapping until it is closed
+typedef struct {
+    void* base;
+    size_t size;
+} Image;
+
+bool isImageFile(const char* path);
+bool writeImage(ObjFunction* script, const char* path);
+ObjFunction* loadImage(const char* path, Image* image);
+void closeImage(Image* image);
+
+#endif
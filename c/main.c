@@ -1,23 +1,111 @@
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
 #include "common.h"
 #include "chunk.h"
+#include "compiler.h"
 #include "debug.h"
+#include "image.h"
 #include "vm.h"
 
-int main(int argc, char **argv) {
-    initVM();
+static void repl() {
+    char line[1024];
+    for (;;) {
+        printf("> ");
+
+        if (!fgets(line, sizeof(line), stdin)) {
+            printf("\n");
+            break;
+        }
+
+        interpret(line);
+    }
+}
+
+static char* readFile(const char* path) {
+    FILE* file = fopen(path, "rb");
+    if (file == NULL) {
+        fprintf(stderr, "Could not open file \"%s\".\n", path);
+        exit(74);
+    }
 
-    Chunk chunk;
-    initChunk(&chunk);
+    fseek(file, 0L, SEEK_END);
+    size_t fileSize = ftell(file);
+    rewind(file);
 
-    int constant = addConstant(&chunk, 1.2);
-    writeChunk(&chunk, OP_CONSTANT, 123);
-    writeChunk(&chunk, constant, 123);
+    char* buffer = (char*)malloc(fileSize + 1);
+    if (buffer == NULL) {
+        fprintf(stderr, "Not enough memory to read \"%s\".\n", path);
+        exit(74);
+    }
 
-    writeChunk(&chunk, OP_RETURN, 123);
+    size_t bytesRead = fread(buffer, sizeof(char), fileSize, file);
+    if (bytesRead < fileSize) {
+        fprintf(stderr, "Could not read file \"%s\".\n", path);
+        exit(74);
+    }
 
-    disassembleChunk(&chunk, "test chunk");
+    buffer[bytesRead] = '\0';
+
+    fclose(file);
+    return buffer;
+}
+
+static void runImage(const char* path) {
+    Image image;
+    ObjFunction* script = loadImage(path, &image);
+    if (script == NULL) exit(65);
+
+    InterpretResult result = interpretFunction(script);
+    // The loaded functions borrow their code from the mapping
     freeVM();
-    freeChunk(&chunk);
+    closeImage(&image);
+
+    if (result == INTERPRET_RUNTIME_ERROR) exit(70);
+    exit(0);
+}
 
+// Tokens point into the source, so it has to outlive compilation
+static void runFile(const char* path) {
+    if (isImageFile(path)) runImage(path);
+
+    char* source = readFile(path);
+    InterpretResult result = interpret(source);
+    free(source);
+
+    if (result == INTERPRET_COMPILE_ERROR) exit(65);
+    if (result == INTERPRET_RUNTIME_ERROR) exit(70);
+}
+
+static void compileFile(const char* path, const char* imagePath) {
+    char* source = readFile(path);
+    ObjFunction* script = compile(source);
+    free(source);
+    if (script == NULL) exit(65);
+
+    push(OBJ_VAL(script));
+    if (!writeImage(script, imagePath)) {
+        fprintf(stderr, "Could not write image \"%s\".\n", imagePath);
+        exit(74);
+    }
+    pop();
+}
+
+int main(int argc, char **argv) {
+    initVM();
+
+    if (argc == 1) {
+        repl();
+    } else if (argc == 2) {
+        runFile(argv[1]);
+    } else if (argc == 4 && strcmp(argv[1], "--compile") == 0) {
+        compileFile(argv[2], argv[3]);
+    } else {
+        fprintf(stderr, "Usage: clox [path]\n");
+        fprintf(stderr, "       clox --compile <path> <image>\n");
+        exit(64);
+    }
+
+    freeVM();
     return 0;
 }
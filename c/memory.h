@@ -2,6 +2,15 @@
 #define clox_memory_h
 
 #include "common.h"
+#include "object.h"
+
+// Heap size that has to be reached before the first collection, and the floor for later ones
+#define GC_HEAP_MIN (1024 * 1024)
+
+#define ALLOCATE(type, count) \
+    (type*)reallocate(NULL, 0, sizeof(type) * (count))
+
+#define FREE(type, pointer) reallocate(pointer, sizeof(type), 0)
 
 #define GROW_CAPACITY(capacity)                 \
     ((capacity) < 8 ? 8 : (capacity) * 2)
@@ -14,5 +23,9 @@
     reallocate(pointer, sizeof(type) * (oldCount), 0)
 
 void* reallocate(void* pointer, size_t oldSize, size_t newSize);
+void markObject(Obj* object);
+void markValue(Value value);
+void collectGarbage();
+void freeObjects();
 
 #endif
@@ -1,5 +1,9 @@
+#include <math.h>
 #include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
 #include "memory.h"
+#include "object.h"
 #include "value.h"
 
 void initValueArray(ValueArray* array) {
@@ -25,6 +29,116 @@ void freeValueArray(ValueArray* array) {
     initValueArray(array);
 }
 
+/*
+ * Writes number the way jlox prints it: Java's Double.toString() with any trailing ".0"
+ * dropped. That is the shortest digits that read back as the same double, in plain notation
+ * from 10^-3 up to 10^7 and as d.dddEn outside it.
+ */
+int formatNumber(char* buffer, double number) {
+    if (isnan(number)) return sprintf(buffer, "NaN");
+    if (isinf(number)) return sprintf(buffer, number > 0 ? "Infinity" : "-Infinity");
+    if (number == 0) return sprintf(buffer, signbit(number) ? "-0" : "0");
+
+    char scientific[NUMBER_BUFFER_SIZE];
+    for (int precision = 1; precision <= 17; precision++) {
+        snprintf(scientific, sizeof(scientific), "%.*e", precision - 1, number);
+        if (strtod(scientific, NULL) == number) break;
+    }
+
+    const char* c = scientific;
+    char* out = buffer;
+    if (*c == '-') *out++ = *c++;
+
+    char digits[NUMBER_BUFFER_SIZE] = {0};
+    int count = 0;
+    for (; *c != 'e'; c++) {
+        if (*c != '.') digits[count++] = *c;
+    }
+    int exponent = atoi(c + 1);
+
+    double magnitude = fabs(number);
+    if (magnitude >= 1e-3 && magnitude < 1e7) {
+        if (exponent >= 0) {
+            for (int i = 0; i <= exponent; i++) *out++ = i < count ? digits[i] : '0';
+            if (count > exponent + 1) {
+                *out++ = '.';
+                for (int i = exponent + 1; i < count; i++) *out++ = digits[i];
+            }
+        } else {
+            *out++ = '0';
+            *out++ = '.';
+            for (int i = -1; i > exponent; i--) *out++ = '0';
+            for (int i = 0; i < count; i++) *out++ = digits[i];
+        }
+    } else {
+        *out++ = digits[0];
+        *out++ = '.';
+        if (count == 1) *out++ = '0';
+        for (int i = 1; i < count; i++) *out++ = digits[i];
+        out += sprintf(out, "E%d", exponent);
+    }
+
+    *out = '\0';
+    return (int)(out - buffer);
+}
+
+// Same contract as snprintf(): writes at most size bytes and returns the full length
+int formatValue(char* buffer, size_t size, Value value) {
+    if (IS_BOOL(value)) {
+        return snprintf(buffer, size, "%s", AS_BOOL(value) ? "true" : "false");
+    } else if (IS_NIL(value)) {
+        return snprintf(buffer, size, "nil");
+    } else if (IS_NUMBER(value)) {
+        char number[NUMBER_BUFFER_SIZE];
+        formatNumber(number, AS_NUMBER(value));
+        return snprintf(buffer, size, "%s", number);
+    } else {
+        return formatObject(buffer, size, value);
+    }
+}
+
 void printValue(Value value) {
-    printf("%g", value);
+    if (IS_STRING(value)) {
+        fwrite(AS_CSTRING(value), sizeof(char), AS_STRING(value)->length, stdout);
+        return;
+    }
+
+    char buffer[64];
+    int length = formatValue(buffer, sizeof(buffer), value);
+    if (length < (int)sizeof(buffer)) {
+        fputs(buffer, stdout);
+        return;
+    }
+
+    char* large = malloc(length + 1);
+    formatValue(large, length + 1, value);
+    fputs(large, stdout);
+    free(large);
+}
+
+/*
+ * Compares numbers the way jlox does with Double.equals, so the same script prints the same thing
+ * in both: every NaN equals every other NaN, and -0 does not equal 0.
+ */
+static bool numbersEqual(double a, double b) {
+    if (isnan(a) || isnan(b)) return isnan(a) && isnan(b);
+    return a == b && signbit(a) == signbit(b);
+}
+
+bool valuesEqual(Value a, Value b) {
+#ifdef NAN_BOXING
+    if (IS_NUMBER(a) && IS_NUMBER(b)) {
+        return numbersEqual(AS_NUMBER(a), AS_NUMBER(b));
+    }
+    return a == b;
+#else
+    if (a.type != b.type) return false;
+    switch (a.type) {
+        case VAL_BOOL:   return AS_BOOL(a) == AS_BOOL(b);
+        case VAL_NIL:    return true;
+        case VAL_NUMBER: return numbersEqual(AS_NUMBER(a), AS_NUMBER(b));
+        case VAL_OBJ:    return AS_OBJ(a) == AS_OBJ(b);
+        default:         return false; // Unreachable.
+    }
+#endif
 }
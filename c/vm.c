@@ -1,12 +1,791 @@
+#include <stdarg.h>
+#include <stdio.h>
+#include <string.h>
+#include <time.h>
 #include "common.h"
+#include "compiler.h"
+#include "debug.h"
+#include "memory.h"
+#include "object.h"
 #include "vm.h"
 
 VM vm;
 
+static Value clockNative(int argCount, Value* args) {
+    return NUMBER_VAL((double)clock() / CLOCKS_PER_SEC);
+}
+
+static void resetStack() {
+    vm.stackTop = vm.stack;
+    vm.frameCount = 0;
+    vm.openUpvalues = NULL;
+}
+
+static void runtimeError(const char* format, ...) {
+    va_list args;
+    va_start(args, format);
+    vfprintf(stderr, format, args);
+    va_end(args);
+    fputs("\n", stderr);
+
+    // Only the innermost line, as jlox reports it
+    CallFrame* frame = &vm.frames[vm.frameCount - 1];
+    Chunk* chunk = &frame->closure->function->chunk;
+    size_t instruction = frame->ip - chunk->code - 1;
+    fprintf(stderr, "[line %d]\n", getLine(chunk, (int)instruction));
+
+    resetStack();
+}
+
+// Both the name and the native are kept on the stack while the globals table may grow
+static void defineNative(const char* name, NativeFn function, int arity) {
+    push(OBJ_VAL(copyString(name, (int)strlen(name))));
+    push(OBJ_VAL(newNative(function, arity)));
+    tableSet(&vm.globals, AS_STRING(vm.stack[0]), vm.stack[1]);
+    pop();
+    pop();
+}
+
 void initVM() {
+    resetStack();
+    vm.objects = NULL;
+    vm.bytesAllocated = 0;
+    vm.nextGC = GC_HEAP_MIN;
 
+    vm.grayCount = 0;
+    vm.grayCapacity = 0;
+    vm.grayStack = NULL;
+
+#ifdef GC_STATS
+    vm.gcCount = 0;
+    vm.gcPauseTotal = 0;
+    vm.gcPauseMax = 0;
+    vm.gcBytesRequested = 0;
+#endif
+
+    initTable(&vm.globals);
+    initTable(&vm.strings);
+
+    vm.initString = NULL;
+    vm.initString = copyString("init", 4);
+
+    defineNative("clock", clockNative, 0);
 }
 
 void freeVM() {
+    freeTable(&vm.globals);
+    freeTable(&vm.strings);
+    vm.initString = NULL;
+    freeObjects();
+}
+
+void push(Value value) {
+    *vm.stackTop = value;
+    vm.stackTop++;
+}
+
+Value pop() {
+    vm.stackTop--;
+    return *vm.stackTop;
+}
+
+static Value peek(int distance) {
+    return vm.stackTop[-1 - distance];
+}
+
+static bool call(ObjClosure* closure, int argCount) {
+    if (argCount != closure->function->arity) {
+        runtimeError("Expected %d arguments but got %d", closure->function->arity, argCount);
+        return false;
+    }
+
+    if (vm.frameCount == FRAMES_MAX) {
+        runtimeError("Stack overflow");
+        return false;
+    }
+
+    CallFrame* frame = &vm.frames[vm.frameCount++];
+    frame->closure = closure;
+    frame->ip = closure->function->chunk.code;
+    frame->slots = vm.stackTop - argCount - 1;
+    return true;
+}
+
+static bool callValue(Value callee, int argCount) {
+    if (IS_OBJ(callee)) {
+        switch (OBJ_TYPE(callee)) {
+            case OBJ_BOUND_METHOD: {
+                ObjBoundMethod* bound = AS_BOUND_METHOD(callee);
+                vm.stackTop[-argCount - 1] = bound->receiver;
+                return call(bound->method, argCount);
+            }
+            case OBJ_CLASS: {
+                ObjClass* klass = AS_CLASS(callee);
+                vm.stackTop[-argCount - 1] = OBJ_VAL(newInstance(klass));
+                Value initializer;
+                if (tableGet(&klass->methods, vm.initString, &initializer)) {
+                    return call(AS_CLOSURE(initializer), argCount);
+                } else if (argCount != 0) {
+                    runtimeError("Expected 0 arguments but got %d", argCount);
+                    return false;
+                }
+                return true;
+            }
+            case OBJ_CLOSURE:
+                return call(AS_CLOSURE(callee), argCount);
+            case OBJ_NATIVE: {
+                ObjNative* object = (ObjNative*)AS_OBJ(callee);
+                if (argCount != object->arity) {
+                    runtimeError("Expected %d arguments but got %d", object->arity, argCount);
+                    return false;
+                }
+                NativeFn native = object->function;
+                Value result = native(argCount, vm.stackTop - argCount);
+                vm.stackTop -= argCount + 1;
+                push(result);
+                return true;
+            }
+            default:
+                break; // Non-callable object type.
+        }
+    }
+    runtimeError("Can only call functions and classes");
+    return false;
+}
+
+static bool invokeFromClass(ObjClass* klass, ObjString* name, int argCount) {
+    Value method;
+    if (!tableGet(&klass->methods, name, &method)) {
+        runtimeError("Undefined property '%s'", name->chars);
+        return false;
+    }
+    return call(AS_CLOSURE(method), argCount);
+}
+
+// A field holding a callable shadows a method of the same name, as it would for a plain get
+static bool invoke(ObjString* name, int argCount) {
+    Value receiver = peek(argCount);
+
+    if (!IS_INSTANCE(receiver)) {
+        runtimeError("Only instances have properties");
+        return false;
+    }
+
+    ObjInstance* instance = AS_INSTANCE(receiver);
+
+    Value value;
+    if (tableGet(&instance->fields, name, &value)) {
+        vm.stackTop[-argCount - 1] = value;
+        return callValue(value, argCount);
+    }
+
+    return invokeFromClass(instance->klass, name, argCount);
+}
+
+static bool bindMethod(ObjClass* klass, ObjString* name) {
+    Value method;
+    if (!tableGet(&klass->methods, name, &method)) {
+        runtimeError("Undefined property '%s'", name->chars);
+        return false;
+    }
+
+    ObjBoundMethod* bound = newBoundMethod(peek(0), AS_CLOSURE(method));
+    pop();
+    push(OBJ_VAL(bound));
+    return true;
+}
+
+// Reuses an existing upvalue for the slot so that closures share the variable
+static ObjUpvalue* captureUpvalue(Value* local) {
+    ObjUpvalue* prevUpvalue = NULL;
+    ObjUpvalue* upvalue = vm.openUpvalues;
+    while (upvalue != NULL && upvalue->location > local) {
+        prevUpvalue = upvalue;
+        upvalue = upvalue->next;
+    }
+
+    if (upvalue != NULL && upvalue->location == local) {
+        return upvalue;
+    }
+
+    ObjUpvalue* createdUpvalue = newUpvalue(local);
+    createdUpvalue->next = upvalue;
+
+    if (prevUpvalue == NULL) {
+        vm.openUpvalues = createdUpvalue;
+    } else {
+        prevUpvalue->next = createdUpvalue;
+    }
+
+    return createdUpvalue;
+}
+
+static void closeUpvalues(Value* last) {
+    while (vm.openUpvalues != NULL && vm.openUpvalues->location >= last) {
+        ObjUpvalue* upvalue = vm.openUpvalues;
+        upvalue->closed = *upvalue->location;
+        upvalue->location = &upvalue->closed;
+        vm.openUpvalues = upvalue->next;
+    }
+}
+
+static void defineMethod(ObjString* name) {
+    Value method = peek(0);
+    ObjClass* klass = AS_CLASS(peek(1));
+    tableSet(&klass->methods, name, method);
+    pop();
+}
+
+static bool isFalsey(Value value) {
+    return IS_NIL(value) || (IS_BOOL(value) && !AS_BOOL(value));
+}
+
+static int stringLength(Value value) {
+    if (IS_STRING(value)) return AS_STRING(value)->length;
+    return formatValue(NULL, 0, value);
+}
+
+/*
+ * Both operands stay on the stack until the result exists, so a collection cannot free them.
+ * Like jlox, a string joined with anything else takes that value's printed form.
+ */
+static void concatenate() {
+    Value b = peek(0);
+    Value a = peek(1);
+
+    int aLength = stringLength(a);
+    int bLength = stringLength(b);
+    int length = aLength + bLength;
+    char* chars = ALLOCATE(char, length + 1);
+    if (IS_STRING(a)) {
+        memcpy(chars, AS_CSTRING(a), aLength);
+    } else {
+        formatValue(chars, aLength + 1, a);
+    }
+    if (IS_STRING(b)) {
+        memcpy(chars + aLength, AS_CSTRING(b), bLength);
+    } else {
+        formatValue(chars + aLength, bLength + 1, b);
+    }
+    chars[length] = '\0';
+
+    ObjString* result = takeString(chars, length);
+    pop();
+    pop();
+    push(OBJ_VAL(result));
+}
+
+#ifdef DEBUG_TRACE_EXECUTION
+static void traceExecution(CallFrame* frame, uint8_t* ip) {
+    printf("          ");
+    for (Value* slot = vm.stack; slot < vm.stackTop; slot++) {
+        printf("[ ");
+        printValue(*slot);
+        printf(" ]");
+    }
+    printf("\n");
+    Chunk* chunk = &frame->closure->function->chunk;
+    disassembleInstruction(chunk, (int)(ip - chunk->code));
+}
+#define TRACE() traceExecution(frame, ip)
+#else
+#define TRACE() do { } while (false)
+#endif
+
+/*
+ * The instruction pointer and the current frame live in locals so the compiler can keep them
+ * in registers. ip is written back to the frame before a call or a runtime error reads it, and
+ * both are reloaded whenever the frame changes.
+ *
+ * With COMPUTED_GOTO every handler ends in its own indirect jump through dispatchTable, which
+ * gives the branch predictor one history per opcode instead of the single shared jump of a
+ * switch. Without it, the same handlers become cases of a switch that every handler jumps
+ * back to.
+ */
+static InterpretResult run() {
+    CallFrame* frame = &vm.frames[vm.frameCount - 1];
+    uint8_t* ip = frame->ip;
+    // The constant an instruction names; a long form reads it and jumps into the short form
+    Value operand;
+
+#define SAVE_FRAME() (frame->ip = ip)
+#define LOAD_FRAME() (frame = &vm.frames[vm.frameCount - 1], ip = frame->ip)
+#define READ_BYTE() (*ip++)
+#define READ_SHORT() (ip += 2, (uint16_t)((ip[-2] << 8) | ip[-1]))
+#define READ_CONSTANT() (frame->closure->function->chunk.constants.values[READ_BYTE()])
+#define READ_CONSTANT_LONG()                                              \
+    (ip += 3, frame->closure->function->chunk.constants.values[           \
+        (ip[-3] << 16) | (ip[-2] << 8) | ip[-1]])
+#define RUNTIME_ERROR(...)                                \
+    do {                                                  \
+        SAVE_FRAME();                                     \
+        runtimeError(__VA_ARGS__);                        \
+        return INTERPRET_RUNTIME_ERROR;                   \
+    } while (false)
+#define BINARY_OP(valueType, op)                          \
+    do {                                                  \
+        if (!IS_NUMBER(peek(0)) || !IS_NUMBER(peek(1))) { \
+            RUNTIME_ERROR("Operands must be numbers");    \
+        }                                                 \
+        double b = AS_NUMBER(pop());                      \
+        double a = AS_NUMBER(pop());                      \
+        push(valueType(a op b));                          \
+    } while (false)
+
+#ifdef COMPUTED_GOTO
+    static void* dispatchTable[256] = {
+        [0 ... 255] = &&TARGET_UNKNOWN,
+        [OP_CONSTANT] = &&TARGET_OP_CONSTANT,
+        [OP_CONSTANT_LONG] = &&TARGET_OP_CONSTANT_LONG,
+        [OP_NIL] = &&TARGET_OP_NIL,
+        [OP_TRUE] = &&TARGET_OP_TRUE,
+        [OP_FALSE] = &&TARGET_OP_FALSE,
+        [OP_POP] = &&TARGET_OP_POP,
+        [OP_GET_LOCAL] = &&TARGET_OP_GET_LOCAL,
+        [OP_SET_LOCAL] = &&TARGET_OP_SET_LOCAL,
+        [OP_GET_GLOBAL] = &&TARGET_OP_GET_GLOBAL,
+        [OP_DEFINE_GLOBAL] = &&TARGET_OP_DEFINE_GLOBAL,
+        [OP_SET_GLOBAL] = &&TARGET_OP_SET_GLOBAL,
+        [OP_GET_UPVALUE] = &&TARGET_OP_GET_UPVALUE,
+        [OP_SET_UPVALUE] = &&TARGET_OP_SET_UPVALUE,
+        [OP_GET_PROPERTY] = &&TARGET_OP_GET_PROPERTY,
+        [OP_SET_PROPERTY] = &&TARGET_OP_SET_PROPERTY,
+        [OP_GET_SUPER] = &&TARGET_OP_GET_SUPER,
+        [OP_EQUAL] = &&TARGET_OP_EQUAL,
+        [OP_GREATER] = &&TARGET_OP_GREATER,
+        [OP_LESS] = &&TARGET_OP_LESS,
+        [OP_ADD] = &&TARGET_OP_ADD,
+        [OP_SUBTRACT] = &&TARGET_OP_SUBTRACT,
+        [OP_MULTIPLY] = &&TARGET_OP_MULTIPLY,
+        [OP_DIVIDE] = &&TARGET_OP_DIVIDE,
+        [OP_NOT] = &&TARGET_OP_NOT,
+        [OP_NEGATE] = &&TARGET_OP_NEGATE,
+        [OP_PRINT] = &&TARGET_OP_PRINT,
+        [OP_JUMP] = &&TARGET_OP_JUMP,
+        [OP_JUMP_IF_FALSE] = &&TARGET_OP_JUMP_IF_FALSE,
+        [OP_LOOP] = &&TARGET_OP_LOOP,
+        [OP_CALL] = &&TARGET_OP_CALL,
+        [OP_INVOKE] = &&TARGET_OP_INVOKE,
+        [OP_SUPER_INVOKE] = &&TARGET_OP_SUPER_INVOKE,
+        [OP_CLOSURE] = &&TARGET_OP_CLOSURE,
+        [OP_CLOSE_UPVALUE] = &&TARGET_OP_CLOSE_UPVALUE,
+        [OP_RETURN] = &&TARGET_OP_RETURN,
+        [OP_CLASS] = &&TARGET_OP_CLASS,
+        [OP_INHERIT] = &&TARGET_OP_INHERIT,
+        [OP_METHOD] = &&TARGET_OP_METHOD,
+        [OP_GET_GLOBAL_LONG] = &&TARGET_OP_GET_GLOBAL_LONG,
+        [OP_DEFINE_GLOBAL_LONG] = &&TARGET_OP_DEFINE_GLOBAL_LONG,
+        [OP_SET_GLOBAL_LONG] = &&TARGET_OP_SET_GLOBAL_LONG,
+        [OP_GET_PROPERTY_LONG] = &&TARGET_OP_GET_PROPERTY_LONG,
+        [OP_SET_PROPERTY_LONG] = &&TARGET_OP_SET_PROPERTY_LONG,
+        [OP_GET_SUPER_LONG] = &&TARGET_OP_GET_SUPER_LONG,
+        [OP_INVOKE_LONG] = &&TARGET_OP_INVOKE_LONG,
+        [OP_SUPER_INVOKE_LONG] = &&TARGET_OP_SUPER_INVOKE_LONG,
+        [OP_CLOSURE_LONG] = &&TARGET_OP_CLOSURE_LONG,
+        [OP_CLASS_LONG] = &&TARGET_OP_CLASS_LONG,
+        [OP_METHOD_LONG] = &&TARGET_OP_METHOD_LONG,
+    };
+#define DISPATCH()                               \
+    do {                                         \
+        TRACE();                                 \
+        goto *dispatchTable[READ_BYTE()];        \
+    } while (false)
+#define OPCODE(name) TARGET_##name:
+#define UNKNOWN_OPCODE TARGET_UNKNOWN:
+#else
+#define DISPATCH() goto dispatch
+#define OPCODE(name) case name:
+#define UNKNOWN_OPCODE default:
+#endif
+
+#ifdef COMPUTED_GOTO
+    DISPATCH();
+#else
+dispatch:
+    TRACE();
+    switch (READ_BYTE()) {
+#endif
+        OPCODE(OP_CONSTANT) {
+            Value constant = READ_CONSTANT();
+            push(constant);
+            DISPATCH();
+        }
+        OPCODE(OP_CONSTANT_LONG) {
+            Value constant = READ_CONSTANT_LONG();
+            push(constant);
+            DISPATCH();
+        }
+        OPCODE(OP_NIL) {
+            push(NIL_VAL);
+            DISPATCH();
+        }
+        OPCODE(OP_TRUE) {
+            push(BOOL_VAL(true));
+            DISPATCH();
+        }
+        OPCODE(OP_FALSE) {
+            push(BOOL_VAL(false));
+            DISPATCH();
+        }
+        OPCODE(OP_POP) {
+            pop();
+            DISPATCH();
+        }
+        OPCODE(OP_GET_LOCAL) {
+            uint8_t slot = READ_BYTE();
+            push(frame->slots[slot]);
+            DISPATCH();
+        }
+        OPCODE(OP_SET_LOCAL) {
+            uint8_t slot = READ_BYTE();
+            frame->slots[slot] = peek(0);
+            DISPATCH();
+        }
+        OPCODE(OP_GET_GLOBAL_LONG) {
+            operand = READ_CONSTANT_LONG();
+            goto getGlobal;
+        }
+        OPCODE(OP_GET_GLOBAL) {
+            operand = READ_CONSTANT();
+        getGlobal:;
+            ObjString* name = AS_STRING(operand);
+            Value value;
+            if (!tableGet(&vm.globals, name, &value)) {
+                RUNTIME_ERROR("Undefined variable '%s'", name->chars);
+            }
+            push(value);
+            DISPATCH();
+        }
+        OPCODE(OP_DEFINE_GLOBAL_LONG) {
+            operand = READ_CONSTANT_LONG();
+            goto defineGlobal;
+        }
+        OPCODE(OP_DEFINE_GLOBAL) {
+            operand = READ_CONSTANT();
+        defineGlobal:;
+            ObjString* name = AS_STRING(operand);
+            tableSet(&vm.globals, name, peek(0));
+            pop();
+            DISPATCH();
+        }
+        OPCODE(OP_SET_GLOBAL_LONG) {
+            operand = READ_CONSTANT_LONG();
+            goto setGlobal;
+        }
+        OPCODE(OP_SET_GLOBAL) {
+            operand = READ_CONSTANT();
+        setGlobal:;
+            ObjString* name = AS_STRING(operand);
+            if (tableSet(&vm.globals, name, peek(0))) {
+                // Assignment never creates a variable; undo the insert
+                tableDelete(&vm.globals, name);
+                RUNTIME_ERROR("Undefined variable '%s'", name->chars);
+            }
+            DISPATCH();
+        }
+        OPCODE(OP_GET_UPVALUE) {
+            uint8_t slot = READ_BYTE();
+            push(*frame->closure->upvalues[slot]->location);
+            DISPATCH();
+        }
+        OPCODE(OP_SET_UPVALUE) {
+            uint8_t slot = READ_BYTE();
+            *frame->closure->upvalues[slot]->location = peek(0);
+            DISPATCH();
+        }
+        OPCODE(OP_GET_PROPERTY_LONG) {
+            operand = READ_CONSTANT_LONG();
+            goto getProperty;
+        }
+        OPCODE(OP_GET_PROPERTY) {
+            operand = READ_CONSTANT();
+        getProperty:
+            if (!IS_INSTANCE(peek(0))) {
+                RUNTIME_ERROR("Only instances have properties");
+            }
+
+            ObjInstance* instance = AS_INSTANCE(peek(0));
+            ObjString* name = AS_STRING(operand);
+
+            Value value;
+            if (tableGet(&instance->fields, name, &value)) {
+                pop(); // Instance.
+                push(value);
+                DISPATCH();
+            }
+
+            SAVE_FRAME();
+            if (!bindMethod(instance->klass, name)) {
+                return INTERPRET_RUNTIME_ERROR;
+            }
+            DISPATCH();
+        }
+        OPCODE(OP_SET_PROPERTY_LONG) {
+            operand = READ_CONSTANT_LONG();
+            goto setProperty;
+        }
+        OPCODE(OP_SET_PROPERTY) {
+            operand = READ_CONSTANT();
+        setProperty:
+            if (!IS_INSTANCE(peek(1))) {
+                RUNTIME_ERROR("Only instances have fields");
+            }
+
+            ObjInstance* instance = AS_INSTANCE(peek(1));
+            tableSet(&instance->fields, AS_STRING(operand), peek(0));
+            Value value = pop();
+            pop();
+            push(value);
+            DISPATCH();
+        }
+        OPCODE(OP_GET_SUPER_LONG) {
+            operand = READ_CONSTANT_LONG();
+            goto getSuper;
+        }
+        OPCODE(OP_GET_SUPER) {
+            operand = READ_CONSTANT();
+        getSuper:;
+            ObjString* name = AS_STRING(operand);
+            if (!IS_CLASS(peek(0))) {
+                RUNTIME_ERROR("Superclass must be a class");
+            }
+            ObjClass* superclass = AS_CLASS(pop());
+
+            SAVE_FRAME();
+            if (!bindMethod(superclass, name)) {
+                return INTERPRET_RUNTIME_ERROR;
+            }
+            DISPATCH();
+        }
+        OPCODE(OP_EQUAL) {
+            Value b = pop();
+            Value a = pop();
+            push(BOOL_VAL(valuesEqual(a, b)));
+            DISPATCH();
+        }
+        OPCODE(OP_GREATER) {
+            BINARY_OP(BOOL_VAL, >);
+            DISPATCH();
+        }
+        OPCODE(OP_LESS) {
+            BINARY_OP(BOOL_VAL, <);
+            DISPATCH();
+        }
+        OPCODE(OP_ADD) {
+            if (IS_NUMBER(peek(0)) && IS_NUMBER(peek(1))) {
+                double b = AS_NUMBER(pop());
+                double a = AS_NUMBER(pop());
+                push(NUMBER_VAL(a + b));
+            } else if (IS_STRING(peek(0)) || IS_STRING(peek(1))) {
+                concatenate();
+            } else {
+                RUNTIME_ERROR("Operands must be two numbers or two strings");
+            }
+            DISPATCH();
+        }
+        OPCODE(OP_SUBTRACT) {
+            BINARY_OP(NUMBER_VAL, -);
+            DISPATCH();
+        }
+        OPCODE(OP_MULTIPLY) {
+            BINARY_OP(NUMBER_VAL, *);
+            DISPATCH();
+        }
+        OPCODE(OP_DIVIDE) {
+            BINARY_OP(NUMBER_VAL, /);
+            DISPATCH();
+        }
+        OPCODE(OP_NOT) {
+            push(BOOL_VAL(isFalsey(pop())));
+            DISPATCH();
+        }
+        OPCODE(OP_NEGATE) {
+            if (!IS_NUMBER(peek(0))) {
+                RUNTIME_ERROR("Operand must be a number");
+            }
+            push(NUMBER_VAL(-AS_NUMBER(pop())));
+            DISPATCH();
+        }
+        OPCODE(OP_PRINT) {
+            printValue(pop());
+            printf("\n");
+            DISPATCH();
+        }
+        OPCODE(OP_JUMP) {
+            uint16_t offset = READ_SHORT();
+            ip += offset;
+            DISPATCH();
+        }
+        OPCODE(OP_JUMP_IF_FALSE) {
+            uint16_t offset = READ_SHORT();
+            if (isFalsey(peek(0))) ip += offset;
+            DISPATCH();
+        }
+        OPCODE(OP_LOOP) {
+            uint16_t offset = READ_SHORT();
+            ip -= offset;
+            DISPATCH();
+        }
+        OPCODE(OP_CALL) {
+            int argCount = READ_BYTE();
+            SAVE_FRAME();
+            if (!callValue(peek(argCount), argCount)) {
+                return INTERPRET_RUNTIME_ERROR;
+            }
+            LOAD_FRAME();
+            DISPATCH();
+        }
+        OPCODE(OP_INVOKE_LONG) {
+            operand = READ_CONSTANT_LONG();
+            goto invoke;
+        }
+        OPCODE(OP_INVOKE) {
+            operand = READ_CONSTANT();
+        invoke:;
+            ObjString* method = AS_STRING(operand);
+            int argCount = READ_BYTE();
+            SAVE_FRAME();
+            if (!invoke(method, argCount)) {
+                return INTERPRET_RUNTIME_ERROR;
+            }
+            LOAD_FRAME();
+            DISPATCH();
+        }
+        OPCODE(OP_SUPER_INVOKE_LONG) {
+            operand = READ_CONSTANT_LONG();
+            goto superInvoke;
+        }
+        OPCODE(OP_SUPER_INVOKE) {
+            operand = READ_CONSTANT();
+        superInvoke:;
+            ObjString* method = AS_STRING(operand);
+            int argCount = READ_BYTE();
+            if (!IS_CLASS(peek(0))) {
+                RUNTIME_ERROR("Superclass must be a class");
+            }
+            ObjClass* superclass = AS_CLASS(pop());
+            SAVE_FRAME();
+            if (!invokeFromClass(superclass, method, argCount)) {
+                return INTERPRET_RUNTIME_ERROR;
+            }
+            LOAD_FRAME();
+            DISPATCH();
+        }
+        OPCODE(OP_CLOSURE_LONG) {
+            operand = READ_CONSTANT_LONG();
+            goto closure;
+        }
+        OPCODE(OP_CLOSURE) {
+            operand = READ_CONSTANT();
+        closure:;
+            ObjFunction* function = AS_FUNCTION(operand);
+            ObjClosure* closure = newClosure(function);
+            push(OBJ_VAL(closure));
+            for (int i = 0; i < closure->upvalueCount; i++) {
+                uint8_t isLocal = READ_BYTE();
+                uint8_t index = READ_BYTE();
+                if (isLocal) {
+                    closure->upvalues[i] = captureUpvalue(frame->slots + index);
+                } else {
+                    closure->upvalues[i] = frame->closure->upvalues[index];
+                }
+            }
+            DISPATCH();
+        }
+        OPCODE(OP_CLOSE_UPVALUE) {
+            closeUpvalues(vm.stackTop - 1);
+            pop();
+            DISPATCH();
+        }
+        OPCODE(OP_RETURN) {
+            Value result = pop();
+            closeUpvalues(frame->slots);
+            vm.frameCount--;
+            if (vm.frameCount == 0) {
+                pop();
+                SAVE_FRAME();
+                return INTERPRET_OK;
+            }
+
+            vm.stackTop = frame->slots;
+            push(result);
+            LOAD_FRAME();
+            DISPATCH();
+        }
+        OPCODE(OP_CLASS_LONG) {
+            operand = READ_CONSTANT_LONG();
+            goto klass;
+        }
+        OPCODE(OP_CLASS) {
+            operand = READ_CONSTANT();
+        klass:
+            push(OBJ_VAL(newClass(AS_STRING(operand))));
+            DISPATCH();
+        }
+        OPCODE(OP_INHERIT) {
+            Value superclass = peek(1);
+            if (!IS_CLASS(superclass)) {
+                RUNTIME_ERROR("Superclass must be a class");
+            }
+
+            if (!IS_CLASS(peek(0))) {
+                RUNTIME_ERROR("Only classes can inherit");
+            }
+
+            // Copy-down inheritance: methods defined afterwards in the subclass overwrite these
+            ObjClass* subclass = AS_CLASS(peek(0));
+            tableAddAll(&AS_CLASS(superclass)->methods, &subclass->methods);
+            pop(); // Subclass.
+            DISPATCH();
+        }
+        OPCODE(OP_METHOD_LONG) {
+            operand = READ_CONSTANT_LONG();
+            goto method;
+        }
+        OPCODE(OP_METHOD) {
+            operand = READ_CONSTANT();
+        method:
+            if (!IS_CLASS(peek(1)) || !IS_CLOSURE(peek(0))) {
+                RUNTIME_ERROR("Only classes have methods");
+            }
+            defineMethod(AS_STRING(operand));
+            DISPATCH();
+        }
+        UNKNOWN_OPCODE {
+            SAVE_FRAME();
+            return INTERPRET_RUNTIME_ERROR;
+        }
+#ifndef COMPUTED_GOTO
+    }
+#endif
+
+#undef SAVE_FRAME
+#undef LOAD_FRAME
+#undef READ_BYTE
+#undef READ_SHORT
+#undef READ_CONSTANT
+#undef READ_CONSTANT_LONG
+#undef RUNTIME_ERROR
+#undef BINARY_OP
+#undef DISPATCH
+#undef OPCODE
+#undef UNKNOWN_OPCODE
+}
+
+// Runs a compiled top-level function as the script
+InterpretResult interpretFunction(ObjFunction* function) {
+    push(OBJ_VAL(function));
+    ObjClosure* closure = newClosure(function);
+    pop();
+    push(OBJ_VAL(closure));
+    call(closure, 0);
+
+    return run();
+}
+
+InterpretResult interpret(const char* source) {
+    ObjFunction* function = compile(source);
+    if (function == NULL) return INTERPRET_COMPILE_ERROR;
 
+    return interpretFunction(function);
 }
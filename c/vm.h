@@ -1,13 +1,61 @@
 #ifndef clox_vm_h
 #define clox_vm_h
 
-#include "chunk.h"
+#include "object.h"
+#include "table.h"
+#include "value.h"
+
+#define FRAMES_MAX 64
+#define STACK_MAX (FRAMES_MAX * UINT8_COUNT)
+
+// An ongoing call: slots is the callee's window onto the VM stack, starting with the callee
+typedef struct {
+    ObjClosure* closure;
+    uint8_t* ip;
+    Value* slots;
+} CallFrame;
 
 typedef struct {
-    Chunk *chunk;
+    CallFrame frames[FRAMES_MAX];
+    int frameCount;
+
+    Value stack[STACK_MAX];
+    Value* stackTop;
+    Table globals;
+    // Every live string, held weakly so that interning does not keep strings alive
+    Table strings;
+    ObjString* initString;
+    // Open upvalues sorted by stack slot, topmost first
+    ObjUpvalue* openUpvalues;
+
+    Obj* objects;
+    size_t bytesAllocated;
+    size_t nextGC;
+    int grayCount;
+    int grayCapacity;
+    Obj** grayStack;
+#ifdef GC_STATS
+    // Totals since initVM(), reported by the GC benchmark
+    int gcCount;
+    double gcPauseTotal;
+    double gcPauseMax;
+    size_t gcBytesRequested;
+#endif
 } VM;
 
+typedef enum {
+    INTERPRET_OK,
+    INTERPRET_COMPILE_ERROR,
+    INTERPRET_RUNTIME_ERROR
+} InterpretResult;
+
+extern VM vm;
+
 void initVM();
 void freeVM();
+InterpretResult interpret(const char* source);
+InterpretResult interpretFunction(ObjFunction* function);
+void push(Value value);
+Value pop();
 
 #endif
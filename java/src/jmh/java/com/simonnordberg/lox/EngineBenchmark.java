@@ -0,0 +1,82 @@
+package com.simonnordberg.lox;
+
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The embedding API on a small request handler: a script that reads its input from bindings,
+ * does a little work and prints a reply. A host either compiles the script for every request or
+ * compiles it once and only executes it per request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EngineBenchmark {
+
+  private static final String HANDLER = ""
+      + "class Item {\n"
+      + "  init(price, quantity) {\n"
+      + "    this.price = price;\n"
+      + "    this.quantity = quantity;\n"
+      + "  }\n"
+      + "\n"
+      + "  total() {\n"
+      + "    return this.price * this.quantity;\n"
+      + "  }\n"
+      + "}\n"
+      + "\n"
+      + "fun discount(total) {\n"
+      + "  if (total > 100) return total * 0.1;\n"
+      + "  if (total > 50) return total * 0.05;\n"
+      + "  return 0;\n"
+      + "}\n"
+      + "\n"
+      + "var items = List();\n"
+      + "for (var i = 1; i <= count; i = i + 1) {\n"
+      + "  items.append(Item(price + i, i));\n"
+      + "}\n"
+      + "var total = 0;\n"
+      + "fun add(item) {\n"
+      + "  total = total + item.total();\n"
+      + "}\n"
+      + "items.forEach(add);\n"
+      + "var reply = \"Dear \" + customer + \", you owe \";\n"
+      + "print reply;\n"
+      + "print total - discount(total);\n";
+
+  private final Map<String, Object> bindings = new HashMap<>();
+  private CompiledScript script;
+
+  @Setup
+  public void setUp() {
+    bindings.put("customer", "Ada");
+    bindings.put("price", 9.5);
+    bindings.put("count", 5);
+    script = LoxEngine.compile(HANDLER);
+  }
+
+  @Benchmark
+  public Map<String, Object> compileAndExecute() {
+    return LoxEngine.compile(HANDLER).execute(bindings, new StringWriter());
+  }
+
+  @Benchmark
+  public Map<String, Object> execute() {
+    return script.execute(bindings, new StringWriter());
+  }
+}
@@ -0,0 +1,69 @@
+package com.simonnordberg.lox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scanner, parser and resolver throughput. The input is a workload's source repeated copies
+ * times; each stage is measured on the output of the stages before it, prepared in setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrontEndBenchmark {
+
+  @Param({Workloads.FIB, Workloads.LOOP, Workloads.METHOD, Workloads.FIELD, Workloads.STRING,
+      Workloads.INHERITANCE, Workloads.CLOSURE})
+  public String workload;
+
+  @Param({"1", "100"})
+  public int copies;
+
+  private final ErrorReporter reporter = new ErrorReporter(System.err);
+  private String source;
+  private List<Token> tokens;
+  private List<Stmt> statements;
+
+  @Setup
+  public void setUp() {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < copies; i++) {
+      builder.append(Workloads.source(workload, 10));
+    }
+    source = builder.toString();
+    tokens = new Scanner(source, reporter).scanTokens();
+    statements = new Parser(tokens, reporter).parse();
+  }
+
+  @Benchmark
+  public List<Token> scanTokens() {
+    return new Scanner(source, reporter).scanTokens();
+  }
+
+  @Benchmark
+  public List<Stmt> parse() {
+    return new Parser(tokens, reporter).parse();
+  }
+
+  // The resolver records its results on the tree, so every run simply overwrites them
+  @Benchmark
+  public Resolver resolve() {
+    Resolver resolver = new Resolver(reporter);
+    resolver.resolve(statements);
+    return resolver;
+  }
+}
@@ -0,0 +1,66 @@
+package com.simonnordberg.lox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end tree-walking evaluation of each workload. The program is scanned, parsed and
+ * resolved once in setup; every invocation then runs it again in the same interpreter, whose
+ * globals the program simply redefines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterpreterBenchmark {
+
+  @Param({Workloads.FIB, Workloads.LOOP, Workloads.METHOD, Workloads.FIELD, Workloads.STRING,
+      Workloads.INHERITANCE, Workloads.CLOSURE})
+  public String workload;
+
+  @Param({"small", "large"})
+  public String size;
+
+  private Interpreter interpreter;
+  private List<Stmt> statements;
+
+  @Setup
+  public void setUp() {
+    String source = Workloads.source(workload, scale(workload, "large".equals(size)));
+    ErrorReporter reporter = new ErrorReporter(System.err);
+    statements = new Parser(new Scanner(source, reporter).scanTokens(), reporter).parse();
+    new Resolver(reporter).resolve(statements);
+    interpreter = new Program(statements).newInterpreter(reporter);
+  }
+
+  // fib grows exponentially and string concatenation quadratically, so they scale differently
+  private static int scale(String workload, boolean large) {
+    switch (workload) {
+      case Workloads.FIB:
+        return large ? 20 : 12;
+      case Workloads.STRING:
+        return large ? 2000 : 200;
+      default:
+        return large ? 100000 : 1000;
+    }
+  }
+
+  @Benchmark
+  public Interpreter interpret() {
+    interpreter.interpret(statements);
+    return interpreter;
+  }
+}
@@ -0,0 +1,97 @@
+package com.simonnordberg.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The native Lox map against java.util.HashMap, as used by a script: keys arrive as the Doubles
+ * and Strings the evaluator produces. Each invocation fills a fresh map, looks every key up and
+ * then deletes half of them.
+ *
+ * Sequential keys (0, 1, 2, ... and "key0", "key1", ...) have nearly consecutive hash codes,
+ * which HashMap places in neighbouring buckets and so keeps in cache; the random keys show both
+ * maps without that help.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapBenchmark {
+
+  @Param({"number", "string", "random-number", "random-string"})
+  public String keys;
+
+  @Param({"100", "100000"})
+  public int entries;
+
+  private Object[] values;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    values = new Object[entries];
+    for (int i = 0; i < entries; i++) {
+      switch (keys) {
+        case "number":
+          values[i] = (double) i;
+          break;
+        case "string":
+          values[i] = "key" + i;
+          break;
+        case "random-number":
+          values[i] = (double) random.nextInt();
+          break;
+        default:
+          values[i] = "key" + random.nextInt();
+          break;
+      }
+    }
+  }
+
+  @Benchmark
+  public Object loxMap() {
+    LoxMap map = new LoxMap();
+    for (Object value : values) {
+      map.put(value, value);
+    }
+    Object last = null;
+    for (Object value : values) {
+      last = map.get(value);
+    }
+    for (int i = 0; i < values.length; i += 2) {
+      map.remove(values[i]);
+    }
+    return last;
+  }
+
+  @Benchmark
+  public Object hashMap() {
+    Map<Object, Object> map = new HashMap<>();
+    for (Object value : values) {
+      map.put(value, value);
+    }
+    Object last = null;
+    for (Object value : values) {
+      last = map.get(value);
+    }
+    for (int i = 0; i < values.length; i += 2) {
+      map.remove(values[i]);
+    }
+    return last;
+  }
+}
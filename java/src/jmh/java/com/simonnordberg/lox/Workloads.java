@@ -0,0 +1,90 @@
+package com.simonnordberg.lox;
+
+/**
+ * Lox programs shared by the benchmarks. Each takes a size that scales the work it does at
+ * runtime; none of them print, so that the interpreter benchmark measures evaluation only.
+ */
+final class Workloads {
+
+  static final String FIB = "fib";
+  static final String LOOP = "loop";
+  static final String METHOD = "method";
+  static final String FIELD = "field";
+  static final String STRING = "string";
+  static final String INHERITANCE = "inheritance";
+  static final String CLOSURE = "closure";
+
+  static String source(String workload, int size) {
+    switch (workload) {
+      case FIB:
+        return ""
+            + "fun fib(n) { if (n < 2) return n; return fib(n - 2) + fib(n - 1); }\n"
+            + "var result = fib(" + size + ");\n";
+      case LOOP:
+        return ""
+            + "var sum = 0;\n"
+            + "for (var i = 0; i < " + size + "; i = i + 1) {\n"
+            + "  if (i / 2 > 10) sum = sum + i; else sum = sum - 1;\n"
+            + "}\n";
+      case METHOD:
+        return ""
+            + "class Counter {\n"
+            + "  init() { this.count = 0; }\n"
+            + "  inc(by) { this.count = this.count + by; return this; }\n"
+            + "}\n"
+            + "var counter = Counter();\n"
+            + "for (var i = 0; i < " + size + "; i = i + 1) { counter.inc(1).inc(2); }\n";
+      case FIELD:
+        return ""
+            + "class Point { init(x, y) { this.x = x; this.y = y; } }\n"
+            + "var p = Point(1, 2);\n"
+            + "for (var i = 0; i < " + size + "; i = i + 1) {\n"
+            + "  p.x = p.x + p.y;\n"
+            + "  p.y = p.x - p.y;\n"
+            + "  p.z = p.x;\n"
+            + "}\n";
+      case STRING:
+        return ""
+            + "var s = \"\";\n"
+            + "for (var i = 0; i < " + size + "; i = i + 1) { s = s + \"ab\" + \"c\"; }\n";
+      case INHERITANCE:
+        return inheritance(size);
+      case CLOSURE:
+        return ""
+            + "fun makeAdder(n) {\n"
+            + "  fun add(x) { return x + n; }\n"
+            + "  return add;\n"
+            + "}\n"
+            + "fun counter() {\n"
+            + "  var count = 0;\n"
+            + "  fun next() { count = count + 1; return count; }\n"
+            + "  return next;\n"
+            + "}\n"
+            + "var total = 0;\n"
+            + "var next = counter();\n"
+            + "for (var i = 0; i < " + size + "; i = i + 1) {\n"
+            + "  total = makeAdder(next())(total);\n"
+            + "}\n";
+      default:
+        throw new IllegalArgumentException("Unknown workload: " + workload);
+    }
+  }
+
+  // Ten levels of subclasses, each of which calls up through super
+  private static String inheritance(int size) {
+    StringBuilder source = new StringBuilder();
+    source.append("class A0 { value() { return 1; } }\n");
+    for (int i = 1; i < 10; i++) {
+      source.append("class A").append(i).append(" < A").append(i - 1)
+          .append(" { value() { return super.value() + 1; } }\n");
+    }
+    source.append("var object = A9();\n");
+    source.append("var total = 0;\n");
+    source.append("for (var i = 0; i < ").append(size)
+        .append("; i = i + 1) { total = total + object.value(); }\n");
+    return source.toString();
+  }
+
+  private Workloads() {
+  }
+}
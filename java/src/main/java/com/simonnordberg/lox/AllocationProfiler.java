@@ -0,0 +1,197 @@
+package com.simonnordberg.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts the objects the tree-walking interpreter allocates, by kind and source line.
+ *
+ * Nodes with a token record against their own line. Allocations made further from the syntax,
+ * such as a callee's environment or a method bound to its receiver, go to the line of the most
+ * recent node that recorded, which is the call or property access that caused them. Blocks have
+ * no token, so a block's environment goes to the line of the block's first statement. With
+ * profiling off, {@link #active} is null and each site costs one static read.
+ */
+final class AllocationProfiler {
+
+  enum Kind {
+    ENVIRONMENT("Environment"),
+    BOUND_METHOD("bound LoxFunction"),
+    INSTANCE("LoxInstance"),
+    DOUBLE("Double"),
+    STRING("String"),
+    ARGUMENTS("argument ArrayList");
+
+    final String description;
+
+    Kind(String description) {
+      this.description = description;
+    }
+  }
+
+  static AllocationProfiler active;
+
+  private final Map<Integer, long[]> counts = new HashMap<>();
+  private final Map<Stmt.Block, Integer> blockLines = new IdentityHashMap<>();
+  private int line = 0;
+
+  static AllocationProfiler start() {
+    active = new AllocationProfiler();
+    return active;
+  }
+
+  void stop() {
+    active = null;
+  }
+
+  void at(int line) {
+    this.line = line;
+  }
+
+  void record(Kind kind, int line) {
+    this.line = line;
+    record(kind);
+  }
+
+  /**
+   * Records against the line of the block's first statement, looked up once per block.
+   */
+  void record(Kind kind, Stmt.Block block) {
+    Integer blockLine = blockLines.get(block);
+    if (blockLine == null) {
+      blockLine = block.statements.isEmpty() ? 0 : firstLine(block.statements.get(0));
+      blockLines.put(block, blockLine);
+    }
+    if (blockLine > 0) {
+      line = blockLine;
+    }
+    record(kind);
+  }
+
+  int line() {
+    return line;
+  }
+
+  void record(Kind kind) {
+    long[] lineCounts = counts.get(line);
+    if (lineCounts == null) {
+      lineCounts = new long[Kind.values().length];
+      counts.put(line, lineCounts);
+    }
+    lineCounts[kind.ordinal()]++;
+  }
+
+  /**
+   * Returns the line of the statement's first token, or 0 if it starts with a literal and has no
+   * token to go by.
+   */
+  private static int firstLine(Stmt stmt) {
+    if (stmt instanceof Stmt.Block) {
+      List<Stmt> statements = ((Stmt.Block) stmt).statements;
+      return statements.isEmpty() ? 0 : firstLine(statements.get(0));
+    } else if (stmt instanceof Stmt.Class) {
+      return ((Stmt.Class) stmt).name.line;
+    } else if (stmt instanceof Stmt.Expression) {
+      return firstLine(((Stmt.Expression) stmt).expression);
+    } else if (stmt instanceof Stmt.Function) {
+      return ((Stmt.Function) stmt).name.line;
+    } else if (stmt instanceof Stmt.If) {
+      return firstLine(((Stmt.If) stmt).condition);
+    } else if (stmt instanceof Stmt.Print) {
+      return firstLine(((Stmt.Print) stmt).expression);
+    } else if (stmt instanceof Stmt.Return) {
+      return ((Stmt.Return) stmt).keyword.line;
+    } else if (stmt instanceof Stmt.Var) {
+      return ((Stmt.Var) stmt).name.line;
+    } else if (stmt instanceof Stmt.While) {
+      return firstLine(((Stmt.While) stmt).condition);
+    }
+    return 0;
+  }
+
+  private static int firstLine(Expr expr) {
+    if (expr instanceof Expr.Assign) {
+      return ((Expr.Assign) expr).name.line;
+    } else if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary) expr;
+      int line = firstLine(binary.left);
+      return line > 0 ? line : binary.operator.line;
+    } else if (expr instanceof Expr.Call) {
+      Expr.Call call = (Expr.Call) expr;
+      int line = firstLine(call.callee);
+      return line > 0 ? line : call.paren.line;
+    } else if (expr instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get) expr;
+      int line = firstLine(get.object);
+      return line > 0 ? line : get.name.line;
+    } else if (expr instanceof Expr.Grouping) {
+      return firstLine(((Expr.Grouping) expr).expression);
+    } else if (expr instanceof Expr.Logical) {
+      Expr.Logical logical = (Expr.Logical) expr;
+      int line = firstLine(logical.left);
+      return line > 0 ? line : logical.operator.line;
+    } else if (expr instanceof Expr.Set) {
+      Expr.Set set = (Expr.Set) expr;
+      int line = firstLine(set.object);
+      return line > 0 ? line : set.name.line;
+    } else if (expr instanceof Expr.Super) {
+      return ((Expr.Super) expr).keyword.line;
+    } else if (expr instanceof Expr.This) {
+      return ((Expr.This) expr).keyword.line;
+    } else if (expr instanceof Expr.Unary) {
+      return ((Expr.Unary) expr).operator.line;
+    } else if (expr instanceof Expr.Variable) {
+      return ((Expr.Variable) expr).name.line;
+    }
+    return 0;
+  }
+
+  /**
+   * Prints every line and kind that allocated, most allocations first, then totals per kind.
+   */
+  void report(String source, PrintStream out) {
+    String[] sourceLines = source.split("\n", -1);
+    final List<long[]> rows = new ArrayList<>();
+    long[] totals = new long[Kind.values().length];
+    for (Map.Entry<Integer, long[]> entry : counts.entrySet()) {
+      for (Kind kind : Kind.values()) {
+        long count = entry.getValue()[kind.ordinal()];
+        if (count > 0) {
+          rows.add(new long[]{count, entry.getKey(), kind.ordinal()});
+          totals[kind.ordinal()] += count;
+        }
+      }
+    }
+
+    Collections.sort(rows, new Comparator<long[]>() {
+      @Override
+      public int compare(long[] a, long[] b) {
+        return a[0] != b[0] ? Long.compare(b[0], a[0]) : Long.compare(a[1], b[1]);
+      }
+    });
+
+    out.printf("%12s %6s  %-20s %s%n", "allocations", "line", "kind", "source");
+    for (long[] row : rows) {
+      int line = (int) row[1];
+      String text = line >= 1 && line <= sourceLines.length ? sourceLines[line - 1].trim() : "";
+      out.printf("%12d %6d  %-20s %s%n", row[0], line, Kind.values()[(int) row[2]].description,
+          text);
+    }
+
+    long total = 0;
+    for (Kind kind : Kind.values()) {
+      total += totals[kind.ordinal()];
+    }
+    out.printf("[allocations: %d total", total);
+    for (Kind kind : Kind.values()) {
+      out.printf(", %d %s", totals[kind.ordinal()], kind.description);
+    }
+    out.println("]");
+  }
+}
@@ -0,0 +1,146 @@
+package com.simonnordberg.lox;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Runs every script in a directory in one JVM, for jobs too small to pay for a JVM each. Jobs run
+ * concurrently on a work-stealing pool, each in an interpreter of its own, and scripts with the
+ * same source share one compiled program, including the functions compiled once they get hot.
+ *
+ * A job's output is buffered and written once the jobs before it have been written, so the output
+ * is in file name order whichever order the jobs finish in. Each job's errors and exit status
+ * follow on standard error; the status is 0, or 65 and 70 for compile and runtime errors as when
+ * running a single script. A job that overflows the stack or hits an internal error exits with 70
+ * and the rest of the batch carries on.
+ */
+final class Batch {
+
+  private final int parallelism;
+  // Compiled programs by source; only programs that compiled cleanly are kept
+  private final ConcurrentMap<String, Program> programs = new ConcurrentHashMap<>();
+
+  Batch(int parallelism) {
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Runs the .lox files in dir and returns the highest exit status of any of them.
+   */
+  int run(Path dir) throws IOException {
+    List<Path> scripts = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.lox")) {
+      for (Path script : stream) {
+        scripts.add(script);
+      }
+    }
+    Collections.sort(scripts);
+
+    long start = System.nanoTime();
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    List<ForkJoinTask<Job>> tasks = new ArrayList<>(scripts.size());
+    for (final Path script : scripts) {
+      tasks.add(pool.submit(new Callable<Job>() {
+        @Override
+        public Job call() {
+          return runJob(script);
+        }
+      }));
+    }
+
+    int status = 0;
+    int failed = 0;
+    for (ForkJoinTask<Job> task : tasks) {
+      Job job = task.join();
+      System.out.print(job.output);
+      System.out.flush();
+      System.err.print(job.errors);
+      System.err.println("[" + job.script.getFileName() + ": exit " + job.status + "]");
+      if (job.status != 0) {
+        failed++;
+        status = Math.max(status, job.status);
+      }
+    }
+    pool.shutdown();
+
+    long millis = (System.nanoTime() - start) / 1000000;
+    System.err.printf("[batch: %d jobs, %d failed, %d ms, %.1f jobs/s, parallelism %d]%n",
+        scripts.size(), failed, millis, scripts.size() * 1000.0 / Math.max(millis, 1),
+        parallelism);
+    return status;
+  }
+
+  private Job runJob(Path script) {
+    StringWriter output = new StringWriter();
+    StringWriter errors = new StringWriter();
+    PrintWriter err = new PrintWriter(errors);
+    int status;
+    // Anything a job throws fails that job rather than escaping through join() and ending the
+    // batch; the parser and the interpreter both recurse, so deep nesting can overflow either
+    try {
+      status = execute(script, new PrintWriter(output), err);
+    } catch (StackOverflowError e) {
+      err.println("Stack overflow");
+      status = 70;
+    } catch (RuntimeException e) {
+      err.println("Internal error: " + e);
+      status = 70;
+    }
+    return new Job(script, output.toString(), errors.toString(), status);
+  }
+
+  private int execute(Path script, PrintWriter out, PrintWriter err) {
+    String source;
+    try {
+      source = new String(Files.readAllBytes(script), Charset.defaultCharset());
+    } catch (IOException e) {
+      err.println("Could not read " + script + ": " + e.getMessage());
+      return 66;
+    }
+
+    ErrorReporter reporter = new ErrorReporter(err);
+    Program program = programs.get(source);
+    if (program == null) {
+      program = Program.compile(source, reporter);
+      if (program == null) {
+        return 65;
+      }
+      // Two jobs may compile the same source at once; both then run the first one's program
+      Program existing = programs.putIfAbsent(source, program);
+      if (existing != null) {
+        program = existing;
+      }
+    }
+
+    program.run(program.newInterpreter(reporter, out));
+    return reporter.hadRuntimeError() ? 70 : 0;
+  }
+
+  private static final class Job {
+
+    final Path script;
+    final String output;
+    final String errors;
+    final int status;
+
+    Job(Path script, String output, String errors, int status) {
+      this.script = script;
+      this.output = output;
+      this.errors = errors;
+      this.status = status;
+    }
+  }
+}
@@ -0,0 +1,734 @@
+package com.simonnordberg.lox;
+
+import static com.simonnordberg.lox.OpCode.OP_ADD;
+import static com.simonnordberg.lox.OpCode.OP_CALL;
+import static com.simonnordberg.lox.OpCode.OP_CLASS;
+import static com.simonnordberg.lox.OpCode.OP_CLOSE_UPVALUE;
+import static com.simonnordberg.lox.OpCode.OP_CLOSURE;
+import static com.simonnordberg.lox.OpCode.OP_CONSTANT;
+import static com.simonnordberg.lox.OpCode.OP_DEFINE_GLOBAL;
+import static com.simonnordberg.lox.OpCode.OP_DIVIDE;
+import static com.simonnordberg.lox.OpCode.OP_EQUAL;
+import static com.simonnordberg.lox.OpCode.OP_FALSE;
+import static com.simonnordberg.lox.OpCode.OP_GET_GLOBAL;
+import static com.simonnordberg.lox.OpCode.OP_GET_LOCAL;
+import static com.simonnordberg.lox.OpCode.OP_GET_PROPERTY;
+import static com.simonnordberg.lox.OpCode.OP_GET_SUPER;
+import static com.simonnordberg.lox.OpCode.OP_GET_UPVALUE;
+import static com.simonnordberg.lox.OpCode.OP_GREATER;
+import static com.simonnordberg.lox.OpCode.OP_GREATER_EQUAL;
+import static com.simonnordberg.lox.OpCode.OP_INHERIT;
+import static com.simonnordberg.lox.OpCode.OP_INVOKE;
+import static com.simonnordberg.lox.OpCode.OP_JUMP;
+import static com.simonnordberg.lox.OpCode.OP_JUMP_IF_FALSE;
+import static com.simonnordberg.lox.OpCode.OP_LESS;
+import static com.simonnordberg.lox.OpCode.OP_LESS_EQUAL;
+import static com.simonnordberg.lox.OpCode.OP_LOOP;
+import static com.simonnordberg.lox.OpCode.OP_METHOD;
+import static com.simonnordberg.lox.OpCode.OP_MULTIPLY;
+import static com.simonnordberg.lox.OpCode.OP_NEGATE;
+import static com.simonnordberg.lox.OpCode.OP_NIL;
+import static com.simonnordberg.lox.OpCode.OP_NOT;
+import static com.simonnordberg.lox.OpCode.OP_POP;
+import static com.simonnordberg.lox.OpCode.OP_PRINT;
+import static com.simonnordberg.lox.OpCode.OP_RETURN;
+import static com.simonnordberg.lox.OpCode.OP_SET_GLOBAL;
+import static com.simonnordberg.lox.OpCode.OP_SET_LOCAL;
+import static com.simonnordberg.lox.OpCode.OP_SET_PROPERTY;
+import static com.simonnordberg.lox.OpCode.OP_SET_UPVALUE;
+import static com.simonnordberg.lox.OpCode.OP_SUBTRACT;
+import static com.simonnordberg.lox.OpCode.OP_SUPER_INVOKE;
+import static com.simonnordberg.lox.OpCode.OP_TRUE;
+
+import com.simonnordberg.lox.Expr.Assign;
+import com.simonnordberg.lox.Expr.Binary;
+import com.simonnordberg.lox.Expr.Call;
+import com.simonnordberg.lox.Expr.Get;
+import com.simonnordberg.lox.Expr.Grouping;
+import com.simonnordberg.lox.Expr.Literal;
+import com.simonnordberg.lox.Expr.Logical;
+import com.simonnordberg.lox.Expr.Set;
+import com.simonnordberg.lox.Expr.Super;
+import com.simonnordberg.lox.Expr.This;
+import com.simonnordberg.lox.Expr.Unary;
+import com.simonnordberg.lox.Expr.Variable;
+import com.simonnordberg.lox.Stmt.Block;
+import com.simonnordberg.lox.Stmt.Class;
+import com.simonnordberg.lox.Stmt.Expression;
+import com.simonnordberg.lox.Stmt.Function;
+import com.simonnordberg.lox.Stmt.If;
+import com.simonnordberg.lox.Stmt.Print;
+import com.simonnordberg.lox.Stmt.Var;
+import com.simonnordberg.lox.Stmt.While;
+import java.util.List;
+
+/**
+ * Compiles a resolved program into bytecode for the {@link VM}.
+ *
+ * Works like clox's single-pass compiler, except that it walks the AST produced by the Parser
+ * instead of the token stream. Locals live in stack slots, captured variables become upvalues
+ * and globals are addressed by the slot the VM assigns to their name.
+ */
+class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+  private static final boolean PRINT_CODE = Boolean.getBoolean("lox.printCode");
+
+  private static final int MAX_LOCALS = 256;
+  private static final int MAX_UPVALUES = 256;
+  private static final int MAX_SHORT = 0xffff;
+
+  private enum FunctionType {
+    FUNCTION,
+    INITIALIZER,
+    METHOD,
+    SCRIPT
+  }
+
+  private static class Local {
+
+    final String name;
+    final int depth;
+    boolean isCaptured = false;
+
+    Local(String name, int depth) {
+      this.name = name;
+      this.depth = depth;
+    }
+  }
+
+  private static class FunctionState {
+
+    final FunctionState enclosing;
+    final Obj.Function function;
+    final FunctionType type;
+    final Local[] locals = new Local[MAX_LOCALS];
+    final boolean[] upvalueIsLocal = new boolean[MAX_UPVALUES];
+    final int[] upvalueIndex = new int[MAX_UPVALUES];
+    int localCount = 0;
+    int scopeDepth = 0;
+    int stackHeight = 0;
+
+    FunctionState(FunctionState enclosing, Obj.Function function, FunctionType type) {
+      this.enclosing = enclosing;
+      this.function = function;
+      this.type = type;
+
+      // Slot zero holds the callee, or the receiver in methods
+      String name = type == FunctionType.METHOD || type == FunctionType.INITIALIZER ? "this" : "";
+      locals[localCount++] = new Local(name, 0);
+      stackHeight = 1;
+      function.maxStack = 1;
+    }
+  }
+
+  private final VM vm;
+  private FunctionState current;
+  private int line = 1;
+
+  BytecodeCompiler(VM vm) {
+    this.vm = vm;
+  }
+
+  /**
+   * Compiles statements into the top-level script function. Compile errors such as too many
+   * locals are reported through {@link Lox#error(Token, String)}.
+   */
+  Obj.Function compile(List<Stmt> statements) {
+    current = new FunctionState(null, new Obj.Function(null), FunctionType.SCRIPT);
+    for (Stmt statement : statements) {
+      statement.accept(this);
+    }
+    return endFunction();
+  }
+
+  // Expr.Visitor<Void>
+
+  @Override
+  public Void visitAssignExpr(Assign expr) {
+    expr.value.accept(this);
+    line = expr.name.line;
+    setVariable(expr.name);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Binary expr) {
+    expr.left.accept(this);
+    expr.right.accept(this);
+    line = expr.operator.line;
+    switch (expr.operator.type) {
+      case PLUS:
+        emitOp(OP_ADD, -1);
+        break;
+      case MINUS:
+        emitOp(OP_SUBTRACT, -1);
+        break;
+      case STAR:
+        emitOp(OP_MULTIPLY, -1);
+        break;
+      case SLASH:
+        emitOp(OP_DIVIDE, -1);
+        break;
+      case GREATER:
+        emitOp(OP_GREATER, -1);
+        break;
+      case GREATER_EQUAL:
+        emitOp(OP_GREATER_EQUAL, -1);
+        break;
+      case LESS:
+        emitOp(OP_LESS, -1);
+        break;
+      case LESS_EQUAL:
+        emitOp(OP_LESS_EQUAL, -1);
+        break;
+      case EQUAL_EQUAL:
+        emitOp(OP_EQUAL, -1);
+        break;
+      case BANG_EQUAL:
+        emitOp(OP_EQUAL, -1);
+        emitOp(OP_NOT, 0);
+        break;
+      default:
+        Lox.error(expr.operator, "Unsupported operator");
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Call expr) {
+    int argCount = expr.arguments.size();
+
+    if (expr.callee instanceof Expr.Get) {
+      // Method call: skip creating a bound method
+      Expr.Get get = (Expr.Get) expr.callee;
+      get.object.accept(this);
+      compileArguments(expr.arguments);
+      line = get.name.line;
+      emitOp(OP_INVOKE, -argCount);
+      emitShort(nameConstant(get.name));
+      emitByte(argCount);
+    } else if (expr.callee instanceof Expr.Super) {
+      Expr.Super superExpr = (Expr.Super) expr.callee;
+      namedVariable(thisToken(superExpr.keyword));
+      compileArguments(expr.arguments);
+      namedVariable(superToken(superExpr.keyword));
+      line = expr.paren.line;
+      emitOp(OP_SUPER_INVOKE, -argCount - 1);
+      emitShort(nameConstant(superExpr.method));
+      emitByte(argCount);
+    } else {
+      expr.callee.accept(this);
+      compileArguments(expr.arguments);
+      line = expr.paren.line;
+      emitOp(OP_CALL, -argCount);
+      emitByte(argCount);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitGetExpr(Get expr) {
+    expr.object.accept(this);
+    line = expr.name.line;
+    emitOp(OP_GET_PROPERTY, 0);
+    emitShort(nameConstant(expr.name));
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Grouping expr) {
+    expr.expression.accept(this);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Literal expr) {
+    if (expr.value == null) {
+      emitOp(OP_NIL, 1);
+    } else if (Boolean.TRUE.equals(expr.value)) {
+      emitOp(OP_TRUE, 1);
+    } else if (Boolean.FALSE.equals(expr.value)) {
+      emitOp(OP_FALSE, 1);
+    } else {
+      emitConstant(expr.value);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Logical expr) {
+    expr.left.accept(this);
+    line = expr.operator.line;
+    if (expr.operator.type == TokenType.AND) {
+      int endJump = emitJump(OP_JUMP_IF_FALSE);
+      emitOp(OP_POP, -1);
+      expr.right.accept(this);
+      patchJump(endJump, expr.operator);
+    } else {
+      int elseJump = emitJump(OP_JUMP_IF_FALSE);
+      int endJump = emitJump(OP_JUMP);
+      patchJump(elseJump, expr.operator);
+      emitOp(OP_POP, -1);
+      expr.right.accept(this);
+      patchJump(endJump, expr.operator);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(Set expr) {
+    expr.object.accept(this);
+    expr.value.accept(this);
+    line = expr.name.line;
+    emitOp(OP_SET_PROPERTY, -1);
+    emitShort(nameConstant(expr.name));
+    return null;
+  }
+
+  @Override
+  public Void visitSuperExpr(Super expr) {
+    namedVariable(thisToken(expr.keyword));
+    namedVariable(superToken(expr.keyword));
+    line = expr.method.line;
+    emitOp(OP_GET_SUPER, -1);
+    emitShort(nameConstant(expr.method));
+    return null;
+  }
+
+  @Override
+  public Void visitThisExpr(This expr) {
+    namedVariable(expr.keyword);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Unary expr) {
+    expr.right.accept(this);
+    line = expr.operator.line;
+    if (expr.operator.type == TokenType.MINUS) {
+      emitOp(OP_NEGATE, 0);
+    } else {
+      emitOp(OP_NOT, 0);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Variable expr) {
+    namedVariable(expr.name);
+    return null;
+  }
+
+  // Stmt.Visitor<Void>
+
+  @Override
+  public Void visitBlockStmt(Block stmt) {
+    beginScope();
+    for (Stmt statement : stmt.statements) {
+      statement.accept(this);
+    }
+    endScope();
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Class stmt) {
+    line = stmt.name.line;
+    int nameConstant = nameConstant(stmt.name);
+    declareVariable(stmt.name);
+    emitOp(OP_CLASS, 1);
+    emitShort(nameConstant);
+    defineVariable(stmt.name);
+
+    if (stmt.superclass != null) {
+      namedVariable(stmt.superclass.name);
+      beginScope();
+      bindLocal(superToken(stmt.superclass.name));
+      namedVariable(stmt.name);
+      line = stmt.superclass.name.line;
+      emitOp(OP_INHERIT, -1);
+    }
+
+    namedVariable(stmt.name);
+    for (Function method : stmt.methods) {
+      FunctionType type = method.name.lexeme.equals("init")
+          ? FunctionType.INITIALIZER : FunctionType.METHOD;
+      function(method, type);
+      line = method.name.line;
+      emitOp(OP_METHOD, -1);
+      emitShort(nameConstant(method.name));
+    }
+    emitOp(OP_POP, -1);
+
+    if (stmt.superclass != null) {
+      endScope();
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Expression stmt) {
+    stmt.expression.accept(this);
+    emitOp(OP_POP, -1);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Function stmt) {
+    declareVariable(stmt.name);
+    // Mark the function initialized before compiling its body so that it can call itself
+    if (current.scopeDepth > 0) {
+      addLocal(stmt.name);
+      // The slot is filled by the OP_CLOSURE below
+      current.stackHeight--;
+    }
+    function(stmt, FunctionType.FUNCTION);
+    if (current.scopeDepth == 0) {
+      emitGlobal(OP_DEFINE_GLOBAL, stmt.name, -1);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(If stmt) {
+    stmt.condition.accept(this);
+    int height = current.stackHeight;
+    int thenJump = emitJump(OP_JUMP_IF_FALSE);
+    emitOp(OP_POP, -1);
+    stmt.thenBranch.accept(this);
+
+    int elseJump = emitJump(OP_JUMP);
+    patchJump(thenJump, null);
+    current.stackHeight = height;
+    emitOp(OP_POP, -1);
+    if (stmt.elseBranch != null) {
+      stmt.elseBranch.accept(this);
+    }
+    patchJump(elseJump, null);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Print stmt) {
+    stmt.expression.accept(this);
+    emitOp(OP_PRINT, -1);
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    line = stmt.keyword.line;
+    if (current.type == FunctionType.INITIALIZER) {
+      emitOp(OP_GET_LOCAL, 1);
+      emitByte(0);
+    } else if (stmt.value != null) {
+      stmt.value.accept(this);
+    } else {
+      emitOp(OP_NIL, 1);
+    }
+    emitOp(OP_RETURN, -1);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Var stmt) {
+    declareVariable(stmt.name);
+    if (stmt.initializer != null) {
+      stmt.initializer.accept(this);
+    } else {
+      line = stmt.name.line;
+      emitOp(OP_NIL, 1);
+    }
+    defineVariable(stmt.name);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(While stmt) {
+    int loopStart = current.function.chunk.count;
+    stmt.condition.accept(this);
+    int height = current.stackHeight;
+    int exitJump = emitJump(OP_JUMP_IF_FALSE);
+    emitOp(OP_POP, -1);
+    stmt.body.accept(this);
+    emitLoop(loopStart);
+
+    patchJump(exitJump, null);
+    current.stackHeight = height;
+    emitOp(OP_POP, -1);
+    return null;
+  }
+
+  // Functions and scopes
+
+  private void function(Function stmt, FunctionType type) {
+    line = stmt.name.line;
+    Obj.Function function = new Obj.Function(stmt.name.lexeme);
+    function.arity = stmt.params.size();
+    current = new FunctionState(current, function, type);
+
+    beginScope();
+    for (Token param : stmt.params) {
+      addLocal(param);
+    }
+    for (Stmt statement : stmt.body) {
+      statement.accept(this);
+    }
+
+    FunctionState state = current;
+    endFunction();
+
+    emitOp(OP_CLOSURE, 1);
+    emitShort(makeConstant(function, stmt.name));
+    for (int i = 0; i < function.upvalueCount; i++) {
+      emitByte(state.upvalueIsLocal[i] ? 1 : 0);
+      emitByte(state.upvalueIndex[i]);
+    }
+  }
+
+  private Obj.Function endFunction() {
+    if (current.type == FunctionType.INITIALIZER) {
+      emitOp(OP_GET_LOCAL, 1);
+      emitByte(0);
+    } else {
+      emitOp(OP_NIL, 1);
+    }
+    emitOp(OP_RETURN, -1);
+
+    Obj.Function function = current.function;
+    function.chunk.seal();
+    if (PRINT_CODE) {
+      Disassembler.disassembleChunk(function.chunk, function.toString(), vm);
+    }
+    current = current.enclosing;
+    return function;
+  }
+
+  private void beginScope() {
+    current.scopeDepth++;
+  }
+
+  private void endScope() {
+    current.scopeDepth--;
+    while (current.localCount > 0
+        && current.locals[current.localCount - 1].depth > current.scopeDepth) {
+      if (current.locals[current.localCount - 1].isCaptured) {
+        emitOp(OP_CLOSE_UPVALUE, -1);
+      } else {
+        emitOp(OP_POP, -1);
+      }
+      current.localCount--;
+    }
+  }
+
+  // Variables
+
+  private void declareVariable(Token name) {
+    line = name.line;
+    // Globals are late bound, and redeclaring a local is caught by the Resolver
+  }
+
+  /**
+   * Binds the value on top of the stack to name, either as a global or as the newest local.
+   */
+  private void defineVariable(Token name) {
+    if (current.scopeDepth > 0) {
+      bindLocal(name);
+      return;
+    }
+    emitGlobal(OP_DEFINE_GLOBAL, name, -1);
+  }
+
+  /**
+   * Turns the temporary on top of the stack into a local.
+   */
+  private void bindLocal(Token name) {
+    current.stackHeight--;
+    addLocal(name);
+  }
+
+  private void addLocal(Token name) {
+    if (current.localCount == MAX_LOCALS) {
+      Lox.error(name, "Too many local variables in function");
+      return;
+    }
+    current.locals[current.localCount++] = new Local(name.lexeme, current.scopeDepth);
+    current.stackHeight++;
+    trackStack();
+  }
+
+  private void namedVariable(Token name) {
+    line = name.line;
+    int slot = resolveLocal(current, name);
+    if (slot != -1) {
+      emitOp(OP_GET_LOCAL, 1);
+      emitByte(slot);
+      return;
+    }
+
+    int upvalue = resolveUpvalue(current, name);
+    if (upvalue != -1) {
+      emitOp(OP_GET_UPVALUE, 1);
+      emitByte(upvalue);
+      return;
+    }
+
+    emitGlobal(OP_GET_GLOBAL, name, 1);
+  }
+
+  private void setVariable(Token name) {
+    int slot = resolveLocal(current, name);
+    if (slot != -1) {
+      emitOp(OP_SET_LOCAL, 0);
+      emitByte(slot);
+      return;
+    }
+
+    int upvalue = resolveUpvalue(current, name);
+    if (upvalue != -1) {
+      emitOp(OP_SET_UPVALUE, 0);
+      emitByte(upvalue);
+      return;
+    }
+
+    emitGlobal(OP_SET_GLOBAL, name, 0);
+  }
+
+  private int resolveLocal(FunctionState state, Token name) {
+    for (int i = state.localCount - 1; i >= 0; i--) {
+      if (state.locals[i].name.equals(name.lexeme)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private int resolveUpvalue(FunctionState state, Token name) {
+    if (state.enclosing == null) {
+      return -1;
+    }
+
+    int local = resolveLocal(state.enclosing, name);
+    if (local != -1) {
+      state.enclosing.locals[local].isCaptured = true;
+      return addUpvalue(state, local, true, name);
+    }
+
+    int upvalue = resolveUpvalue(state.enclosing, name);
+    if (upvalue != -1) {
+      return addUpvalue(state, upvalue, false, name);
+    }
+    return -1;
+  }
+
+  private int addUpvalue(FunctionState state, int index, boolean isLocal, Token name) {
+    int count = state.function.upvalueCount;
+    for (int i = 0; i < count; i++) {
+      if (state.upvalueIndex[i] == index && state.upvalueIsLocal[i] == isLocal) {
+        return i;
+      }
+    }
+
+    if (count == MAX_UPVALUES) {
+      Lox.error(name, "Too many closure variables in function");
+      return 0;
+    }
+
+    state.upvalueIsLocal[count] = isLocal;
+    state.upvalueIndex[count] = index;
+    return state.function.upvalueCount++;
+  }
+
+  private Token thisToken(Token near) {
+    return new Token(TokenType.THIS, "this", null, near.line);
+  }
+
+  private Token superToken(Token near) {
+    return new Token(TokenType.SUPER, "super", null, near.line);
+  }
+
+  private void compileArguments(List<Expr> arguments) {
+    for (Expr argument : arguments) {
+      argument.accept(this);
+    }
+  }
+
+  // Emitting
+
+  private void emitOp(byte op, int stackEffect) {
+    current.function.chunk.write(op, line);
+    current.stackHeight += stackEffect;
+    trackStack();
+  }
+
+  private void emitByte(int b) {
+    current.function.chunk.write(b, line);
+  }
+
+  private void emitShort(int value) {
+    emitByte((value >> 8) & 0xff);
+    emitByte(value & 0xff);
+  }
+
+  private void emitGlobal(byte op, Token name, int stackEffect) {
+    line = name.line;
+    int global = vm.globalSlot(name.lexeme);
+    if (global > MAX_SHORT) {
+      Lox.error(name, "Too many global variables");
+    }
+    emitOp(op, stackEffect);
+    emitShort(global);
+  }
+
+  private void emitConstant(Object value) {
+    emitOp(OP_CONSTANT, 1);
+    emitShort(makeConstant(value, null));
+  }
+
+  private int nameConstant(Token name) {
+    return makeConstant(name.lexeme, name);
+  }
+
+  private int makeConstant(Object value, Token token) {
+    int constant = current.function.chunk.addConstant(value);
+    if (constant > MAX_SHORT) {
+      Lox.error(token != null ? token : new Token(TokenType.EOF, "", null, line),
+          "Too many constants in one chunk");
+      return 0;
+    }
+    return constant;
+  }
+
+  private int emitJump(byte op) {
+    emitOp(op, 0);
+    emitByte(0xff);
+    emitByte(0xff);
+    return current.function.chunk.count - 2;
+  }
+
+  private void patchJump(int offset, Token token) {
+    // -2 to adjust for the jump offset itself
+    int jump = current.function.chunk.count - offset - 2;
+    if (jump > MAX_SHORT) {
+      Lox.error(token != null ? token : new Token(TokenType.EOF, "", null, line),
+          "Too much code to jump over");
+    }
+    current.function.chunk.code[offset] = (byte) ((jump >> 8) & 0xff);
+    current.function.chunk.code[offset + 1] = (byte) (jump & 0xff);
+  }
+
+  private void emitLoop(int loopStart) {
+    emitOp(OP_LOOP, 0);
+    int offset = current.function.chunk.count - loopStart + 2;
+    if (offset > MAX_SHORT) {
+      Lox.error(new Token(TokenType.EOF, "", null, line), "Loop body too large");
+    }
+    emitShort(offset);
+  }
+
+  private void trackStack() {
+    if (current.stackHeight > current.function.maxStack) {
+      current.function.maxStack = current.stackHeight;
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package com.simonnordberg.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compiled function body: the code bytes, the source line of every byte and the constant pool.
+ */
+class Chunk {
+
+  byte[] code = new byte[8];
+  int[] lines = new int[8];
+  int count = 0;
+  final List<Object> constants = new ArrayList<>();
+  // Array copy of constants, filled in by seal() for the VM's dispatch loop
+  Object[] constantTable;
+  private final Map<Object, Integer> constantIndexes = new HashMap<>();
+
+  void write(int b, int line) {
+    if (code.length < count + 1) {
+      code = Arrays.copyOf(code, code.length * 2);
+      lines = Arrays.copyOf(lines, lines.length * 2);
+    }
+    code[count] = (byte) b;
+    lines[count] = line;
+    count++;
+  }
+
+  /**
+   * Adds value to the constant pool, reusing the existing slot for equal numbers and strings.
+   */
+  int addConstant(Object value) {
+    boolean shareable = value instanceof Double || value instanceof String;
+    if (shareable) {
+      Integer index = constantIndexes.get(value);
+      if (index != null) {
+        return index;
+      }
+    }
+
+    constants.add(value);
+    int index = constants.size() - 1;
+    if (shareable) {
+      constantIndexes.put(value, index);
+    }
+    return index;
+  }
+
+  /**
+   * Trims the code and line arrays once compilation is done.
+   */
+  void seal() {
+    code = Arrays.copyOf(code, count);
+    lines = Arrays.copyOf(lines, count);
+    constantTable = constants.toArray();
+  }
+}
@@ -0,0 +1,595 @@
+package com.simonnordberg.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles a function body into a tree of closures, the tier that hot functions move up to.
+ *
+ * Each node is an object whose evaluate or execute method does exactly what the matching
+ * Interpreter visit method does, against the same environments, instances and callables, so the
+ * two tiers can call each other freely. What the closures save is the work the interpreter
+ * repeats on every visit: visitor dispatch, the switch on an operator and the checks for the
+ * profiling modes. Environments and the running interpreter are passed down explicitly instead
+ * of living in fields, so one compiled body serves every interpreter running the program. A
+ * statement returns {@link #NORMAL}, or the value of a return statement it ran, in place of the
+ * interpreter's Return exception.
+ */
+final class ClosureCompiler {
+
+  static final Object NORMAL = new Object();
+
+  abstract static class Node {
+
+    abstract Object evaluate(Interpreter interpreter, Environment environment);
+  }
+
+  abstract static class Statement {
+
+    abstract Object execute(Interpreter interpreter, Environment environment);
+  }
+
+  /**
+   * A compiled function body, shared by every closure and bound method of one declaration.
+   */
+  static final class CompiledFunction {
+
+    private final String[] params;
+    private final Statement[] body;
+
+    private CompiledFunction(String[] params, Statement[] body) {
+      this.params = params;
+      this.body = body;
+    }
+
+    Object call(Interpreter interpreter, Environment closure, List<Object> arguments,
+        boolean isInitializer) {
+      Environment environment = new Environment(closure);
+      for (int i = 0; i < params.length; i++) {
+        environment.define(params[i], arguments.get(i));
+      }
+
+      Object result = executeAll(interpreter, body, environment);
+      if (isInitializer) {
+        return closure.getAt(0, "this");
+      }
+      return result == NORMAL ? null : result;
+    }
+  }
+
+  private final TieredCompiler tieredCompiler;
+
+  ClosureCompiler(TieredCompiler tieredCompiler) {
+    this.tieredCompiler = tieredCompiler;
+  }
+
+  CompiledFunction compile(Stmt.Function function) {
+    String[] params = new String[function.params.size()];
+    for (int i = 0; i < params.length; i++) {
+      params[i] = function.params.get(i).lexeme;
+    }
+    return new CompiledFunction(params, compileAll(function.body));
+  }
+
+  static Object executeAll(Interpreter interpreter, Statement[] statements,
+      Environment environment) {
+    for (Statement statement : statements) {
+      Object result = execute(interpreter, statement, environment);
+      if (result != NORMAL) {
+        return result;
+      }
+    }
+    return NORMAL;
+  }
+
+  private static Object execute(Interpreter interpreter, Statement statement,
+      Environment environment) {
+    if (InterpreterMetrics.ENABLED) {
+      InterpreterMetrics.INSTANCE.statements.increment();
+    }
+    return statement.execute(interpreter, environment);
+  }
+
+  private Statement[] compileAll(List<Stmt> statements) {
+    Statement[] compiled = new Statement[statements.size()];
+    for (int i = 0; i < compiled.length; i++) {
+      compiled[i] = compile(statements.get(i));
+    }
+    return compiled;
+  }
+
+  private Statement compile(Stmt stmt) {
+    if (stmt instanceof Stmt.Block) {
+      return block((Stmt.Block) stmt);
+    } else if (stmt instanceof Stmt.Class) {
+      return classDeclaration((Stmt.Class) stmt);
+    } else if (stmt instanceof Stmt.Expression) {
+      final Node expression = compile(((Stmt.Expression) stmt).expression);
+      return new Statement() {
+        @Override
+        Object execute(Interpreter interpreter, Environment environment) {
+          expression.evaluate(interpreter, environment);
+          return NORMAL;
+        }
+      };
+    } else if (stmt instanceof Stmt.Function) {
+      final Stmt.Function declaration = (Stmt.Function) stmt;
+      final TieredCompiler.Tier tier = tieredCompiler.tierFor(declaration);
+      return new Statement() {
+        @Override
+        Object execute(Interpreter interpreter, Environment environment) {
+          environment.define(declaration.name.lexeme,
+              new LoxFunction(declaration, environment, false, tier));
+          return NORMAL;
+        }
+      };
+    } else if (stmt instanceof Stmt.If) {
+      return ifStatement((Stmt.If) stmt);
+    } else if (stmt instanceof Stmt.Print) {
+      final Node expression = compile(((Stmt.Print) stmt).expression);
+      return new Statement() {
+        @Override
+        Object execute(Interpreter interpreter, Environment environment) {
+          interpreter.print(expression.evaluate(interpreter, environment));
+          return NORMAL;
+        }
+      };
+    } else if (stmt instanceof Stmt.Return) {
+      Stmt.Return returnStmt = (Stmt.Return) stmt;
+      final Node value = returnStmt.value != null ? compile(returnStmt.value) : null;
+      return new Statement() {
+        @Override
+        Object execute(Interpreter interpreter, Environment environment) {
+          return value != null ? value.evaluate(interpreter, environment) : null;
+        }
+      };
+    } else if (stmt instanceof Stmt.Var) {
+      Stmt.Var var = (Stmt.Var) stmt;
+      final String name = var.name.lexeme;
+      final Node initializer = var.initializer != null ? compile(var.initializer) : null;
+      return new Statement() {
+        @Override
+        Object execute(Interpreter interpreter, Environment environment) {
+          environment.define(name,
+              initializer != null ? initializer.evaluate(interpreter, environment) : null);
+          return NORMAL;
+        }
+      };
+    } else if (stmt instanceof Stmt.While) {
+      Stmt.While whileStmt = (Stmt.While) stmt;
+      final Node condition = compile(whileStmt.condition);
+      final Statement body = compile(whileStmt.body);
+      return new Statement() {
+        @Override
+        Object execute(Interpreter interpreter, Environment environment) {
+          while (Interpreter.isTruthy(condition.evaluate(interpreter, environment))) {
+            Object result = ClosureCompiler.execute(interpreter, body, environment);
+            if (result != NORMAL) {
+              return result;
+            }
+          }
+          return NORMAL;
+        }
+      };
+    }
+    throw new IllegalArgumentException("Unknown statement " + stmt);
+  }
+
+  private Statement block(Stmt.Block stmt) {
+    final Statement[] statements = compileAll(stmt.statements);
+    return new Statement() {
+      @Override
+      Object execute(Interpreter interpreter, Environment environment) {
+        return executeAll(interpreter, statements, new Environment(environment));
+      }
+    };
+  }
+
+  private Statement ifStatement(Stmt.If stmt) {
+    final Node condition = compile(stmt.condition);
+    final Statement thenBranch = compile(stmt.thenBranch);
+    final Statement elseBranch = stmt.elseBranch != null ? compile(stmt.elseBranch) : null;
+    return new Statement() {
+      @Override
+      Object execute(Interpreter interpreter, Environment environment) {
+        if (Interpreter.isTruthy(condition.evaluate(interpreter, environment))) {
+          return ClosureCompiler.execute(interpreter, thenBranch, environment);
+        } else if (elseBranch != null) {
+          return ClosureCompiler.execute(interpreter, elseBranch, environment);
+        }
+        return NORMAL;
+      }
+    };
+  }
+
+  private Statement classDeclaration(final Stmt.Class stmt) {
+    final Node superclassNode = stmt.superclass != null ? compile(stmt.superclass) : null;
+    final Map<Stmt.Function, TieredCompiler.Tier> tiers = new HashMap<>();
+    for (Stmt.Function method : stmt.methods) {
+      tiers.put(method, tieredCompiler.tierFor(method));
+    }
+
+    return new Statement() {
+      @Override
+      Object execute(Interpreter interpreter, Environment environment) {
+        Object superclass = null;
+        if (superclassNode != null) {
+          superclass = superclassNode.evaluate(interpreter, environment);
+          if (!(superclass instanceof LoxClass)) {
+            throw new RuntimeError(stmt.superclass.name, "Superclass must be a class");
+          }
+        }
+
+        environment.define(stmt.name.lexeme, null);
+
+        Environment methodEnvironment = environment;
+        if (superclassNode != null) {
+          methodEnvironment = new Environment(environment);
+          methodEnvironment.define("super", superclass);
+        }
+
+        Map<String, LoxFunction> methods = new HashMap<>();
+        for (Stmt.Function method : stmt.methods) {
+          LoxFunction function = new LoxFunction(method, methodEnvironment,
+              method.name.lexeme.equals("init"), tiers.get(method));
+          methods.put(method.name.lexeme, function);
+        }
+
+        LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass) superclass, methods);
+        environment.assign(stmt.name, klass);
+        return NORMAL;
+      }
+    };
+  }
+
+  private Node compile(Expr expr) {
+    if (expr instanceof Expr.Assign) {
+      return assign((Expr.Assign) expr);
+    } else if (expr instanceof Expr.Binary) {
+      return binary((Expr.Binary) expr);
+    } else if (expr instanceof Expr.Call) {
+      return call((Expr.Call) expr);
+    } else if (expr instanceof Expr.Get) {
+      final Expr.Get get = (Expr.Get) expr;
+      final Node object = compile(get.object);
+      return new Node() {
+        @Override
+        Object evaluate(Interpreter interpreter, Environment environment) {
+          Object value = object.evaluate(interpreter, environment);
+          if (value instanceof LoxInstance) {
+            return ((LoxInstance) value).get(get.name);
+          }
+          if (value instanceof NativeObject) {
+            return ((NativeObject) value).method(get.name);
+          }
+          throw new RuntimeError(get.name, "Only instances have properties");
+        }
+      };
+    } else if (expr instanceof Expr.Grouping) {
+      return compile(((Expr.Grouping) expr).expression);
+    } else if (expr instanceof Expr.Literal) {
+      final Object value = ((Expr.Literal) expr).value;
+      return new Node() {
+        @Override
+        Object evaluate(Interpreter interpreter, Environment environment) {
+          return value;
+        }
+      };
+    } else if (expr instanceof Expr.Logical) {
+      return logical((Expr.Logical) expr);
+    } else if (expr instanceof Expr.Set) {
+      final Expr.Set set = (Expr.Set) expr;
+      final Node object = compile(set.object);
+      final Node value = compile(set.value);
+      return new Node() {
+        @Override
+        Object evaluate(Interpreter interpreter, Environment environment) {
+          Object instance = object.evaluate(interpreter, environment);
+          if (!(instance instanceof LoxInstance)) {
+            throw new RuntimeError(set.name, "Only instances have fields");
+          }
+          Object result = value.evaluate(interpreter, environment);
+          ((LoxInstance) instance).set(set.name, result);
+          return result;
+        }
+      };
+    } else if (expr instanceof Expr.Super) {
+      return superExpression((Expr.Super) expr);
+    } else if (expr instanceof Expr.This) {
+      return variable(((Expr.This) expr).keyword, expr);
+    } else if (expr instanceof Expr.Unary) {
+      return unary((Expr.Unary) expr);
+    } else if (expr instanceof Expr.Variable) {
+      return variable(((Expr.Variable) expr).name, expr);
+    }
+    throw new IllegalArgumentException("Unknown expression " + expr);
+  }
+
+  private Node variable(final Token name, Expr expr) {
+    final int distance = expr.depth;
+    if (distance < 0) {
+      return new Node() {
+        @Override
+        Object evaluate(Interpreter interpreter, Environment environment) {
+          return interpreter.globals.get(name);
+        }
+      };
+    }
+
+    final String lexeme = name.lexeme;
+    return new Node() {
+      @Override
+      Object evaluate(Interpreter interpreter, Environment environment) {
+        return environment.getAt(distance, lexeme);
+      }
+    };
+  }
+
+  private Node assign(final Expr.Assign expr) {
+    final Node value = compile(expr.value);
+    final int distance = expr.depth;
+    if (distance < 0) {
+      return new Node() {
+        @Override
+        Object evaluate(Interpreter interpreter, Environment environment) {
+          Object result = value.evaluate(interpreter, environment);
+          interpreter.globals.assign(expr.name, result);
+          return result;
+        }
+      };
+    }
+
+    return new Node() {
+      @Override
+      Object evaluate(Interpreter interpreter, Environment environment) {
+        Object result = value.evaluate(interpreter, environment);
+        environment.assignAt(distance, expr.name, result);
+        return result;
+      }
+    };
+  }
+
+  private Node binary(final Expr.Binary expr) {
+    final Node left = compile(expr.left);
+    final Node right = compile(expr.right);
+    final Token operator = expr.operator;
+    switch (operator.type) {
+      case MINUS:
+        return new Node() {
+          @Override
+          Object evaluate(Interpreter interpreter, Environment environment) {
+            Object a = left.evaluate(interpreter, environment);
+            Object b = right.evaluate(interpreter, environment);
+            Interpreter.checkNumberOperands(operator, a, b);
+            return (double) a - (double) b;
+          }
+        };
+      case PLUS:
+        return new Node() {
+          @Override
+          Object evaluate(Interpreter interpreter, Environment environment) {
+            Object a = left.evaluate(interpreter, environment);
+            Object b = right.evaluate(interpreter, environment);
+            if (a instanceof Double && b instanceof Double) {
+              return (double) a + (double) b;
+            }
+            if (a instanceof String && b instanceof String) {
+              return a + (String) b;
+            }
+            if (a instanceof String || b instanceof String) {
+              return Interpreter.stringify(a) + Interpreter.stringify(b);
+            }
+            throw new RuntimeError(operator, "Operands must be two numbers or two strings");
+          }
+        };
+      case SLASH:
+        return new Node() {
+          @Override
+          Object evaluate(Interpreter interpreter, Environment environment) {
+            Object a = left.evaluate(interpreter, environment);
+            Object b = right.evaluate(interpreter, environment);
+            Interpreter.checkNumberOperands(operator, a, b);
+            return (double) a / (double) b;
+          }
+        };
+      case SLASH_SLASH:
+        return new Node() {
+          @Override
+          Object evaluate(Interpreter interpreter, Environment environment) {
+            Object a = left.evaluate(interpreter, environment);
+            Object b = right.evaluate(interpreter, environment);
+            Interpreter.checkNumberOperands(operator, a, b);
+            return Math.floor((double) a / (double) b);
+          }
+        };
+      case STAR:
+        return new Node() {
+          @Override
+          Object evaluate(Interpreter interpreter, Environment environment) {
+            Object a = left.evaluate(interpreter, environment);
+            Object b = right.evaluate(interpreter, environment);
+            Interpreter.checkNumberOperands(operator, a, b);
+            return (double) a * (double) b;
+          }
+        };
+      case GREATER:
+        return new Node() {
+          @Override
+          Object evaluate(Interpreter interpreter, Environment environment) {
+            Object a = left.evaluate(interpreter, environment);
+            Object b = right.evaluate(interpreter, environment);
+            Interpreter.checkNumberOperands(operator, a, b);
+            return (double) a > (double) b;
+          }
+        };
+      case GREATER_EQUAL:
+        return new Node() {
+          @Override
+          Object evaluate(Interpreter interpreter, Environment environment) {
+            Object a = left.evaluate(interpreter, environment);
+            Object b = right.evaluate(interpreter, environment);
+            Interpreter.checkNumberOperands(operator, a, b);
+            return (double) a >= (double) b;
+          }
+        };
+      case LESS:
+        return new Node() {
+          @Override
+          Object evaluate(Interpreter interpreter, Environment environment) {
+            Object a = left.evaluate(interpreter, environment);
+            Object b = right.evaluate(interpreter, environment);
+            Interpreter.checkNumberOperands(operator, a, b);
+            return (double) a < (double) b;
+          }
+        };
+      case LESS_EQUAL:
+        return new Node() {
+          @Override
+          Object evaluate(Interpreter interpreter, Environment environment) {
+            Object a = left.evaluate(interpreter, environment);
+            Object b = right.evaluate(interpreter, environment);
+            Interpreter.checkNumberOperands(operator, a, b);
+            return (double) a <= (double) b;
+          }
+        };
+      case BANG_EQUAL:
+        return new Node() {
+          @Override
+          Object evaluate(Interpreter interpreter, Environment environment) {
+            Object a = left.evaluate(interpreter, environment);
+            Object b = right.evaluate(interpreter, environment);
+            return !Interpreter.isEqual(a, b);
+          }
+        };
+      case EQUAL_EQUAL:
+        return new Node() {
+          @Override
+          Object evaluate(Interpreter interpreter, Environment environment) {
+            Object a = left.evaluate(interpreter, environment);
+            Object b = right.evaluate(interpreter, environment);
+            return Interpreter.isEqual(a, b);
+          }
+        };
+      default:
+        // The interpreter evaluates both operands and yields nil for anything else
+        return new Node() {
+          @Override
+          Object evaluate(Interpreter interpreter, Environment environment) {
+            left.evaluate(interpreter, environment);
+            right.evaluate(interpreter, environment);
+            return null;
+          }
+        };
+    }
+  }
+
+  private Node call(final Expr.Call expr) {
+    final Node callee = compile(expr.callee);
+    final Node[] arguments = new Node[expr.arguments.size()];
+    for (int i = 0; i < arguments.length; i++) {
+      arguments[i] = compile(expr.arguments.get(i));
+    }
+
+    return new Node() {
+      @Override
+      Object evaluate(Interpreter interpreter, Environment environment) {
+        Object function = callee.evaluate(interpreter, environment);
+        List<Object> values = new ArrayList<>(arguments.length);
+        for (Node argument : arguments) {
+          values.add(argument.evaluate(interpreter, environment));
+        }
+
+        if (!(function instanceof LoxCallable)) {
+          throw new RuntimeError(expr.paren, "Can only call functions and classes");
+        }
+
+        LoxCallable callable = (LoxCallable) function;
+        if (values.size() != callable.arity()) {
+          throw new RuntimeError(expr.paren,
+              "Expected " + callable.arity() + " arguments but got " + values.size());
+        }
+
+        if (InterpreterMetrics.ENABLED) {
+          InterpreterMetrics.INSTANCE.calls.increment();
+        }
+        try {
+          return callable.call(interpreter, values);
+        } catch (NativeError error) {
+          throw new RuntimeError(expr.paren, error.getMessage());
+        }
+      }
+    };
+  }
+
+  private Node logical(Expr.Logical expr) {
+    final Node left = compile(expr.left);
+    final Node right = compile(expr.right);
+    if (expr.operator.type == TokenType.OR) {
+      return new Node() {
+        @Override
+        Object evaluate(Interpreter interpreter, Environment environment) {
+          Object value = left.evaluate(interpreter, environment);
+          return Interpreter.isTruthy(value) ? value : right.evaluate(interpreter, environment);
+        }
+      };
+    }
+
+    return new Node() {
+      @Override
+      Object evaluate(Interpreter interpreter, Environment environment) {
+        Object value = left.evaluate(interpreter, environment);
+        return !Interpreter.isTruthy(value) ? value : right.evaluate(interpreter, environment);
+      }
+    };
+  }
+
+  private Node superExpression(final Expr.Super expr) {
+    final int distance = expr.depth;
+    return new Node() {
+      @Override
+      Object evaluate(Interpreter interpreter, Environment environment) {
+        LoxClass superclass = (LoxClass) environment.getAt(distance, "super");
+        LoxInstance object = (LoxInstance) environment.getAt(distance - 1, "this");
+
+        LoxFunction method = superclass.findMethod(expr.method.lexeme);
+        if (method == null) {
+          throw new RuntimeError(expr.method,
+              "Undefined property '" + expr.method.lexeme + "'");
+        }
+        return method.bind(object);
+      }
+    };
+  }
+
+  private Node unary(final Expr.Unary expr) {
+    final Node right = compile(expr.right);
+    switch (expr.operator.type) {
+      case MINUS:
+        return new Node() {
+          @Override
+          Object evaluate(Interpreter interpreter, Environment environment) {
+            Object value = right.evaluate(interpreter, environment);
+            Interpreter.checkNumberOperand(expr.operator, value);
+            return -(double) value;
+          }
+        };
+      case BANG:
+        return new Node() {
+          @Override
+          Object evaluate(Interpreter interpreter, Environment environment) {
+            return !Interpreter.isTruthy(right.evaluate(interpreter, environment));
+          }
+        };
+      default:
+        return new Node() {
+          @Override
+          Object evaluate(Interpreter interpreter, Environment environment) {
+            right.evaluate(interpreter, environment);
+            return null;
+          }
+        };
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package com.simonnordberg.lox;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A script compiled by {@link LoxEngine#compile}. It never changes, so one instance can be
+ * executed many times and by many threads at once; each execution runs in an interpreter of its
+ * own, and functions that get hot in one are compiled for all of them.
+ */
+public final class CompiledScript {
+
+  private final Program program;
+
+  CompiledScript(Program program) {
+    this.program = program;
+  }
+
+  /**
+   * Executes the script, printing to standard output.
+   *
+   * @see #execute(Map, Writer)
+   */
+  public Map<String, Object> execute(Map<String, ?> bindings) {
+    return execute(bindings, new PrintWriter(System.out));
+  }
+
+  /**
+   * Executes the script with the bindings as its initial globals, printing to out. Java numbers
+   * become Lox numbers; strings, booleans and null map to themselves, and other objects, such as
+   * values returned by an earlier execution, are passed through as they are.
+   *
+   * @return the globals the script defined or assigned, by name; natives and bindings that still
+   *     hold the value they started with are left out
+   * @throws LoxException if the script stopped with a runtime error or overflowed the stack
+   */
+  public Map<String, Object> execute(Map<String, ?> bindings, Writer out) {
+    PrintWriter writer = out instanceof PrintWriter ? (PrintWriter) out : new PrintWriter(out);
+    // Runtime errors are thrown to the caller rather than printed
+    ErrorReporter reporter = new ErrorReporter(new PrintWriter(new StringWriter()));
+    Interpreter interpreter = program.newInterpreter(reporter, writer);
+
+    for (Map.Entry<String, ?> binding : bindings.entrySet()) {
+      interpreter.globals.define(binding.getKey(), toLox(binding.getValue()));
+    }
+    Map<String, Object> globals = interpreter.globals.values();
+    Map<String, Object> initial = new HashMap<>(globals);
+
+    try {
+      program.run(interpreter);
+    } catch (StackOverflowError e) {
+      throw new LoxException("Stack overflow", -1);
+    } finally {
+      writer.flush();
+    }
+    RuntimeError error = reporter.runtimeError();
+    if (error != null) {
+      throw new LoxException(error.getMessage(), error.line);
+    }
+
+    Map<String, Object> result = new HashMap<>();
+    for (Map.Entry<String, Object> global : globals.entrySet()) {
+      // Leave out natives and bindings, unless the script replaced one
+      String name = global.getKey();
+      if (!initial.containsKey(name) || initial.get(name) != global.getValue()) {
+        result.put(name, global.getValue());
+      }
+    }
+    return Collections.unmodifiableMap(result);
+  }
+
+  private static Object toLox(Object value) {
+    if (value instanceof Number && !(value instanceof Double)) {
+      return ((Number) value).doubleValue();
+    }
+    return value;
+  }
+}
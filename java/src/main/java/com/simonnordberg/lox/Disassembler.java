@@ -0,0 +1,221 @@
+package com.simonnordberg.lox;
+
+import static com.simonnordberg.lox.OpCode.OP_ADD;
+import static com.simonnordberg.lox.OpCode.OP_CALL;
+import static com.simonnordberg.lox.OpCode.OP_CLASS;
+import static com.simonnordberg.lox.OpCode.OP_CLOSE_UPVALUE;
+import static com.simonnordberg.lox.OpCode.OP_CLOSURE;
+import static com.simonnordberg.lox.OpCode.OP_CONSTANT;
+import static com.simonnordberg.lox.OpCode.OP_DEFINE_GLOBAL;
+import static com.simonnordberg.lox.OpCode.OP_DIVIDE;
+import static com.simonnordberg.lox.OpCode.OP_EQUAL;
+import static com.simonnordberg.lox.OpCode.OP_FALSE;
+import static com.simonnordberg.lox.OpCode.OP_GET_GLOBAL;
+import static com.simonnordberg.lox.OpCode.OP_GET_LOCAL;
+import static com.simonnordberg.lox.OpCode.OP_GET_PROPERTY;
+import static com.simonnordberg.lox.OpCode.OP_GET_SUPER;
+import static com.simonnordberg.lox.OpCode.OP_GET_UPVALUE;
+import static com.simonnordberg.lox.OpCode.OP_GREATER;
+import static com.simonnordberg.lox.OpCode.OP_GREATER_EQUAL;
+import static com.simonnordberg.lox.OpCode.OP_INHERIT;
+import static com.simonnordberg.lox.OpCode.OP_INVOKE;
+import static com.simonnordberg.lox.OpCode.OP_JUMP;
+import static com.simonnordberg.lox.OpCode.OP_JUMP_IF_FALSE;
+import static com.simonnordberg.lox.OpCode.OP_LESS;
+import static com.simonnordberg.lox.OpCode.OP_LESS_EQUAL;
+import static com.simonnordberg.lox.OpCode.OP_LOOP;
+import static com.simonnordberg.lox.OpCode.OP_METHOD;
+import static com.simonnordberg.lox.OpCode.OP_MULTIPLY;
+import static com.simonnordberg.lox.OpCode.OP_NEGATE;
+import static com.simonnordberg.lox.OpCode.OP_NIL;
+import static com.simonnordberg.lox.OpCode.OP_NOT;
+import static com.simonnordberg.lox.OpCode.OP_POP;
+import static com.simonnordberg.lox.OpCode.OP_PRINT;
+import static com.simonnordberg.lox.OpCode.OP_RETURN;
+import static com.simonnordberg.lox.OpCode.OP_SET_GLOBAL;
+import static com.simonnordberg.lox.OpCode.OP_SET_LOCAL;
+import static com.simonnordberg.lox.OpCode.OP_SET_PROPERTY;
+import static com.simonnordberg.lox.OpCode.OP_SET_UPVALUE;
+import static com.simonnordberg.lox.OpCode.OP_SUBTRACT;
+import static com.simonnordberg.lox.OpCode.OP_SUPER_INVOKE;
+import static com.simonnordberg.lox.OpCode.OP_TRUE;
+
+import java.io.PrintStream;
+
+/**
+ * Prints chunks in the same format as clox's debug.c, one instruction per line.
+ */
+class Disassembler {
+
+  private static final PrintStream out = System.out;
+
+  /**
+   * Global instructions address slots owned by vm, which is used to look up their names.
+   */
+  static void disassembleChunk(Chunk chunk, String name, VM vm) {
+    out.printf("== %s ==%n", name);
+
+    for (int offset = 0; offset < chunk.count; ) {
+      offset = disassembleInstruction(chunk, offset, vm);
+    }
+  }
+
+  static int disassembleInstruction(Chunk chunk, int offset, VM vm) {
+    out.printf("%04d ", offset);
+    if (offset > 0 && chunk.lines[offset] == chunk.lines[offset - 1]) {
+      out.print("   | ");
+    } else {
+      out.printf("%4d ", chunk.lines[offset]);
+    }
+
+    byte instruction = chunk.code[offset];
+    switch (instruction) {
+      case OP_CONSTANT:
+        return constantInstruction("OP_CONSTANT", chunk, offset);
+      case OP_NIL:
+        return simpleInstruction("OP_NIL", offset);
+      case OP_TRUE:
+        return simpleInstruction("OP_TRUE", offset);
+      case OP_FALSE:
+        return simpleInstruction("OP_FALSE", offset);
+      case OP_POP:
+        return simpleInstruction("OP_POP", offset);
+      case OP_GET_LOCAL:
+        return byteInstruction("OP_GET_LOCAL", chunk, offset);
+      case OP_SET_LOCAL:
+        return byteInstruction("OP_SET_LOCAL", chunk, offset);
+      case OP_GET_GLOBAL:
+        return globalInstruction("OP_GET_GLOBAL", chunk, offset, vm);
+      case OP_DEFINE_GLOBAL:
+        return globalInstruction("OP_DEFINE_GLOBAL", chunk, offset, vm);
+      case OP_SET_GLOBAL:
+        return globalInstruction("OP_SET_GLOBAL", chunk, offset, vm);
+      case OP_GET_UPVALUE:
+        return byteInstruction("OP_GET_UPVALUE", chunk, offset);
+      case OP_SET_UPVALUE:
+        return byteInstruction("OP_SET_UPVALUE", chunk, offset);
+      case OP_GET_PROPERTY:
+        return constantInstruction("OP_GET_PROPERTY", chunk, offset);
+      case OP_SET_PROPERTY:
+        return constantInstruction("OP_SET_PROPERTY", chunk, offset);
+      case OP_GET_SUPER:
+        return constantInstruction("OP_GET_SUPER", chunk, offset);
+      case OP_EQUAL:
+        return simpleInstruction("OP_EQUAL", offset);
+      case OP_GREATER:
+        return simpleInstruction("OP_GREATER", offset);
+      case OP_GREATER_EQUAL:
+        return simpleInstruction("OP_GREATER_EQUAL", offset);
+      case OP_LESS:
+        return simpleInstruction("OP_LESS", offset);
+      case OP_LESS_EQUAL:
+        return simpleInstruction("OP_LESS_EQUAL", offset);
+      case OP_ADD:
+        return simpleInstruction("OP_ADD", offset);
+      case OP_SUBTRACT:
+        return simpleInstruction("OP_SUBTRACT", offset);
+      case OP_MULTIPLY:
+        return simpleInstruction("OP_MULTIPLY", offset);
+      case OP_DIVIDE:
+        return simpleInstruction("OP_DIVIDE", offset);
+      case OP_NOT:
+        return simpleInstruction("OP_NOT", offset);
+      case OP_NEGATE:
+        return simpleInstruction("OP_NEGATE", offset);
+      case OP_PRINT:
+        return simpleInstruction("OP_PRINT", offset);
+      case OP_JUMP:
+        return jumpInstruction("OP_JUMP", 1, chunk, offset);
+      case OP_JUMP_IF_FALSE:
+        return jumpInstruction("OP_JUMP_IF_FALSE", 1, chunk, offset);
+      case OP_LOOP:
+        return jumpInstruction("OP_LOOP", -1, chunk, offset);
+      case OP_CALL:
+        return byteInstruction("OP_CALL", chunk, offset);
+      case OP_INVOKE:
+        return invokeInstruction("OP_INVOKE", chunk, offset);
+      case OP_SUPER_INVOKE:
+        return invokeInstruction("OP_SUPER_INVOKE", chunk, offset);
+      case OP_CLOSURE:
+        return closureInstruction(chunk, offset);
+      case OP_CLOSE_UPVALUE:
+        return simpleInstruction("OP_CLOSE_UPVALUE", offset);
+      case OP_RETURN:
+        return simpleInstruction("OP_RETURN", offset);
+      case OP_CLASS:
+        return constantInstruction("OP_CLASS", chunk, offset);
+      case OP_INHERIT:
+        return simpleInstruction("OP_INHERIT", offset);
+      case OP_METHOD:
+        return constantInstruction("OP_METHOD", chunk, offset);
+      default:
+        out.printf("Unknown opcode: %d%n", instruction);
+        return offset + 1;
+    }
+  }
+
+  private static int simpleInstruction(String name, int offset) {
+    out.printf("%s%n", name);
+    return offset + 1;
+  }
+
+  private static int byteInstruction(String name, Chunk chunk, int offset) {
+    int slot = chunk.code[offset + 1] & 0xff;
+    out.printf("%-16s %4d%n", name, slot);
+    return offset + 2;
+  }
+
+  private static int globalInstruction(String name, Chunk chunk, int offset, VM vm) {
+    int slot = readShort(chunk, offset + 1);
+    out.printf("%-16s %4d '%s'%n", name, slot, vm.globalName(slot));
+    return offset + 3;
+  }
+
+  private static int constantInstruction(String name, Chunk chunk, int offset) {
+    int constant = readShort(chunk, offset + 1);
+    out.printf("%-16s %4d '", name, constant);
+    printValue(chunk.constants.get(constant));
+    out.printf("'%n");
+    return offset + 3;
+  }
+
+  private static int invokeInstruction(String name, Chunk chunk, int offset) {
+    int constant = readShort(chunk, offset + 1);
+    int argCount = chunk.code[offset + 3] & 0xff;
+    out.printf("%-16s (%d args) %4d '", name, argCount, constant);
+    printValue(chunk.constants.get(constant));
+    out.printf("'%n");
+    return offset + 4;
+  }
+
+  private static int jumpInstruction(String name, int sign, Chunk chunk, int offset) {
+    int jump = readShort(chunk, offset + 1);
+    out.printf("%-16s %4d -> %d%n", name, offset, offset + 3 + sign * jump);
+    return offset + 3;
+  }
+
+  private static int closureInstruction(Chunk chunk, int offset) {
+    int constant = readShort(chunk, offset + 1);
+    offset += 3;
+    out.printf("%-16s %4d ", "OP_CLOSURE", constant);
+    Obj.Function function = (Obj.Function) chunk.constants.get(constant);
+    printValue(function);
+    out.printf("%n");
+
+    for (int j = 0; j < function.upvalueCount; j++) {
+      int isLocal = chunk.code[offset++];
+      int index = chunk.code[offset++] & 0xff;
+      out.printf("%04d      |                     %s %d%n",
+          offset - 2, isLocal == 1 ? "local" : "upvalue", index);
+    }
+    return offset;
+  }
+
+  private static void printValue(Object value) {
+    out.print(Interpreter.stringify(value));
+  }
+
+  private static int readShort(Chunk chunk, int offset) {
+    return ((chunk.code[offset] & 0xff) << 8) | (chunk.code[offset + 1] & 0xff);
+  }
+}
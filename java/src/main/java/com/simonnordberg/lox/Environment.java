@@ -10,10 +10,16 @@ public class Environment {
 
   public Environment() {
     this.enclosing = null;
+    if (InterpreterMetrics.ENABLED) {
+      InterpreterMetrics.INSTANCE.environments.increment();
+    }
   }
 
   public Environment(Environment enclosing) {
     this.enclosing = enclosing;
+    if (InterpreterMetrics.ENABLED) {
+      InterpreterMetrics.INSTANCE.environments.increment();
+    }
   }
 
   Object get(Token token) {
@@ -28,7 +34,17 @@ public class Environment {
     throw new RuntimeError(token, "Undefined variable '" + token.lexeme + "'");
   }
 
+  /**
+   * The variables defined directly in this environment, not in the ones enclosing it.
+   */
+  Map<String, Object> values() {
+    return values;
+  }
+
   void define(String name, Object value) {
+    if (InterpreterMetrics.ENABLED && enclosing == null && !values.containsKey(name)) {
+      InterpreterMetrics.INSTANCE.globals.increment();
+    }
     values.put(name, value);
   }
 
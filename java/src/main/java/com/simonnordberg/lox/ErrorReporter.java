@@ -0,0 +1,67 @@
+package com.simonnordberg.lox;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+
+/**
+ * Prints compile and runtime errors and remembers that they happened. Each compilation and each
+ * execution that may run alongside others gets its own reporter; the command line shares one.
+ */
+class ErrorReporter {
+
+  private final PrintWriter err;
+  private boolean hadError = false;
+  private RuntimeError runtimeError = null;
+
+  ErrorReporter(PrintStream err) {
+    this(new PrintWriter(err, true));
+  }
+
+  ErrorReporter(PrintWriter err) {
+    this.err = err;
+  }
+
+  void error(int line, String message) {
+    report(line, "", message);
+  }
+
+  void error(Token token, String message) {
+    if (token.type == TokenType.EOF) {
+      report(token.line, " at end", message);
+    } else {
+      report(token.line, " at '" + token.lexeme + "'", message);
+    }
+  }
+
+  private void report(int line, String where, String message) {
+    err.println("[line " + line + "] Error" + where + ": " + message);
+    hadError = true;
+  }
+
+  void runtimeError(RuntimeError error) {
+    err.println(error.getMessage() + "\n[line " + error.line + "]");
+    runtimeError = error;
+  }
+
+  boolean hadError() {
+    return hadError;
+  }
+
+  boolean hadRuntimeError() {
+    return runtimeError != null;
+  }
+
+  /**
+   * The last runtime error reported, or null if there was none.
+   */
+  RuntimeError runtimeError() {
+    return runtimeError;
+  }
+
+  /**
+   * Forgets earlier syntax and resolution errors, so the prompt can go on to the next line.
+   */
+  void clearError() {
+    hadError = false;
+  }
+}
@@ -0,0 +1,113 @@
+package com.simonnordberg.lox;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JDK Flight Recorder events for jlox, in the "Lox" category.
+ *
+ * Fields are only filled in once shouldCommit() has passed the enabled check and duration
+ * threshold. Thresholds can be changed in a .jfc settings file like those of any built-in event.
+ * Until Flight Recorder has been started, by -XX:StartFlightRecording or jcmd JFR.start, no event
+ * is created at all: the first one initializes JFR, which takes a few hundred milliseconds.
+ */
+final class Events {
+
+  static boolean recording() {
+    return FlightRecorder.isInitialized();
+  }
+
+  @Name("lox.FunctionCall")
+  @Label("Lox Function Call")
+  @Category("Lox")
+  @Description("A call to a Lox function or method")
+  @Threshold("1 ms")
+  @StackTrace(false)
+  static final class FunctionCall extends Event {
+
+    @Label("Function")
+    String function;
+
+    @Label("Arity")
+    int arity;
+
+    @Label("Line")
+    int line;
+  }
+
+  @Name("lox.Instantiation")
+  @Label("Lox Class Instantiation")
+  @Category("Lox")
+  @Description("A call to a Lox class, including its initializer")
+  @Threshold("1 ms")
+  @StackTrace(false)
+  static final class Instantiation extends Event {
+
+    @Label("Class")
+    String className;
+
+    @Label("Arity")
+    int arity;
+  }
+
+  @Name("lox.RuntimeError")
+  @Label("Lox Runtime Error")
+  @Category("Lox")
+  @Description("A runtime error raised by any jlox backend")
+  @StackTrace(false)
+  static final class RuntimeErrorRaised extends Event {
+
+    @Label("Message")
+    String message;
+
+    @Label("Line")
+    int line;
+  }
+
+  @Name("lox.Scan")
+  @Label("Lox Scan")
+  @Category({"Lox", "Front End"})
+  @StackTrace(false)
+  static final class Scan extends Event {
+
+    @Label("Source Length")
+    int sourceLength;
+
+    @Label("Tokens")
+    int tokens;
+  }
+
+  @Name("lox.Parse")
+  @Label("Lox Parse")
+  @Category({"Lox", "Front End"})
+  @StackTrace(false)
+  static final class Parse extends Event {
+
+    @Label("Tokens")
+    int tokens;
+
+    @Label("Statements")
+    @Description("Top-level statements")
+    int statements;
+  }
+
+  @Name("lox.Resolve")
+  @Label("Lox Resolve")
+  @Category({"Lox", "Front End"})
+  @StackTrace(false)
+  static final class Resolve extends Event {
+
+    @Label("Nodes")
+    @Description("Statements and expressions visited")
+    int nodes;
+  }
+
+  private Events() {
+  }
+}
@@ -4,6 +4,13 @@ import java.util.List;
 
 abstract class Expr {
 
+  // Set by the resolver before the tree is run, and only read after that: the
+  // number of scopes between a local variable and its use, or -1 for a global
+  int depth = -1;
+
+  // Updated by the interpreter while it counts executions
+  long executions;
+
   abstract <R> R accept(Visitor<R> visitor);
   interface Visitor<R> {
     R visitAssignExpr(Assign expr);
@@ -0,0 +1,372 @@
+package com.simonnordberg.lox;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Sums the execution counters an interpreter left on the syntax tree by source line and by
+ * function, and reports them as an annotated listing of the source or as JSON.
+ *
+ * A statement is placed on the line of its own token or, failing that, of the first token in
+ * its expressions; its expressions count towards that same line. Times are the self time of
+ * statements as measured with System.nanoTime(), so they include the timer's own overhead and
+ * are best read as estimates.
+ */
+final class HeatMap implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+
+  private static final int BAR_WIDTH = 10;
+
+  private static final class Totals {
+
+    final String name;
+    final int line;
+    long statements = 0;
+    long expressions = 0;
+    long selfNanos = 0;
+
+    Totals(String name, int line) {
+      this.name = name;
+      this.line = line;
+    }
+  }
+
+  private final String[] source;
+  private final Totals[] lines;
+  private final List<Totals> functions = new ArrayList<>();
+  private Totals function;
+  private long totalNanos = 0;
+
+  // Where the statement being summed starts, and its expression count so far
+  private int parentLine = 1;
+  private int firstLine = 0;
+  private long expressions = 0;
+
+  HeatMap(String source, List<Stmt> statements) {
+    this.source = source.split("\n", -1);
+    this.lines = new Totals[this.source.length + 1];
+    for (int i = 1; i < lines.length; i++) {
+      lines[i] = new Totals(null, i);
+    }
+
+    function = new Totals(Profiler.ROOT, 1);
+    functions.add(function);
+    statements(statements);
+  }
+
+  /**
+   * Prints every source line with its counts, time and a bar scaled to the hottest line.
+   */
+  void print(PrintStream out) {
+    long hottest = 1;
+    for (int i = 1; i < lines.length; i++) {
+      hottest = Math.max(hottest, lines[i].selfNanos);
+    }
+
+    out.printf("[heat map: %.1f ms estimated in statements]%n", totalNanos / 1e6);
+    out.printf("%5s %10s %10s %9s %6s  %-" + BAR_WIDTH + "s  %s%n", "line", "stmts", "exprs",
+        "self ms", "%", "heat", "source");
+    for (int i = 1; i < lines.length; i++) {
+      Totals line = lines[i];
+      if (line.statements == 0 && line.expressions == 0) {
+        out.printf("%5d %10s %10s %9s %6s  %-" + BAR_WIDTH + "s  %s%n", i, "", "", "", "", "",
+            source[i - 1]);
+        continue;
+      }
+
+      int bar = (int) Math.round((double) BAR_WIDTH * line.selfNanos / hottest);
+      StringBuilder heat = new StringBuilder();
+      for (int j = 0; j < bar; j++) {
+        heat.append('#');
+      }
+      out.printf("%5d %10d %10d %9.2f %5.1f%%  %-" + BAR_WIDTH + "s  %s%n", i, line.statements,
+          line.expressions, line.selfNanos / 1e6, percent(line.selfNanos), heat, source[i - 1]);
+    }
+
+    out.printf("%n%9s %6s %10s  %s%n", "self ms", "%", "stmts", "function");
+    for (Totals totals : sortedFunctions()) {
+      out.printf("%9.2f %5.1f%% %10d  %s:%d%n", totals.selfNanos / 1e6,
+          percent(totals.selfNanos), totals.statements, totals.name, totals.line);
+    }
+  }
+
+  /**
+   * Writes the executed lines and every function as JSON, for tools that pick what to optimize.
+   */
+  void writeJson(String path) throws IOException {
+    try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(path),
+        Charset.forName("UTF-8")))) {
+      writer.println("{");
+      writer.printf("  \"totalNanos\": %d,%n", totalNanos);
+      writer.println("  \"lines\": [");
+      List<Totals> executed = new ArrayList<>();
+      for (int i = 1; i < lines.length; i++) {
+        if (lines[i].statements > 0 || lines[i].expressions > 0) {
+          executed.add(lines[i]);
+        }
+      }
+      for (int i = 0; i < executed.size(); i++) {
+        Totals line = executed.get(i);
+        writer.printf("    {\"line\": %d, \"statements\": %d, \"expressions\": %d, "
+                + "\"selfNanos\": %d}%s%n", line.line, line.statements, line.expressions,
+            line.selfNanos, i < executed.size() - 1 ? "," : "");
+      }
+      writer.println("  ],");
+      writer.println("  \"functions\": [");
+      List<Totals> sorted = sortedFunctions();
+      for (int i = 0; i < sorted.size(); i++) {
+        Totals totals = sorted.get(i);
+        writer.printf("    {\"name\": \"%s\", \"line\": %d, \"statements\": %d, "
+                + "\"expressions\": %d, \"selfNanos\": %d}%s%n", totals.name, totals.line,
+            totals.statements, totals.expressions, totals.selfNanos,
+            i < sorted.size() - 1 ? "," : "");
+      }
+      writer.println("  ]");
+      writer.println("}");
+    }
+  }
+
+  private List<Totals> sortedFunctions() {
+    List<Totals> sorted = new ArrayList<>(functions);
+    Collections.sort(sorted, new Comparator<Totals>() {
+      @Override
+      public int compare(Totals a, Totals b) {
+        return Long.compare(b.selfNanos, a.selfNanos);
+      }
+    });
+    return sorted;
+  }
+
+  private double percent(long nanos) {
+    return totalNanos == 0 ? 0 : 100.0 * nanos / totalNanos;
+  }
+
+  private void statements(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      if (statement != null) {
+        statement.accept(this);
+      }
+    }
+  }
+
+  /**
+   * Adds a statement's counters, and those of its expressions, to the line it starts on.
+   * Returns that line so that nested statements can fall back to it.
+   */
+  private int statement(Stmt stmt, Token token, Expr... exprs) {
+    firstLine = token != null ? token.line : 0;
+    expressions = 0;
+    for (Expr expr : exprs) {
+      if (expr != null) {
+        expr.accept(this);
+      }
+    }
+
+    int line = firstLine > 0 && firstLine < lines.length ? firstLine : parentLine;
+    add(lines[line], stmt, expressions);
+    add(function, stmt, expressions);
+    totalNanos += stmt.selfNanos;
+    return line;
+  }
+
+  private static void add(Totals totals, Stmt stmt, long expressions) {
+    totals.statements += stmt.executions;
+    totals.expressions += expressions;
+    totals.selfNanos += stmt.selfNanos;
+  }
+
+  private void nested(int line, Stmt stmt) {
+    int outer = parentLine;
+    parentLine = line;
+    if (stmt != null) {
+      stmt.accept(this);
+    }
+    parentLine = outer;
+  }
+
+  private void body(String name, Stmt.Function declaration) {
+    Totals outer = function;
+    function = new Totals(name, declaration.name.line);
+    functions.add(function);
+    int outerLine = parentLine;
+    parentLine = declaration.name.line;
+    statements(declaration.body);
+    parentLine = outerLine;
+    function = outer;
+  }
+
+  // Tokens are seen in source order, so the first one marks where the statement starts
+  private void expression(Expr expr, Token token) {
+    expressions += expr.executions;
+    token(token);
+  }
+
+  private void token(Token token) {
+    if (token != null && firstLine == 0) {
+      firstLine = token.line;
+    }
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    // A block only creates an environment, so its time goes to the enclosing line
+    lines[Math.min(parentLine, lines.length - 1)].selfNanos += stmt.selfNanos;
+    function.selfNanos += stmt.selfNanos;
+    totalNanos += stmt.selfNanos;
+    statements(stmt.statements);
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    statement(stmt, stmt.name, stmt.superclass);
+    for (Stmt.Function method : stmt.methods) {
+      body(stmt.name.lexeme + "." + method.name.lexeme, method);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    statement(stmt, null, stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    statement(stmt, stmt.name);
+    body(stmt.name.lexeme, stmt);
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    int line = statement(stmt, null, stmt.condition);
+    nested(line, stmt.thenBranch);
+    nested(line, stmt.elseBranch);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    statement(stmt, null, stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    statement(stmt, stmt.keyword, stmt.value);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    statement(stmt, stmt.name, stmt.initializer);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    int line = statement(stmt, null, stmt.condition);
+    nested(line, stmt.body);
+    return null;
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    expression(expr, expr.name);
+    expr.value.accept(this);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    expression(expr, null);
+    expr.left.accept(this);
+    token(expr.operator);
+    expr.right.accept(this);
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    expression(expr, null);
+    expr.callee.accept(this);
+    token(expr.paren);
+    for (Expr argument : expr.arguments) {
+      argument.accept(this);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitGetExpr(Expr.Get expr) {
+    expression(expr, null);
+    expr.object.accept(this);
+    token(expr.name);
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    expression(expr, null);
+    expr.expression.accept(this);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    expression(expr, null);
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    expression(expr, null);
+    expr.left.accept(this);
+    token(expr.operator);
+    expr.right.accept(this);
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(Expr.Set expr) {
+    expression(expr, null);
+    expr.object.accept(this);
+    token(expr.name);
+    expr.value.accept(this);
+    return null;
+  }
+
+  @Override
+  public Void visitSuperExpr(Expr.Super expr) {
+    expression(expr, expr.keyword);
+    return null;
+  }
+
+  @Override
+  public Void visitThisExpr(Expr.This expr) {
+    expression(expr, expr.keyword);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    expression(expr, expr.operator);
+    expr.right.accept(this);
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    expression(expr, expr.name);
+    return null;
+  }
+}
@@ -1,5 +1,6 @@
 package com.simonnordberg.lox;
 
+import com.simonnordberg.lox.AllocationProfiler.Kind;
 import com.simonnordberg.lox.Expr.Assign;
 import com.simonnordberg.lox.Expr.Binary;
 import com.simonnordberg.lox.Expr.Call;
@@ -19,18 +20,42 @@ import com.simonnordberg.lox.Stmt.If;
 import com.simonnordberg.lox.Stmt.Print;
 import com.simonnordberg.lox.Stmt.Var;
 import com.simonnordberg.lox.Stmt.While;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * Runs resolved statements. An interpreter holds the state of one execution, its globals and
+ * current environment, and is used by one thread at a time. The statements themselves, their
+ * resolution and the tiered compiler are never written while running, so any number of
+ * interpreters on different threads can run the same program at once.
+ */
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   final Environment globals = new Environment();
   private Environment environment = globals;
-  private Map<Expr, Integer> locals = new HashMap<>();
-
-  public Interpreter() {
+  private final TieredCompiler tieredCompiler;
+  private final ErrorReporter reporter;
+  private final PrintWriter out;
+
+  // Depth of Lox calls in progress, kept only for InterpreterMetrics
+  int callDepth;
+  private TieredCompiler.Tier currentTier;
+
+  // Heat map counting, and the time spent in statements nested in the one running
+  private boolean countExecutions = false;
+  private long nestedNanos = 0;
+
+  /**
+   * Creates an interpreter with fresh globals. The tiered compiler, which may be null, is shared
+   * with every other interpreter running the same program. Print statements write to out.
+   */
+  Interpreter(TieredCompiler tieredCompiler, ErrorReporter reporter, PrintWriter out) {
+    this.tieredCompiler = tieredCompiler;
+    this.reporter = reporter;
+    this.out = out;
     globals.define("clock", new LoxCallable() {
       @Override
       public Object call(Interpreter interpreter, List<Object> arguments) {
@@ -47,6 +72,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return "<native fn>";
       }
     });
+    globals.define("List", LoxList.constructor());
+    globals.define("Map", LoxMap.constructor());
   }
 
   void interpret(List<Stmt> statements) {
@@ -55,19 +82,54 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         execute(statement);
       }
     } catch (RuntimeError error) {
-      Lox.runtimeError(error);
+      reporter.runtimeError(error);
     }
   }
 
+  /**
+   * Makes every statement and expression count its executions, and statements their self time.
+   */
+  void countExecutions() {
+    countExecutions = true;
+  }
+
   private void execute(Stmt stmt) {
+    if (InterpreterMetrics.ENABLED) {
+      InterpreterMetrics.INSTANCE.statements.increment();
+    }
+    if (countExecutions) {
+      executeCounted(stmt);
+      return;
+    }
     stmt.accept(this);
   }
 
-  public void resolve(Expr expr, int depth) {
-    locals.put(expr, depth);
+  private void executeCounted(Stmt stmt) {
+    long outerNested = nestedNanos;
+    nestedNanos = 0;
+    long start = System.nanoTime();
+    try {
+      stmt.accept(this);
+    } finally {
+      long elapsed = System.nanoTime() - start;
+      stmt.executions++;
+      stmt.selfNanos += elapsed - nestedNanos;
+      nestedNanos = outerNested + elapsed;
+    }
+  }
+
+  /**
+   * Returns the tier counters of a function declaration, or null if it should only ever be
+   * interpreted: with tiering off, or while a mode that instruments the interpreter is on.
+   */
+  TieredCompiler.Tier tierFor(Function declaration) {
+    if (tieredCompiler == null || countExecutions || AllocationProfiler.active != null) {
+      return null;
+    }
+    return tieredCompiler.tierFor(declaration);
   }
 
-  private String stringify(Object object) {
+  static String stringify(Object object) {
     if (object == null) {
       return "nil";
     }
@@ -85,8 +147,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   @Override
   public Object visitAssignExpr(Assign expr) {
     Object value = evaluate(expr.value);
-    Integer distance = locals.get(expr);
-    if (distance != null) {
+    int distance = expr.depth;
+    if (distance >= 0) {
       environment.assignAt(distance, expr.name, value);
     } else {
       environment.assign(expr.name, value);
@@ -103,28 +165,35 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     switch (expr.operator.type) {
       case MINUS:
         checkNumberOperands(expr.operator, left, right);
+        allocated(Kind.DOUBLE, expr.operator);
         return (double) left - (double) right;
       case PLUS:
         if (left instanceof Double && right instanceof Double) {
+          allocated(Kind.DOUBLE, expr.operator);
           return (double) left + (double) right;
         }
         if (left instanceof String && right instanceof String) {
+          allocated(Kind.STRING, expr.operator);
           return left + (String) right;
         }
         if (left instanceof String || right instanceof String) {
+          allocated(Kind.STRING, expr.operator);
           return stringify(left) + stringify(right);
         }
 
         throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings");
       case SLASH:
         checkNumberOperands(expr.operator, left, right);
+        allocated(Kind.DOUBLE, expr.operator);
         return (double) left / (double) right;
       case SLASH_SLASH:
         // TODO: Implement floor division
         checkNumberOperands(expr.operator, left, right);
+        allocated(Kind.DOUBLE, expr.operator);
         return Math.floor((double) left / (double) right);
       case STAR:
         checkNumberOperands(expr.operator, left, right);
+        allocated(Kind.DOUBLE, expr.operator);
         return (double) left * (double) right;
       case GREATER:
         checkNumberOperands(expr.operator, left, right);
@@ -164,15 +233,29 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
           "Expected " + function.arity() + " arguments but got " + arguments.size());
     }
 
-    return function.call(this, arguments);
+    // Recorded after the arguments are evaluated, so that what the callee allocates on entry is
+    // attributed to this call
+    allocated(Kind.ARGUMENTS, expr.paren);
+    if (InterpreterMetrics.ENABLED) {
+      InterpreterMetrics.INSTANCE.calls.increment();
+    }
+    try {
+      return function.call(this, arguments);
+    } catch (NativeError error) {
+      throw new RuntimeError(expr.paren, error.getMessage());
+    }
   }
 
   @Override
   public Object visitGetExpr(Get expr) {
     Object object = evaluate(expr.object);
     if (object instanceof LoxInstance) {
+      allocating(expr.name);
       return ((LoxInstance) object).get(expr.name);
     }
+    if (object instanceof NativeObject) {
+      return ((NativeObject) object).method(expr.name);
+    }
 
     throw new RuntimeError(expr.name, "Only instances have properties");
   }
@@ -218,7 +301,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitSuperExpr(Super expr) {
-    int distance = locals.get(expr);
+    int distance = expr.depth;
     LoxClass superclass = (LoxClass) environment.getAt(distance, "super");
     LoxInstance object = (LoxInstance) environment.getAt(distance - 1, "this");
 
@@ -227,6 +310,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
       throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme + "'");
     }
 
+    allocating(expr.method);
     return method.bind(object);
   }
 
@@ -241,6 +325,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     switch (expr.operator.type) {
       case MINUS:
         checkNumberOperand(expr.operator, right);
+        allocated(Kind.DOUBLE, expr.operator);
         return -(double) right;
       case BANG:
         return !isTruthy(right);
@@ -254,8 +339,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   }
 
   private Object lookupVariable(Token name, Expr expr) {
-    Integer distance = locals.get(expr);
-    if (distance != null) {
+    int distance = expr.depth;
+    if (distance >= 0) {
       return environment.getAt(distance, name.lexeme);
     } else {
       return globals.get(name);
@@ -266,6 +351,10 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitBlockStmt(Block stmt) {
+    AllocationProfiler profiler = AllocationProfiler.active;
+    if (profiler != null) {
+      profiler.record(Kind.ENVIRONMENT, stmt);
+    }
     executeBlock(stmt.statements, new Environment(environment));
     return null;
   }
@@ -283,6 +372,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     environment.define(stmt.name.lexeme, null);
 
     if (stmt.superclass != null) {
+      allocated(Kind.ENVIRONMENT, stmt.name);
       environment = new Environment(environment);
       environment.define("super", superclass);
     }
@@ -290,7 +380,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     Map<String, LoxFunction> methods = new HashMap<>();
     for (Function method : stmt.methods) {
       LoxFunction function = new LoxFunction(method, environment,
-          method.name.lexeme.equals("init"));
+          method.name.lexeme.equals("init"), tierFor(method));
       methods.put(method.name.lexeme, function);
     }
 
@@ -304,6 +394,19 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     return null;
   }
 
+  /**
+   * Runs an interpreted function body, counting its loop back-edges towards compilation.
+   */
+  void executeBody(List<Stmt> body, Environment environment, TieredCompiler.Tier tier) {
+    TieredCompiler.Tier previous = currentTier;
+    currentTier = tier;
+    try {
+      executeBlock(body, environment);
+    } finally {
+      currentTier = previous;
+    }
+  }
+
   void executeBlock(List<Stmt> statements, Environment environment) {
     Environment previous = this.environment;
     try {
@@ -324,7 +427,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitFunctionStmt(Function stmt) {
-    LoxFunction function = new LoxFunction(stmt, environment, false);
+    LoxFunction function = new LoxFunction(stmt, environment, false, tierFor(stmt));
     environment.define(stmt.name.lexeme, function);
     return null;
   }
@@ -341,11 +444,15 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitPrintStmt(Print stmt) {
-    Object value = evaluate(stmt.expression);
-    System.out.println(stringify(value));
+    print(evaluate(stmt.expression));
     return null;
   }
 
+  // Shared with the closure compiler's print statement
+  void print(Object value) {
+    out.println(stringify(value));
+  }
+
   @Override
   public Void visitReturnStmt(Stmt.Return stmt) {
     Object value = stmt.value != null ? evaluate(stmt.value) : null;
@@ -361,13 +468,61 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitWhileStmt(While stmt) {
+    TieredCompiler.Tier tier = currentTier;
     while (isTruthy(evaluate(stmt.condition))) {
       execute(stmt.body);
+      if (tier != null) {
+        tier.backEdge();
+      }
     }
     return null;
   }
 
-  private void checkNumberOperands(Token operator, Object left, Object right) {
+  /**
+   * Records an allocation with the allocation profiler, if it is on, against the token's line.
+   */
+  static void allocated(Kind kind, Token token) {
+    AllocationProfiler profiler = AllocationProfiler.active;
+    if (profiler != null) {
+      profiler.record(kind, token.line);
+    }
+  }
+
+  /**
+   * Records an allocation against the line of the node that most recently recorded one.
+   */
+  static void allocated(Kind kind) {
+    AllocationProfiler profiler = AllocationProfiler.active;
+    if (profiler != null) {
+      profiler.record(kind);
+    }
+  }
+
+  /**
+   * Marks the token's line as the cause of whatever is allocated next, without recording.
+   */
+  private static void allocating(Token token) {
+    allocating(token.line);
+  }
+
+  /**
+   * Marks a line as the cause of whatever is allocated next. A native that calls back into Lox
+   * passes the line it read from {@link #allocationLine()} on entry, so each callback's
+   * environment goes to the call that started it rather than to the previous callback's body.
+   */
+  static void allocating(int line) {
+    AllocationProfiler profiler = AllocationProfiler.active;
+    if (profiler != null) {
+      profiler.at(line);
+    }
+  }
+
+  static int allocationLine() {
+    AllocationProfiler profiler = AllocationProfiler.active;
+    return profiler != null ? profiler.line() : 0;
+  }
+
+  static void checkNumberOperands(Token operator, Object left, Object right) {
     if (left instanceof Double && right instanceof Double) {
       return;
     }
@@ -376,7 +531,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   }
 
 
-  private void checkNumberOperand(Token operator, Object operand) {
+  static void checkNumberOperand(Token operator, Object operand) {
     if (operand instanceof Double) {
       return;
     }
@@ -384,7 +539,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     throw new RuntimeError(operator, "Operand must be a number");
   }
 
-  private boolean isTruthy(Object object) {
+  static boolean isTruthy(Object object) {
     if (object == null) {
       return false;
     }
@@ -395,7 +550,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     return true;
   }
 
-  private boolean isEqual(Object a, Object b) {
+  static boolean isEqual(Object a, Object b) {
     if (a == null && b == null) {
       return true;
     }
@@ -406,6 +561,9 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   }
 
   private Object evaluate(Expr expr) {
+    if (countExecutions) {
+      expr.executions++;
+    }
     return expr.accept(this);
   }
 }
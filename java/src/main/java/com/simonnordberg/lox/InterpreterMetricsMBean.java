@@ -0,0 +1,33 @@
+package com.simonnordberg.lox;
+
+/**
+ * Management interface of {@link InterpreterMetrics}. Times are cumulative over every program run
+ * since the last reset. The call depth is the deepest any one interpreter has reached since the
+ * last reset, and the global count is the number of globals defined by interpreters still running.
+ */
+public interface InterpreterMetricsMBean {
+
+  long getStatementsExecuted();
+
+  long getCallsMade();
+
+  long getInstancesCreated();
+
+  long getEnvironmentsAllocated();
+
+  long getMaxCallDepth();
+
+  long getGlobalCount();
+
+  long getScanTimeMillis();
+
+  long getParseTimeMillis();
+
+  long getResolveTimeMillis();
+
+  long getExecuteTimeMillis();
+
+  boolean isEnabled();
+
+  void reset();
+}
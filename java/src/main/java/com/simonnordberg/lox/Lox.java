@@ -3,30 +3,123 @@ package com.simonnordberg.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import javax.management.JMException;
 
 public class Lox {
 
-  private static final Interpreter interpreter = new Interpreter();
-  private static boolean hadError = false;
-  private static boolean hadRuntimeError = false;
+  // Package-private so tests can read the runtime errors the bytecode VMs report through it
+  static final ErrorReporter reporter = new ErrorReporter(System.err);
+  private static Interpreter interpreter;
+  private static VM vm;
+  private static RegisterVM registerVm;
+  private static boolean profile = false;
+  private static String profilePath;
+  private static boolean allocationProfile = false;
+  private static boolean heatMap = false;
+  private static String heatMapPath;
 
-  public static void main(String[] args) throws IOException {
-    if (args.length > 1) {
-      System.out.println("Usage: jlox [script]");
-    } else if (args.length == 1) {
-      runFile(args[0]);
+  public static void main(String[] args) throws IOException, JMException {
+    if (Boolean.getBoolean("lox.jmx")) {
+      InterpreterMetrics.register();
+    }
+
+    List<String> scripts = new ArrayList<>();
+    String batch = null;
+    int parallelism = Runtime.getRuntime().availableProcessors();
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.equals("--batch") && i + 1 < args.length) {
+        batch = args[++i];
+      } else if (arg.equals("--parallelism") && i + 1 < args.length) {
+        parallelism = parseParallelism(args[++i]);
+      } else if (arg.equals("--backend=vm")) {
+        vm = new VM();
+        registerVm = null;
+      } else if (arg.equals("--backend=vm-nanbox")) {
+        vm = new NanBoxVM();
+        registerVm = null;
+      } else if (arg.equals("--backend=register")) {
+        vm = null;
+        registerVm = new RegisterVM();
+      } else if (arg.equals("--backend=interpreter")) {
+        vm = null;
+        registerVm = null;
+      } else if (arg.equals("--profile")) {
+        profile = true;
+      } else if (arg.startsWith("--profile=")) {
+        profile = true;
+        profilePath = arg.substring("--profile=".length());
+      } else if (arg.equals("--heat-map")) {
+        heatMap = true;
+      } else if (arg.startsWith("--heat-map=")) {
+        heatMap = true;
+        heatMapPath = arg.substring("--heat-map=".length());
+      } else if (arg.equals("--alloc-profile")) {
+        allocationProfile = true;
+      } else if (arg.startsWith("--")) {
+        usage();
+      } else {
+        scripts.add(arg);
+      }
+    }
+
+    // The profilers instrument LoxFunction and the interpreter, which the bytecode VMs bypass
+    boolean profiling = profile || allocationProfile || heatMap;
+    boolean interpreterOnly = vm == null && registerVm == null;
+    if (batch != null) {
+      // Jobs share compiled programs, which only the tree-walking interpreter can run concurrently
+      if (!scripts.isEmpty() || profiling || !interpreterOnly) {
+        usage();
+      }
+      int status = new Batch(parallelism).run(Paths.get(batch));
+      if (status != 0) {
+        System.exit(status);
+      }
+    } else if (scripts.size() > 1 || (profiling && (!interpreterOnly || scripts.isEmpty()))) {
+      usage();
+    } else if (scripts.size() == 1) {
+      runFile(scripts.get(0));
     } else {
       runPrompt();
     }
   }
 
+  private static void usage() {
+    System.out.println("Usage: jlox [--backend=interpreter|vm|vm-nanbox|register] [script]");
+    System.out.println(
+        "       jlox [--profile[=<collapsed stacks file>]] [--alloc-profile] "
+            + "[--heat-map[=<json file>]] script");
+    System.out.println("       jlox --batch <directory> [--parallelism <threads>]");
+    System.exit(64);
+  }
+
+  private static int parseParallelism(String arg) {
+    try {
+      int parallelism = Integer.parseInt(arg);
+      if (parallelism > 0) {
+        return parallelism;
+      }
+    } catch (NumberFormatException e) {
+      // Falls through to the usage message
+    }
+    usage();
+    return 0;
+  }
+
   private static void runPrompt() throws IOException {
     InputStreamReader input = new InputStreamReader(System.in);
     BufferedReader reader = new BufferedReader(input);
+    // Every line runs against the same globals
+    interpreter = new Interpreter(TieredCompiler.fromSystemProperties(), reporter,
+        new PrintWriter(System.out, true));
 
     while (true) {
       System.out.print("> ");
@@ -35,63 +128,130 @@ public class Lox {
         break;
       }
       run(line);
-      hadError = false;
+      reporter.clearError();
     }
   }
 
   private static void run(String source) {
-    Scanner scanner = new Scanner(source);
-    List<Token> tokens = scanner.scanTokens();
-    Parser parser = new Parser(tokens);
-    List<Stmt> statements = parser.parse();
+    Program program = Program.compile(source, reporter);
+    if (program != null) {
+      execute(program.statements());
+    }
+  }
 
-    // Stop if there was a syntax error
-    if (hadError) {
-      return;
+  private static void execute(List<Stmt> statements) {
+    long start = System.nanoTime();
+    try {
+      executeOnBackend(statements);
+    } finally {
+      if (InterpreterMetrics.ENABLED) {
+        InterpreterMetrics.INSTANCE.executeNanos.add(System.nanoTime() - start);
+      }
     }
+  }
 
-    Resolver resolver = new Resolver(interpreter);
-    resolver.resolve(statements);
+  private static void executeOnBackend(List<Stmt> statements) {
+    if (registerVm != null) {
+      Obj.Function script = new RegisterCompiler(registerVm).compile(statements);
+      if (!reporter.hadError()) {
+        registerVm.interpret(script);
+      }
+      return;
+    }
 
-    // Stop if there was a resolution error
-    if (hadError) {
+    if (vm == null) {
+      interpreter.interpret(statements);
       return;
     }
 
-    interpreter.interpret(statements);
+    Obj.Function script = new BytecodeCompiler(vm).compile(statements);
+    // Stop if the program exceeds a bytecode limit
+    if (!reporter.hadError()) {
+      vm.interpret(script);
+    }
   }
 
   private static void runFile(String arg) throws IOException {
     byte[] bytes = Files.readAllBytes(Paths.get(arg));
-    run(new String(bytes, Charset.defaultCharset()));
+    String source = new String(bytes, Charset.defaultCharset());
+
+    ProgramCache cache = ProgramCache.fromSystemProperties();
+    List<Stmt> cached = cache != null ? cache.load(source) : null;
+    Program program;
+    if (cached != null) {
+      program = new Program(cached);
+    } else {
+      program = Program.compile(source, reporter);
+      if (program != null && cache != null) {
+        cache.store(source, program.statements());
+      }
+    }
 
-    if (hadError) {
+    if (program != null) {
+      List<Stmt> statements = program.statements();
+      interpreter = program.newInterpreter(reporter);
+      Profiler profiler = profile ? Profiler.start() : null;
+      AllocationProfiler allocations = allocationProfile ? AllocationProfiler.start() : null;
+      if (heatMap) {
+        interpreter.countExecutions();
+      }
+      execute(statements);
+      if (profiler != null) {
+        profiler.stop();
+        profiler.report(profilePath, System.err);
+      }
+      if (allocations != null) {
+        allocations.stop();
+        allocations.report(source, System.err);
+      }
+      if (heatMap) {
+        HeatMap map = new HeatMap(source, statements);
+        map.print(System.err);
+        if (heatMapPath != null) {
+          map.writeJson(heatMapPath);
+        }
+      }
+    }
+
+    if (Boolean.getBoolean("lox.gcStats")) {
+      printGcStats();
+    }
+
+    if (reporter.hadError()) {
       System.exit(65);
     }
-    if (hadRuntimeError) {
+    if (reporter.hadRuntimeError()) {
       System.exit(70);
     }
   }
 
-  private static void report(int line, String where, String message) {
-    System.err.println("[line " + line + "] Error" + where + ": " + message);
-    hadError = true;
+  /**
+   * Prints how much the run allocated and collected, for comparing value representations.
+   */
+  private static void printGcStats() {
+    long collections = 0;
+    long time = 0;
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      collections += collector.getCollectionCount();
+      time += collector.getCollectionTime();
+    }
+    long allocated = ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+    System.err.printf("[gc: %d collections, %d ms, %d KB allocated]%n", collections, time,
+        allocated / 1024);
   }
 
+  // The bytecode compilers and VMs report through the command line's reporter
+
   static void error(int line, String message) {
-    report(line, "", message);
+    reporter.error(line, message);
   }
 
   static void error(Token token, String message) {
-    if (token.type == TokenType.EOF) {
-      report(token.line, " at end", message);
-    } else {
-      report(token.line, " at '" + token.lexeme + "'", message);
-    }
+    reporter.error(token, message);
   }
 
   public static void runtimeError(RuntimeError error) {
-    System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
-    hadRuntimeError = true;
+    reporter.runtimeError(error);
   }
 }
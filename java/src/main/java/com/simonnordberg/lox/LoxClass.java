@@ -22,11 +22,28 @@ public class LoxClass implements LoxCallable {
 
   @Override
   public Object call(Interpreter interpreter, List<Object> arguments) {
+    Events.Instantiation event = Events.recording() ? new Events.Instantiation() : null;
+    if (event != null) {
+      event.begin();
+    }
+    Interpreter.allocated(AllocationProfiler.Kind.INSTANCE);
+    if (InterpreterMetrics.ENABLED) {
+      InterpreterMetrics.INSTANCE.instances.increment();
+    }
     LoxInstance instance = new LoxInstance(this);
     LoxFunction initializer = findMethod("init");
     if (initializer != null) {
       initializer.bind(instance).call(interpreter, arguments);
     }
+
+    if (event != null) {
+      event.end();
+      if (event.shouldCommit()) {
+        event.className = name;
+        event.arity = arguments.size();
+        event.commit();
+      }
+    }
     return instance;
   }
 
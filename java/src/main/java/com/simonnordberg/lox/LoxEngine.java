@@ -0,0 +1,36 @@
+package com.simonnordberg.lox;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * The entry point for running Lox from Java. A script is compiled once, which scans, parses and
+ * resolves it, and can then be executed any number of times, from any number of threads:
+ *
+ * <pre>
+ *   CompiledScript script = LoxEngine.compile("print greeting + name;");
+ *   Map&lt;String, Object&gt; bindings = new HashMap&lt;&gt;();
+ *   bindings.put("greeting", "Hello, ");
+ *   bindings.put("name", "world");
+ *   script.execute(bindings, out);
+ * </pre>
+ *
+ * The same engine is available through javax.script under the name "lox".
+ */
+public final class LoxEngine {
+
+  private LoxEngine() {
+  }
+
+  /**
+   * Compiles source, throwing a LoxException listing every syntax and resolution error.
+   */
+  public static CompiledScript compile(String source) {
+    StringWriter errors = new StringWriter();
+    Program program = Program.compile(source, new ErrorReporter(new PrintWriter(errors)));
+    if (program == null) {
+      throw new LoxException(errors.toString().trim(), -1);
+    }
+    return new CompiledScript(program);
+  }
+}
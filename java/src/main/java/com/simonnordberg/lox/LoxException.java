@@ -0,0 +1,22 @@
+package com.simonnordberg.lox;
+
+/**
+ * A script that failed to compile or stopped with a runtime error, as seen by an embedding host.
+ */
+public class LoxException extends RuntimeException {
+
+  private final int line;
+
+  LoxException(String message, int line) {
+    super(message);
+    this.line = line;
+  }
+
+  /**
+   * The line of the runtime error, or -1 for compile errors, whose message lists every error with
+   * its line.
+   */
+  public int getLine() {
+    return line;
+  }
+}
@@ -8,21 +8,69 @@ public class LoxFunction implements LoxCallable {
   private final Stmt.Function declaration;
   private final Environment closure;
   private final boolean isInitializer;
+  private final TieredCompiler.Tier tier;
 
-  public LoxFunction(Function declaration, Environment closure, boolean isInitializer) {
+  LoxFunction(Function declaration, Environment closure, boolean isInitializer,
+      TieredCompiler.Tier tier) {
     this.declaration = declaration;
     this.closure = closure;
     this.isInitializer = isInitializer;
+    this.tier = tier;
   }
 
   @Override
   public Object call(Interpreter interpreter, List<Object> arguments) {
+    Events.FunctionCall event = Events.recording() ? new Events.FunctionCall() : null;
+    if (event != null) {
+      event.begin();
+    }
+    Profiler profiler = Profiler.active;
+    if (profiler != null) {
+      profiler.enter(declaration.name);
+    }
+    if (InterpreterMetrics.ENABLED) {
+      InterpreterMetrics.INSTANCE.maxCallDepth.accumulate(++interpreter.callDepth);
+    }
+
+    try {
+      return invoke(interpreter, arguments);
+    } finally {
+      if (InterpreterMetrics.ENABLED) {
+        interpreter.callDepth--;
+      }
+      if (profiler != null) {
+        profiler.exit();
+      }
+      if (event != null) {
+        event.end();
+        if (event.shouldCommit()) {
+          event.function = declaration.name.lexeme;
+          event.arity = arity();
+          event.line = declaration.name.line;
+          event.commit();
+        }
+      }
+    }
+  }
+
+  private Object invoke(Interpreter interpreter, List<Object> arguments) {
+    if (tier != null) {
+      ClosureCompiler.CompiledFunction compiled = tier.compiled();
+      if (compiled != null) {
+        return compiled.call(interpreter, closure, arguments, isInitializer);
+      }
+      tier.invoked();
+    }
+
+    // Every caller marks the line first: a call expression records its arguments against its
+    // paren, and natives that call back restore the line of the call that started them
+    Interpreter.allocated(AllocationProfiler.Kind.ENVIRONMENT);
     Environment environment = new Environment(closure);
     for (int i = 0; i < declaration.params.size(); i++) {
       environment.define(declaration.params.get(i).lexeme, arguments.get(i));
     }
     try {
-      interpreter.executeBlock(declaration.body, environment);
+      interpreter.executeBody(declaration.body, environment, tier);
     } catch (Return returnValue) {
       if (isInitializer) {
         return closure.getAt(0, "this");
@@ -47,8 +95,10 @@ public class LoxFunction implements LoxCallable {
   }
 
   public LoxFunction bind(LoxInstance instance) {
+    Interpreter.allocated(AllocationProfiler.Kind.ENVIRONMENT);
+    Interpreter.allocated(AllocationProfiler.Kind.BOUND_METHOD);
     Environment environment = new Environment(closure);
     environment.define("this", instance);
-    return new LoxFunction(declaration, environment, isInitializer);
+    return new LoxFunction(declaration, environment, isInitializer, tier);
   }
 }
@@ -0,0 +1,195 @@
+package com.simonnordberg.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A growable list, created by the native List() and used through its methods:
+ * append(value), get(index), set(index, value), length(), slice(start, end) and forEach(fn).
+ *
+ * Elements live unboxed in a double[] for as long as every one of them is a number. The first
+ * time anything else is stored the list moves to an Object[] for good. Indexes arrive as the
+ * Doubles the interpreter already has, and are only narrowed to ints.
+ */
+class LoxList extends NativeObject {
+
+  private static final int INITIAL_CAPACITY = 8;
+
+  private static final String[] METHODS = {
+      "append", "get", "set", "length", "slice", "forEach"};
+  private static final int[] ARITIES = {1, 1, 2, 0, 2, 1};
+
+  private double[] numbers;
+  private Object[] objects;
+  private int size = 0;
+
+  LoxList() {
+    super(METHODS, ARITIES);
+    this.numbers = new double[INITIAL_CAPACITY];
+  }
+
+  private LoxList(double[] numbers, Object[] objects, int size) {
+    super(METHODS, ARITIES);
+    this.numbers = numbers;
+    this.objects = objects;
+    this.size = size;
+  }
+
+  /**
+   * The global List() function.
+   */
+  static LoxCallable constructor() {
+    return new LoxCallable() {
+      @Override
+      public Object call(Interpreter interpreter, List<Object> arguments) {
+        return new LoxList();
+      }
+
+      @Override
+      public int arity() {
+        return 0;
+      }
+
+      @Override
+      public String toString() {
+        return "<native fn>";
+      }
+    };
+  }
+
+  @Override
+  Object invoke(int method, Interpreter interpreter, List<Object> arguments) {
+    switch (method) {
+      case 0:
+        append(arguments.get(0));
+        return null;
+      case 1:
+        return get(index(arguments.get(0), size));
+      case 2:
+        set(index(arguments.get(0), size), arguments.get(1));
+        return arguments.get(1);
+      case 3:
+        return (double) size;
+      case 4:
+        return slice(index(arguments.get(0), size + 1), index(arguments.get(1), size + 1));
+      default:
+        forEach(interpreter, arguments.get(0));
+        return null;
+    }
+  }
+
+  private static int index(Object value, int limit) {
+    if (!(value instanceof Double)) {
+      throw new NativeError("Index must be a number");
+    }
+
+    double number = (double) value;
+    int index = (int) number;
+    if (index != number) {
+      throw new NativeError("Index must be an integer");
+    }
+    if (index < 0 || index >= limit) {
+      throw new NativeError("Index out of bounds");
+    }
+    return index;
+  }
+
+  Object get(int index) {
+    if (objects != null) {
+      return objects[index];
+    }
+    return numbers[index];
+  }
+
+  void set(int index, Object value) {
+    if (objects == null) {
+      if (value instanceof Double) {
+        numbers[index] = (double) value;
+        return;
+      }
+      generalize();
+    }
+    objects[index] = value;
+  }
+
+  void append(Object value) {
+    if (objects == null && !(value instanceof Double)) {
+      generalize();
+    }
+
+    if (objects == null) {
+      if (size == numbers.length) {
+        numbers = Arrays.copyOf(numbers, size * 2);
+      }
+      numbers[size++] = (double) value;
+    } else {
+      if (size == objects.length) {
+        objects = Arrays.copyOf(objects, size * 2);
+      }
+      objects[size++] = value;
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  // Moves the elements to Object storage, boxing the numbers once
+  private void generalize() {
+    objects = new Object[Math.max(numbers.length, INITIAL_CAPACITY)];
+    for (int i = 0; i < size; i++) {
+      objects[i] = numbers[i];
+    }
+    numbers = null;
+  }
+
+  private LoxList slice(int start, int end) {
+    if (start > end) {
+      throw new NativeError("Slice start must not be after its end");
+    }
+
+    int length = end - start;
+    int capacity = Math.max(length, INITIAL_CAPACITY);
+    if (objects == null) {
+      double[] copy = new double[capacity];
+      System.arraycopy(numbers, start, copy, 0, length);
+      return new LoxList(copy, null, length);
+    }
+    Object[] copy = new Object[capacity];
+    System.arraycopy(objects, start, copy, 0, length);
+    return new LoxList(null, copy, length);
+  }
+
+  // Reads the size on every step, so elements appended by the callback are visited too
+  private void forEach(Interpreter interpreter, Object function) {
+    LoxCallable callable = unary(function, "forEach");
+    List<Object> arguments = new ArrayList<>(1);
+    arguments.add(null);
+    int line = Interpreter.allocationLine();
+    for (int i = 0; i < size; i++) {
+      arguments.set(0, get(i));
+      Interpreter.allocating(line);
+      callable.call(interpreter, arguments);
+    }
+  }
+
+  @Override
+  public String toString() {
+    if (!beginPrinting()) {
+      return "[...]";
+    }
+    try {
+      StringBuilder builder = new StringBuilder("[");
+      for (int i = 0; i < size; i++) {
+        if (i > 0) {
+          builder.append(", ");
+        }
+        builder.append(Interpreter.stringify(get(i)));
+      }
+      return builder.append("]").toString();
+    } finally {
+      endPrinting();
+    }
+  }
+}
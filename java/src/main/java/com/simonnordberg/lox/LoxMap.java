@@ -0,0 +1,263 @@
+package com.simonnordberg.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hash map, created by the native Map() and used through its methods: get(key),
+ * set(key, value), has(key), delete(key), size(), keys() and forEach(fn).
+ *
+ * Any Lox value can be a key, and keys match exactly when == says they are equal. Entries live
+ * in an open-addressing table with linear probing, and deleted entries leave a tombstone until
+ * the next resize. Numbers are hashed from their double bits, and a number key is kept as the
+ * Double the evaluator produced rather than boxed again. Keys come back in table order, which for
+ * instances varies between runs.
+ */
+class LoxMap extends NativeObject {
+
+  private static final int INITIAL_CAPACITY = 8;
+
+  private static final String[] METHODS = {
+      "get", "set", "has", "delete", "size", "keys", "forEach"};
+  private static final int[] ARITIES = {1, 2, 1, 1, 0, 0, 1};
+
+  // Markers in the key array. An empty slot is null.
+  private static final Object NIL = new Object();
+  private static final Object DELETED = new Object();
+
+  // Slot i keeps its key at entries[2 * i] and its value next to it, so a probe that finds the
+  // key has the value in the same cache line. The key's hash is in hashes[i], compared before the
+  // key itself so that a probe does not load every key it passes, and reused when the table
+  // grows.
+  private Object[] entries = new Object[INITIAL_CAPACITY * 2];
+  private int[] hashes = new int[INITIAL_CAPACITY];
+  private int capacity = INITIAL_CAPACITY;
+  private int size = 0;
+  // Live entries and tombstones; at least a quarter of the slots are always empty
+  private int used = 0;
+
+  LoxMap() {
+    super(METHODS, ARITIES);
+  }
+
+  /**
+   * The global Map() function.
+   */
+  static LoxCallable constructor() {
+    return new LoxCallable() {
+      @Override
+      public Object call(Interpreter interpreter, List<Object> arguments) {
+        return new LoxMap();
+      }
+
+      @Override
+      public int arity() {
+        return 0;
+      }
+
+      @Override
+      public String toString() {
+        return "<native fn>";
+      }
+    };
+  }
+
+  @Override
+  Object invoke(int method, Interpreter interpreter, List<Object> arguments) {
+    switch (method) {
+      case 0:
+        return get(arguments.get(0));
+      case 1:
+        put(arguments.get(0), arguments.get(1));
+        return arguments.get(1);
+      case 2:
+        return has(arguments.get(0));
+      case 3:
+        return remove(arguments.get(0));
+      case 4:
+        return (double) size;
+      case 5:
+        return keys();
+      default:
+        forEach(interpreter, arguments.get(0));
+        return null;
+    }
+  }
+
+  Object get(Object key) {
+    int slot = probe(key, hash(key));
+    return slot >= 0 ? entries[slot * 2 + 1] : null;
+  }
+
+  boolean has(Object key) {
+    return probe(key, hash(key)) >= 0;
+  }
+
+  void put(Object key, Object value) {
+    int hash = hash(key);
+    int slot = probe(key, hash);
+    if (slot >= 0) {
+      entries[slot * 2 + 1] = value;
+      return;
+    }
+
+    slot = -slot - 1;
+    if (entries[slot * 2] == null) {
+      if ((used + 1) * 4 > capacity * 3) {
+        resize();
+        slot = -probe(key, hash) - 1;
+      }
+      used++;
+    }
+    entries[slot * 2] = key == null ? NIL : key;
+    entries[slot * 2 + 1] = value;
+    hashes[slot] = hash;
+    size++;
+  }
+
+  boolean remove(Object key) {
+    int slot = probe(key, hash(key));
+    if (slot < 0) {
+      return false;
+    }
+
+    entries[slot * 2] = DELETED;
+    entries[slot * 2 + 1] = null;
+    size--;
+    return true;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns the slot holding the key, or -(slot + 1) for the slot it would be inserted into: the
+   * first tombstone on its probe sequence, or else the empty slot that ended it.
+   */
+  private int probe(Object key, int hash) {
+    Object object = key == null ? NIL : key;
+    int mask = capacity - 1;
+    int tombstone = -1;
+
+    for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+      Object stored = entries[slot * 2];
+      if (stored == null) {
+        return -(tombstone >= 0 ? tombstone : slot) - 1;
+      } else if (stored == DELETED) {
+        if (tombstone < 0) {
+          tombstone = slot;
+        }
+      } else if (hashes[slot] == hash && (stored == object || object.equals(stored))) {
+        return slot;
+      }
+    }
+  }
+
+  private Object keyAt(int slot) {
+    Object key = entries[slot * 2];
+    return key == NIL ? null : key;
+  }
+
+  private boolean live(int slot) {
+    Object key = entries[slot * 2];
+    return key != null && key != DELETED;
+  }
+
+  // Grows the table when it is at least half full of live entries, and otherwise only drops the
+  // tombstones
+  private void resize() {
+    Object[] oldEntries = entries;
+    int[] oldHashes = hashes;
+    int oldCapacity = capacity;
+
+    if (size * 2 >= capacity) {
+      capacity *= 2;
+    }
+    entries = new Object[capacity * 2];
+    hashes = new int[capacity];
+    used = size;
+
+    int mask = capacity - 1;
+    for (int i = 0; i < oldCapacity; i++) {
+      Object key = oldEntries[i * 2];
+      if (key == null || key == DELETED) {
+        continue;
+      }
+
+      int slot = oldHashes[i] & mask;
+      while (entries[slot * 2] != null) {
+        slot = (slot + 1) & mask;
+      }
+      entries[slot * 2] = key;
+      entries[slot * 2 + 1] = oldEntries[i * 2 + 1];
+      hashes[slot] = oldHashes[i];
+    }
+  }
+
+  // Numbers are mixed from all 64 of their bits rather than from Double.hashCode
+  private static int hash(Object key) {
+    if (key instanceof Double) {
+      return mix(Double.doubleToLongBits((double) key));
+    }
+    return key == null ? 0 : mix(key.hashCode());
+  }
+
+  // The MurmurHash3 finalizer, so that the low bits picking the slot depend on every bit of the
+  // key. Sequential keys, like small integers or strings that differ in their last digit, would
+  // otherwise pack into long runs, which linear probing handles badly.
+  private static int mix(long bits) {
+    bits ^= bits >>> 33;
+    bits *= 0xff51afd7ed558ccdL;
+    bits ^= bits >>> 33;
+    bits *= 0xc4ceb9fe1a85ec53L;
+    bits ^= bits >>> 33;
+    return (int) bits;
+  }
+
+  private LoxList keys() {
+    LoxList list = new LoxList();
+    for (int slot = 0; slot < capacity; slot++) {
+      if (live(slot)) {
+        list.append(keyAt(slot));
+      }
+    }
+    return list;
+  }
+
+  // Walks a copy of the keys, so the callback may change the map
+  private void forEach(Interpreter interpreter, Object function) {
+    LoxCallable callable = unary(function, "forEach");
+    LoxList keys = keys();
+    List<Object> arguments = new ArrayList<>(1);
+    arguments.add(null);
+    int line = Interpreter.allocationLine();
+    for (int i = 0; i < keys.size(); i++) {
+      arguments.set(0, keys.get(i));
+      Interpreter.allocating(line);
+      callable.call(interpreter, arguments);
+    }
+  }
+
+  @Override
+  public String toString() {
+    if (!beginPrinting()) {
+      return "{...}";
+    }
+    try {
+      StringBuilder builder = new StringBuilder("{");
+      for (int slot = 0; slot < capacity; slot++) {
+        if (live(slot)) {
+          if (builder.length() > 1) {
+            builder.append(", ");
+          }
+          builder.append(Interpreter.stringify(keyAt(slot))).append(": ")
+              .append(Interpreter.stringify(entries[slot * 2 + 1]));
+        }
+      }
+      return builder.append("}").toString();
+    } finally {
+      endPrinting();
+    }
+  }
+}
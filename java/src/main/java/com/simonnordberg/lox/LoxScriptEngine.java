@@ -0,0 +1,119 @@
+package com.simonnordberg.lox;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+
+/**
+ * The javax.script view of {@link LoxEngine}. A script sees the global and engine scope bindings
+ * of its context as globals, prints to the context's writer, and leaves the globals it defined or
+ * assigned in the engine scope, where the next script evaluated in that scope finds them.
+ */
+public class LoxScriptEngine extends AbstractScriptEngine implements Compilable {
+
+  private final ScriptEngineFactory factory;
+
+  LoxScriptEngine(ScriptEngineFactory factory) {
+    this.factory = factory;
+  }
+
+  @Override
+  public Object eval(String script, ScriptContext context) throws ScriptException {
+    return compile(script).eval(context);
+  }
+
+  @Override
+  public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+    return compile(reader).eval(context);
+  }
+
+  @Override
+  public javax.script.CompiledScript compile(String script) throws ScriptException {
+    try {
+      return new Compiled(LoxEngine.compile(script));
+    } catch (LoxException e) {
+      throw new ScriptException(e.getMessage());
+    }
+  }
+
+  @Override
+  public javax.script.CompiledScript compile(Reader script) throws ScriptException {
+    StringBuilder source = new StringBuilder();
+    char[] buffer = new char[8192];
+    try {
+      for (int n = script.read(buffer); n >= 0; n = script.read(buffer)) {
+        source.append(buffer, 0, n);
+      }
+    } catch (IOException e) {
+      throw new ScriptException(e);
+    }
+    return compile(source.toString());
+  }
+
+  @Override
+  public Bindings createBindings() {
+    return new SimpleBindings();
+  }
+
+  @Override
+  public ScriptEngineFactory getFactory() {
+    return factory;
+  }
+
+  private class Compiled extends javax.script.CompiledScript {
+
+    private final CompiledScript script;
+
+    Compiled(CompiledScript script) {
+      this.script = script;
+    }
+
+    /**
+     * Runs the script and returns null, since a Lox script has no value of its own. Threads may
+     * evaluate scripts against the same bindings at once: each copies the bindings in and its
+     * results back out while holding the bindings' lock, so the script itself runs unlocked on a
+     * snapshot, and the last thread to finish wins where two assigned the same global.
+     */
+    @Override
+    public Object eval(ScriptContext context) throws ScriptException {
+      Map<String, Object> globals = new HashMap<>();
+      Bindings global = context.getBindings(ScriptContext.GLOBAL_SCOPE);
+      if (global != null) {
+        synchronized (global) {
+          globals.putAll(global);
+        }
+      }
+      Bindings engine = context.getBindings(ScriptContext.ENGINE_SCOPE);
+      if (engine != null) {
+        synchronized (engine) {
+          globals.putAll(engine);
+        }
+      }
+
+      try {
+        Map<String, Object> defined = script.execute(globals, context.getWriter());
+        if (engine != null) {
+          synchronized (engine) {
+            engine.putAll(defined);
+          }
+        }
+      } catch (LoxException e) {
+        throw new ScriptException(e.getMessage(), null, e.getLine());
+      }
+      return null;
+    }
+
+    @Override
+    public javax.script.ScriptEngine getEngine() {
+      return LoxScriptEngine.this;
+    }
+  }
+}
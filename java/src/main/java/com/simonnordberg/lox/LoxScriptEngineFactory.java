@@ -0,0 +1,104 @@
+package com.simonnordberg.lox;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+/**
+ * Makes Lox available to javax.script, under the name and extension "lox". Registered in
+ * META-INF/services.
+ */
+public class LoxScriptEngineFactory implements ScriptEngineFactory {
+
+  private static final String VERSION = "1.0";
+
+  @Override
+  public String getEngineName() {
+    return "jlox";
+  }
+
+  @Override
+  public String getEngineVersion() {
+    return VERSION;
+  }
+
+  @Override
+  public List<String> getExtensions() {
+    return Collections.singletonList("lox");
+  }
+
+  @Override
+  public List<String> getMimeTypes() {
+    return Collections.singletonList("application/x-lox");
+  }
+
+  @Override
+  public List<String> getNames() {
+    return Arrays.asList("lox", "Lox", "jlox");
+  }
+
+  @Override
+  public String getLanguageName() {
+    return "Lox";
+  }
+
+  @Override
+  public String getLanguageVersion() {
+    return VERSION;
+  }
+
+  @Override
+  public Object getParameter(String key) {
+    switch (key) {
+      case ScriptEngine.ENGINE:
+        return getEngineName();
+      case ScriptEngine.ENGINE_VERSION:
+        return getEngineVersion();
+      case ScriptEngine.NAME:
+        return getNames().get(0);
+      case ScriptEngine.LANGUAGE:
+        return getLanguageName();
+      case ScriptEngine.LANGUAGE_VERSION:
+        return getLanguageVersion();
+      case "THREADING":
+        // Compiled scripts are immutable, and Compiled.eval copies bindings under their lock
+        return "MULTITHREADED";
+      default:
+        return null;
+    }
+  }
+
+  @Override
+  public String getMethodCallSyntax(String obj, String m, String... args) {
+    StringBuilder builder = new StringBuilder(obj).append('.').append(m).append('(');
+    for (int i = 0; i < args.length; i++) {
+      if (i > 0) {
+        builder.append(", ");
+      }
+      builder.append(args[i]);
+    }
+    return builder.append(')').toString();
+  }
+
+  // Lox strings have no escapes, so a double quote cannot be printed this way
+  @Override
+  public String getOutputStatement(String toDisplay) {
+    return "print \"" + toDisplay + "\";";
+  }
+
+  @Override
+  public String getProgram(String... statements) {
+    StringBuilder builder = new StringBuilder();
+    for (String statement : statements) {
+      builder.append(statement).append(";\n");
+    }
+    return builder.toString();
+  }
+
+  @Override
+  public ScriptEngine getScriptEngine() {
+    return new LoxScriptEngine(this);
+  }
+}
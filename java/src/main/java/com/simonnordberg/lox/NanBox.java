@@ -0,0 +1,56 @@
+package com.simonnordberg.lox;
+
+/**
+ * NaN-boxed encoding of Lox values in a long, used by {@link NanBoxVM}.
+ *
+ * Numbers are stored as their raw IEEE 754 bits, with NaN canonicalized so that no number ever
+ * has all of the QNAN bits set. Everything else is a quiet NaN: nil and the booleans are small
+ * tags in the low bits, and heap values have the sign bit set and carry an index into the VM's
+ * handle table in their low 32 bits.
+ */
+final class NanBox {
+
+  private static final long SIGN_BIT = 0x8000000000000000L;
+  private static final long QNAN = 0x7ffc000000000000L;
+  private static final long HANDLE = SIGN_BIT | QNAN;
+
+  static final long NIL = QNAN | 1;
+  static final long FALSE = QNAN | 2;
+  static final long TRUE = QNAN | 3;
+
+  static boolean isNumber(long value) {
+    return (value & QNAN) != QNAN;
+  }
+
+  static boolean isHandle(long value) {
+    return (value & HANDLE) == HANDLE;
+  }
+
+  static long number(double value) {
+    // doubleToLongBits() collapses every NaN to 0x7ff8000000000000, which is not a tagged value
+    return Double.doubleToLongBits(value);
+  }
+
+  static double asNumber(long value) {
+    return Double.longBitsToDouble(value);
+  }
+
+  static long bool(boolean value) {
+    return value ? TRUE : FALSE;
+  }
+
+  static boolean isFalsey(long value) {
+    return value == NIL || value == FALSE;
+  }
+
+  static long handle(int index) {
+    return HANDLE | index;
+  }
+
+  static int handleIndex(long value) {
+    return (int) value;
+  }
+
+  private NanBox() {
+  }
+}
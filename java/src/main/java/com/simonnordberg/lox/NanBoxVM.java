@@ -0,0 +1,695 @@
+package com.simonnordberg.lox;
+
+import static com.simonnordberg.lox.OpCode.OP_ADD;
+import static com.simonnordberg.lox.OpCode.OP_CALL;
+import static com.simonnordberg.lox.OpCode.OP_CLASS;
+import static com.simonnordberg.lox.OpCode.OP_CLOSE_UPVALUE;
+import static com.simonnordberg.lox.OpCode.OP_CLOSURE;
+import static com.simonnordberg.lox.OpCode.OP_CONSTANT;
+import static com.simonnordberg.lox.OpCode.OP_DEFINE_GLOBAL;
+import static com.simonnordberg.lox.OpCode.OP_DIVIDE;
+import static com.simonnordberg.lox.OpCode.OP_EQUAL;
+import static com.simonnordberg.lox.OpCode.OP_FALSE;
+import static com.simonnordberg.lox.OpCode.OP_GET_GLOBAL;
+import static com.simonnordberg.lox.OpCode.OP_GET_LOCAL;
+import static com.simonnordberg.lox.OpCode.OP_GET_PROPERTY;
+import static com.simonnordberg.lox.OpCode.OP_GET_SUPER;
+import static com.simonnordberg.lox.OpCode.OP_GET_UPVALUE;
+import static com.simonnordberg.lox.OpCode.OP_GREATER;
+import static com.simonnordberg.lox.OpCode.OP_GREATER_EQUAL;
+import static com.simonnordberg.lox.OpCode.OP_INHERIT;
+import static com.simonnordberg.lox.OpCode.OP_INVOKE;
+import static com.simonnordberg.lox.OpCode.OP_JUMP;
+import static com.simonnordberg.lox.OpCode.OP_JUMP_IF_FALSE;
+import static com.simonnordberg.lox.OpCode.OP_LESS;
+import static com.simonnordberg.lox.OpCode.OP_LESS_EQUAL;
+import static com.simonnordberg.lox.OpCode.OP_LOOP;
+import static com.simonnordberg.lox.OpCode.OP_METHOD;
+import static com.simonnordberg.lox.OpCode.OP_MULTIPLY;
+import static com.simonnordberg.lox.OpCode.OP_NEGATE;
+import static com.simonnordberg.lox.OpCode.OP_NIL;
+import static com.simonnordberg.lox.OpCode.OP_NOT;
+import static com.simonnordberg.lox.OpCode.OP_POP;
+import static com.simonnordberg.lox.OpCode.OP_PRINT;
+import static com.simonnordberg.lox.OpCode.OP_RETURN;
+import static com.simonnordberg.lox.OpCode.OP_SET_GLOBAL;
+import static com.simonnordberg.lox.OpCode.OP_SET_LOCAL;
+import static com.simonnordberg.lox.OpCode.OP_SET_PROPERTY;
+import static com.simonnordberg.lox.OpCode.OP_SET_UPVALUE;
+import static com.simonnordberg.lox.OpCode.OP_SUBTRACT;
+import static com.simonnordberg.lox.OpCode.OP_SUPER_INVOKE;
+import static com.simonnordberg.lox.OpCode.OP_TRUE;
+
+import java.util.Arrays;
+
+/**
+ * Execution mode of the stack {@link VM} whose operand stack is a long[] of {@link NanBox}
+ * values, so arithmetic on numbers never allocates.
+ *
+ * Heap values on the stack are handles into an Object[] side table. When the table runs out of
+ * free entries, every handle still on the stack is marked and the rest are recycled; handles are
+ * never kept anywhere else. Globals, fields and closed upvalues stay in Object form, so values
+ * are boxed when they leave the stack and unboxed when they come back.
+ */
+class NanBoxVM extends VM {
+
+  private static final boolean COUNT_INSTRUCTIONS = Boolean.getBoolean("lox.countInstructions");
+
+  private long[] stack = new long[256];
+  private int stackTop = 0;
+
+  private Obj.Closure[] frameClosures = new Obj.Closure[64];
+  private int[] frameIps = new int[64];
+  private int[] frameBases = new int[64];
+  private int frameCount = 0;
+
+  private Obj.Upvalue openUpvalues;
+
+  private Object[] handles = new Object[1024];
+  private int[] freeHandles = new int[1024];
+  private int freeHandleCount = 0;
+  private boolean[] liveHandles = new boolean[1024];
+  private long handleCollections = 0;
+  private long instructionCount;
+
+  NanBoxVM() {
+    for (int i = handles.length - 1; i >= 0; i--) {
+      freeHandles[freeHandleCount++] = i;
+    }
+  }
+
+  @Override
+  void interpret(Obj.Function function) {
+    try {
+      Obj.Closure script = new Obj.Closure(function);
+      stack[0] = allocateHandle(script, 0);
+      stackTop = 1;
+      call(script, 0);
+      run();
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    } finally {
+      if (COUNT_INSTRUCTIONS) {
+        System.err.println("[" + instructionCount + " instructions, " + handleCollections
+            + " handle collections]");
+        instructionCount = 0;
+        handleCollections = 0;
+      }
+      resetStack();
+    }
+  }
+
+  private void run() {
+    Object[] globals = globals();
+
+    long[] stack = this.stack;
+    int sp = stackTop;
+    Obj.Closure closure = frameClosures[frameCount - 1];
+    byte[] code = closure.function.chunk.code;
+    Object[] constants = closure.function.chunk.constantTable;
+    int ip = frameIps[frameCount - 1];
+    int base = frameBases[frameCount - 1];
+
+    for (;;) {
+      if (COUNT_INSTRUCTIONS) {
+        instructionCount++;
+      }
+      switch (code[ip++]) {
+        case OP_CONSTANT: {
+          Object constant = constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          stack[sp] = box(constant, sp);
+          sp++;
+          break;
+        }
+        case OP_NIL:
+          stack[sp++] = NanBox.NIL;
+          break;
+        case OP_TRUE:
+          stack[sp++] = NanBox.TRUE;
+          break;
+        case OP_FALSE:
+          stack[sp++] = NanBox.FALSE;
+          break;
+        case OP_POP:
+          sp--;
+          break;
+        case OP_GET_LOCAL:
+          stack[sp++] = stack[base + (code[ip++] & 0xff)];
+          break;
+        case OP_SET_LOCAL:
+          stack[base + (code[ip++] & 0xff)] = stack[sp - 1];
+          break;
+        case OP_GET_GLOBAL: {
+          int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+          ip += 2;
+          Object value = globals[slot];
+          if (value == UNDEFINED) {
+            throw error(closure, ip, "Undefined variable '" + globalName(slot) + "'");
+          }
+          stack[sp] = box(value, sp);
+          sp++;
+          break;
+        }
+        case OP_DEFINE_GLOBAL: {
+          int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+          ip += 2;
+          globals[slot] = unbox(stack[--sp]);
+          break;
+        }
+        case OP_SET_GLOBAL: {
+          int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+          ip += 2;
+          if (globals[slot] == UNDEFINED) {
+            throw error(closure, ip, "Undefined variable '" + globalName(slot) + "'");
+          }
+          globals[slot] = unbox(stack[sp - 1]);
+          break;
+        }
+        case OP_GET_UPVALUE: {
+          Obj.Upvalue upvalue = closure.upvalues[code[ip++] & 0xff];
+          if (upvalue.slot >= 0) {
+            stack[sp] = stack[upvalue.slot];
+          } else {
+            stack[sp] = box(upvalue.closed, sp);
+          }
+          sp++;
+          break;
+        }
+        case OP_SET_UPVALUE: {
+          Obj.Upvalue upvalue = closure.upvalues[code[ip++] & 0xff];
+          if (upvalue.slot >= 0) {
+            stack[upvalue.slot] = stack[sp - 1];
+          } else {
+            upvalue.closed = unbox(stack[sp - 1]);
+          }
+          break;
+        }
+        case OP_GET_PROPERTY: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          Object object = unbox(stack[sp - 1]);
+          if (!(object instanceof Obj.Instance)) {
+            throw error(closure, ip, "Only instances have properties");
+          }
+
+          Obj.Instance instance = (Obj.Instance) object;
+          Object value = instance.fields.get(name);
+          if (value == null && !instance.fields.containsKey(name)) {
+            Obj.Closure method = instance.klass.methods.get(name);
+            if (method == null) {
+              throw error(closure, ip, "Undefined property '" + name + "'");
+            }
+            value = new Obj.BoundMethod(instance, method);
+          }
+          sp--;
+          stack[sp] = box(value, sp);
+          sp++;
+          break;
+        }
+        case OP_SET_PROPERTY: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          Object object = unbox(stack[sp - 2]);
+          if (!(object instanceof Obj.Instance)) {
+            throw error(closure, ip, "Only instances have fields");
+          }
+
+          long value = stack[--sp];
+          ((Obj.Instance) object).fields.put(name, unbox(value));
+          stack[sp - 1] = value;
+          break;
+        }
+        case OP_GET_SUPER: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          Obj.Class superclass = (Obj.Class) unbox(stack[--sp]);
+          Obj.Closure method = superclass.methods.get(name);
+          if (method == null) {
+            throw error(closure, ip, "Undefined property '" + name + "'");
+          }
+          Object receiver = unbox(stack[--sp]);
+          stack[sp] = box(new Obj.BoundMethod(receiver, method), sp);
+          sp++;
+          break;
+        }
+        case OP_EQUAL: {
+          long b = stack[--sp];
+          long a = stack[sp - 1];
+          stack[sp - 1] = NanBox.bool(a == b
+              || NanBox.isHandle(a) && NanBox.isHandle(b) && unbox(a).equals(unbox(b)));
+          break;
+        }
+        case OP_GREATER: {
+          long b = stack[--sp];
+          long a = stack[sp - 1];
+          if (!NanBox.isNumber(a) || !NanBox.isNumber(b)) {
+            throw error(closure, ip, "Operands must be numbers");
+          }
+          stack[sp - 1] = NanBox.bool(NanBox.asNumber(a) > NanBox.asNumber(b));
+          break;
+        }
+        case OP_GREATER_EQUAL: {
+          long b = stack[--sp];
+          long a = stack[sp - 1];
+          if (!NanBox.isNumber(a) || !NanBox.isNumber(b)) {
+            throw error(closure, ip, "Operands must be numbers");
+          }
+          stack[sp - 1] = NanBox.bool(NanBox.asNumber(a) >= NanBox.asNumber(b));
+          break;
+        }
+        case OP_LESS: {
+          long b = stack[--sp];
+          long a = stack[sp - 1];
+          if (!NanBox.isNumber(a) || !NanBox.isNumber(b)) {
+            throw error(closure, ip, "Operands must be numbers");
+          }
+          stack[sp - 1] = NanBox.bool(NanBox.asNumber(a) < NanBox.asNumber(b));
+          break;
+        }
+        case OP_LESS_EQUAL: {
+          long b = stack[--sp];
+          long a = stack[sp - 1];
+          if (!NanBox.isNumber(a) || !NanBox.isNumber(b)) {
+            throw error(closure, ip, "Operands must be numbers");
+          }
+          stack[sp - 1] = NanBox.bool(NanBox.asNumber(a) <= NanBox.asNumber(b));
+          break;
+        }
+        case OP_ADD: {
+          long b = stack[--sp];
+          long a = stack[sp - 1];
+          if (NanBox.isNumber(a) && NanBox.isNumber(b)) {
+            stack[sp - 1] = NanBox.number(NanBox.asNumber(a) + NanBox.asNumber(b));
+            break;
+          }
+
+          Object x = unbox(a);
+          Object y = unbox(b);
+          if (!(x instanceof String) && !(y instanceof String)) {
+            throw error(closure, ip, "Operands must be two numbers or two strings");
+          }
+          // Both operands are dead once dereferenced, so the result may reuse their handles
+          sp--;
+          stack[sp] = allocateHandle(Interpreter.stringify(x) + Interpreter.stringify(y), sp);
+          sp++;
+          break;
+        }
+        case OP_SUBTRACT: {
+          long b = stack[--sp];
+          long a = stack[sp - 1];
+          if (!NanBox.isNumber(a) || !NanBox.isNumber(b)) {
+            throw error(closure, ip, "Operands must be numbers");
+          }
+          stack[sp - 1] = NanBox.number(NanBox.asNumber(a) - NanBox.asNumber(b));
+          break;
+        }
+        case OP_MULTIPLY: {
+          long b = stack[--sp];
+          long a = stack[sp - 1];
+          if (!NanBox.isNumber(a) || !NanBox.isNumber(b)) {
+            throw error(closure, ip, "Operands must be numbers");
+          }
+          stack[sp - 1] = NanBox.number(NanBox.asNumber(a) * NanBox.asNumber(b));
+          break;
+        }
+        case OP_DIVIDE: {
+          long b = stack[--sp];
+          long a = stack[sp - 1];
+          if (!NanBox.isNumber(a) || !NanBox.isNumber(b)) {
+            throw error(closure, ip, "Operands must be numbers");
+          }
+          stack[sp - 1] = NanBox.number(NanBox.asNumber(a) / NanBox.asNumber(b));
+          break;
+        }
+        case OP_NOT:
+          stack[sp - 1] = NanBox.bool(NanBox.isFalsey(stack[sp - 1]));
+          break;
+        case OP_NEGATE: {
+          long value = stack[sp - 1];
+          if (!NanBox.isNumber(value)) {
+            throw error(closure, ip, "Operand must be a number");
+          }
+          stack[sp - 1] = NanBox.number(-NanBox.asNumber(value));
+          break;
+        }
+        case OP_PRINT:
+          System.out.println(Interpreter.stringify(unbox(stack[--sp])));
+          break;
+        case OP_JUMP:
+          ip += (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)) + 2;
+          break;
+        case OP_JUMP_IF_FALSE:
+          if (NanBox.isFalsey(stack[sp - 1])) {
+            ip += (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)) + 2;
+          } else {
+            ip += 2;
+          }
+          break;
+        case OP_LOOP:
+          ip -= (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)) - 2;
+          break;
+        case OP_CALL: {
+          int argCount = code[ip++] & 0xff;
+          frameIps[frameCount - 1] = ip;
+          stackTop = sp;
+          call(unbox(stack[sp - 1 - argCount]), argCount);
+
+          stack = this.stack;
+          sp = stackTop;
+          closure = frameClosures[frameCount - 1];
+          code = closure.function.chunk.code;
+          constants = closure.function.chunk.constantTable;
+          ip = frameIps[frameCount - 1];
+          base = frameBases[frameCount - 1];
+          break;
+        }
+        case OP_INVOKE: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          int argCount = code[ip + 2] & 0xff;
+          ip += 3;
+          frameIps[frameCount - 1] = ip;
+          stackTop = sp;
+          invoke(name, argCount);
+
+          stack = this.stack;
+          sp = stackTop;
+          closure = frameClosures[frameCount - 1];
+          code = closure.function.chunk.code;
+          constants = closure.function.chunk.constantTable;
+          ip = frameIps[frameCount - 1];
+          base = frameBases[frameCount - 1];
+          break;
+        }
+        case OP_SUPER_INVOKE: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          int argCount = code[ip + 2] & 0xff;
+          ip += 3;
+          Obj.Class superclass = (Obj.Class) unbox(stack[--sp]);
+          Obj.Closure method = superclass.methods.get(name);
+          if (method == null) {
+            throw error(closure, ip, "Undefined property '" + name + "'");
+          }
+          frameIps[frameCount - 1] = ip;
+          stackTop = sp;
+          callClosure(method, argCount);
+
+          stack = this.stack;
+          sp = stackTop;
+          closure = frameClosures[frameCount - 1];
+          code = closure.function.chunk.code;
+          constants = closure.function.chunk.constantTable;
+          ip = frameIps[frameCount - 1];
+          base = frameBases[frameCount - 1];
+          break;
+        }
+        case OP_CLOSURE: {
+          Obj.Function function =
+              (Obj.Function) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          Obj.Closure created = new Obj.Closure(function);
+          for (int i = 0; i < created.upvalues.length; i++) {
+            boolean isLocal = code[ip++] == 1;
+            int index = code[ip++] & 0xff;
+            created.upvalues[i] = isLocal ? captureUpvalue(base + index) : closure.upvalues[index];
+          }
+          stack[sp] = allocateHandle(created, sp);
+          sp++;
+          break;
+        }
+        case OP_CLOSE_UPVALUE:
+          closeUpvalues(sp - 1);
+          sp--;
+          break;
+        case OP_RETURN: {
+          long result = stack[--sp];
+          if (openUpvalues != null) {
+            closeUpvalues(base);
+          }
+          frameCount--;
+          if (frameCount == 0) {
+            stackTop = 0;
+            return;
+          }
+
+          sp = base;
+          stack[sp++] = result;
+          closure = frameClosures[frameCount - 1];
+          code = closure.function.chunk.code;
+          constants = closure.function.chunk.constantTable;
+          ip = frameIps[frameCount - 1];
+          base = frameBases[frameCount - 1];
+          break;
+        }
+        case OP_CLASS: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          stack[sp] = allocateHandle(new Obj.Class(name), sp);
+          sp++;
+          break;
+        }
+        case OP_INHERIT: {
+          Object superclass = unbox(stack[sp - 2]);
+          if (!(superclass instanceof Obj.Class)) {
+            throw error(closure, ip, "Superclass must be a class");
+          }
+          Obj.Class subclass = (Obj.Class) unbox(stack[sp - 1]);
+          subclass.methods.putAll(((Obj.Class) superclass).methods);
+          subclass.initializer = ((Obj.Class) superclass).initializer;
+          sp--;
+          break;
+        }
+        case OP_METHOD: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          Obj.Closure method = (Obj.Closure) unbox(stack[sp - 1]);
+          Obj.Class klass = (Obj.Class) unbox(stack[sp - 2]);
+          klass.methods.put(name, method);
+          if (name.equals("init")) {
+            klass.initializer = method;
+          }
+          sp--;
+          break;
+        }
+        default:
+          throw error(closure, ip, "Unknown opcode " + code[ip - 1]);
+      }
+    }
+  }
+
+  /**
+   * Calls callee with the argCount arguments on top of the stack. Lox functions get a new frame
+   * and run when the dispatch loop resumes; natives and argument-less classes complete here.
+   */
+  private void call(Object callee, int argCount) {
+    if (callee instanceof Obj.Closure) {
+      callClosure((Obj.Closure) callee, argCount);
+    } else if (callee instanceof Obj.BoundMethod) {
+      Obj.BoundMethod bound = (Obj.BoundMethod) callee;
+      int slot = stackTop - argCount - 1;
+      stack[slot] = box(bound.receiver, stackTop);
+      callClosure(bound.method, argCount);
+    } else if (callee instanceof Obj.Class) {
+      Obj.Class klass = (Obj.Class) callee;
+      int slot = stackTop - argCount - 1;
+      stack[slot] = allocateHandle(new Obj.Instance(klass), stackTop);
+      if (klass.initializer != null) {
+        callClosure(klass.initializer, argCount);
+      } else if (argCount != 0) {
+        throw callError("Expected 0 arguments but got " + argCount);
+      }
+    } else if (callee instanceof Obj.Native) {
+      Obj.Native function = (Obj.Native) callee;
+      if (argCount != function.arity) {
+        throw callError("Expected " + function.arity + " arguments but got " + argCount);
+      }
+      Object[] args = new Object[argCount];
+      for (int i = 0; i < argCount; i++) {
+        args[i] = unbox(stack[stackTop - argCount + i]);
+      }
+      Object result = function.call(args, 0);
+      stackTop -= argCount + 1;
+      stack[stackTop] = box(result, stackTop);
+      stackTop++;
+    } else {
+      throw callError("Can only call functions and classes");
+    }
+  }
+
+  private void callClosure(Obj.Closure closure, int argCount) {
+    Obj.Function function = closure.function;
+    if (argCount != function.arity) {
+      throw callError("Expected " + function.arity + " arguments but got " + argCount);
+    }
+
+    if (frameCount == frameClosures.length) {
+      if (frameCount == FRAMES_MAX) {
+        throw callError("Stack overflow");
+      }
+      int capacity = Math.min(frameCount * 2, FRAMES_MAX);
+      frameClosures = Arrays.copyOf(frameClosures, capacity);
+      frameIps = Arrays.copyOf(frameIps, capacity);
+      frameBases = Arrays.copyOf(frameBases, capacity);
+    }
+
+    int base = stackTop - argCount - 1;
+    if (base + function.maxStack > stack.length) {
+      stack = Arrays.copyOf(stack, Math.max(stack.length * 2, base + function.maxStack));
+    }
+
+    frameClosures[frameCount] = closure;
+    frameIps[frameCount] = 0;
+    frameBases[frameCount] = base;
+    frameCount++;
+  }
+
+  private void invoke(String name, int argCount) {
+    Object receiver = unbox(stack[stackTop - argCount - 1]);
+    if (!(receiver instanceof Obj.Instance)) {
+      throw callError("Only instances have properties");
+    }
+
+    Obj.Instance instance = (Obj.Instance) receiver;
+    Object field = instance.fields.get(name);
+    if (field != null || instance.fields.containsKey(name)) {
+      stack[stackTop - argCount - 1] = box(field, stackTop);
+      call(field, argCount);
+      return;
+    }
+
+    Obj.Closure method = instance.klass.methods.get(name);
+    if (method == null) {
+      throw callError("Undefined property '" + name + "'");
+    }
+    callClosure(method, argCount);
+  }
+
+  private Obj.Upvalue captureUpvalue(int slot) {
+    Obj.Upvalue previous = null;
+    Obj.Upvalue upvalue = openUpvalues;
+    while (upvalue != null && upvalue.slot > slot) {
+      previous = upvalue;
+      upvalue = upvalue.next;
+    }
+
+    if (upvalue != null && upvalue.slot == slot) {
+      return upvalue;
+    }
+
+    Obj.Upvalue created = new Obj.Upvalue(slot);
+    created.next = upvalue;
+    if (previous == null) {
+      openUpvalues = created;
+    } else {
+      previous.next = created;
+    }
+    return created;
+  }
+
+  private void closeUpvalues(int last) {
+    while (openUpvalues != null && openUpvalues.slot >= last) {
+      Obj.Upvalue upvalue = openUpvalues;
+      upvalue.closed = unbox(stack[upvalue.slot]);
+      upvalue.slot = -1;
+      openUpvalues = upvalue.next;
+    }
+  }
+
+  // Boxing
+
+  /**
+   * Converts value to its NaN-boxed form for stack slot slot. Heap values get a handle, which
+   * may trigger a collection of the handles referenced from below slot.
+   */
+  private long box(Object value, int slot) {
+    if (value instanceof Double) {
+      return NanBox.number((Double) value);
+    }
+    if (value == null) {
+      return NanBox.NIL;
+    }
+    if (value instanceof Boolean) {
+      return NanBox.bool((Boolean) value);
+    }
+    return allocateHandle(value, slot);
+  }
+
+  private Object unbox(long value) {
+    if (NanBox.isNumber(value)) {
+      return NanBox.asNumber(value);
+    }
+    if (NanBox.isHandle(value)) {
+      return handles[NanBox.handleIndex(value)];
+    }
+    if (value == NanBox.NIL) {
+      return null;
+    }
+    return value == NanBox.TRUE;
+  }
+
+  private long allocateHandle(Object object, int slot) {
+    if (freeHandleCount == 0) {
+      collectHandles(slot);
+    }
+    int index = freeHandles[--freeHandleCount];
+    handles[index] = object;
+    return NanBox.handle(index);
+  }
+
+  /**
+   * Frees every handle not referenced from stack slots below top, growing the table if that
+   * leaves less than half of it free.
+   */
+  private void collectHandles(int top) {
+    handleCollections++;
+    for (int i = 0; i < top; i++) {
+      if (NanBox.isHandle(stack[i])) {
+        liveHandles[NanBox.handleIndex(stack[i])] = true;
+      }
+    }
+
+    int live = 0;
+    for (int i = 0; i < handles.length; i++) {
+      if (liveHandles[i]) {
+        liveHandles[i] = false;
+        live++;
+      } else {
+        handles[i] = null;
+        freeHandles[freeHandleCount++] = i;
+      }
+    }
+
+    if (live > handles.length / 2) {
+      int capacity = handles.length * 2;
+      int oldCapacity = handles.length;
+      handles = Arrays.copyOf(handles, capacity);
+      freeHandles = Arrays.copyOf(freeHandles, capacity);
+      liveHandles = new boolean[capacity];
+      for (int i = capacity - 1; i >= oldCapacity; i--) {
+        freeHandles[freeHandleCount++] = i;
+      }
+    }
+  }
+
+  private static RuntimeError error(Obj.Closure closure, int ip, String message) {
+    return new RuntimeError(closure.function.chunk.lines[ip - 1], message);
+  }
+
+  /**
+   * Error raised while setting up a call, reported at the calling instruction.
+   */
+  private RuntimeError callError(String message) {
+    return error(frameClosures[frameCount - 1], frameIps[frameCount - 1], message);
+  }
+
+  private void resetStack() {
+    stackTop = 0;
+    frameCount = 0;
+    openUpvalues = null;
+    Arrays.fill(handles, null);
+    freeHandleCount = 0;
+    for (int i = handles.length - 1; i >= 0; i--) {
+      freeHandles[freeHandleCount++] = i;
+    }
+  }
+}
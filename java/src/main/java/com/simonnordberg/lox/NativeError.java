@@ -0,0 +1,12 @@
+package com.simonnordberg.lox;
+
+/**
+ * Thrown by native functions, which have no token to report. The interpreter turns it into a
+ * {@link RuntimeError} at the call that reached the native.
+ */
+class NativeError extends RuntimeException {
+
+  NativeError(String message) {
+    super(message, null, false, false);
+  }
+}
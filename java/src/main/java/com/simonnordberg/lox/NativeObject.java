@@ -0,0 +1,94 @@
+package com.simonnordberg.lox;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A value implemented in Java whose methods Lox calls through property access, as in
+ * list.append(1). Subclasses name their methods and arities once; a method is bound to its
+ * receiver on first use and the bound callable is reused after that.
+ */
+abstract class NativeObject {
+
+  // Containers whose toString is running on this thread, by identity, so a list or map that
+  // contains itself prints a placeholder instead of recursing until the stack overflows
+  private static final ThreadLocal<Set<NativeObject>> printing =
+      new ThreadLocal<Set<NativeObject>>() {
+        @Override
+        protected Set<NativeObject> initialValue() {
+          return Collections.newSetFromMap(new IdentityHashMap<NativeObject, Boolean>());
+        }
+      };
+
+  private final String[] names;
+  private final int[] arities;
+  private LoxCallable[] methods;
+
+  NativeObject(String[] names, int[] arities) {
+    this.names = names;
+    this.arities = arities;
+  }
+
+  /**
+   * Runs method number {@code method}, with arguments already checked against its arity.
+   */
+  abstract Object invoke(int method, Interpreter interpreter, List<Object> arguments);
+
+  LoxCallable method(Token name) {
+    for (int i = 0; i < names.length; i++) {
+      if (names[i].equals(name.lexeme)) {
+        if (methods == null) {
+          methods = new LoxCallable[names.length];
+        }
+        if (methods[i] == null) {
+          methods[i] = bind(i);
+        }
+        return methods[i];
+      }
+    }
+    throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'");
+  }
+
+  private LoxCallable bind(final int method) {
+    return new LoxCallable() {
+      @Override
+      public Object call(Interpreter interpreter, List<Object> arguments) {
+        return invoke(method, interpreter, arguments);
+      }
+
+      @Override
+      public int arity() {
+        return arities[method];
+      }
+
+      @Override
+      public String toString() {
+        return "<native fn>";
+      }
+    };
+  }
+
+  /**
+   * Checks that a callback argument is a function of one argument.
+   */
+  static LoxCallable unary(Object function, String method) {
+    if (!(function instanceof LoxCallable) || ((LoxCallable) function).arity() != 1) {
+      throw new NativeError(method + " expects a function of one argument");
+    }
+    return (LoxCallable) function;
+  }
+
+  /**
+   * Marks this object as being printed, returning false if it already is further up the stack.
+   * A caller that gets true calls {@link #endPrinting()} when done.
+   */
+  final boolean beginPrinting() {
+    return printing.get().add(this);
+  }
+
+  final void endPrinting() {
+    printing.get().remove(this);
+  }
+}
@@ -0,0 +1,133 @@
+package com.simonnordberg.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Heap values of the bytecode {@link VM}. Numbers, booleans, nil and strings are represented the
+ * same way as in the tree-walking {@link Interpreter}; everything else is one of these.
+ *
+ * The toString() forms match their Interpreter counterparts so both backends print identically.
+ */
+abstract class Obj {
+
+  static final class Function extends Obj {
+
+    final String name;
+    final Chunk chunk = new Chunk();
+    // Set instead of chunk when compiled for the RegisterVM
+    RegisterChunk registerChunk;
+    int arity;
+    int upvalueCount;
+    // Deepest the operand stack gets in this function, counting the callee slot
+    int maxStack;
+
+    Function(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public String toString() {
+      if (name == null) {
+        return "<script>";
+      }
+      return String.format("<fn %s>(%d)", name, arity);
+    }
+  }
+
+  abstract static class Native extends Obj {
+
+    final String name;
+    final int arity;
+
+    Native(String name, int arity) {
+      this.name = name;
+      this.arity = arity;
+    }
+
+    /**
+     * Arguments are args[start] to args[start + arity - 1].
+     */
+    abstract Object call(Object[] args, int start);
+
+    @Override
+    public String toString() {
+      return "<native fn>";
+    }
+  }
+
+  static final class Closure extends Obj {
+
+    final Function function;
+    final Upvalue[] upvalues;
+
+    Closure(Function function) {
+      this.function = function;
+      this.upvalues = new Upvalue[function.upvalueCount];
+    }
+
+    @Override
+    public String toString() {
+      return function.toString();
+    }
+  }
+
+  static final class Upvalue extends Obj {
+
+    // Stack index of the captured variable while it is open, -1 once it has been closed
+    int slot;
+    Object closed;
+    Upvalue next;
+
+    Upvalue(int slot) {
+      this.slot = slot;
+    }
+  }
+
+  static final class Class extends Obj {
+
+    final String name;
+    final Map<String, Closure> methods = new HashMap<>();
+    Closure initializer;
+
+    Class(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  static final class Instance extends Obj {
+
+    final Class klass;
+    final Map<String, Object> fields = new HashMap<>();
+
+    Instance(Class klass) {
+      this.klass = klass;
+    }
+
+    @Override
+    public String toString() {
+      return klass.name + " instance";
+    }
+  }
+
+  static final class BoundMethod extends Obj {
+
+    final Object receiver;
+    final Closure method;
+
+    BoundMethod(Object receiver, Closure method) {
+      this.receiver = receiver;
+      this.method = method;
+    }
+
+    @Override
+    public String toString() {
+      return method.toString();
+    }
+  }
+}
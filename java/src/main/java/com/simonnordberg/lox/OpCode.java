@@ -0,0 +1,51 @@
+package com.simonnordberg.lox;
+
+/**
+ * Instruction set of the bytecode {@link VM}. Operands follow the opcode byte; "u16" operands are
+ * big-endian constant, global or jump offsets, "u8" operands are slots and argument counts.
+ */
+final class OpCode {
+
+  static final byte OP_CONSTANT = 0;        // u16 constant
+  static final byte OP_NIL = 1;
+  static final byte OP_TRUE = 2;
+  static final byte OP_FALSE = 3;
+  static final byte OP_POP = 4;
+  static final byte OP_GET_LOCAL = 5;       // u8 slot
+  static final byte OP_SET_LOCAL = 6;       // u8 slot
+  static final byte OP_GET_GLOBAL = 7;      // u16 global
+  static final byte OP_DEFINE_GLOBAL = 8;   // u16 global
+  static final byte OP_SET_GLOBAL = 9;      // u16 global
+  static final byte OP_GET_UPVALUE = 10;    // u8 upvalue
+  static final byte OP_SET_UPVALUE = 11;    // u8 upvalue
+  static final byte OP_GET_PROPERTY = 12;   // u16 name constant
+  static final byte OP_SET_PROPERTY = 13;   // u16 name constant
+  static final byte OP_GET_SUPER = 14;      // u16 name constant
+  static final byte OP_EQUAL = 15;
+  static final byte OP_GREATER = 16;
+  static final byte OP_GREATER_EQUAL = 17;
+  static final byte OP_LESS = 18;
+  static final byte OP_LESS_EQUAL = 19;
+  static final byte OP_ADD = 20;
+  static final byte OP_SUBTRACT = 21;
+  static final byte OP_MULTIPLY = 22;
+  static final byte OP_DIVIDE = 23;
+  static final byte OP_NOT = 24;
+  static final byte OP_NEGATE = 25;
+  static final byte OP_PRINT = 26;
+  static final byte OP_JUMP = 27;           // u16 forward offset
+  static final byte OP_JUMP_IF_FALSE = 28;  // u16 forward offset
+  static final byte OP_LOOP = 29;           // u16 backward offset
+  static final byte OP_CALL = 30;           // u8 argument count
+  static final byte OP_INVOKE = 31;         // u16 name constant, u8 argument count
+  static final byte OP_SUPER_INVOKE = 32;   // u16 name constant, u8 argument count
+  static final byte OP_CLOSURE = 33;        // u16 function constant, then (u8 isLocal, u8 index)*
+  static final byte OP_CLOSE_UPVALUE = 34;
+  static final byte OP_RETURN = 35;
+  static final byte OP_CLASS = 36;          // u16 name constant
+  static final byte OP_INHERIT = 37;
+  static final byte OP_METHOD = 38;         // u16 name constant
+
+  private OpCode() {
+  }
+}
@@ -107,10 +107,12 @@ import java.util.List;
 public class Parser {
 
   private final List<Token> tokens;
+  private final ErrorReporter reporter;
   private int current = 0;
 
-  public Parser(List<Token> tokens) {
+  public Parser(List<Token> tokens, ErrorReporter reporter) {
     this.tokens = tokens;
+    this.reporter = reporter;
   }
 
   List<Stmt> parse() {
@@ -497,7 +499,7 @@ public class Parser {
   }
 
   private ParseError error(Token token, String message) {
-    Lox.error(token, message);
+    reporter.error(token, message);
     return new ParseError();
   }
 
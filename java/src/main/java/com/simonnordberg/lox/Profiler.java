@@ -0,0 +1,185 @@
+package com.simonnordberg.lox;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sampling profiler for Lox functions run by the tree-walking interpreter.
+ *
+ * {@link LoxFunction#call} pushes the function's name token onto a shadow stack while profiling
+ * is on, and a daemon thread copies that stack every interval. Frames are only formatted as
+ * name:line by the sampler, so a profiled call costs no more than an array store. Stacks are
+ * counted in the collapsed format that flamegraph.pl and speedscope read: frames separated by
+ * semicolons, then the sample count. With profiling off, {@link #active} is null and a call costs
+ * one extra static read.
+ */
+final class Profiler {
+
+  static final String ROOT = "<script>";
+
+  static volatile Profiler active;
+
+  private final long intervalNanos;
+  private final Map<String, Integer> stacks = new HashMap<>();
+  private final Thread sampler;
+  private volatile boolean running = true;
+  private int samples = 0;
+
+  // Only the interpreter thread writes frames; publishing depth last makes them visible
+  private Token[] frames = new Token[64];
+  private volatile int depth = 0;
+
+  private Profiler(long intervalNanos) {
+    this.intervalNanos = intervalNanos;
+    this.sampler = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        sample();
+      }
+    }, "lox-profiler");
+    sampler.setDaemon(true);
+  }
+
+  /**
+   * Starts sampling every lox.profileInterval microseconds, 1000 by default.
+   */
+  static Profiler start() {
+    long micros = Long.getLong("lox.profileInterval", 1000);
+    Profiler profiler = new Profiler(TimeUnit.MICROSECONDS.toNanos(Math.max(1, micros)));
+    active = profiler;
+    profiler.sampler.start();
+    return profiler;
+  }
+
+  void enter(Token name) {
+    int top = depth;
+    if (top == frames.length) {
+      Token[] grown = new Token[top * 2];
+      System.arraycopy(frames, 0, grown, 0, top);
+      frames = grown;
+    }
+    frames[top] = name;
+    depth = top + 1;
+  }
+
+  void exit() {
+    depth = depth - 1;
+  }
+
+  void stop() {
+    active = null;
+    running = false;
+    try {
+      sampler.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void sample() {
+    StringBuilder stack = new StringBuilder();
+    while (running) {
+      LockSupport.parkNanos(intervalNanos);
+
+      // The array may be replaced while growing, so read it after the depth that indexes it
+      int top = depth;
+      Token[] snapshot = frames;
+      stack.setLength(0);
+      stack.append(ROOT);
+      for (int i = 0; i < top && i < snapshot.length; i++) {
+        stack.append(';').append(snapshot[i].lexeme).append(':').append(snapshot[i].line);
+      }
+
+      String key = stack.toString();
+      Integer count = stacks.get(key);
+      stacks.put(key, count == null ? 1 : count + 1);
+      samples++;
+    }
+  }
+
+  /**
+   * Writes the collapsed stacks to path, or to out when there is no path, followed by self and
+   * total time per function. Call after {@link #stop()}.
+   */
+  void report(String path, PrintStream out) throws IOException {
+    List<String> collapsed = new ArrayList<>();
+    for (Map.Entry<String, Integer> entry : stacks.entrySet()) {
+      collapsed.add(entry.getKey() + " " + entry.getValue());
+    }
+    Collections.sort(collapsed);
+
+    if (path != null) {
+      try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(path),
+          Charset.forName("UTF-8")))) {
+        for (String line : collapsed) {
+          writer.println(line);
+        }
+      }
+    } else {
+      for (String line : collapsed) {
+        out.println(line);
+      }
+    }
+
+    final Map<String, Integer> self = new HashMap<>();
+    final Map<String, Integer> total = new HashMap<>();
+    for (Map.Entry<String, Integer> entry : stacks.entrySet()) {
+      String[] stackFrames = entry.getKey().split(";");
+      add(self, stackFrames[stackFrames.length - 1], entry.getValue());
+      // Recursive functions count once per sample towards their total
+      Set<String> seen = new HashSet<>();
+      for (String frame : stackFrames) {
+        if (seen.add(frame)) {
+          add(total, frame, entry.getValue());
+        }
+      }
+    }
+
+    List<String> functions = new ArrayList<>(total.keySet());
+    Collections.sort(functions, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        int bySelf = Integer.compare(count(self, b), count(self, a));
+        return bySelf != 0 ? bySelf : Integer.compare(total.get(b), total.get(a));
+      }
+    });
+
+    double millisPerSample = intervalNanos / 1e6;
+    out.printf("[profile: %d samples, %.3f ms interval]%n", samples, millisPerSample);
+    out.printf("%10s %7s %10s %7s  %s%n", "self ms", "self %", "total ms", "total %",
+        "function");
+    for (String function : functions) {
+      int selfSamples = count(self, function);
+      int totalSamples = total.get(function);
+      out.printf("%10.1f %6.1f%% %10.1f %6.1f%%  %s%n", selfSamples * millisPerSample,
+          percent(selfSamples), totalSamples * millisPerSample, percent(totalSamples), function);
+    }
+  }
+
+  private double percent(int count) {
+    return samples == 0 ? 0 : 100.0 * count / samples;
+  }
+
+  private static int count(Map<String, Integer> counts, String key) {
+    Integer count = counts.get(key);
+    return count == null ? 0 : count;
+  }
+
+  private static void add(Map<String, Integer> counts, String key, int amount) {
+    counts.put(key, count(counts, key) + amount);
+  }
+}
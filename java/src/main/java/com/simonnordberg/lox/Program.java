@@ -0,0 +1,145 @@
+package com.simonnordberg.lox;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A scanned, parsed and resolved script. Nothing in a program changes once it is built, so it can
+ * be compiled once and then run by any number of threads at the same time, each in an interpreter
+ * of its own with its own globals. Functions that get hot in any of those runs are compiled for
+ * all of them.
+ */
+final class Program {
+
+  private final List<Stmt> statements;
+  private final TieredCompiler tieredCompiler = TieredCompiler.fromSystemProperties();
+
+  /**
+   * Wraps statements that have already been resolved.
+   */
+  Program(List<Stmt> statements) {
+    this.statements = Collections.unmodifiableList(new ArrayList<>(statements));
+  }
+
+  /**
+   * Scans, parses and resolves source, returning null if there was a syntax or resolution error.
+   * Errors go to the reporter, which is only used by this call.
+   */
+  static Program compile(String source, ErrorReporter reporter) {
+    Events.Scan scan = Events.recording() ? new Events.Scan() : null;
+    if (scan != null) {
+      scan.begin();
+    }
+    long start = System.nanoTime();
+    Scanner scanner = new Scanner(source, reporter);
+    List<Token> tokens = scanner.scanTokens();
+    start = phaseEnded(InterpreterMetrics.INSTANCE.scanNanos, start);
+    if (scan != null) {
+      scan.end();
+      if (scan.shouldCommit()) {
+        scan.sourceLength = source.length();
+        scan.tokens = tokens.size();
+        scan.commit();
+      }
+    }
+
+    Events.Parse parse = Events.recording() ? new Events.Parse() : null;
+    if (parse != null) {
+      parse.begin();
+    }
+    Parser parser = new Parser(tokens, reporter);
+    List<Stmt> statements = parser.parse();
+    start = phaseEnded(InterpreterMetrics.INSTANCE.parseNanos, start);
+    if (parse != null) {
+      parse.end();
+      if (parse.shouldCommit()) {
+        parse.tokens = tokens.size();
+        parse.statements = statements.size();
+        parse.commit();
+      }
+    }
+
+    // Stop if there was a syntax error
+    if (reporter.hadError()) {
+      return null;
+    }
+
+    Events.Resolve resolve = Events.recording() ? new Events.Resolve() : null;
+    if (resolve != null) {
+      resolve.begin();
+    }
+    Resolver resolver = new Resolver(reporter);
+    resolver.resolve(statements);
+    phaseEnded(InterpreterMetrics.INSTANCE.resolveNanos, start);
+    if (resolve != null) {
+      resolve.end();
+      if (resolve.shouldCommit()) {
+        resolve.nodes = resolver.nodeCount();
+        resolve.commit();
+      }
+    }
+
+    // Stop if there was a resolution error
+    if (reporter.hadError()) {
+      return null;
+    }
+
+    return new Program(statements);
+  }
+
+  /**
+   * Adds the time since start to a phase counter and returns the current time.
+   */
+  private static long phaseEnded(LongAdder counter, long start) {
+    long now = System.nanoTime();
+    if (InterpreterMetrics.ENABLED) {
+      counter.add(now - start);
+    }
+    return now;
+  }
+
+  List<Stmt> statements() {
+    return statements;
+  }
+
+  /**
+   * Creates an interpreter with fresh globals for one run of this program, printing to standard
+   * output.
+   */
+  Interpreter newInterpreter(ErrorReporter reporter) {
+    return newInterpreter(reporter, new PrintWriter(System.out, true));
+  }
+
+  /**
+   * Creates an interpreter with fresh globals for one run of this program, printing to out.
+   */
+  Interpreter newInterpreter(ErrorReporter reporter, PrintWriter out) {
+    return new Interpreter(tieredCompiler, reporter, out);
+  }
+
+  /**
+   * Runs the program in a fresh interpreter, reporting a runtime error to the reporter.
+   */
+  void run(ErrorReporter reporter) {
+    run(newInterpreter(reporter));
+  }
+
+  /**
+   * Runs the program in an interpreter made by {@link #newInterpreter}.
+   */
+  void run(Interpreter interpreter) {
+    long start = System.nanoTime();
+    try {
+      interpreter.interpret(statements);
+    } finally {
+      if (InterpreterMetrics.ENABLED) {
+        InterpreterMetrics.INSTANCE.executeNanos.add(System.nanoTime() - start);
+        // The run is over, so its globals no longer count as live
+        InterpreterMetrics.INSTANCE.globals.add(-interpreter.globals.values().size());
+      }
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package com.simonnordberg.lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * On-disk cache of compiled (scanned, parsed and resolved) programs, keyed by a hash of the
+ * source text. Images live in {@code <directory>/<sha-256>.loxc}.
+ *
+ * The cache is best effort: unreadable, truncated or outdated images count as a miss, and
+ * failures to write an image are ignored, so a broken cache can only cost a full compile.
+ */
+class ProgramCache {
+
+  private static final String EXTENSION = ".loxc";
+
+  private final Path directory;
+
+  ProgramCache(Path directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Cache rooted at the {@code lox.cache.dir} system property, defaulting to
+   * {@code ~/.cache/jlox}, or null unless caching is turned on with {@code -Dlox.cache=true}.
+   *
+   * Images are never evicted, which is why the cache is opt-in: one-off scripts and batches of
+   * generated jobs would otherwise fill the directory without bound. Whoever turns it on owns
+   * the directory and may delete it at any time.
+   */
+  static ProgramCache fromSystemProperties() {
+    if (!Boolean.getBoolean("lox.cache")) {
+      return null;
+    }
+    String dir = System.getProperty("lox.cache.dir");
+    if (dir == null) {
+      dir = Paths.get(System.getProperty("user.home"), ".cache", "jlox").toString();
+    }
+    return new ProgramCache(Paths.get(dir));
+  }
+
+  /**
+   * Returns the cached, already resolved statements for source, or null on a miss.
+   */
+  List<Stmt> load(String source) {
+    Path path = pathFor(source);
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+      return new ProgramReader().read(in);
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException | RuntimeException e) {
+      // Corrupt image, drop it so the next run rewrites it
+      deleteQuietly(path);
+      return null;
+    }
+  }
+
+  void store(String source, List<Stmt> statements) {
+    Path path = pathFor(source);
+    Path temp = null;
+    try {
+      Files.createDirectories(directory);
+      temp = Files.createTempFile(directory, "image", ".tmp");
+      try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+        new ProgramWriter().write(statements, out);
+      }
+      // Concurrent runs of the same script race to write identical images, so last one wins
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      if (temp != null) {
+        deleteQuietly(temp);
+      }
+    }
+  }
+
+  private Path pathFor(String source) {
+    return directory.resolve(hash(source) + EXTENSION);
+  }
+
+  private static String hash(String source) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+
+    byte[] bytes = digest.digest(source.getBytes(Charset.forName("UTF-8")));
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+      hex.append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  private static void deleteQuietly(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException ignored) {
+      // Nothing more we can do
+    }
+  }
+}
@@ -0,0 +1,236 @@
+package com.simonnordberg.lox;
+
+import static com.simonnordberg.lox.ProgramWriter.EXPR_ASSIGN;
+import static com.simonnordberg.lox.ProgramWriter.EXPR_BINARY;
+import static com.simonnordberg.lox.ProgramWriter.EXPR_CALL;
+import static com.simonnordberg.lox.ProgramWriter.EXPR_GET;
+import static com.simonnordberg.lox.ProgramWriter.EXPR_GROUPING;
+import static com.simonnordberg.lox.ProgramWriter.EXPR_LITERAL;
+import static com.simonnordberg.lox.ProgramWriter.EXPR_LOGICAL;
+import static com.simonnordberg.lox.ProgramWriter.EXPR_SET;
+import static com.simonnordberg.lox.ProgramWriter.EXPR_SUPER;
+import static com.simonnordberg.lox.ProgramWriter.EXPR_THIS;
+import static com.simonnordberg.lox.ProgramWriter.EXPR_UNARY;
+import static com.simonnordberg.lox.ProgramWriter.EXPR_VARIABLE;
+import static com.simonnordberg.lox.ProgramWriter.LITERAL_FALSE;
+import static com.simonnordberg.lox.ProgramWriter.LITERAL_NIL;
+import static com.simonnordberg.lox.ProgramWriter.LITERAL_NUMBER;
+import static com.simonnordberg.lox.ProgramWriter.LITERAL_STRING;
+import static com.simonnordberg.lox.ProgramWriter.LITERAL_TRUE;
+import static com.simonnordberg.lox.ProgramWriter.MAGIC;
+import static com.simonnordberg.lox.ProgramWriter.NULL;
+import static com.simonnordberg.lox.ProgramWriter.STMT_BLOCK;
+import static com.simonnordberg.lox.ProgramWriter.STMT_CLASS;
+import static com.simonnordberg.lox.ProgramWriter.STMT_EXPRESSION;
+import static com.simonnordberg.lox.ProgramWriter.STMT_FUNCTION;
+import static com.simonnordberg.lox.ProgramWriter.STMT_IF;
+import static com.simonnordberg.lox.ProgramWriter.STMT_PRINT;
+import static com.simonnordberg.lox.ProgramWriter.STMT_RETURN;
+import static com.simonnordberg.lox.ProgramWriter.STMT_VAR;
+import static com.simonnordberg.lox.ProgramWriter.STMT_WHILE;
+import static com.simonnordberg.lox.ProgramWriter.VERSION;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a program image written by {@link ProgramWriter} back into a resolved statement tree.
+ */
+class ProgramReader {
+
+  private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+  private DataInputStream in;
+  private String[] names;
+  private Double[] numbers;
+
+  /**
+   * Returns the statements in the image, or null if the image was written by a different format
+   * version. Truncated or otherwise malformed images surface as an IOException.
+   */
+  List<Stmt> read(InputStream source) throws IOException {
+    in = new DataInputStream(source);
+    if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+      return null;
+    }
+
+    names = new String[varInt()];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = in.readUTF();
+    }
+    numbers = new Double[varInt()];
+    for (int i = 0; i < numbers.length; i++) {
+      numbers[i] = in.readDouble();
+    }
+
+    List<Stmt> statements = statements();
+    if (in.read() != -1) {
+      throw new IOException("Trailing data in program image");
+    }
+    return statements;
+  }
+
+  private List<Stmt> statements() throws IOException {
+    int count = varInt();
+    List<Stmt> statements = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      statements.add(stmt());
+    }
+    return statements;
+  }
+
+  private Stmt stmt() throws IOException {
+    int tag = in.readUnsignedByte();
+    switch (tag) {
+      case NULL:
+        return null;
+      case STMT_BLOCK:
+        return new Stmt.Block(statements());
+      case STMT_CLASS: {
+        Token name = token();
+        Expr.Variable superclass = (Expr.Variable) expr();
+        int count = varInt();
+        List<Stmt.Function> methods = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+          methods.add((Stmt.Function) stmt());
+        }
+        return new Stmt.Class(name, superclass, methods);
+      }
+      case STMT_EXPRESSION:
+        return new Stmt.Expression(expr());
+      case STMT_FUNCTION: {
+        Token name = token();
+        int count = varInt();
+        List<Token> params = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+          params.add(token());
+        }
+        return new Stmt.Function(name, params, statements());
+      }
+      case STMT_IF: {
+        Expr condition = expr();
+        Stmt thenBranch = stmt();
+        Stmt elseBranch = stmt();
+        return new Stmt.If(condition, thenBranch, elseBranch);
+      }
+      case STMT_PRINT:
+        return new Stmt.Print(expr());
+      case STMT_RETURN: {
+        Token keyword = token();
+        return new Stmt.Return(keyword, expr());
+      }
+      case STMT_VAR: {
+        Token name = token();
+        return new Stmt.Var(name, expr());
+      }
+      case STMT_WHILE: {
+        Expr condition = expr();
+        return new Stmt.While(condition, stmt());
+      }
+    }
+    throw new IOException("Unexpected statement tag " + tag);
+  }
+
+  private Expr expr() throws IOException {
+    int tag = in.readUnsignedByte();
+    switch (tag) {
+      case NULL:
+        return null;
+      case EXPR_ASSIGN: {
+        Token name = token();
+        int depth = varInt();
+        return resolved(new Expr.Assign(name, expr()), depth);
+      }
+      case EXPR_BINARY: {
+        Expr left = expr();
+        Token operator = token();
+        return new Expr.Binary(left, operator, expr());
+      }
+      case EXPR_CALL: {
+        Expr callee = expr();
+        Token paren = token();
+        int count = varInt();
+        List<Expr> arguments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+          arguments.add(expr());
+        }
+        return new Expr.Call(callee, paren, arguments);
+      }
+      case EXPR_GET: {
+        Expr object = expr();
+        return new Expr.Get(object, token());
+      }
+      case EXPR_GROUPING:
+        return new Expr.Grouping(expr());
+      case EXPR_LITERAL:
+        return new Expr.Literal(literal());
+      case EXPR_LOGICAL: {
+        Expr left = expr();
+        Token operator = token();
+        return new Expr.Logical(left, operator, expr());
+      }
+      case EXPR_SET: {
+        Expr object = expr();
+        Token name = token();
+        return new Expr.Set(object, name, expr());
+      }
+      case EXPR_SUPER: {
+        Token keyword = token();
+        Token method = token();
+        return resolved(new Expr.Super(keyword, method), varInt());
+      }
+      case EXPR_THIS:
+        return resolved(new Expr.This(token()), varInt());
+      case EXPR_UNARY: {
+        Token operator = token();
+        return new Expr.Unary(operator, expr());
+      }
+      case EXPR_VARIABLE:
+        return resolved(new Expr.Variable(token()), varInt());
+    }
+    throw new IOException("Unexpected expression tag " + tag);
+  }
+
+  private Expr resolved(Expr expr, int depth) {
+    expr.depth = depth - 1;
+    return expr;
+  }
+
+  private Object literal() throws IOException {
+    int kind = varInt();
+    switch (kind) {
+      case LITERAL_NIL:
+        return null;
+      case LITERAL_FALSE:
+        return false;
+      case LITERAL_TRUE:
+        return true;
+      case LITERAL_NUMBER:
+        return numbers[varInt()];
+      case LITERAL_STRING:
+        return names[varInt()];
+    }
+    throw new IOException("Unexpected literal kind " + kind);
+  }
+
+  private Token token() throws IOException {
+    TokenType type = TOKEN_TYPES[varInt()];
+    String lexeme = names[varInt()];
+    return new Token(type, lexeme, null, varInt());
+  }
+
+  private int varInt() throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint in program image");
+  }
+}
@@ -0,0 +1,359 @@
+package com.simonnordberg.lox;
+
+import com.simonnordberg.lox.Expr.Assign;
+import com.simonnordberg.lox.Expr.Binary;
+import com.simonnordberg.lox.Expr.Call;
+import com.simonnordberg.lox.Expr.Get;
+import com.simonnordberg.lox.Expr.Grouping;
+import com.simonnordberg.lox.Expr.Literal;
+import com.simonnordberg.lox.Expr.Logical;
+import com.simonnordberg.lox.Expr.Set;
+import com.simonnordberg.lox.Expr.Super;
+import com.simonnordberg.lox.Expr.This;
+import com.simonnordberg.lox.Expr.Unary;
+import com.simonnordberg.lox.Expr.Variable;
+import com.simonnordberg.lox.Stmt.Block;
+import com.simonnordberg.lox.Stmt.Class;
+import com.simonnordberg.lox.Stmt.Expression;
+import com.simonnordberg.lox.Stmt.Function;
+import com.simonnordberg.lox.Stmt.If;
+import com.simonnordberg.lox.Stmt.Print;
+import com.simonnordberg.lox.Stmt.Var;
+import com.simonnordberg.lox.Stmt.While;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializes a resolved program into the compact binary image read back by {@link ProgramReader}.
+ *
+ * Layout: magic, format version, name pool, number pool, then the statement tree in prefix order.
+ * Every lexeme and string literal is written once to the name pool and referenced by index,
+ * numbers likewise go to the number pool, and variable-like expressions carry their resolved
+ * depth (0 for globals, depth + 1 for locals).
+ */
+class ProgramWriter implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+  static final int MAGIC = 0x4c4f5843; // "LOXC"
+  static final int VERSION = 1;
+
+  // Node tags, shared with ProgramReader
+  static final int NULL = 0;
+  static final int EXPR_ASSIGN = 1;
+  static final int EXPR_BINARY = 2;
+  static final int EXPR_CALL = 3;
+  static final int EXPR_GET = 4;
+  static final int EXPR_GROUPING = 5;
+  static final int EXPR_LITERAL = 6;
+  static final int EXPR_LOGICAL = 7;
+  static final int EXPR_SET = 8;
+  static final int EXPR_SUPER = 9;
+  static final int EXPR_THIS = 10;
+  static final int EXPR_UNARY = 11;
+  static final int EXPR_VARIABLE = 12;
+  static final int STMT_BLOCK = 13;
+  static final int STMT_CLASS = 14;
+  static final int STMT_EXPRESSION = 15;
+  static final int STMT_FUNCTION = 16;
+  static final int STMT_IF = 17;
+  static final int STMT_PRINT = 18;
+  static final int STMT_RETURN = 19;
+  static final int STMT_VAR = 20;
+  static final int STMT_WHILE = 21;
+
+  // Literal kinds
+  static final int LITERAL_NIL = 0;
+  static final int LITERAL_FALSE = 1;
+  static final int LITERAL_TRUE = 2;
+  static final int LITERAL_NUMBER = 3;
+  static final int LITERAL_STRING = 4;
+
+  private final Map<String, Integer> names = new LinkedHashMap<>();
+  private final Map<Double, Integer> numbers = new LinkedHashMap<>();
+  private final ByteArrayOutputStream tree = new ByteArrayOutputStream();
+
+  void write(List<Stmt> statements, OutputStream target) throws IOException {
+    writeStatements(statements);
+
+    DataOutputStream header = new DataOutputStream(target);
+    header.writeInt(MAGIC);
+    header.writeInt(VERSION);
+    writeVarInt(header, names.size());
+    for (String name : names.keySet()) {
+      header.writeUTF(name);
+    }
+    writeVarInt(header, numbers.size());
+    for (Double number : numbers.keySet()) {
+      header.writeDouble(number);
+    }
+    tree.writeTo(header);
+    header.flush();
+  }
+
+  @Override
+  public Void visitAssignExpr(Assign expr) {
+    tag(EXPR_ASSIGN);
+    token(expr.name);
+    depth(expr);
+    node(expr.value);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Binary expr) {
+    tag(EXPR_BINARY);
+    node(expr.left);
+    token(expr.operator);
+    node(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Call expr) {
+    tag(EXPR_CALL);
+    node(expr.callee);
+    token(expr.paren);
+    varInt(expr.arguments.size());
+    for (Expr argument : expr.arguments) {
+      node(argument);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitGetExpr(Get expr) {
+    tag(EXPR_GET);
+    node(expr.object);
+    token(expr.name);
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Grouping expr) {
+    tag(EXPR_GROUPING);
+    node(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Literal expr) {
+    tag(EXPR_LITERAL);
+    if (expr.value == null) {
+      varInt(LITERAL_NIL);
+    } else if (expr.value instanceof Boolean) {
+      varInt((Boolean) expr.value ? LITERAL_TRUE : LITERAL_FALSE);
+    } else if (expr.value instanceof Double) {
+      varInt(LITERAL_NUMBER);
+      varInt(number((Double) expr.value));
+    } else {
+      varInt(LITERAL_STRING);
+      varInt(name((String) expr.value));
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Logical expr) {
+    tag(EXPR_LOGICAL);
+    node(expr.left);
+    token(expr.operator);
+    node(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(Set expr) {
+    tag(EXPR_SET);
+    node(expr.object);
+    token(expr.name);
+    node(expr.value);
+    return null;
+  }
+
+  @Override
+  public Void visitSuperExpr(Super expr) {
+    tag(EXPR_SUPER);
+    token(expr.keyword);
+    token(expr.method);
+    depth(expr);
+    return null;
+  }
+
+  @Override
+  public Void visitThisExpr(This expr) {
+    tag(EXPR_THIS);
+    token(expr.keyword);
+    depth(expr);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Unary expr) {
+    tag(EXPR_UNARY);
+    token(expr.operator);
+    node(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Variable expr) {
+    tag(EXPR_VARIABLE);
+    token(expr.name);
+    depth(expr);
+    return null;
+  }
+
+  @Override
+  public Void visitBlockStmt(Block stmt) {
+    tag(STMT_BLOCK);
+    writeStatements(stmt.statements);
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Class stmt) {
+    tag(STMT_CLASS);
+    token(stmt.name);
+    node(stmt.superclass);
+    varInt(stmt.methods.size());
+    for (Function method : stmt.methods) {
+      node(method);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Expression stmt) {
+    tag(STMT_EXPRESSION);
+    node(stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Function stmt) {
+    tag(STMT_FUNCTION);
+    token(stmt.name);
+    varInt(stmt.params.size());
+    for (Token param : stmt.params) {
+      token(param);
+    }
+    writeStatements(stmt.body);
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(If stmt) {
+    tag(STMT_IF);
+    node(stmt.condition);
+    node(stmt.thenBranch);
+    node(stmt.elseBranch);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Print stmt) {
+    tag(STMT_PRINT);
+    node(stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    tag(STMT_RETURN);
+    token(stmt.keyword);
+    node(stmt.value);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Var stmt) {
+    tag(STMT_VAR);
+    token(stmt.name);
+    node(stmt.initializer);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(While stmt) {
+    tag(STMT_WHILE);
+    node(stmt.condition);
+    node(stmt.body);
+    return null;
+  }
+
+  private void writeStatements(List<Stmt> statements) {
+    varInt(statements.size());
+    for (Stmt statement : statements) {
+      node(statement);
+    }
+  }
+
+  private void node(Expr expr) {
+    if (expr == null) {
+      tag(NULL);
+    } else {
+      expr.accept(this);
+    }
+  }
+
+  private void node(Stmt stmt) {
+    if (stmt == null) {
+      tag(NULL);
+    } else {
+      stmt.accept(this);
+    }
+  }
+
+  private void token(Token token) {
+    // Token literals are only consumed by the parser, so they are not part of the image
+    varInt(token.type.ordinal());
+    varInt(name(token.lexeme));
+    varInt(token.line);
+  }
+
+  private void depth(Expr expr) {
+    varInt(expr.depth + 1);
+  }
+
+  private int name(String name) {
+    Integer index = names.get(name);
+    if (index == null) {
+      index = names.size();
+      names.put(name, index);
+    }
+    return index;
+  }
+
+  private int number(Double number) {
+    Integer index = numbers.get(number);
+    if (index == null) {
+      index = numbers.size();
+      numbers.put(number, index);
+    }
+    return index;
+  }
+
+  private void tag(int tag) {
+    tree.write(tag);
+  }
+
+  private void varInt(int value) {
+    while ((value & ~0x7f) != 0) {
+      tree.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    tree.write(value);
+  }
+
+  private static void writeVarInt(OutputStream out, int value) throws IOException {
+    while ((value & ~0x7f) != 0) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+}
@@ -0,0 +1,26 @@
+package com.simonnordberg.lox;
+
+/**
+ * A function body compiled for the {@link RegisterVM}: instructions, their source lines and the
+ * constant pool, plus what the VM needs to set up frames and closures for it.
+ */
+class RegisterChunk {
+
+  // Rewritten in place when the VM quickens an instruction
+  final long[] code;
+  final int[] lines;
+  final Object[] constants;
+  final int registerCount;
+  final boolean[] upvalueIsLocal;
+  final int[] upvalueIndex;
+
+  RegisterChunk(long[] code, int[] lines, Object[] constants, int registerCount,
+      boolean[] upvalueIsLocal, int[] upvalueIndex) {
+    this.code = code;
+    this.lines = lines;
+    this.constants = constants;
+    this.registerCount = registerCount;
+    this.upvalueIsLocal = upvalueIsLocal;
+    this.upvalueIndex = upvalueIndex;
+  }
+}
@@ -0,0 +1,1047 @@
+package com.simonnordberg.lox;
+
+import static com.simonnordberg.lox.RegisterOpCode.ADD;
+import static com.simonnordberg.lox.RegisterOpCode.ADDK;
+import static com.simonnordberg.lox.RegisterOpCode.CALL;
+import static com.simonnordberg.lox.RegisterOpCode.CLASS;
+import static com.simonnordberg.lox.RegisterOpCode.CLOSE;
+import static com.simonnordberg.lox.RegisterOpCode.CLOSURE;
+import static com.simonnordberg.lox.RegisterOpCode.DEFGLOBAL;
+import static com.simonnordberg.lox.RegisterOpCode.DIV;
+import static com.simonnordberg.lox.RegisterOpCode.EQ;
+import static com.simonnordberg.lox.RegisterOpCode.GE;
+import static com.simonnordberg.lox.RegisterOpCode.GEK;
+import static com.simonnordberg.lox.RegisterOpCode.GETGLOBAL;
+import static com.simonnordberg.lox.RegisterOpCode.GETPROP;
+import static com.simonnordberg.lox.RegisterOpCode.GETSUPER;
+import static com.simonnordberg.lox.RegisterOpCode.GETUPVAL;
+import static com.simonnordberg.lox.RegisterOpCode.GT;
+import static com.simonnordberg.lox.RegisterOpCode.GTK;
+import static com.simonnordberg.lox.RegisterOpCode.INHERIT;
+import static com.simonnordberg.lox.RegisterOpCode.INVOKE;
+import static com.simonnordberg.lox.RegisterOpCode.JMP;
+import static com.simonnordberg.lox.RegisterOpCode.JMPF;
+import static com.simonnordberg.lox.RegisterOpCode.JMPT;
+import static com.simonnordberg.lox.RegisterOpCode.JNEQ;
+import static com.simonnordberg.lox.RegisterOpCode.JNGE;
+import static com.simonnordberg.lox.RegisterOpCode.JNGEK;
+import static com.simonnordberg.lox.RegisterOpCode.JNGT;
+import static com.simonnordberg.lox.RegisterOpCode.JNGTK;
+import static com.simonnordberg.lox.RegisterOpCode.JNLE;
+import static com.simonnordberg.lox.RegisterOpCode.JNLEK;
+import static com.simonnordberg.lox.RegisterOpCode.JNLT;
+import static com.simonnordberg.lox.RegisterOpCode.JNLTK;
+import static com.simonnordberg.lox.RegisterOpCode.LE;
+import static com.simonnordberg.lox.RegisterOpCode.LEK;
+import static com.simonnordberg.lox.RegisterOpCode.LOADFALSE;
+import static com.simonnordberg.lox.RegisterOpCode.LOADK;
+import static com.simonnordberg.lox.RegisterOpCode.LOADNIL;
+import static com.simonnordberg.lox.RegisterOpCode.LOADTRUE;
+import static com.simonnordberg.lox.RegisterOpCode.LT;
+import static com.simonnordberg.lox.RegisterOpCode.LTK;
+import static com.simonnordberg.lox.RegisterOpCode.METHOD;
+import static com.simonnordberg.lox.RegisterOpCode.MOVE;
+import static com.simonnordberg.lox.RegisterOpCode.MUL;
+import static com.simonnordberg.lox.RegisterOpCode.NEG;
+import static com.simonnordberg.lox.RegisterOpCode.NOT;
+import static com.simonnordberg.lox.RegisterOpCode.PRINT;
+import static com.simonnordberg.lox.RegisterOpCode.RETURN;
+import static com.simonnordberg.lox.RegisterOpCode.SETGLOBAL;
+import static com.simonnordberg.lox.RegisterOpCode.SETPROP;
+import static com.simonnordberg.lox.RegisterOpCode.SETUPVAL;
+import static com.simonnordberg.lox.RegisterOpCode.SUB;
+import static com.simonnordberg.lox.RegisterOpCode.SUBK;
+import static com.simonnordberg.lox.RegisterOpCode.SUPERINVOKE;
+
+import com.simonnordberg.lox.Expr.Assign;
+import com.simonnordberg.lox.Expr.Binary;
+import com.simonnordberg.lox.Expr.Call;
+import com.simonnordberg.lox.Expr.Get;
+import com.simonnordberg.lox.Expr.Grouping;
+import com.simonnordberg.lox.Expr.Literal;
+import com.simonnordberg.lox.Expr.Logical;
+import com.simonnordberg.lox.Expr.Set;
+import com.simonnordberg.lox.Expr.Super;
+import com.simonnordberg.lox.Expr.This;
+import com.simonnordberg.lox.Expr.Unary;
+import com.simonnordberg.lox.Expr.Variable;
+import com.simonnordberg.lox.Stmt.Block;
+import com.simonnordberg.lox.Stmt.Class;
+import com.simonnordberg.lox.Stmt.Expression;
+import com.simonnordberg.lox.Stmt.Function;
+import com.simonnordberg.lox.Stmt.If;
+import com.simonnordberg.lox.Stmt.Print;
+import com.simonnordberg.lox.Stmt.Var;
+import com.simonnordberg.lox.Stmt.While;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles a resolved program for the {@link RegisterVM}.
+ *
+ * Locals are pinned to the registers of their declaration order and temporaries are allocated
+ * above them like a stack, so every expression is compiled straight into a destination register.
+ * Code is first generated naively into a list of instructions, then a peephole pass fuses common
+ * sequences into superinstructions before it is assembled into a long[].
+ */
+class RegisterCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+  private static final boolean PRINT_CODE = Boolean.getBoolean("lox.printCode");
+
+  private static final int MAX_REGISTERS = 0xffff;
+  private static final int MAX_CONSTANTS = 0xffff;
+
+  private enum FunctionType {
+    FUNCTION,
+    INITIALIZER,
+    METHOD,
+    SCRIPT
+  }
+
+  private static class Local {
+
+    final String name;
+    final int depth;
+    boolean isCaptured = false;
+
+    Local(String name, int depth) {
+      this.name = name;
+      this.depth = depth;
+    }
+  }
+
+  private static class Label {
+
+    Insn insn;
+  }
+
+  private static class Insn {
+
+    int op;
+    int a;
+    int b;
+    int c;
+    int line;
+    Label target;
+    boolean isTarget;
+    // Registers at or above this hold no live value once the instruction has run, since they
+    // are freed before the next instruction is emitted
+    int liveAfter;
+
+    Insn(int op, int a, int b, int c, int line) {
+      this.op = op;
+      this.a = a;
+      this.b = b;
+      this.c = c;
+      this.line = line;
+    }
+  }
+
+  private static class FunctionState {
+
+    final FunctionState enclosing;
+    final Obj.Function function;
+    final FunctionType type;
+    final List<Insn> code = new ArrayList<>();
+    final List<Object> constants = new ArrayList<>();
+    final Map<Object, Integer> constantIndexes = new HashMap<>();
+    final List<Local> locals = new ArrayList<>();
+    final List<Boolean> upvalueIsLocal = new ArrayList<>();
+    final List<Integer> upvalueIndex = new ArrayList<>();
+    final List<Label> pendingLabels = new ArrayList<>();
+    int scopeDepth = 0;
+    int nextRegister = 0;
+    int registerCount = 0;
+
+    FunctionState(FunctionState enclosing, Obj.Function function, FunctionType type) {
+      this.enclosing = enclosing;
+      this.function = function;
+      this.type = type;
+
+      // Register zero holds the callee, or the receiver in methods
+      String name = type == FunctionType.METHOD || type == FunctionType.INITIALIZER ? "this" : "";
+      locals.add(new Local(name, 0));
+      nextRegister = 1;
+      registerCount = 1;
+    }
+  }
+
+  private final RegisterVM vm;
+  private FunctionState current;
+  private int line = 1;
+  // Destination register of the expression being compiled
+  private int dest;
+
+  /**
+   * Globals are resolved to slots in vm, the same way BytecodeCompiler does for the stack VM.
+   */
+  RegisterCompiler(RegisterVM vm) {
+    this.vm = vm;
+  }
+
+  Obj.Function compile(List<Stmt> statements) {
+    current = new FunctionState(null, new Obj.Function(null), FunctionType.SCRIPT);
+    for (Stmt statement : statements) {
+      statement.accept(this);
+    }
+    return endFunction();
+  }
+
+  // Expressions
+
+  /**
+   * Compiles expr so that its value ends up in register target.
+   */
+  private void exprTo(Expr expr, int target) {
+    int saved = dest;
+    dest = target;
+    expr.accept(this);
+    dest = saved;
+  }
+
+  /**
+   * Compiles expr into whatever register is convenient: locals are used in place, everything
+   * else goes to a new temporary that stays allocated for the caller.
+   */
+  private int exprAny(Expr expr) {
+    if (expr instanceof Expr.Variable) {
+      int local = resolveLocal(current, ((Variable) expr).name);
+      if (local != -1) {
+        return local;
+      }
+    } else if (expr instanceof Expr.This) {
+      int local = resolveLocal(current, ((This) expr).keyword);
+      if (local != -1) {
+        return local;
+      }
+    } else if (expr instanceof Expr.Grouping) {
+      return exprAny(((Grouping) expr).expression);
+    }
+
+    int register = allocate();
+    exprTo(expr, register);
+    return register;
+  }
+
+  /**
+   * Like exprAny(), but copies locals into a temporary if a later operand could reassign them.
+   */
+  private int operand(Expr expr, Expr later) {
+    int register = exprAny(expr);
+    if (register < current.locals.size() && hasSideEffects(later)) {
+      int copy = allocate();
+      emit(MOVE, copy, register, 0);
+      return copy;
+    }
+    return register;
+  }
+
+  @Override
+  public Void visitAssignExpr(Assign expr) {
+    int target = dest;
+    exprTo(expr.value, target);
+    line = expr.name.line;
+
+    int local = resolveLocal(current, expr.name);
+    if (local != -1) {
+      emit(MOVE, local, target, 0);
+      return null;
+    }
+
+    int upvalue = resolveUpvalue(current, expr.name);
+    if (upvalue != -1) {
+      emit(SETUPVAL, target, upvalue, 0);
+      return null;
+    }
+
+    emit(SETGLOBAL, target, globalSlot(expr.name), 0);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Binary expr) {
+    int target = dest;
+    int saved = current.nextRegister;
+    int left = operand(expr.left, expr.right);
+    int right = exprAny(expr.right);
+    line = expr.operator.line;
+
+    switch (expr.operator.type) {
+      case PLUS:
+        emit(ADD, target, left, right);
+        break;
+      case MINUS:
+        emit(SUB, target, left, right);
+        break;
+      case STAR:
+        emit(MUL, target, left, right);
+        break;
+      case SLASH:
+        emit(DIV, target, left, right);
+        break;
+      case GREATER:
+        emit(GT, target, left, right);
+        break;
+      case GREATER_EQUAL:
+        emit(GE, target, left, right);
+        break;
+      case LESS:
+        emit(LT, target, left, right);
+        break;
+      case LESS_EQUAL:
+        emit(LE, target, left, right);
+        break;
+      case EQUAL_EQUAL:
+        emit(EQ, target, left, right);
+        break;
+      case BANG_EQUAL:
+        emit(EQ, target, left, right);
+        emit(NOT, target, target, 0);
+        break;
+      default:
+        Lox.error(expr.operator, "Unsupported operator");
+    }
+    free(saved);
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Call expr) {
+    int target = dest;
+    int saved = current.nextRegister;
+    int argCount = expr.arguments.size();
+
+    // Callee and arguments must be in consecutive registers, which the target already is if it
+    // is the newest temporary
+    int base = target == current.nextRegister - 1 && target >= current.locals.size()
+        ? target : allocate();
+
+    if (expr.callee instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get) expr.callee;
+      exprTo(get.object, base);
+      compileArguments(expr.arguments);
+      line = get.name.line;
+      emit(INVOKE, base, argCount, nameConstant(get.name));
+    } else if (expr.callee instanceof Expr.Super) {
+      Expr.Super superExpr = (Expr.Super) expr.callee;
+      namedVariable(thisToken(superExpr.keyword), base);
+      compileArguments(expr.arguments);
+      namedVariable(superToken(superExpr.keyword), allocate());
+      line = expr.paren.line;
+      emit(SUPERINVOKE, base, argCount, nameConstant(superExpr.method));
+    } else {
+      exprTo(expr.callee, base);
+      compileArguments(expr.arguments);
+      line = expr.paren.line;
+      emit(CALL, base, argCount, 0);
+    }
+
+    if (base != target) {
+      emit(MOVE, target, base, 0);
+    }
+    free(saved);
+    return null;
+  }
+
+  @Override
+  public Void visitGetExpr(Get expr) {
+    int target = dest;
+    int saved = current.nextRegister;
+    int object = exprAny(expr.object);
+    line = expr.name.line;
+    emit(GETPROP, target, object, nameConstant(expr.name));
+    free(saved);
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Grouping expr) {
+    exprTo(expr.expression, dest);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Literal expr) {
+    if (expr.value == null) {
+      emit(LOADNIL, dest, 0, 0);
+    } else if (Boolean.TRUE.equals(expr.value)) {
+      emit(LOADTRUE, dest, 0, 0);
+    } else if (Boolean.FALSE.equals(expr.value)) {
+      emit(LOADFALSE, dest, 0, 0);
+    } else {
+      emit(LOADK, dest, makeConstant(expr.value), 0);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Logical expr) {
+    int target = dest;
+    exprTo(expr.left, target);
+    line = expr.operator.line;
+    Label end = new Label();
+    emitJump(expr.operator.type == TokenType.AND ? JMPF : JMPT, target, end);
+    exprTo(expr.right, target);
+    bind(end);
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(Set expr) {
+    int target = dest;
+    int saved = current.nextRegister;
+    int object = operand(expr.object, expr.value);
+    exprTo(expr.value, target);
+    line = expr.name.line;
+    emit(SETPROP, object, target, nameConstant(expr.name));
+    free(saved);
+    return null;
+  }
+
+  @Override
+  public Void visitSuperExpr(Super expr) {
+    int target = dest;
+    int saved = current.nextRegister;
+    int receiver = allocate();
+    namedVariable(thisToken(expr.keyword), receiver);
+    namedVariable(superToken(expr.keyword), allocate());
+    line = expr.method.line;
+    emit(GETSUPER, target, receiver, nameConstant(expr.method));
+    free(saved);
+    return null;
+  }
+
+  @Override
+  public Void visitThisExpr(This expr) {
+    namedVariable(expr.keyword, dest);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Unary expr) {
+    int target = dest;
+    int saved = current.nextRegister;
+    int operand = exprAny(expr.right);
+    line = expr.operator.line;
+    emit(expr.operator.type == TokenType.MINUS ? NEG : NOT, target, operand, 0);
+    free(saved);
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Variable expr) {
+    namedVariable(expr.name, dest);
+    return null;
+  }
+
+  // Statements
+
+  @Override
+  public Void visitBlockStmt(Block stmt) {
+    beginScope();
+    for (Stmt statement : stmt.statements) {
+      statement.accept(this);
+    }
+    endScope();
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Class stmt) {
+    line = stmt.name.line;
+    // Keep the class in a local while its methods are added, hidden if the class is global
+    boolean global = current.scopeDepth == 0;
+    if (global) {
+      beginScope();
+    }
+    int klass = declareLocal(global ? "" : stmt.name.lexeme);
+    emit(CLASS, klass, nameConstant(stmt.name), 0);
+    if (global) {
+      emit(DEFGLOBAL, klass, globalSlot(stmt.name), 0);
+    }
+
+    if (stmt.superclass != null) {
+      beginScope();
+      int superclass = declareLocal("super");
+      namedVariable(stmt.superclass.name, superclass);
+      line = stmt.superclass.name.line;
+      emit(INHERIT, klass, superclass, 0);
+    }
+
+    for (Function method : stmt.methods) {
+      FunctionType type = method.name.lexeme.equals("init")
+          ? FunctionType.INITIALIZER : FunctionType.METHOD;
+      int closure = allocate();
+      function(method, type, closure);
+      line = method.name.line;
+      emit(METHOD, klass, closure, nameConstant(method.name));
+      free(closure);
+    }
+
+    if (stmt.superclass != null) {
+      endScope();
+    }
+    if (global) {
+      endScope();
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Expression stmt) {
+    int saved = current.nextRegister;
+    exprAny(stmt.expression);
+    free(saved);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Function stmt) {
+    line = stmt.name.line;
+    if (current.scopeDepth > 0) {
+      // Declared before the body is compiled so that the function can call itself
+      int register = declareLocal(stmt.name);
+      function(stmt, FunctionType.FUNCTION, register);
+      return null;
+    }
+
+    int saved = current.nextRegister;
+    int register = allocate();
+    function(stmt, FunctionType.FUNCTION, register);
+    emit(DEFGLOBAL, register, globalSlot(stmt.name), 0);
+    free(saved);
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(If stmt) {
+    Label elseBranch = new Label();
+    Label end = new Label();
+
+    int saved = current.nextRegister;
+    int condition = exprAny(stmt.condition);
+    emitJump(JMPF, condition, elseBranch);
+    free(saved);
+
+    stmt.thenBranch.accept(this);
+    if (stmt.elseBranch != null) {
+      emitJump(JMP, 0, end);
+      bind(elseBranch);
+      stmt.elseBranch.accept(this);
+    } else {
+      bind(elseBranch);
+    }
+    bind(end);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Print stmt) {
+    int saved = current.nextRegister;
+    int value = exprAny(stmt.expression);
+    emit(PRINT, value, 0, 0);
+    free(saved);
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    line = stmt.keyword.line;
+    if (current.type == FunctionType.INITIALIZER) {
+      emit(RETURN, 0, 0, 0);
+      return null;
+    }
+
+    int saved = current.nextRegister;
+    int value;
+    if (stmt.value != null) {
+      value = exprAny(stmt.value);
+    } else {
+      value = allocate();
+      emit(LOADNIL, value, 0, 0);
+    }
+    emit(RETURN, value, 0, 0);
+    free(saved);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Var stmt) {
+    line = stmt.name.line;
+    int saved = current.nextRegister;
+    // The initializer is compiled before the name is in scope
+    int register = allocate();
+    if (stmt.initializer != null) {
+      exprTo(stmt.initializer, register);
+    } else {
+      emit(LOADNIL, register, 0, 0);
+    }
+
+    if (current.scopeDepth > 0) {
+      current.locals.add(new Local(stmt.name.lexeme, current.scopeDepth));
+      return null;
+    }
+
+    emit(DEFGLOBAL, register, globalSlot(stmt.name), 0);
+    free(saved);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(While stmt) {
+    Label start = new Label();
+    Label exit = new Label();
+    bind(start);
+
+    int saved = current.nextRegister;
+    int condition = exprAny(stmt.condition);
+    emitJump(JMPF, condition, exit);
+    free(saved);
+
+    stmt.body.accept(this);
+    emitJump(JMP, 0, start);
+    bind(exit);
+    return null;
+  }
+
+  // Functions and scopes
+
+  private void function(Function stmt, FunctionType type, int target) {
+    Obj.Function function = new Obj.Function(stmt.name.lexeme);
+    function.arity = stmt.params.size();
+    current = new FunctionState(current, function, type);
+
+    beginScope();
+    for (Token param : stmt.params) {
+      declareLocal(param);
+    }
+    for (Stmt statement : stmt.body) {
+      statement.accept(this);
+    }
+    endFunction();
+
+    line = stmt.name.line;
+    emit(CLOSURE, target, makeConstant(function), 0);
+  }
+
+  private Obj.Function endFunction() {
+    if (current.type == FunctionType.INITIALIZER) {
+      emit(RETURN, 0, 0, 0);
+    } else {
+      int register = allocate();
+      emit(LOADNIL, register, 0, 0);
+      emit(RETURN, register, 0, 0);
+    }
+
+    FunctionState state = current;
+    Obj.Function function = state.function;
+    Peephole.optimize(state.code);
+    function.registerChunk = assemble(state);
+    function.upvalueCount = state.upvalueIndex.size();
+    if (PRINT_CODE) {
+      RegisterDisassembler.disassembleFunction(function, vm);
+    }
+
+    current = current.enclosing;
+    return function;
+  }
+
+  private void beginScope() {
+    current.scopeDepth++;
+  }
+
+  private void endScope() {
+    current.scopeDepth--;
+    int first = current.locals.size();
+    boolean captured = false;
+    while (first > 0 && current.locals.get(first - 1).depth > current.scopeDepth) {
+      first--;
+      captured |= current.locals.get(first).isCaptured;
+    }
+
+    if (captured) {
+      emit(CLOSE, first, 0, 0);
+    }
+    current.locals.subList(first, current.locals.size()).clear();
+    free(first);
+  }
+
+  // Registers
+
+  private int allocate() {
+    int register = current.nextRegister++;
+    if (register >= MAX_REGISTERS) {
+      Lox.error(line, "Too many registers in function");
+    }
+    if (current.nextRegister > current.registerCount) {
+      current.registerCount = current.nextRegister;
+    }
+    return register;
+  }
+
+  private void free(int register) {
+    current.nextRegister = register;
+    List<Insn> code = current.code;
+    if (!code.isEmpty() && code.get(code.size() - 1).liveAfter > register) {
+      code.get(code.size() - 1).liveAfter = register;
+    }
+  }
+
+  private int declareLocal(Token name) {
+    return declareLocal(name.lexeme);
+  }
+
+  private int declareLocal(String name) {
+    int register = allocate();
+    current.locals.add(new Local(name, current.scopeDepth));
+    return register;
+  }
+
+  private void namedVariable(Token name, int target) {
+    line = name.line;
+    int local = resolveLocal(current, name);
+    if (local != -1) {
+      if (local != target) {
+        emit(MOVE, target, local, 0);
+      }
+      return;
+    }
+
+    int upvalue = resolveUpvalue(current, name);
+    if (upvalue != -1) {
+      emit(GETUPVAL, target, upvalue, 0);
+      return;
+    }
+
+    emit(GETGLOBAL, target, globalSlot(name), 0);
+  }
+
+  private int resolveLocal(FunctionState state, Token name) {
+    for (int i = state.locals.size() - 1; i >= 0; i--) {
+      if (state.locals.get(i).name.equals(name.lexeme)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private int resolveUpvalue(FunctionState state, Token name) {
+    if (state.enclosing == null) {
+      return -1;
+    }
+
+    int local = resolveLocal(state.enclosing, name);
+    if (local != -1) {
+      state.enclosing.locals.get(local).isCaptured = true;
+      return addUpvalue(state, local, true);
+    }
+
+    int upvalue = resolveUpvalue(state.enclosing, name);
+    if (upvalue != -1) {
+      return addUpvalue(state, upvalue, false);
+    }
+    return -1;
+  }
+
+  private int addUpvalue(FunctionState state, int index, boolean isLocal) {
+    for (int i = 0; i < state.upvalueIndex.size(); i++) {
+      if (state.upvalueIndex.get(i) == index && state.upvalueIsLocal.get(i) == isLocal) {
+        return i;
+      }
+    }
+    state.upvalueIsLocal.add(isLocal);
+    state.upvalueIndex.add(index);
+    return state.upvalueIndex.size() - 1;
+  }
+
+  private int globalSlot(Token name) {
+    int slot = vm.globalSlot(name.lexeme);
+    if (slot > 0xffff) {
+      Lox.error(name, "Too many global variables");
+    }
+    return slot;
+  }
+
+  private Token thisToken(Token near) {
+    return new Token(TokenType.THIS, "this", null, near.line);
+  }
+
+  private Token superToken(Token near) {
+    return new Token(TokenType.SUPER, "super", null, near.line);
+  }
+
+  private void compileArguments(List<Expr> arguments) {
+    for (Expr argument : arguments) {
+      exprTo(argument, allocate());
+    }
+  }
+
+  /**
+   * Whether evaluating expr might assign a variable, in which case a local read before it has
+   * to be copied to keep left-to-right evaluation order.
+   */
+  private static boolean hasSideEffects(Expr expr) {
+    if (expr instanceof Expr.Literal || expr instanceof Expr.Variable
+        || expr instanceof Expr.This || expr instanceof Expr.Super) {
+      return false;
+    }
+    if (expr instanceof Expr.Grouping) {
+      return hasSideEffects(((Grouping) expr).expression);
+    }
+    if (expr instanceof Expr.Unary) {
+      return hasSideEffects(((Unary) expr).right);
+    }
+    if (expr instanceof Expr.Binary) {
+      return hasSideEffects(((Binary) expr).left) || hasSideEffects(((Binary) expr).right);
+    }
+    if (expr instanceof Expr.Logical) {
+      return hasSideEffects(((Logical) expr).left) || hasSideEffects(((Logical) expr).right);
+    }
+    if (expr instanceof Expr.Get) {
+      return hasSideEffects(((Get) expr).object);
+    }
+    return true;
+  }
+
+  // Emitting
+
+  private Insn emit(int op, int a, int b, int c) {
+    Insn insn = new Insn(op, a, b, c, line);
+    insn.liveAfter = current.nextRegister;
+    List<Insn> code = current.code;
+    if (!current.pendingLabels.isEmpty()) {
+      insn.isTarget = true;
+      for (Label label : current.pendingLabels) {
+        label.insn = insn;
+      }
+      current.pendingLabels.clear();
+    }
+    code.add(insn);
+    return insn;
+  }
+
+  private void emitJump(int op, int a, Label target) {
+    emit(op, a, 0, 0).target = target;
+  }
+
+  private void bind(Label label) {
+    current.pendingLabels.add(label);
+  }
+
+  private int nameConstant(Token name) {
+    return makeConstant(name.lexeme);
+  }
+
+  private int makeConstant(Object value) {
+    boolean shareable = value instanceof Double || value instanceof String;
+    if (shareable) {
+      Integer index = current.constantIndexes.get(value);
+      if (index != null) {
+        return index;
+      }
+    }
+
+    current.constants.add(value);
+    int index = current.constants.size() - 1;
+    if (index > MAX_CONSTANTS) {
+      Lox.error(line, "Too many constants in one chunk");
+    }
+    if (shareable) {
+      current.constantIndexes.put(value, index);
+    }
+    return index;
+  }
+
+  private RegisterChunk assemble(FunctionState state) {
+    List<Insn> code = state.code;
+    Map<Insn, Integer> positions = new HashMap<>();
+    for (int i = 0; i < code.size(); i++) {
+      positions.put(code.get(i), i);
+    }
+
+    long[] words = new long[code.size()];
+    int[] lines = new int[code.size()];
+    for (int i = 0; i < code.size(); i++) {
+      Insn insn = code.get(i);
+      int c = insn.c;
+      if (insn.target != null) {
+        int offset = positions.get(insn.target.insn) - (i + 1);
+        if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+          Lox.error(insn.line, "Too much code to jump over");
+        }
+        c = offset;
+      }
+      words[i] = RegisterOpCode.encode(insn.op, insn.a, insn.b, c);
+      lines[i] = insn.line;
+    }
+
+    boolean[] upvalueIsLocal = new boolean[state.upvalueIsLocal.size()];
+    int[] upvalueIndex = new int[state.upvalueIndex.size()];
+    for (int i = 0; i < upvalueIndex.length; i++) {
+      upvalueIsLocal[i] = state.upvalueIsLocal.get(i);
+      upvalueIndex[i] = state.upvalueIndex.get(i);
+    }
+
+    return new RegisterChunk(words, lines, state.constants.toArray(), state.registerCount,
+        upvalueIsLocal, upvalueIndex);
+  }
+
+  /**
+   * Fuses instruction sequences produced by the naive code generator:
+   *
+   * <pre>
+   *   LOADK t, k;  ADD d, b, t     =>  ADDK d, b, k    (also SUB, LT, LE, GT, GE)
+   *   op t, ...;   MOVE r, t       =>  op r, ...       (for ops with a plain destination)
+   *   LT t, a, b;  JMPF t, L       =>  JNLT a, b, L    (also LE, GT, GE, EQ and the K forms)
+   * </pre>
+   *
+   * Together these turn "i = i + 1" into a single ADDK and "while (i < n)" into a single JNLT.
+   * A sequence is only fused when its second instruction is not a jump target and the temporary
+   * it consumes is dead afterwards.
+   */
+  static class Peephole {
+
+    static void optimize(List<Insn> code) {
+      boolean changed = true;
+      while (changed) {
+        changed = false;
+        for (int i = 0; i + 1 < code.size(); i++) {
+          Insn first = code.get(i);
+          Insn second = code.get(i + 1);
+          if (second.isTarget) {
+            continue;
+          }
+          if (fuseConstant(first, second) || fuseMove(first, second)
+              || fuseBranch(first, second)) {
+            first.liveAfter = second.liveAfter;
+            code.remove(i + 1);
+            changed = true;
+          }
+        }
+      }
+    }
+
+    private static boolean fuseConstant(Insn load, Insn use) {
+      if (load.op != LOADK || use.c != load.a || use.b == load.a || use.liveAfter > load.a) {
+        return false;
+      }
+      int fused;
+      switch (use.op) {
+        case ADD:
+          fused = ADDK;
+          break;
+        case SUB:
+          fused = SUBK;
+          break;
+        case LT:
+          fused = LTK;
+          break;
+        case LE:
+          fused = LEK;
+          break;
+        case GT:
+          fused = GTK;
+          break;
+        case GE:
+          fused = GEK;
+          break;
+        default:
+          return false;
+      }
+      load.c = load.b;
+      load.op = fused;
+      load.line = use.line;
+      load.a = use.a;
+      load.b = use.b;
+      return true;
+    }
+
+    private static boolean fuseMove(Insn producer, Insn move) {
+      if (move.op != MOVE || move.b != producer.a || move.liveAfter > move.b
+          || !hasPlainDestination(producer.op)) {
+        return false;
+      }
+      producer.a = move.a;
+      return true;
+    }
+
+    private static boolean fuseBranch(Insn compare, Insn jump) {
+      if (jump.op != JMPF || jump.a != compare.a || jump.liveAfter > jump.a) {
+        return false;
+      }
+      int fused;
+      switch (compare.op) {
+        case LT:
+          fused = JNLT;
+          break;
+        case LE:
+          fused = JNLE;
+          break;
+        case GT:
+          fused = JNGT;
+          break;
+        case GE:
+          fused = JNGE;
+          break;
+        case EQ:
+          fused = JNEQ;
+          break;
+        case LTK:
+          fused = JNLTK;
+          break;
+        case LEK:
+          fused = JNLEK;
+          break;
+        case GTK:
+          fused = JNGTK;
+          break;
+        case GEK:
+          fused = JNGEK;
+          break;
+        default:
+          return false;
+      }
+      compare.op = fused;
+      compare.a = compare.b;
+      compare.b = compare.c;
+      compare.c = 0;
+      compare.target = jump.target;
+      return true;
+    }
+
+    private static boolean hasPlainDestination(int op) {
+      switch (op) {
+        case MOVE:
+        case LOADK:
+        case LOADNIL:
+        case LOADTRUE:
+        case LOADFALSE:
+        case GETGLOBAL:
+        case GETUPVAL:
+        case GETPROP:
+        case ADD:
+        case SUB:
+        case MUL:
+        case DIV:
+        case EQ:
+        case LT:
+        case LE:
+        case GT:
+        case GE:
+        case NOT:
+        case NEG:
+        case ADDK:
+        case SUBK:
+        case LTK:
+        case LEK:
+        case GTK:
+        case GEK:
+          return true;
+        default:
+          return false;
+      }
+    }
+  }
+}
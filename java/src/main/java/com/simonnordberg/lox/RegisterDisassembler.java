@@ -0,0 +1,124 @@
+package com.simonnordberg.lox;
+
+import static com.simonnordberg.lox.RegisterOpCode.ADDK;
+import static com.simonnordberg.lox.RegisterOpCode.CLASS;
+import static com.simonnordberg.lox.RegisterOpCode.CLOSURE;
+import static com.simonnordberg.lox.RegisterOpCode.DEFGLOBAL;
+import static com.simonnordberg.lox.RegisterOpCode.GEK;
+import static com.simonnordberg.lox.RegisterOpCode.GETGLOBAL;
+import static com.simonnordberg.lox.RegisterOpCode.GETPROP;
+import static com.simonnordberg.lox.RegisterOpCode.GETSUPER;
+import static com.simonnordberg.lox.RegisterOpCode.GTK;
+import static com.simonnordberg.lox.RegisterOpCode.INVOKE;
+import static com.simonnordberg.lox.RegisterOpCode.JMP;
+import static com.simonnordberg.lox.RegisterOpCode.JMPF;
+import static com.simonnordberg.lox.RegisterOpCode.JMPT;
+import static com.simonnordberg.lox.RegisterOpCode.JNEQ;
+import static com.simonnordberg.lox.RegisterOpCode.JNGE;
+import static com.simonnordberg.lox.RegisterOpCode.JNGEK;
+import static com.simonnordberg.lox.RegisterOpCode.JNGT;
+import static com.simonnordberg.lox.RegisterOpCode.JNGTK;
+import static com.simonnordberg.lox.RegisterOpCode.JNLE;
+import static com.simonnordberg.lox.RegisterOpCode.JNLEK;
+import static com.simonnordberg.lox.RegisterOpCode.JNLT;
+import static com.simonnordberg.lox.RegisterOpCode.JNLTK;
+import static com.simonnordberg.lox.RegisterOpCode.LEK;
+import static com.simonnordberg.lox.RegisterOpCode.LOADK;
+import static com.simonnordberg.lox.RegisterOpCode.LTK;
+import static com.simonnordberg.lox.RegisterOpCode.METHOD;
+import static com.simonnordberg.lox.RegisterOpCode.SETGLOBAL;
+import static com.simonnordberg.lox.RegisterOpCode.SETPROP;
+import static com.simonnordberg.lox.RegisterOpCode.SUBK;
+import static com.simonnordberg.lox.RegisterOpCode.SUPERINVOKE;
+
+import java.io.PrintStream;
+
+/**
+ * Prints functions compiled for the {@link RegisterVM}, one instruction per line in the style of
+ * {@link Disassembler}, followed by the constant or global an operand refers to.
+ */
+class RegisterDisassembler {
+
+  private static final PrintStream out = System.out;
+
+  static void disassembleFunction(Obj.Function function, RegisterVM vm) {
+    RegisterChunk chunk = function.registerChunk;
+    out.printf("== %s (%d registers) ==%n",
+        function.name == null ? "<script>" : function.name, chunk.registerCount);
+
+    for (int pc = 0; pc < chunk.code.length; pc++) {
+      disassembleInstruction(chunk, pc, vm);
+    }
+  }
+
+  static void disassembleInstruction(RegisterChunk chunk, int pc, RegisterVM vm) {
+    out.printf("%04d ", pc);
+    if (pc > 0 && chunk.lines[pc] == chunk.lines[pc - 1]) {
+      out.print("   | ");
+    } else {
+      out.printf("%4d ", chunk.lines[pc]);
+    }
+
+    long instruction = chunk.code[pc];
+    int op = RegisterOpCode.op(instruction);
+    int a = RegisterOpCode.a(instruction);
+    int b = RegisterOpCode.b(instruction);
+    int c = RegisterOpCode.c(instruction);
+    String name = op < RegisterOpCode.NAMES.length ? RegisterOpCode.NAMES[op] : "UNKNOWN";
+
+    switch (op) {
+      case JMP:
+        out.printf("%-16s -> %d%n", name, pc + 1 + RegisterOpCode.sc(instruction));
+        break;
+      case JMPF:
+      case JMPT:
+        out.printf("%-16s %4d -> %d%n", name, a, pc + 1 + RegisterOpCode.sc(instruction));
+        break;
+      case JNLT:
+      case JNLE:
+      case JNGT:
+      case JNGE:
+      case JNEQ:
+        out.printf("%-16s %4d %4d -> %d%n", name, a, b, pc + 1 + RegisterOpCode.sc(instruction));
+        break;
+      case JNLTK:
+      case JNLEK:
+      case JNGTK:
+      case JNGEK:
+        out.printf("%-16s %4d %4d -> %d ; %s%n", name, a, b,
+            pc + 1 + RegisterOpCode.sc(instruction), constant(chunk, b));
+        break;
+      case LOADK:
+      case CLOSURE:
+      case CLASS:
+        out.printf("%-16s %4d %4d ; %s%n", name, a, b, constant(chunk, b));
+        break;
+      case GETGLOBAL:
+      case SETGLOBAL:
+      case DEFGLOBAL:
+        out.printf("%-16s %4d %4d ; '%s'%n", name, a, b, vm.globalName(b));
+        break;
+      case GETPROP:
+      case SETPROP:
+      case GETSUPER:
+      case INVOKE:
+      case SUPERINVOKE:
+      case METHOD:
+      case ADDK:
+      case SUBK:
+      case LTK:
+      case LEK:
+      case GTK:
+      case GEK:
+        out.printf("%-16s %4d %4d %4d ; %s%n", name, a, b, c, constant(chunk, c));
+        break;
+      default:
+        out.printf("%-16s %4d %4d %4d%n", name, a, b, c);
+    }
+  }
+
+  private static String constant(RegisterChunk chunk, int index) {
+    Object value = chunk.constants[index];
+    return value instanceof String ? "'" + value + "'" : Interpreter.stringify(value);
+  }
+}
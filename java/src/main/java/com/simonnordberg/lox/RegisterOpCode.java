@@ -0,0 +1,118 @@
+package com.simonnordberg.lox;
+
+/**
+ * Instruction set of the {@link RegisterVM}.
+ *
+ * Every instruction is one long: the opcode in bits 0-7 followed by three 16-bit operands A
+ * (bits 8-23), B (bits 24-39) and C (bits 40-55). R[x] is register x of the current frame, K[x]
+ * is constant x and jump offsets are signed, relative to the next instruction and kept in C.
+ */
+final class RegisterOpCode {
+
+  static final int MOVE = 0;          // R[A] = R[B]
+  static final int LOADK = 1;         // R[A] = K[B]
+  static final int LOADNIL = 2;       // R[A] = nil
+  static final int LOADTRUE = 3;      // R[A] = true
+  static final int LOADFALSE = 4;     // R[A] = false
+  static final int GETGLOBAL = 5;     // R[A] = globals[B]
+  static final int SETGLOBAL = 6;     // globals[B] = R[A]
+  static final int DEFGLOBAL = 7;     // define globals[B] = R[A]
+  static final int GETUPVAL = 8;      // R[A] = upvalues[B]
+  static final int SETUPVAL = 9;      // upvalues[B] = R[A]
+  static final int GETPROP = 10;      // R[A] = R[B].K[C]
+  static final int SETPROP = 11;      // R[A].K[C] = R[B]
+  static final int GETSUPER = 12;     // R[A] = R[B + 1].K[C] bound to R[B]
+  static final int ADD = 13;          // R[A] = R[B] + R[C]
+  static final int SUB = 14;          // R[A] = R[B] - R[C]
+  static final int MUL = 15;          // R[A] = R[B] * R[C]
+  static final int DIV = 16;          // R[A] = R[B] / R[C]
+  static final int EQ = 17;           // R[A] = R[B] == R[C]
+  static final int LT = 18;           // R[A] = R[B] < R[C]
+  static final int LE = 19;           // R[A] = R[B] <= R[C]
+  static final int GT = 20;           // R[A] = R[B] > R[C]
+  static final int GE = 21;           // R[A] = R[B] >= R[C]
+  static final int NOT = 22;          // R[A] = !R[B]
+  static final int NEG = 23;          // R[A] = -R[B]
+  static final int PRINT = 24;        // print R[A]
+  static final int JMP = 25;          // pc += C
+  static final int JMPF = 26;         // if R[A] is falsey, pc += C
+  static final int JMPT = 27;         // if R[A] is truthy, pc += C
+  static final int CALL = 28;         // R[A] = R[A](R[A + 1] .. R[A + B])
+  static final int INVOKE = 29;       // R[A] = R[A].K[C](R[A + 1] .. R[A + B])
+  static final int SUPERINVOKE = 30;  // R[A] = R[A + B + 1].K[C] called on R[A] with B arguments
+  static final int CLOSURE = 31;      // R[A] = closure over K[B]
+  static final int CLOSE = 32;        // close upvalues for registers >= A
+  static final int RETURN = 33;       // return R[A]
+  static final int CLASS = 34;        // R[A] = class named K[B]
+  static final int INHERIT = 35;      // copy methods of superclass R[B] into class R[A]
+  static final int METHOD = 36;       // R[A].methods[K[C]] = R[B]
+
+  // Superinstructions produced by the peephole pass in RegisterCompiler
+
+  static final int ADDK = 37;         // R[A] = R[B] + K[C]
+  static final int SUBK = 38;         // R[A] = R[B] - K[C]
+  static final int LTK = 39;          // R[A] = R[B] < K[C]
+  static final int LEK = 40;          // R[A] = R[B] <= K[C]
+  static final int GTK = 41;          // R[A] = R[B] > K[C]
+  static final int GEK = 42;          // R[A] = R[B] >= K[C]
+  static final int JNLT = 43;         // if !(R[A] < R[B]), pc += C
+  static final int JNLE = 44;         // if !(R[A] <= R[B]), pc += C
+  static final int JNGT = 45;         // if !(R[A] > R[B]), pc += C
+  static final int JNGE = 46;         // if !(R[A] >= R[B]), pc += C
+  static final int JNLTK = 47;        // if !(R[A] < K[B]), pc += C
+  static final int JNLEK = 48;        // if !(R[A] <= K[B]), pc += C
+  static final int JNGTK = 49;        // if !(R[A] > K[B]), pc += C
+  static final int JNGEK = 50;        // if !(R[A] >= K[B]), pc += C
+  static final int JNEQ = 51;         // if R[A] != R[B], pc += C
+
+  // Quickened forms, rewritten in place by the RegisterVM after the generic form has run
+
+  static final int ADD_NUM = 52;      // ADD seen with two numbers
+  static final int ADD_STR = 53;      // ADD seen with a string operand
+  static final int ADDK_NUM = 54;     // ADDK seen with a number
+  static final int GETGLOBAL_DEF = 55; // GETGLOBAL of a global that is already defined
+  static final int SETGLOBAL_DEF = 56; // SETGLOBAL of a global that is already defined
+  static final int CALL_CLOSURE = 57; // CALL seen with a Lox function
+
+  static final String[] NAMES = {
+      "MOVE", "LOADK", "LOADNIL", "LOADTRUE", "LOADFALSE", "GETGLOBAL", "SETGLOBAL", "DEFGLOBAL",
+      "GETUPVAL", "SETUPVAL", "GETPROP", "SETPROP", "GETSUPER", "ADD", "SUB", "MUL", "DIV", "EQ",
+      "LT", "LE", "GT", "GE", "NOT", "NEG", "PRINT", "JMP", "JMPF", "JMPT", "CALL", "INVOKE",
+      "SUPERINVOKE", "CLOSURE", "CLOSE", "RETURN", "CLASS", "INHERIT", "METHOD", "ADDK", "SUBK",
+      "LTK", "LEK", "GTK", "GEK", "JNLT", "JNLE", "JNGT", "JNGE", "JNLTK", "JNLEK", "JNGTK",
+      "JNGEK", "JNEQ", "ADD_NUM", "ADD_STR", "ADDK_NUM", "GETGLOBAL_DEF", "SETGLOBAL_DEF",
+      "CALL_CLOSURE"
+  };
+
+  static long encode(int op, int a, int b, int c) {
+    return (op & 0xffL) | ((a & 0xffffL) << 8) | ((b & 0xffffL) << 24) | ((c & 0xffffL) << 40);
+  }
+
+  static int op(long instruction) {
+    return (int) instruction & 0xff;
+  }
+
+  static int a(long instruction) {
+    return (int) (instruction >>> 8) & 0xffff;
+  }
+
+  static int b(long instruction) {
+    return (int) (instruction >>> 24) & 0xffff;
+  }
+
+  static int c(long instruction) {
+    return (int) (instruction >>> 40) & 0xffff;
+  }
+
+  // Jump offset, sign extended
+  static int sc(long instruction) {
+    return (short) (instruction >>> 40);
+  }
+
+  static long withOp(long instruction, int op) {
+    return (instruction & ~0xffL) | op;
+  }
+
+  private RegisterOpCode() {
+  }
+}
@@ -0,0 +1,729 @@
+package com.simonnordberg.lox;
+
+import static com.simonnordberg.lox.RegisterOpCode.ADD;
+import static com.simonnordberg.lox.RegisterOpCode.ADDK;
+import static com.simonnordberg.lox.RegisterOpCode.ADDK_NUM;
+import static com.simonnordberg.lox.RegisterOpCode.ADD_NUM;
+import static com.simonnordberg.lox.RegisterOpCode.ADD_STR;
+import static com.simonnordberg.lox.RegisterOpCode.CALL;
+import static com.simonnordberg.lox.RegisterOpCode.CALL_CLOSURE;
+import static com.simonnordberg.lox.RegisterOpCode.CLASS;
+import static com.simonnordberg.lox.RegisterOpCode.CLOSE;
+import static com.simonnordberg.lox.RegisterOpCode.CLOSURE;
+import static com.simonnordberg.lox.RegisterOpCode.DEFGLOBAL;
+import static com.simonnordberg.lox.RegisterOpCode.DIV;
+import static com.simonnordberg.lox.RegisterOpCode.EQ;
+import static com.simonnordberg.lox.RegisterOpCode.GE;
+import static com.simonnordberg.lox.RegisterOpCode.GEK;
+import static com.simonnordberg.lox.RegisterOpCode.GETGLOBAL;
+import static com.simonnordberg.lox.RegisterOpCode.GETGLOBAL_DEF;
+import static com.simonnordberg.lox.RegisterOpCode.GETPROP;
+import static com.simonnordberg.lox.RegisterOpCode.GETSUPER;
+import static com.simonnordberg.lox.RegisterOpCode.GETUPVAL;
+import static com.simonnordberg.lox.RegisterOpCode.GT;
+import static com.simonnordberg.lox.RegisterOpCode.GTK;
+import static com.simonnordberg.lox.RegisterOpCode.INHERIT;
+import static com.simonnordberg.lox.RegisterOpCode.INVOKE;
+import static com.simonnordberg.lox.RegisterOpCode.JMP;
+import static com.simonnordberg.lox.RegisterOpCode.JMPF;
+import static com.simonnordberg.lox.RegisterOpCode.JMPT;
+import static com.simonnordberg.lox.RegisterOpCode.JNEQ;
+import static com.simonnordberg.lox.RegisterOpCode.JNGE;
+import static com.simonnordberg.lox.RegisterOpCode.JNGEK;
+import static com.simonnordberg.lox.RegisterOpCode.JNGT;
+import static com.simonnordberg.lox.RegisterOpCode.JNGTK;
+import static com.simonnordberg.lox.RegisterOpCode.JNLE;
+import static com.simonnordberg.lox.RegisterOpCode.JNLEK;
+import static com.simonnordberg.lox.RegisterOpCode.JNLT;
+import static com.simonnordberg.lox.RegisterOpCode.JNLTK;
+import static com.simonnordberg.lox.RegisterOpCode.LE;
+import static com.simonnordberg.lox.RegisterOpCode.LEK;
+import static com.simonnordberg.lox.RegisterOpCode.LOADFALSE;
+import static com.simonnordberg.lox.RegisterOpCode.LOADK;
+import static com.simonnordberg.lox.RegisterOpCode.LOADNIL;
+import static com.simonnordberg.lox.RegisterOpCode.LOADTRUE;
+import static com.simonnordberg.lox.RegisterOpCode.LT;
+import static com.simonnordberg.lox.RegisterOpCode.LTK;
+import static com.simonnordberg.lox.RegisterOpCode.METHOD;
+import static com.simonnordberg.lox.RegisterOpCode.MOVE;
+import static com.simonnordberg.lox.RegisterOpCode.MUL;
+import static com.simonnordberg.lox.RegisterOpCode.NEG;
+import static com.simonnordberg.lox.RegisterOpCode.NOT;
+import static com.simonnordberg.lox.RegisterOpCode.PRINT;
+import static com.simonnordberg.lox.RegisterOpCode.RETURN;
+import static com.simonnordberg.lox.RegisterOpCode.SETGLOBAL;
+import static com.simonnordberg.lox.RegisterOpCode.SETGLOBAL_DEF;
+import static com.simonnordberg.lox.RegisterOpCode.SETPROP;
+import static com.simonnordberg.lox.RegisterOpCode.SETUPVAL;
+import static com.simonnordberg.lox.RegisterOpCode.SUB;
+import static com.simonnordberg.lox.RegisterOpCode.SUBK;
+import static com.simonnordberg.lox.RegisterOpCode.SUPERINVOKE;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Register-based virtual machine, an alternative to the stack-based {@link VM}.
+ *
+ * All frames share one Object[] register file. A frame's registers start at its base, where the
+ * callee sits, followed by the arguments, the remaining locals and temporaries. A call places the
+ * callee and arguments in consecutive registers of the caller, so they become the bottom of the
+ * callee's window without any copying.
+ *
+ * Generic instructions that see the same operand types every time are rewritten in place to
+ * specialized forms (quickening). A quickened instruction that meets other types rewrites itself
+ * back to the generic form and runs that instead.
+ */
+class RegisterVM {
+
+  private static final boolean COUNT_INSTRUCTIONS = Boolean.getBoolean("lox.countInstructions");
+
+  private static final int FRAMES_MAX = 10000;
+  private static final Object UNDEFINED = new Object();
+
+  private final Map<String, Integer> globalSlots = new HashMap<>();
+  private String[] globalNames = new String[64];
+  private Object[] globals = new Object[64];
+
+  private Object[] registers = new Object[256];
+
+  private Obj.Closure[] frameClosures = new Obj.Closure[64];
+  private int[] framePcs = new int[64];
+  private int[] frameBases = new int[64];
+  private int frameCount = 0;
+
+  private Obj.Upvalue openUpvalues;
+  private long instructionCount;
+
+  RegisterVM() {
+    Arrays.fill(globals, UNDEFINED);
+    defineNative(new Obj.Native("clock", 0) {
+      @Override
+      Object call(Object[] args, int start) {
+        return (double) System.currentTimeMillis() / 1000.0;
+      }
+    });
+  }
+
+  void interpret(Obj.Function function) {
+    try {
+      Obj.Closure script = new Obj.Closure(function);
+      registers[0] = script;
+      callClosure(script, 0, 0);
+      run();
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    } finally {
+      if (COUNT_INSTRUCTIONS) {
+        System.err.println("[" + instructionCount + " instructions]");
+        instructionCount = 0;
+      }
+      resetRegisters();
+    }
+  }
+
+  /**
+   * Returns the slot holding the global called name, allocating one if needed.
+   */
+  int globalSlot(String name) {
+    Integer slot = globalSlots.get(name);
+    if (slot != null) {
+      return slot;
+    }
+
+    slot = globalSlots.size();
+    if (slot == globals.length) {
+      int capacity = globals.length * 2;
+      globalNames = Arrays.copyOf(globalNames, capacity);
+      globals = Arrays.copyOf(globals, capacity);
+      Arrays.fill(globals, slot, capacity, UNDEFINED);
+    }
+    globalSlots.put(name, slot);
+    globalNames[slot] = name;
+    return slot;
+  }
+
+  String globalName(int slot) {
+    return globalNames[slot];
+  }
+
+  private void defineNative(Obj.Native function) {
+    globals[globalSlot(function.name)] = function;
+  }
+
+  private void run() {
+    Object[] globals = this.globals;
+
+    Object[] r = registers;
+    Obj.Closure closure = frameClosures[frameCount - 1];
+    RegisterChunk chunk = closure.function.registerChunk;
+    long[] code = chunk.code;
+    Object[] k = chunk.constants;
+    int pc = framePcs[frameCount - 1];
+    int base = frameBases[frameCount - 1];
+
+    for (;;) {
+      if (COUNT_INSTRUCTIONS) {
+        instructionCount++;
+      }
+      long insn = code[pc++];
+      int a = base + (int) ((insn >>> 8) & 0xffff);
+      switch ((int) insn & 0xff) {
+        case MOVE:
+          r[a] = r[base + RegisterOpCode.b(insn)];
+          break;
+        case LOADK:
+          r[a] = k[RegisterOpCode.b(insn)];
+          break;
+        case LOADNIL:
+          r[a] = null;
+          break;
+        case LOADTRUE:
+          r[a] = Boolean.TRUE;
+          break;
+        case LOADFALSE:
+          r[a] = Boolean.FALSE;
+          break;
+        case GETGLOBAL: {
+          int slot = RegisterOpCode.b(insn);
+          Object value = globals[slot];
+          if (value == UNDEFINED) {
+            throw error(chunk, pc, "Undefined variable '" + globalNames[slot] + "'");
+          }
+          code[pc - 1] = RegisterOpCode.withOp(insn, GETGLOBAL_DEF);
+          r[a] = value;
+          break;
+        }
+        case GETGLOBAL_DEF:
+          // Globals are never undefined again once defined
+          r[a] = globals[RegisterOpCode.b(insn)];
+          break;
+        case SETGLOBAL: {
+          int slot = RegisterOpCode.b(insn);
+          if (globals[slot] == UNDEFINED) {
+            throw error(chunk, pc, "Undefined variable '" + globalNames[slot] + "'");
+          }
+          code[pc - 1] = RegisterOpCode.withOp(insn, SETGLOBAL_DEF);
+          globals[slot] = r[a];
+          break;
+        }
+        case SETGLOBAL_DEF:
+          globals[RegisterOpCode.b(insn)] = r[a];
+          break;
+        case DEFGLOBAL:
+          globals[RegisterOpCode.b(insn)] = r[a];
+          break;
+        case GETUPVAL: {
+          Obj.Upvalue upvalue = closure.upvalues[RegisterOpCode.b(insn)];
+          r[a] = upvalue.slot >= 0 ? r[upvalue.slot] : upvalue.closed;
+          break;
+        }
+        case SETUPVAL: {
+          Obj.Upvalue upvalue = closure.upvalues[RegisterOpCode.b(insn)];
+          if (upvalue.slot >= 0) {
+            r[upvalue.slot] = r[a];
+          } else {
+            upvalue.closed = r[a];
+          }
+          break;
+        }
+        case GETPROP: {
+          String name = (String) k[RegisterOpCode.c(insn)];
+          Object object = r[base + RegisterOpCode.b(insn)];
+          if (!(object instanceof Obj.Instance)) {
+            throw error(chunk, pc, "Only instances have properties");
+          }
+
+          Obj.Instance instance = (Obj.Instance) object;
+          Object value = instance.fields.get(name);
+          if (value != null || instance.fields.containsKey(name)) {
+            r[a] = value;
+            break;
+          }
+
+          Obj.Closure method = instance.klass.methods.get(name);
+          if (method == null) {
+            throw error(chunk, pc, "Undefined property '" + name + "'");
+          }
+          r[a] = new Obj.BoundMethod(instance, method);
+          break;
+        }
+        case SETPROP: {
+          Object object = r[a];
+          if (!(object instanceof Obj.Instance)) {
+            throw error(chunk, pc, "Only instances have fields");
+          }
+          String name = (String) k[RegisterOpCode.c(insn)];
+          ((Obj.Instance) object).fields.put(name, r[base + RegisterOpCode.b(insn)]);
+          break;
+        }
+        case GETSUPER: {
+          String name = (String) k[RegisterOpCode.c(insn)];
+          int receiver = base + RegisterOpCode.b(insn);
+          Obj.Closure method = ((Obj.Class) r[receiver + 1]).methods.get(name);
+          if (method == null) {
+            throw error(chunk, pc, "Undefined property '" + name + "'");
+          }
+          r[a] = new Obj.BoundMethod(r[receiver], method);
+          break;
+        }
+        case ADD: {
+          Object x = r[base + RegisterOpCode.b(insn)];
+          Object y = r[base + RegisterOpCode.c(insn)];
+          if (x instanceof Double && y instanceof Double) {
+            code[pc - 1] = RegisterOpCode.withOp(insn, ADD_NUM);
+            r[a] = (Double) x + (Double) y;
+          } else if (x instanceof String && y instanceof String) {
+            code[pc - 1] = RegisterOpCode.withOp(insn, ADD_STR);
+            r[a] = (String) x + (String) y;
+          } else {
+            r[a] = add(chunk, pc, x, y);
+          }
+          break;
+        }
+        case ADD_NUM: {
+          Object x = r[base + RegisterOpCode.b(insn)];
+          Object y = r[base + RegisterOpCode.c(insn)];
+          if (x instanceof Double && y instanceof Double) {
+            r[a] = (Double) x + (Double) y;
+          } else {
+            code[--pc] = RegisterOpCode.withOp(insn, ADD);
+          }
+          break;
+        }
+        case ADD_STR: {
+          Object x = r[base + RegisterOpCode.b(insn)];
+          Object y = r[base + RegisterOpCode.c(insn)];
+          if (x instanceof String && y instanceof String) {
+            r[a] = (String) x + (String) y;
+          } else {
+            code[--pc] = RegisterOpCode.withOp(insn, ADD);
+          }
+          break;
+        }
+        case ADDK: {
+          Object x = r[base + RegisterOpCode.b(insn)];
+          Object y = k[RegisterOpCode.c(insn)];
+          if (x instanceof Double && y instanceof Double) {
+            code[pc - 1] = RegisterOpCode.withOp(insn, ADDK_NUM);
+            r[a] = (Double) x + (Double) y;
+          } else {
+            r[a] = add(chunk, pc, x, y);
+          }
+          break;
+        }
+        case ADDK_NUM: {
+          Object x = r[base + RegisterOpCode.b(insn)];
+          if (x instanceof Double) {
+            r[a] = (Double) x + number(chunk, pc, k[RegisterOpCode.c(insn)]);
+          } else {
+            code[--pc] = RegisterOpCode.withOp(insn, ADDK);
+          }
+          break;
+        }
+        case SUB:
+          r[a] = number(chunk, pc, r[base + RegisterOpCode.b(insn)])
+              - number(chunk, pc, r[base + RegisterOpCode.c(insn)]);
+          break;
+        case SUBK:
+          r[a] = number(chunk, pc, r[base + RegisterOpCode.b(insn)])
+              - number(chunk, pc, k[RegisterOpCode.c(insn)]);
+          break;
+        case MUL:
+          r[a] = number(chunk, pc, r[base + RegisterOpCode.b(insn)])
+              * number(chunk, pc, r[base + RegisterOpCode.c(insn)]);
+          break;
+        case DIV:
+          r[a] = number(chunk, pc, r[base + RegisterOpCode.b(insn)])
+              / number(chunk, pc, r[base + RegisterOpCode.c(insn)]);
+          break;
+        case EQ:
+          r[a] = Interpreter.isEqual(r[base + RegisterOpCode.b(insn)],
+              r[base + RegisterOpCode.c(insn)]);
+          break;
+        case LT:
+          r[a] = number(chunk, pc, r[base + RegisterOpCode.b(insn)])
+              < number(chunk, pc, r[base + RegisterOpCode.c(insn)]);
+          break;
+        case LE:
+          r[a] = number(chunk, pc, r[base + RegisterOpCode.b(insn)])
+              <= number(chunk, pc, r[base + RegisterOpCode.c(insn)]);
+          break;
+        case GT:
+          r[a] = number(chunk, pc, r[base + RegisterOpCode.b(insn)])
+              > number(chunk, pc, r[base + RegisterOpCode.c(insn)]);
+          break;
+        case GE:
+          r[a] = number(chunk, pc, r[base + RegisterOpCode.b(insn)])
+              >= number(chunk, pc, r[base + RegisterOpCode.c(insn)]);
+          break;
+        case LTK:
+          r[a] = number(chunk, pc, r[base + RegisterOpCode.b(insn)])
+              < number(chunk, pc, k[RegisterOpCode.c(insn)]);
+          break;
+        case LEK:
+          r[a] = number(chunk, pc, r[base + RegisterOpCode.b(insn)])
+              <= number(chunk, pc, k[RegisterOpCode.c(insn)]);
+          break;
+        case GTK:
+          r[a] = number(chunk, pc, r[base + RegisterOpCode.b(insn)])
+              > number(chunk, pc, k[RegisterOpCode.c(insn)]);
+          break;
+        case GEK:
+          r[a] = number(chunk, pc, r[base + RegisterOpCode.b(insn)])
+              >= number(chunk, pc, k[RegisterOpCode.c(insn)]);
+          break;
+        case NOT:
+          r[a] = isFalsey(r[base + RegisterOpCode.b(insn)]);
+          break;
+        case NEG: {
+          Object value = r[base + RegisterOpCode.b(insn)];
+          if (!(value instanceof Double)) {
+            throw error(chunk, pc, "Operand must be a number");
+          }
+          r[a] = -(Double) value;
+          break;
+        }
+        case PRINT:
+          System.out.println(Interpreter.stringify(r[a]));
+          break;
+        case JMP:
+          pc += RegisterOpCode.sc(insn);
+          break;
+        case JMPF:
+          if (isFalsey(r[a])) {
+            pc += RegisterOpCode.sc(insn);
+          }
+          break;
+        case JMPT:
+          if (!isFalsey(r[a])) {
+            pc += RegisterOpCode.sc(insn);
+          }
+          break;
+        case JNLT:
+          if (!(number(chunk, pc, r[a]) < number(chunk, pc, r[base + RegisterOpCode.b(insn)]))) {
+            pc += RegisterOpCode.sc(insn);
+          }
+          break;
+        case JNLE:
+          if (!(number(chunk, pc, r[a]) <= number(chunk, pc, r[base + RegisterOpCode.b(insn)]))) {
+            pc += RegisterOpCode.sc(insn);
+          }
+          break;
+        case JNGT:
+          if (!(number(chunk, pc, r[a]) > number(chunk, pc, r[base + RegisterOpCode.b(insn)]))) {
+            pc += RegisterOpCode.sc(insn);
+          }
+          break;
+        case JNGE:
+          if (!(number(chunk, pc, r[a]) >= number(chunk, pc, r[base + RegisterOpCode.b(insn)]))) {
+            pc += RegisterOpCode.sc(insn);
+          }
+          break;
+        case JNLTK:
+          if (!(number(chunk, pc, r[a]) < number(chunk, pc, k[RegisterOpCode.b(insn)]))) {
+            pc += RegisterOpCode.sc(insn);
+          }
+          break;
+        case JNLEK:
+          if (!(number(chunk, pc, r[a]) <= number(chunk, pc, k[RegisterOpCode.b(insn)]))) {
+            pc += RegisterOpCode.sc(insn);
+          }
+          break;
+        case JNGTK:
+          if (!(number(chunk, pc, r[a]) > number(chunk, pc, k[RegisterOpCode.b(insn)]))) {
+            pc += RegisterOpCode.sc(insn);
+          }
+          break;
+        case JNGEK:
+          if (!(number(chunk, pc, r[a]) >= number(chunk, pc, k[RegisterOpCode.b(insn)]))) {
+            pc += RegisterOpCode.sc(insn);
+          }
+          break;
+        case JNEQ:
+          if (!Interpreter.isEqual(r[a], r[base + RegisterOpCode.b(insn)])) {
+            pc += RegisterOpCode.sc(insn);
+          }
+          break;
+        case CALL_CLOSURE: {
+          Object callee = r[a];
+          if (!(callee instanceof Obj.Closure)) {
+            code[--pc] = RegisterOpCode.withOp(insn, CALL);
+            break;
+          }
+          framePcs[frameCount - 1] = pc;
+          callClosure((Obj.Closure) callee, a, RegisterOpCode.b(insn));
+
+          r = registers;
+          closure = frameClosures[frameCount - 1];
+          chunk = closure.function.registerChunk;
+          code = chunk.code;
+          k = chunk.constants;
+          pc = 0;
+          base = a;
+          break;
+        }
+        case CALL: {
+          Object callee = r[a];
+          if (callee instanceof Obj.Closure) {
+            code[pc - 1] = RegisterOpCode.withOp(insn, CALL_CLOSURE);
+          }
+          framePcs[frameCount - 1] = pc;
+          call(callee, a, RegisterOpCode.b(insn));
+
+          r = registers;
+          closure = frameClosures[frameCount - 1];
+          chunk = closure.function.registerChunk;
+          code = chunk.code;
+          k = chunk.constants;
+          pc = framePcs[frameCount - 1];
+          base = frameBases[frameCount - 1];
+          break;
+        }
+        case INVOKE: {
+          framePcs[frameCount - 1] = pc;
+          invoke((String) k[RegisterOpCode.c(insn)], a, RegisterOpCode.b(insn));
+
+          r = registers;
+          closure = frameClosures[frameCount - 1];
+          chunk = closure.function.registerChunk;
+          code = chunk.code;
+          k = chunk.constants;
+          pc = framePcs[frameCount - 1];
+          base = frameBases[frameCount - 1];
+          break;
+        }
+        case SUPERINVOKE: {
+          String name = (String) k[RegisterOpCode.c(insn)];
+          int argCount = RegisterOpCode.b(insn);
+          Obj.Closure method = ((Obj.Class) r[a + argCount + 1]).methods.get(name);
+          if (method == null) {
+            throw error(chunk, pc, "Undefined property '" + name + "'");
+          }
+          framePcs[frameCount - 1] = pc;
+          callClosure(method, a, argCount);
+
+          r = registers;
+          closure = frameClosures[frameCount - 1];
+          chunk = closure.function.registerChunk;
+          code = chunk.code;
+          k = chunk.constants;
+          pc = 0;
+          base = a;
+          break;
+        }
+        case CLOSURE: {
+          Obj.Function function = (Obj.Function) k[RegisterOpCode.b(insn)];
+          RegisterChunk body = function.registerChunk;
+          Obj.Closure created = new Obj.Closure(function);
+          for (int i = 0; i < created.upvalues.length; i++) {
+            int index = body.upvalueIndex[i];
+            created.upvalues[i] = body.upvalueIsLocal[i]
+                ? captureUpvalue(base + index) : closure.upvalues[index];
+          }
+          r[a] = created;
+          break;
+        }
+        case CLOSE:
+          closeUpvalues(a);
+          break;
+        case RETURN: {
+          Object result = r[a];
+          if (openUpvalues != null) {
+            closeUpvalues(base);
+          }
+          frameCount--;
+          if (frameCount == 0) {
+            return;
+          }
+
+          // The callee's register zero is the caller's destination register
+          r[base] = result;
+          closure = frameClosures[frameCount - 1];
+          chunk = closure.function.registerChunk;
+          code = chunk.code;
+          k = chunk.constants;
+          pc = framePcs[frameCount - 1];
+          base = frameBases[frameCount - 1];
+          break;
+        }
+        case CLASS:
+          r[a] = new Obj.Class((String) k[RegisterOpCode.b(insn)]);
+          break;
+        case INHERIT: {
+          Object superclass = r[base + RegisterOpCode.b(insn)];
+          if (!(superclass instanceof Obj.Class)) {
+            throw error(chunk, pc, "Superclass must be a class");
+          }
+          Obj.Class subclass = (Obj.Class) r[a];
+          subclass.methods.putAll(((Obj.Class) superclass).methods);
+          subclass.initializer = ((Obj.Class) superclass).initializer;
+          break;
+        }
+        case METHOD: {
+          String name = (String) k[RegisterOpCode.c(insn)];
+          Obj.Closure method = (Obj.Closure) r[base + RegisterOpCode.b(insn)];
+          Obj.Class klass = (Obj.Class) r[a];
+          klass.methods.put(name, method);
+          if (name.equals("init")) {
+            klass.initializer = method;
+          }
+          break;
+        }
+        default:
+          throw error(chunk, pc, "Unknown opcode " + RegisterOpCode.op(insn));
+      }
+    }
+  }
+
+  /**
+   * Calls the callee in register callee with the argCount arguments in the registers after it.
+   * Lox functions get a new frame and run when the dispatch loop resumes; natives and
+   * argument-less classes complete here, leaving their result in the callee register.
+   */
+  private void call(Object callee, int slot, int argCount) {
+    if (callee instanceof Obj.Closure) {
+      callClosure((Obj.Closure) callee, slot, argCount);
+    } else if (callee instanceof Obj.BoundMethod) {
+      Obj.BoundMethod bound = (Obj.BoundMethod) callee;
+      registers[slot] = bound.receiver;
+      callClosure(bound.method, slot, argCount);
+    } else if (callee instanceof Obj.Class) {
+      Obj.Class klass = (Obj.Class) callee;
+      registers[slot] = new Obj.Instance(klass);
+      if (klass.initializer != null) {
+        callClosure(klass.initializer, slot, argCount);
+      } else if (argCount != 0) {
+        throw callError("Expected 0 arguments but got " + argCount);
+      }
+    } else if (callee instanceof Obj.Native) {
+      Obj.Native function = (Obj.Native) callee;
+      if (argCount != function.arity) {
+        throw callError("Expected " + function.arity + " arguments but got " + argCount);
+      }
+      registers[slot] = function.call(registers, slot + 1);
+    } else {
+      throw callError("Can only call functions and classes");
+    }
+  }
+
+  private void callClosure(Obj.Closure closure, int slot, int argCount) {
+    Obj.Function function = closure.function;
+    if (argCount != function.arity) {
+      throw callError("Expected " + function.arity + " arguments but got " + argCount);
+    }
+
+    if (frameCount == frameClosures.length) {
+      if (frameCount == FRAMES_MAX) {
+        throw callError("Stack overflow");
+      }
+      int capacity = Math.min(frameCount * 2, FRAMES_MAX);
+      frameClosures = Arrays.copyOf(frameClosures, capacity);
+      framePcs = Arrays.copyOf(framePcs, capacity);
+      frameBases = Arrays.copyOf(frameBases, capacity);
+    }
+
+    int top = slot + function.registerChunk.registerCount;
+    if (top > registers.length) {
+      // Open upvalues refer to register indexes, so they survive the copy
+      registers = Arrays.copyOf(registers, Math.max(registers.length * 2, top));
+    }
+
+    frameClosures[frameCount] = closure;
+    framePcs[frameCount] = 0;
+    frameBases[frameCount] = slot;
+    frameCount++;
+  }
+
+  private void invoke(String name, int slot, int argCount) {
+    Object receiver = registers[slot];
+    if (!(receiver instanceof Obj.Instance)) {
+      throw callError("Only instances have properties");
+    }
+
+    Obj.Instance instance = (Obj.Instance) receiver;
+    Object field = instance.fields.get(name);
+    if (field != null || instance.fields.containsKey(name)) {
+      registers[slot] = field;
+      call(field, slot, argCount);
+      return;
+    }
+
+    Obj.Closure method = instance.klass.methods.get(name);
+    if (method == null) {
+      throw callError("Undefined property '" + name + "'");
+    }
+    callClosure(method, slot, argCount);
+  }
+
+  private Obj.Upvalue captureUpvalue(int slot) {
+    Obj.Upvalue previous = null;
+    Obj.Upvalue upvalue = openUpvalues;
+    while (upvalue != null && upvalue.slot > slot) {
+      previous = upvalue;
+      upvalue = upvalue.next;
+    }
+
+    if (upvalue != null && upvalue.slot == slot) {
+      return upvalue;
+    }
+
+    Obj.Upvalue created = new Obj.Upvalue(slot);
+    created.next = upvalue;
+    if (previous == null) {
+      openUpvalues = created;
+    } else {
+      previous.next = created;
+    }
+    return created;
+  }
+
+  private void closeUpvalues(int last) {
+    while (openUpvalues != null && openUpvalues.slot >= last) {
+      Obj.Upvalue upvalue = openUpvalues;
+      upvalue.closed = registers[upvalue.slot];
+      upvalue.slot = -1;
+      openUpvalues = upvalue.next;
+    }
+  }
+
+  private static Object add(RegisterChunk chunk, int pc, Object x, Object y) {
+    if (x instanceof Double && y instanceof Double) {
+      return (Double) x + (Double) y;
+    }
+    if (x instanceof String || y instanceof String) {
+      return Interpreter.stringify(x) + Interpreter.stringify(y);
+    }
+    throw error(chunk, pc, "Operands must be two numbers or two strings");
+  }
+
+  private static double number(RegisterChunk chunk, int pc, Object value) {
+    if (!(value instanceof Double)) {
+      throw error(chunk, pc, "Operands must be numbers");
+    }
+    return (Double) value;
+  }
+
+  private static boolean isFalsey(Object value) {
+    return value == null || (value instanceof Boolean && !(Boolean) value);
+  }
+
+  private static RuntimeError error(RegisterChunk chunk, int pc, String message) {
+    return new RuntimeError(chunk.lines[pc - 1], message);
+  }
+
+  /**
+   * Error raised while setting up a call, reported at the calling instruction.
+   */
+  private RuntimeError callError(String message) {
+    return error(frameClosures[frameCount - 1].function.registerChunk, framePcs[frameCount - 1],
+        message);
+  }
+
+  private void resetRegisters() {
+    Arrays.fill(registers, null);
+    frameCount = 0;
+    openUpvalues = null;
+  }
+}
@@ -27,9 +27,10 @@ import java.util.Stack;
 
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
-  private final Interpreter interpreter;
+  private final ErrorReporter reporter;
   private final Stack<Map<String, Boolean>> scopes = new Stack<>();
   private FunctionType currentFunction = FunctionType.NONE;
+  private int nodes = 0;
 
   private enum FunctionType {
     NONE,
@@ -46,8 +47,8 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   private ClassType currentClass = ClassType.NONE;
 
-  public Resolver(Interpreter interpreter) {
-    this.interpreter = interpreter;
+  public Resolver(ErrorReporter reporter) {
+    this.reporter = reporter;
   }
 
   @Override
@@ -107,9 +108,9 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitSuperExpr(Super expr) {
     if (currentClass == ClassType.NONE) {
-      Lox.error(expr.keyword, "Can't use 'super' outside of a class");
+      reporter.error(expr.keyword, "Can't use 'super' outside of a class");
     } else if (currentClass != ClassType.SUBCLASS) {
-      Lox.error(expr.keyword, "Can't use 'super' in a class with no superclass");
+      reporter.error(expr.keyword, "Can't use 'super' in a class with no superclass");
     }
     resolveLocal(expr, expr.keyword);
     return null;
@@ -118,7 +119,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitThisExpr(This expr) {
     if (currentClass == ClassType.NONE) {
-      Lox.error(expr.keyword, "Can't use 'this' outside of a class");
+      reporter.error(expr.keyword, "Can't use 'this' outside of a class");
       return null;
     }
 
@@ -135,7 +136,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitVariableExpr(Variable expr) {
     if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-      Lox.error(expr.name, "Can't read local variable in its own initializer");
+      reporter.error(expr.name, "Can't read local variable in its own initializer");
     }
     resolveLocal(expr, expr.name);
     return null;
@@ -158,7 +159,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     define(stmt.name);
 
     if (stmt.superclass != null && stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
-      Lox.error(stmt.superclass.name, "A class can't inherit from itself");
+      reporter.error(stmt.superclass.name, "A class can't inherit from itself");
     }
 
     if (stmt.superclass != null) {
@@ -223,12 +224,12 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitReturnStmt(Stmt.Return stmt) {
     if (currentFunction == FunctionType.NONE) {
-      Lox.error(stmt.keyword, "Can't return from top-level code");
+      reporter.error(stmt.keyword, "Can't return from top-level code");
     }
 
     if (stmt.value != null) {
       if (currentFunction == FunctionType.INITIALIZER) {
-        Lox.error(stmt.keyword, "Can't return a value from an initializer");
+        reporter.error(stmt.keyword, "Can't return a value from an initializer");
       }
       resolve(stmt.value);
     }
@@ -258,6 +259,13 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
   }
 
+  /**
+   * Returns how many statements and expressions have been resolved so far.
+   */
+  int nodeCount() {
+    return nodes;
+  }
+
   private void beginScope() {
     scopes.push(new HashMap<String, Boolean>());
   }
@@ -267,17 +275,19 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   }
 
   private void resolve(Stmt stmt) {
+    nodes++;
     stmt.accept(this);
   }
 
   private void resolve(Expr expr) {
+    nodes++;
     expr.accept(this);
   }
 
   private void resolveLocal(Expr expr, Token name) {
     for (int i = scopes.size() - 1; i >= 0; i--) {
       if (scopes.get(i).containsKey(name.lexeme)) {
-        interpreter.resolve(expr, scopes.size() - 1 - i);
+        expr.depth = scopes.size() - 1 - i;
         return;
       }
     }
@@ -310,7 +320,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     Map<String, Boolean> scope = scopes.peek();
     if (scope.containsKey(name.lexeme)) {
-      Lox.error(name, "Already a variable with this name in scope");
+      reporter.error(name, "Already a variable with this name in scope");
     }
     scope.put(name.lexeme, false);
   }
@@ -3,9 +3,33 @@ package com.simonnordberg.lox;
 public class RuntimeError extends RuntimeException {
 
   final Token token;
+  final int line;
 
   public RuntimeError(Token token, String message) {
     super(message);
     this.token = token;
+    this.line = token.line;
+    raised();
+  }
+
+  // Used by the bytecode VM, which only keeps line numbers around
+  public RuntimeError(int line, String message) {
+    super(message);
+    this.token = null;
+    this.line = line;
+    raised();
+  }
+
+  private void raised() {
+    if (!Events.recording()) {
+      return;
+    }
+
+    Events.RuntimeErrorRaised event = new Events.RuntimeErrorRaised();
+    if (event.shouldCommit()) {
+      event.message = getMessage();
+      event.line = line;
+      event.commit();
+    }
   }
 }
@@ -70,13 +70,15 @@ public class Scanner {
   }
 
   private final String source;
+  private final ErrorReporter reporter;
   private final List<Token> tokens = new ArrayList<>();
   private int start = 0;
   private int current = 0;
   private int line = 1;
 
-  public Scanner(String source) {
+  public Scanner(String source, ErrorReporter reporter) {
     this.source = source;
+    this.reporter = reporter;
   }
 
   public List<Token> scanTokens() {
@@ -166,7 +168,7 @@ public class Scanner {
         } else if (isAlpha(c)) {
           identifier();
         } else {
-          Lox.error(line, "Unexpected character.");
+          reporter.error(line, "Unexpected character.");
         }
         break;
     }
@@ -228,7 +230,7 @@ public class Scanner {
     }
 
     if (isAtEnd()) {
-      Lox.error(line, "Unterminated string.");
+      reporter.error(line, "Unterminated string.");
       return;
     }
 
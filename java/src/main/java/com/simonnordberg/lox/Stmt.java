@@ -4,6 +4,10 @@ import java.util.List;
 
 abstract class Stmt {
 
+  // Updated by the interpreter while it counts executions
+  long executions;
+  long selfNanos;
+
   abstract <R> R accept(Visitor<R> visitor);
   interface Visitor<R> {
     R visitBlockStmt(Block stmt);
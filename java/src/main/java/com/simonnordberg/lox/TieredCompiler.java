@@ -0,0 +1,132 @@
+package com.simonnordberg.lox;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Moves hot functions from the interpreter to closure-compiled code.
+ *
+ * Each function declaration has one {@link Tier}, shared by all of its closures and bound
+ * methods, that counts calls and loop back-edges while the body is interpreted. When the count
+ * reaches lox.compileThreshold (1000 by default) the body is queued for a background thread,
+ * which compiles it with {@link ClosureCompiler} and publishes the result through a volatile
+ * field. Calls that start after that run the compiled body; a call already in the interpreter
+ * finishes there. Tiering is off with -Dlox.tiered=false.
+ *
+ * A compiler belongs to a program, not to an interpreter: every interpreter running the program
+ * shares its counts and compiled bodies. All compilers queue their work on one thread.
+ */
+final class TieredCompiler {
+
+  private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "lox-compiler");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  /**
+   * Invocation and back-edge counts for one function declaration, and its compiled body.
+   */
+  static final class Tier {
+
+    private final TieredCompiler compiler;
+    private final Stmt.Function declaration;
+    private final AtomicBoolean queued = new AtomicBoolean(false);
+    private volatile ClosureCompiler.CompiledFunction compiled;
+
+    // Only heuristics, so lost updates from racing threads do not matter
+    private int invocations = 0;
+    private int backEdges = 0;
+
+    private Tier(TieredCompiler compiler, Stmt.Function declaration) {
+      this.compiler = compiler;
+      this.declaration = declaration;
+    }
+
+    ClosureCompiler.CompiledFunction compiled() {
+      return compiled;
+    }
+
+    void invoked() {
+      invocations++;
+      checkThreshold();
+    }
+
+    void backEdge() {
+      backEdges++;
+      checkThreshold();
+    }
+
+    private void checkThreshold() {
+      if (invocations + backEdges >= compiler.threshold && !queued.get()
+          && queued.compareAndSet(false, true)) {
+        compiler.submit(this);
+      }
+    }
+  }
+
+  private final int threshold;
+  private final ConcurrentMap<Stmt.Function, Tier> tiers = new ConcurrentHashMap<>();
+
+  private TieredCompiler(int threshold) {
+    this.threshold = threshold;
+  }
+
+  /**
+   * Returns a new compiler, or null if tiering is turned off.
+   */
+  static TieredCompiler fromSystemProperties() {
+    if (!Boolean.parseBoolean(System.getProperty("lox.tiered", "true"))) {
+      return null;
+    }
+    return new TieredCompiler(Integer.getInteger("lox.compileThreshold", 1000));
+  }
+
+  Tier tierFor(Stmt.Function declaration) {
+    Tier tier = tiers.get(declaration);
+    if (tier == null) {
+      tier = new Tier(this, declaration);
+      Tier existing = tiers.putIfAbsent(declaration, tier);
+      if (existing != null) {
+        tier = existing;
+      }
+    }
+    return tier;
+  }
+
+  /**
+   * Waits until every function queued so far, by any compiler, has been compiled or has failed
+   * to compile.
+   */
+  static void awaitQueued() throws InterruptedException, ExecutionException {
+    EXECUTOR.submit(new Runnable() {
+      @Override
+      public void run() {
+      }
+    }).get();
+  }
+
+  private void submit(final Tier tier) {
+    EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        // A function that fails to compile simply stays in the interpreter
+        try {
+          tier.compiled = new ClosureCompiler(TieredCompiler.this).compile(tier.declaration);
+        } catch (RuntimeException e) {
+          System.err.println("[tiered: could not compile " + tier.declaration.name.lexeme
+              + ": " + e + "]");
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,632 @@
+package com.simonnordberg.lox;
+
+import static com.simonnordberg.lox.OpCode.OP_ADD;
+import static com.simonnordberg.lox.OpCode.OP_CALL;
+import static com.simonnordberg.lox.OpCode.OP_CLASS;
+import static com.simonnordberg.lox.OpCode.OP_CLOSE_UPVALUE;
+import static com.simonnordberg.lox.OpCode.OP_CLOSURE;
+import static com.simonnordberg.lox.OpCode.OP_CONSTANT;
+import static com.simonnordberg.lox.OpCode.OP_DEFINE_GLOBAL;
+import static com.simonnordberg.lox.OpCode.OP_DIVIDE;
+import static com.simonnordberg.lox.OpCode.OP_EQUAL;
+import static com.simonnordberg.lox.OpCode.OP_FALSE;
+import static com.simonnordberg.lox.OpCode.OP_GET_GLOBAL;
+import static com.simonnordberg.lox.OpCode.OP_GET_LOCAL;
+import static com.simonnordberg.lox.OpCode.OP_GET_PROPERTY;
+import static com.simonnordberg.lox.OpCode.OP_GET_SUPER;
+import static com.simonnordberg.lox.OpCode.OP_GET_UPVALUE;
+import static com.simonnordberg.lox.OpCode.OP_GREATER;
+import static com.simonnordberg.lox.OpCode.OP_GREATER_EQUAL;
+import static com.simonnordberg.lox.OpCode.OP_INHERIT;
+import static com.simonnordberg.lox.OpCode.OP_INVOKE;
+import static com.simonnordberg.lox.OpCode.OP_JUMP;
+import static com.simonnordberg.lox.OpCode.OP_JUMP_IF_FALSE;
+import static com.simonnordberg.lox.OpCode.OP_LESS;
+import static com.simonnordberg.lox.OpCode.OP_LESS_EQUAL;
+import static com.simonnordberg.lox.OpCode.OP_LOOP;
+import static com.simonnordberg.lox.OpCode.OP_METHOD;
+import static com.simonnordberg.lox.OpCode.OP_MULTIPLY;
+import static com.simonnordberg.lox.OpCode.OP_NEGATE;
+import static com.simonnordberg.lox.OpCode.OP_NIL;
+import static com.simonnordberg.lox.OpCode.OP_NOT;
+import static com.simonnordberg.lox.OpCode.OP_POP;
+import static com.simonnordberg.lox.OpCode.OP_PRINT;
+import static com.simonnordberg.lox.OpCode.OP_RETURN;
+import static com.simonnordberg.lox.OpCode.OP_SET_GLOBAL;
+import static com.simonnordberg.lox.OpCode.OP_SET_LOCAL;
+import static com.simonnordberg.lox.OpCode.OP_SET_PROPERTY;
+import static com.simonnordberg.lox.OpCode.OP_SET_UPVALUE;
+import static com.simonnordberg.lox.OpCode.OP_SUBTRACT;
+import static com.simonnordberg.lox.OpCode.OP_SUPER_INVOKE;
+import static com.simonnordberg.lox.OpCode.OP_TRUE;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stack-based bytecode virtual machine, the alternative to the tree-walking {@link Interpreter}.
+ *
+ * Values live in a single Object[] stack shared by all call frames. Each frame only records its
+ * closure, instruction pointer and the stack index of its slot zero; the dispatch loop keeps the
+ * current frame's state in locals and reloads it after calls and returns.
+ */
+class VM {
+
+  private static final boolean COUNT_INSTRUCTIONS = Boolean.getBoolean("lox.countInstructions");
+
+  static final int FRAMES_MAX = 10000;
+  static final Object UNDEFINED = new Object();
+
+  // Globals are resolved to slots at compile time, see BytecodeCompiler.emitGlobal()
+  private final Map<String, Integer> globalSlots = new HashMap<>();
+  private String[] globalNames = new String[64];
+  private Object[] globals = new Object[64];
+
+  private Object[] stack = new Object[256];
+  private int stackTop = 0;
+
+  private Obj.Closure[] frameClosures = new Obj.Closure[64];
+  private int[] frameIps = new int[64];
+  private int[] frameBases = new int[64];
+  private int frameCount = 0;
+
+  private Obj.Upvalue openUpvalues;
+  private long instructionCount;
+
+  VM() {
+    Arrays.fill(globals, UNDEFINED);
+    defineNative(new Obj.Native("clock", 0) {
+      @Override
+      Object call(Object[] args, int start) {
+        return (double) System.currentTimeMillis() / 1000.0;
+      }
+    });
+  }
+
+  void interpret(Obj.Function function) {
+    try {
+      Obj.Closure script = new Obj.Closure(function);
+      stack[0] = script;
+      stackTop = 1;
+      call(script, 0);
+      run();
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    } finally {
+      if (COUNT_INSTRUCTIONS) {
+        System.err.println("[" + instructionCount + " instructions]");
+        instructionCount = 0;
+      }
+      resetStack();
+    }
+  }
+
+  /**
+   * Returns the slot holding the global called name, allocating one if needed.
+   */
+  int globalSlot(String name) {
+    Integer slot = globalSlots.get(name);
+    if (slot != null) {
+      return slot;
+    }
+
+    slot = globalSlots.size();
+    if (slot == globals.length) {
+      int capacity = globals.length * 2;
+      globalNames = Arrays.copyOf(globalNames, capacity);
+      globals = Arrays.copyOf(globals, capacity);
+      Arrays.fill(globals, slot, capacity, UNDEFINED);
+    }
+    globalSlots.put(name, slot);
+    globalNames[slot] = name;
+    return slot;
+  }
+
+  String globalName(int slot) {
+    return globalNames[slot];
+  }
+
+  /**
+   * Values of all global slots, UNDEFINED for those not defined yet. The array is replaced when
+   * globalSlot() grows it.
+   */
+  Object[] globals() {
+    return globals;
+  }
+
+  private void defineNative(Obj.Native function) {
+    globals[globalSlot(function.name)] = function;
+  }
+
+  private void run() {
+    Object[] globals = this.globals;
+
+    Object[] stack = this.stack;
+    int sp = stackTop;
+    Obj.Closure closure = frameClosures[frameCount - 1];
+    byte[] code = closure.function.chunk.code;
+    Object[] constants = closure.function.chunk.constantTable;
+    int ip = frameIps[frameCount - 1];
+    int base = frameBases[frameCount - 1];
+
+    for (;;) {
+      if (COUNT_INSTRUCTIONS) {
+        instructionCount++;
+      }
+      switch (code[ip++]) {
+        case OP_CONSTANT:
+          stack[sp++] = constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          break;
+        case OP_NIL:
+          stack[sp++] = null;
+          break;
+        case OP_TRUE:
+          stack[sp++] = Boolean.TRUE;
+          break;
+        case OP_FALSE:
+          stack[sp++] = Boolean.FALSE;
+          break;
+        case OP_POP:
+          sp--;
+          break;
+        case OP_GET_LOCAL:
+          stack[sp++] = stack[base + (code[ip++] & 0xff)];
+          break;
+        case OP_SET_LOCAL:
+          stack[base + (code[ip++] & 0xff)] = stack[sp - 1];
+          break;
+        case OP_GET_GLOBAL: {
+          int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+          ip += 2;
+          Object value = globals[slot];
+          if (value == UNDEFINED) {
+            throw error(closure, ip, "Undefined variable '" + globalNames[slot] + "'");
+          }
+          stack[sp++] = value;
+          break;
+        }
+        case OP_DEFINE_GLOBAL: {
+          int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+          ip += 2;
+          globals[slot] = stack[--sp];
+          break;
+        }
+        case OP_SET_GLOBAL: {
+          int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+          ip += 2;
+          if (globals[slot] == UNDEFINED) {
+            throw error(closure, ip, "Undefined variable '" + globalNames[slot] + "'");
+          }
+          globals[slot] = stack[sp - 1];
+          break;
+        }
+        case OP_GET_UPVALUE: {
+          Obj.Upvalue upvalue = closure.upvalues[code[ip++] & 0xff];
+          stack[sp++] = upvalue.slot >= 0 ? stack[upvalue.slot] : upvalue.closed;
+          break;
+        }
+        case OP_SET_UPVALUE: {
+          Obj.Upvalue upvalue = closure.upvalues[code[ip++] & 0xff];
+          if (upvalue.slot >= 0) {
+            stack[upvalue.slot] = stack[sp - 1];
+          } else {
+            upvalue.closed = stack[sp - 1];
+          }
+          break;
+        }
+        case OP_GET_PROPERTY: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          Object object = stack[sp - 1];
+          if (!(object instanceof Obj.Instance)) {
+            throw error(closure, ip, "Only instances have properties");
+          }
+
+          Obj.Instance instance = (Obj.Instance) object;
+          Object value = instance.fields.get(name);
+          if (value != null || instance.fields.containsKey(name)) {
+            stack[sp - 1] = value;
+            break;
+          }
+
+          Obj.Closure method = instance.klass.methods.get(name);
+          if (method == null) {
+            throw error(closure, ip, "Undefined property '" + name + "'");
+          }
+          stack[sp - 1] = new Obj.BoundMethod(instance, method);
+          break;
+        }
+        case OP_SET_PROPERTY: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          Object object = stack[sp - 2];
+          if (!(object instanceof Obj.Instance)) {
+            throw error(closure, ip, "Only instances have fields");
+          }
+
+          Object value = stack[--sp];
+          ((Obj.Instance) object).fields.put(name, value);
+          stack[sp - 1] = value;
+          break;
+        }
+        case OP_GET_SUPER: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          Obj.Class superclass = (Obj.Class) stack[--sp];
+          Obj.Closure method = superclass.methods.get(name);
+          if (method == null) {
+            throw error(closure, ip, "Undefined property '" + name + "'");
+          }
+          stack[sp - 1] = new Obj.BoundMethod(stack[sp - 1], method);
+          break;
+        }
+        case OP_EQUAL: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          stack[sp - 1] = (a == null ? b == null : a.equals(b)) ? Boolean.TRUE : Boolean.FALSE;
+          break;
+        }
+        case OP_GREATER: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          if (!(a instanceof Double) || !(b instanceof Double)) {
+            throw error(closure, ip, "Operands must be numbers");
+          }
+          stack[sp - 1] = (Double) a > (Double) b ? Boolean.TRUE : Boolean.FALSE;
+          break;
+        }
+        case OP_GREATER_EQUAL: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          if (!(a instanceof Double) || !(b instanceof Double)) {
+            throw error(closure, ip, "Operands must be numbers");
+          }
+          stack[sp - 1] = (Double) a >= (Double) b ? Boolean.TRUE : Boolean.FALSE;
+          break;
+        }
+        case OP_LESS: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          if (!(a instanceof Double) || !(b instanceof Double)) {
+            throw error(closure, ip, "Operands must be numbers");
+          }
+          stack[sp - 1] = (Double) a < (Double) b ? Boolean.TRUE : Boolean.FALSE;
+          break;
+        }
+        case OP_LESS_EQUAL: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          if (!(a instanceof Double) || !(b instanceof Double)) {
+            throw error(closure, ip, "Operands must be numbers");
+          }
+          stack[sp - 1] = (Double) a <= (Double) b ? Boolean.TRUE : Boolean.FALSE;
+          break;
+        }
+        case OP_ADD: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          if (a instanceof Double && b instanceof Double) {
+            stack[sp - 1] = (Double) a + (Double) b;
+          } else if (a instanceof String || b instanceof String) {
+            stack[sp - 1] = Interpreter.stringify(a) + Interpreter.stringify(b);
+          } else {
+            throw error(closure, ip, "Operands must be two numbers or two strings");
+          }
+          break;
+        }
+        case OP_SUBTRACT: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          if (!(a instanceof Double) || !(b instanceof Double)) {
+            throw error(closure, ip, "Operands must be numbers");
+          }
+          stack[sp - 1] = (Double) a - (Double) b;
+          break;
+        }
+        case OP_MULTIPLY: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          if (!(a instanceof Double) || !(b instanceof Double)) {
+            throw error(closure, ip, "Operands must be numbers");
+          }
+          stack[sp - 1] = (Double) a * (Double) b;
+          break;
+        }
+        case OP_DIVIDE: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+          if (!(a instanceof Double) || !(b instanceof Double)) {
+            throw error(closure, ip, "Operands must be numbers");
+          }
+          stack[sp - 1] = (Double) a / (Double) b;
+          break;
+        }
+        case OP_NOT:
+          stack[sp - 1] = isFalsey(stack[sp - 1]) ? Boolean.TRUE : Boolean.FALSE;
+          break;
+        case OP_NEGATE: {
+          Object value = stack[sp - 1];
+          if (!(value instanceof Double)) {
+            throw error(closure, ip, "Operand must be a number");
+          }
+          stack[sp - 1] = -(Double) value;
+          break;
+        }
+        case OP_PRINT:
+          System.out.println(Interpreter.stringify(stack[--sp]));
+          break;
+        case OP_JUMP:
+          ip += (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)) + 2;
+          break;
+        case OP_JUMP_IF_FALSE:
+          if (isFalsey(stack[sp - 1])) {
+            ip += (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)) + 2;
+          } else {
+            ip += 2;
+          }
+          break;
+        case OP_LOOP:
+          ip -= (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)) - 2;
+          break;
+        case OP_CALL: {
+          int argCount = code[ip++] & 0xff;
+          frameIps[frameCount - 1] = ip;
+          stackTop = sp;
+          call(stack[sp - 1 - argCount], argCount);
+
+          stack = this.stack;
+          sp = stackTop;
+          closure = frameClosures[frameCount - 1];
+          code = closure.function.chunk.code;
+          constants = closure.function.chunk.constantTable;
+          ip = frameIps[frameCount - 1];
+          base = frameBases[frameCount - 1];
+          break;
+        }
+        case OP_INVOKE: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          int argCount = code[ip + 2] & 0xff;
+          ip += 3;
+          frameIps[frameCount - 1] = ip;
+          stackTop = sp;
+          invoke(name, argCount);
+
+          stack = this.stack;
+          sp = stackTop;
+          closure = frameClosures[frameCount - 1];
+          code = closure.function.chunk.code;
+          constants = closure.function.chunk.constantTable;
+          ip = frameIps[frameCount - 1];
+          base = frameBases[frameCount - 1];
+          break;
+        }
+        case OP_SUPER_INVOKE: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          int argCount = code[ip + 2] & 0xff;
+          ip += 3;
+          Obj.Class superclass = (Obj.Class) stack[--sp];
+          Obj.Closure method = superclass.methods.get(name);
+          if (method == null) {
+            throw error(closure, ip, "Undefined property '" + name + "'");
+          }
+          frameIps[frameCount - 1] = ip;
+          stackTop = sp;
+          call(method, argCount);
+
+          stack = this.stack;
+          sp = stackTop;
+          closure = frameClosures[frameCount - 1];
+          code = closure.function.chunk.code;
+          constants = closure.function.chunk.constantTable;
+          ip = frameIps[frameCount - 1];
+          base = frameBases[frameCount - 1];
+          break;
+        }
+        case OP_CLOSURE: {
+          Obj.Function function =
+              (Obj.Function) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          Obj.Closure created = new Obj.Closure(function);
+          for (int i = 0; i < created.upvalues.length; i++) {
+            boolean isLocal = code[ip++] == 1;
+            int index = code[ip++] & 0xff;
+            created.upvalues[i] = isLocal ? captureUpvalue(base + index) : closure.upvalues[index];
+          }
+          stack[sp++] = created;
+          break;
+        }
+        case OP_CLOSE_UPVALUE:
+          closeUpvalues(sp - 1);
+          sp--;
+          break;
+        case OP_RETURN: {
+          Object result = stack[--sp];
+          if (openUpvalues != null) {
+            closeUpvalues(base);
+          }
+          frameCount--;
+          if (frameCount == 0) {
+            stackTop = 0;
+            return;
+          }
+
+          sp = base;
+          stack[sp++] = result;
+          closure = frameClosures[frameCount - 1];
+          code = closure.function.chunk.code;
+          constants = closure.function.chunk.constantTable;
+          ip = frameIps[frameCount - 1];
+          base = frameBases[frameCount - 1];
+          break;
+        }
+        case OP_CLASS: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          stack[sp++] = new Obj.Class(name);
+          break;
+        }
+        case OP_INHERIT: {
+          Object superclass = stack[sp - 2];
+          if (!(superclass instanceof Obj.Class)) {
+            throw error(closure, ip, "Superclass must be a class");
+          }
+          Obj.Class subclass = (Obj.Class) stack[sp - 1];
+          subclass.methods.putAll(((Obj.Class) superclass).methods);
+          subclass.initializer = ((Obj.Class) superclass).initializer;
+          sp--;
+          break;
+        }
+        case OP_METHOD: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          Obj.Closure method = (Obj.Closure) stack[sp - 1];
+          Obj.Class klass = (Obj.Class) stack[sp - 2];
+          klass.methods.put(name, method);
+          if (name.equals("init")) {
+            klass.initializer = method;
+          }
+          sp--;
+          break;
+        }
+        default:
+          throw error(closure, ip, "Unknown opcode " + code[ip - 1]);
+      }
+    }
+  }
+
+  /**
+   * Calls callee with the argCount arguments on top of the stack. Lox functions get a new frame
+   * and run when the dispatch loop resumes; natives and argument-less classes complete here.
+   */
+  private void call(Object callee, int argCount) {
+    if (callee instanceof Obj.Closure) {
+      callClosure((Obj.Closure) callee, argCount);
+    } else if (callee instanceof Obj.BoundMethod) {
+      Obj.BoundMethod bound = (Obj.BoundMethod) callee;
+      stack[stackTop - argCount - 1] = bound.receiver;
+      callClosure(bound.method, argCount);
+    } else if (callee instanceof Obj.Class) {
+      Obj.Class klass = (Obj.Class) callee;
+      stack[stackTop - argCount - 1] = new Obj.Instance(klass);
+      if (klass.initializer != null) {
+        callClosure(klass.initializer, argCount);
+      } else if (argCount != 0) {
+        throw callError("Expected 0 arguments but got " + argCount);
+      }
+    } else if (callee instanceof Obj.Native) {
+      Obj.Native function = (Obj.Native) callee;
+      if (argCount != function.arity) {
+        throw callError("Expected " + function.arity + " arguments but got " + argCount);
+      }
+      Object result = function.call(stack, stackTop - argCount);
+      stackTop -= argCount;
+      stack[stackTop - 1] = result;
+    } else {
+      throw callError("Can only call functions and classes");
+    }
+  }
+
+  private void callClosure(Obj.Closure closure, int argCount) {
+    Obj.Function function = closure.function;
+    if (argCount != function.arity) {
+      throw callError("Expected " + function.arity + " arguments but got " + argCount);
+    }
+
+    if (frameCount == frameClosures.length) {
+      if (frameCount == FRAMES_MAX) {
+        throw callError("Stack overflow");
+      }
+      int capacity = Math.min(frameCount * 2, FRAMES_MAX);
+      frameClosures = Arrays.copyOf(frameClosures, capacity);
+      frameIps = Arrays.copyOf(frameIps, capacity);
+      frameBases = Arrays.copyOf(frameBases, capacity);
+    }
+
+    int base = stackTop - argCount - 1;
+    if (base + function.maxStack > stack.length) {
+      // Open upvalues refer to stack indexes, so they survive the copy
+      stack = Arrays.copyOf(stack, Math.max(stack.length * 2, base + function.maxStack));
+    }
+
+    frameClosures[frameCount] = closure;
+    frameIps[frameCount] = 0;
+    frameBases[frameCount] = base;
+    frameCount++;
+  }
+
+  private void invoke(String name, int argCount) {
+    Object receiver = stack[stackTop - argCount - 1];
+    if (!(receiver instanceof Obj.Instance)) {
+      throw callError("Only instances have properties");
+    }
+
+    Obj.Instance instance = (Obj.Instance) receiver;
+    Object field = instance.fields.get(name);
+    if (field != null || instance.fields.containsKey(name)) {
+      stack[stackTop - argCount - 1] = field;
+      call(field, argCount);
+      return;
+    }
+
+    Obj.Closure method = instance.klass.methods.get(name);
+    if (method == null) {
+      throw callError("Undefined property '" + name + "'");
+    }
+    callClosure(method, argCount);
+  }
+
+  private Obj.Upvalue captureUpvalue(int slot) {
+    Obj.Upvalue previous = null;
+    Obj.Upvalue upvalue = openUpvalues;
+    while (upvalue != null && upvalue.slot > slot) {
+      previous = upvalue;
+      upvalue = upvalue.next;
+    }
+
+    if (upvalue != null && upvalue.slot == slot) {
+      return upvalue;
+    }
+
+    Obj.Upvalue created = new Obj.Upvalue(slot);
+    created.next = upvalue;
+    if (previous == null) {
+      openUpvalues = created;
+    } else {
+      previous.next = created;
+    }
+    return created;
+  }
+
+  private void closeUpvalues(int last) {
+    while (openUpvalues != null && openUpvalues.slot >= last) {
+      Obj.Upvalue upvalue = openUpvalues;
+      upvalue.closed = stack[upvalue.slot];
+      upvalue.slot = -1;
+      openUpvalues = upvalue.next;
+    }
+  }
+
+  private static boolean isFalsey(Object value) {
+    return value == null || (value instanceof Boolean && !(Boolean) value);
+  }
+
+  private static RuntimeError error(Obj.Closure closure, int ip, String message) {
+    return new RuntimeError(closure.function.chunk.lines[ip - 1], message);
+  }
+
+  /**
+   * Error raised while setting up a call, reported at the calling instruction.
+   */
+  private RuntimeError callError(String message) {
+    return error(frameClosures[frameCount - 1], frameIps[frameCount - 1], message);
+  }
+
+  private void resetStack() {
+    Arrays.fill(stack, null);
+    stackTop = 0;
+    frameCount = 0;
+    openUpvalues = null;
+  }
+}
@@ -16,7 +16,14 @@ public class GenerateAst {
     }
 
     String outputDir = args[0];
-    defineAst(outputDir, "Expr", Arrays.asList(
+    // Statements also keep the time spent in them, not counting nested statements
+    List<String> exprCounters = Arrays.asList("long executions");
+    List<String> stmtCounters = Arrays.asList("long executions", "long selfNanos");
+    // Only variables, assignments, this and super are ever resolved to a local
+    List<String> exprResolution = Arrays.asList("int depth = -1");
+    List<String> stmtResolution = Arrays.asList();
+
+    defineAst(outputDir, "Expr", exprResolution, exprCounters, Arrays.asList(
         "Assign   : Token name, Expr value",
         "Binary   : Expr left, Token operator, Expr right",
         "Call     : Expr callee, Token paren, List<Expr> arguments",
@@ -30,7 +37,7 @@ public class GenerateAst {
         "Unary    : Token operator, Expr right",
         "Variable : Token name"
     ));
-    defineAst(outputDir, "Stmt", Arrays.asList(
+    defineAst(outputDir, "Stmt", stmtResolution, stmtCounters, Arrays.asList(
         "Block      : List<Stmt> statements",
         "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods",
         "Expression : Expr expression",
@@ -43,7 +50,8 @@ public class GenerateAst {
     ));
   }
 
-  private static void defineAst(String outputDir, String baseName, List<String> types)
+  private static void defineAst(String outputDir, String baseName, List<String> resolution,
+      List<String> counters, List<String> types)
       throws FileNotFoundException, UnsupportedEncodingException {
     String path = outputDir + "/" + baseName + ".java";
     PrintWriter writer = new PrintWriter(path, "UTF-8");
@@ -54,6 +62,23 @@ public class GenerateAst {
     writer.println("");
     writer.println("abstract class " + baseName + " {");
 
+    if (!resolution.isEmpty()) {
+      writer.println();
+      writer.println(
+          "  // Set by the resolver before the tree is run, and only read after that: the");
+      writer.println(
+          "  // number of scopes between a local variable and its use, or -1 for a global");
+      for (String field : resolution) {
+        writer.println("  " + field + ";");
+      }
+    }
+
+    writer.println();
+    writer.println("  // Updated by the interpreter while it counts executions");
+    for (String counter : counters) {
+      writer.println("  " + counter + ";");
+    }
+
     // The base accept() method
     writer.println();
     writer.println("  abstract <R> R accept(Visitor<R> visitor);");
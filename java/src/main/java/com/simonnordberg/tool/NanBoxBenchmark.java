@@ -0,0 +1,131 @@
+package com.simonnordberg.tool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the boxed stack VM with its NaN-boxed mode on numeric workloads.
+ *
+ * Each workload runs in fresh JVMs with a fixed heap. The script times itself with clock(), and
+ * -Dlox.gcStats=true makes jlox report collections and bytes allocated on exit.
+ */
+public class NanBoxBenchmark {
+
+  private static final Pattern GC_STATS =
+      Pattern.compile("\\[gc: (\\d+) collections, (\\d+) ms, (\\d+) KB allocated\\]");
+
+  private static final String[] BACKENDS = {"vm", "vm-nanbox"};
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length > 1) {
+      System.err.println("Usage: nanbox_benchmark [runs]");
+      System.exit(64);
+    }
+
+    int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+    Path workDir = Files.createTempDirectory("lox-nanbox");
+
+    Map<String, String> workloads = new LinkedHashMap<>();
+    workloads.put("loop", ""
+        + "var sum = 0;\n"
+        + "for (var i = 0; i < 5000000; i = i + 1) { sum = sum + i * 0.5; }\n"
+        + "result = sum;\n");
+    workloads.put("fib", ""
+        + "fun fib(n) { if (n < 2) return n; return fib(n - 2) + fib(n - 1); }\n"
+        + "result = fib(27);\n");
+    workloads.put("mandelbrot", ""
+        + "var inside = 0;\n"
+        + "for (var y = 0; y < 120; y = y + 1) {\n"
+        + "  for (var x = 0; x < 120; x = x + 1) {\n"
+        + "    var cr = x / 60 - 1.5; var ci = y / 60 - 1;\n"
+        + "    var zr = 0; var zi = 0; var n = 0;\n"
+        + "    while (n < 100 and zr * zr + zi * zi < 4) {\n"
+        + "      var t = zr * zr - zi * zi + cr; zi = 2 * zr * zi + ci; zr = t; n = n + 1;\n"
+        + "    }\n"
+        + "    if (n == 100) inside = inside + 1;\n"
+        + "  }\n"
+        + "}\n"
+        + "result = inside;\n");
+
+    System.out.printf("%-12s %-10s %10s %10s %12s %8s%n",
+        "workload", "backend", "median ms", "gc count", "allocated", "result");
+    for (Map.Entry<String, String> workload : workloads.entrySet()) {
+      Path script = workDir.resolve(workload.getKey() + ".lox");
+      writeScript(script, workload.getValue());
+      for (String backend : BACKENDS) {
+        measure(workload.getKey(), backend, script, runs);
+      }
+    }
+  }
+
+  private static void writeScript(Path script, String body) throws IOException {
+    try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(script,
+        Charset.forName("UTF-8")))) {
+      // Run the body inside a function so that its variables are locals on the VM stack
+      writer.println("var result;");
+      writer.println("fun main() {");
+      writer.print(body);
+      writer.println("}");
+      writer.println("var start = clock();");
+      writer.println("main();");
+      writer.println("print clock() - start;");
+      writer.println("print result;");
+    }
+  }
+
+  private static void measure(String name, String backend, Path script, int runs)
+      throws IOException, InterruptedException {
+    List<Double> times = new ArrayList<>();
+    long collections = 0;
+    long allocated = 0;
+    String result = null;
+    for (int i = 0; i < runs; i++) {
+      String java = System.getProperty("java.home") + File.separator + "bin" + File.separator
+          + "java";
+      ProcessBuilder builder = new ProcessBuilder(Arrays.asList(
+          java, "-Xms256m", "-Xmx256m", "-Dlox.gcStats=true",
+          "-cp", System.getProperty("java.class.path"),
+          "com.simonnordberg.lox.Lox", "--backend=" + backend, script.toString()));
+      builder.redirectErrorStream(true);
+      Process process = builder.start();
+
+      List<String> lines = new ArrayList<>();
+      try (BufferedReader reader = new BufferedReader(
+          new InputStreamReader(process.getInputStream(), Charset.forName("UTF-8")))) {
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+          lines.add(line);
+        }
+      }
+      if (process.waitFor() != 0 || lines.size() != 3) {
+        throw new IllegalStateException(backend + " failed on " + name + ": " + lines);
+      }
+
+      times.add(Double.parseDouble(lines.get(0)) * 1000);
+      result = lines.get(1);
+      Matcher matcher = GC_STATS.matcher(lines.get(2));
+      if (!matcher.matches()) {
+        throw new IllegalStateException("Unexpected output: " + lines.get(2));
+      }
+      collections += Long.parseLong(matcher.group(1));
+      allocated += Long.parseLong(matcher.group(3));
+    }
+
+    Collections.sort(times);
+    System.out.printf("%-12s %-10s %10.0f %10d %9d MB %8s%n", name, backend,
+        times.get(times.size() / 2), collections / runs, allocated / runs / 1024, result);
+  }
+}
@@ -0,0 +1,104 @@
+package com.simonnordberg.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures jlox startup with and without the compiled program cache.
+ *
+ * Generates a script with many functions and classes that does almost no work at runtime, then
+ * times fresh JVM runs of it: "cold" runs compile from source every time, "cached" runs load the
+ * image written by a priming run.
+ */
+public class StartupBenchmark {
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length > 2) {
+      System.err.println("Usage: startup_benchmark [functions] [runs]");
+      System.exit(64);
+    }
+
+    int functions = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+    Path workDir = Files.createTempDirectory("lox-startup");
+    Path script = workDir.resolve("startup.lox");
+    Path cacheDir = workDir.resolve("cache");
+    writeScript(script, functions);
+
+    System.out.printf("script: %d functions, %d bytes%n", functions, Files.size(script));
+
+    List<Long> cold = new ArrayList<>();
+    for (int i = 0; i < runs; i++) {
+      cold.add(time(script));
+    }
+
+    // Prime the cache, then measure runs that hit it
+    time(script, "-Dlox.cache=true", "-Dlox.cache.dir=" + cacheDir);
+    List<Long> cached = new ArrayList<>();
+    for (int i = 0; i < runs; i++) {
+      cached.add(time(script, "-Dlox.cache=true", "-Dlox.cache.dir=" + cacheDir));
+    }
+
+    report("cold", cold);
+    report("cached", cached);
+  }
+
+  private static void writeScript(Path script, int functions) throws IOException {
+    try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(script,
+        Charset.forName("UTF-8")))) {
+      for (int i = 0; i < functions; i++) {
+        writer.println("fun f" + i + "(a, b) {");
+        writer.println("  var x = a * " + i + " + b;");
+        writer.println("  if (x > 10 and b < 3) { x = x - 1; } else { x = x + 1; }");
+        writer.println("  while (x > 100) { x = x / 2; }");
+        writer.println("  return \"f" + i + ":\" + x;");
+        writer.println("}");
+        if (i % 10 == 0) {
+          writer.println("class C" + i + " {");
+          writer.println("  init(v) { this.v = v; }");
+          writer.println("  get() { return f" + i + "(this.v, 2); }");
+          writer.println("}");
+        }
+      }
+      writer.println("print f0(1, 2);");
+    }
+  }
+
+  private static long time(Path script, String... properties)
+      throws IOException, InterruptedException {
+    String java =
+        System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    List<String> command = new ArrayList<>();
+    command.add(java);
+    command.addAll(Arrays.asList(properties));
+    command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"),
+        "com.simonnordberg.lox.Lox", script.toString()));
+    ProcessBuilder builder = new ProcessBuilder(command);
+    builder.redirectErrorStream(true);
+    builder.redirectOutput(ProcessBuilder.Redirect.to(new File("/dev/null")));
+
+    long start = System.nanoTime();
+    int status = builder.start().waitFor();
+    long elapsed = (System.nanoTime() - start) / 1000000;
+    if (status != 0) {
+      throw new IllegalStateException("jlox exited with status " + status);
+    }
+    return elapsed;
+  }
+
+  private static void report(String name, List<Long> times) {
+    List<Long> sorted = new ArrayList<>(times);
+    Collections.sort(sorted);
+    System.out.printf("%-8s median %5d ms  min %5d ms  max %5d ms%n", name,
+        sorted.get(sorted.size() / 2), sorted.get(0), sorted.get(sorted.size() - 1));
+  }
+}
@@ -0,0 +1,100 @@
+package com.simonnordberg.lox;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BatchTest {
+
+  private static final int PARALLELISM = 4;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+  private final ByteArrayOutputStream err = new ByteArrayOutputStream();
+  private PrintStream stdout;
+  private PrintStream stderr;
+
+  @Before
+  public void captureOutput() {
+    stdout = System.out;
+    stderr = System.err;
+    System.setOut(new PrintStream(out, true));
+    System.setErr(new PrintStream(err, true));
+  }
+
+  @After
+  public void restoreOutput() {
+    System.setOut(stdout);
+    System.setErr(stderr);
+  }
+
+  @Test
+  public void outputAndStatusesFollowFileNameOrder() throws IOException {
+    // The slow first job finishes last, but its output still comes first
+    write("a.lox", "var i = 0; while (i < 200000) i = i + 1; print i;");
+    write("b.lox", "print \"b\";");
+    write("c.lox", "print ;");
+    write("d.lox", "print \"d\";\nnil();");
+    write("e.lox", "print \"e\";");
+
+    int status = new Batch(PARALLELISM).run(folder.getRoot().toPath());
+
+    assertEquals(70, status);
+    assertEquals("200000\nb\nd\ne\n", string(out));
+    assertEquals(Arrays.asList(
+        "[a.lox: exit 0]",
+        "[b.lox: exit 0]",
+        "[c.lox: exit 65]",
+        "[d.lox: exit 70]",
+        "[e.lox: exit 0]"), statusLines());
+  }
+
+  @Test
+  public void jobThatOverflowsTheParserFailsAlone() throws IOException {
+    StringBuilder nested = new StringBuilder("print ");
+    for (int i = 0; i < 100000; i++) {
+      nested.append('(');
+    }
+    write("a.lox", nested.toString());
+    write("b.lox", "print \"b\";");
+
+    int status = new Batch(PARALLELISM).run(folder.getRoot().toPath());
+
+    assertEquals(70, status);
+    assertEquals("b\n", string(out));
+    assertEquals(Arrays.asList("[a.lox: exit 70]", "[b.lox: exit 0]"), statusLines());
+  }
+
+  private void write(String name, String source) throws IOException {
+    Files.write(folder.getRoot().toPath().resolve(name), source.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private List<String> statusLines() {
+    List<String> lines = new ArrayList<>();
+    for (String line : string(err).split("\n")) {
+      if (line.matches("\\[\\w+\\.lox: exit \\d+\\]")) {
+        lines.add(line);
+      }
+    }
+    return lines;
+  }
+
+  private static String string(ByteArrayOutputStream stream) {
+    return new String(stream.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
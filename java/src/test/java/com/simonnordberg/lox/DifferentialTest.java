@@ -0,0 +1,73 @@
+package com.simonnordberg.lox;
+
+import static com.simonnordberg.lox.Scripts.compile;
+import static com.simonnordberg.lox.Scripts.interpret;
+import static com.simonnordberg.lox.Scripts.read;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Runs every script under src/test/resources/scripts in the tree-walking interpreter and checks
+ * that each bytecode VM prints the same output and stops with the same runtime error.
+ */
+public class DifferentialTest {
+
+  // Lists and maps are natives of the tree-walking interpreter only
+  private static final List<String> INTERPRETER_ONLY =
+      Arrays.asList("cyclic.lox", "list.lox", "map.lox");
+
+  @Test
+  public void vmMatchesInterpreter() throws Exception {
+    backendMatchesInterpreter("vm");
+  }
+
+  @Test
+  public void nanBoxVmMatchesInterpreter() throws Exception {
+    backendMatchesInterpreter("vm-nanbox");
+  }
+
+  @Test
+  public void registerVmMatchesInterpreter() throws Exception {
+    backendMatchesInterpreter("register");
+  }
+
+  private void backendMatchesInterpreter(String backend) throws Exception {
+    for (Path script : Scripts.all()) {
+      String name = script.getFileName().toString();
+      if (INTERPRETER_ONLY.contains(name)) {
+        continue;
+      }
+      Program program = compile(read(script), "lox.tiered", "false");
+      assertEquals(name + " on " + backend, interpret(program), runOnBackend(backend, program));
+    }
+  }
+
+  // The VMs print to System.out and report errors through Lox's shared reporter
+  private static String runOnBackend(String backend, Program program) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    RuntimeError before = Lox.reporter.runtimeError();
+    PrintStream stdout = System.out;
+    System.setOut(new PrintStream(out, true));
+    try {
+      if (backend.equals("register")) {
+        RegisterVM vm = new RegisterVM();
+        vm.interpret(new RegisterCompiler(vm).compile(program.statements()));
+      } else {
+        VM vm = backend.equals("vm") ? new VM() : new NanBoxVM();
+        vm.interpret(new BytecodeCompiler(vm).compile(program.statements()));
+      }
+    } finally {
+      System.setOut(stdout);
+    }
+    RuntimeError error = Lox.reporter.runtimeError();
+    return Scripts.result(new String(out.toByteArray(), StandardCharsets.UTF_8),
+        error != before ? error : null);
+  }
+}
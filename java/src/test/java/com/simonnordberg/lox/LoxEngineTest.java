@@ -0,0 +1,136 @@
+package com.simonnordberg.lox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import org.junit.Test;
+
+/**
+ * Exercises the embedding API the way a host would: through {@link LoxEngine} and through
+ * javax.script.
+ */
+public class LoxEngineTest {
+
+  private static final int THREADS = 4;
+  private static final int EVALS_PER_THREAD = 200;
+
+  @Test
+  public void integerBindingsBecomeNumbers() {
+    Map<String, Object> bindings = new HashMap<>();
+    bindings.put("n", 2);
+    StringWriter out = new StringWriter();
+    Map<String, Object> globals =
+        LoxEngine.compile("var copy = n; print n / 4;").execute(bindings, out);
+    assertEquals(2.0, globals.get("copy"));
+    assertEquals("0.5\n", out.toString());
+  }
+
+  @Test
+  public void onlyChangedGlobalsComeBack() {
+    Map<String, Object> bindings = new HashMap<>();
+    bindings.put("kept", "same");
+    bindings.put("assigned", "before");
+    Map<String, Object> globals = LoxEngine.compile("assigned = \"after\"; var defined = kept;")
+        .execute(bindings, new StringWriter());
+    Map<String, Object> expected = new HashMap<>();
+    expected.put("assigned", "after");
+    expected.put("defined", "same");
+    assertEquals(expected, globals);
+  }
+
+  @Test
+  public void runtimeErrorCarriesItsLine() {
+    try {
+      LoxEngine.compile("var x = 1;\n\nx();").execute(
+          Collections.<String, Object>emptyMap(), new StringWriter());
+      fail("expected a LoxException");
+    } catch (LoxException e) {
+      assertEquals("Can only call functions and classes", e.getMessage());
+      assertEquals(3, e.getLine());
+    }
+  }
+
+  @Test
+  public void stackOverflowIsALoxException() {
+    try {
+      LoxEngine.compile("fun f() { f(); }\nf();").execute(
+          Collections.<String, Object>emptyMap(), new StringWriter());
+      fail("expected a LoxException");
+    } catch (LoxException e) {
+      assertEquals("Stack overflow", e.getMessage());
+      assertEquals(-1, e.getLine());
+    }
+  }
+
+  @Test
+  public void compileErrorIsALoxException() {
+    try {
+      LoxEngine.compile("print ;");
+      fail("expected a LoxException");
+    } catch (LoxException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("[line 1]"));
+      assertEquals(-1, e.getLine());
+    }
+  }
+
+  @Test
+  public void scriptEngineKeepsGlobalsInEngineScope() throws Exception {
+    ScriptEngine engine = new ScriptEngineManager().getEngineByName("lox");
+    assertNotNull(engine);
+    StringWriter out = new StringWriter();
+    engine.getContext().setWriter(out);
+    engine.put("start", 40);
+    engine.eval("var answer = start + 2;");
+    engine.eval("print answer;");
+    assertEquals(42.0, engine.get("answer"));
+    assertEquals("42\n", out.toString());
+  }
+
+  @Test
+  public void concurrentEvalsKeepEveryGlobal() throws Exception {
+    final ScriptEngine engine = new ScriptEngineManager().getEngineByName("lox");
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Future<Void>> results = new ArrayList<>();
+      for (int i = 0; i < THREADS; i++) {
+        final int thread = i;
+        results.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            for (int eval = 0; eval < EVALS_PER_THREAD; eval++) {
+              engine.eval("var g" + thread + "_" + eval + " = " + eval + ";");
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    Bindings bindings = engine.getBindings(ScriptContext.ENGINE_SCOPE);
+    for (int thread = 0; thread < THREADS; thread++) {
+      for (int eval = 0; eval < EVALS_PER_THREAD; eval++) {
+        assertEquals((double) eval, bindings.get("g" + thread + "_" + eval));
+      }
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package com.simonnordberg.lox;
+
+import static com.simonnordberg.lox.Scripts.compile;
+import static com.simonnordberg.lox.Scripts.interpret;
+import static com.simonnordberg.lox.Scripts.named;
+import static com.simonnordberg.lox.Scripts.read;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class LoxListTest {
+
+  @Test
+  public void listScriptPrintsItsExpectedOutput() throws Exception {
+    assertEquals(read(named("list.expected")), run(read(named("list.lox"))));
+  }
+
+  @Test
+  public void containersThatContainThemselvesPrintAsEllipses() throws Exception {
+    assertEquals(read(named("cyclic.expected")), run(read(named("cyclic.lox"))));
+  }
+
+  @Test
+  public void numbersAndOtherValuesMix() {
+    assertEquals("[1, two, 3]\n1\ntwo\n",
+        run("var l = List(); l.append(1); l.append(\"two\"); l.append(3);\n"
+            + "print l; print l.get(0); print l.get(1);"));
+  }
+
+  @Test
+  public void settingAnObjectKeepsTheNumbersAlreadyStored() {
+    assertEquals("[1, nil, 3]\n4\n",
+        run("var l = List(); l.append(1); l.append(2); l.append(3); l.set(1, nil);\n"
+            + "print l; print l.get(0) + l.get(2);"));
+  }
+
+  @Test
+  public void listGrowsPastItsInitialCapacity() {
+    assertEquals("100\n99\n",
+        run("var l = List(); for (var i = 0; i < 100; i = i + 1) l.append(i);\n"
+            + "print l.length(); print l.get(99);"));
+  }
+
+  @Test
+  public void sliceIsACopy() {
+    assertEquals("[1, 2]\n[0, 1, 2, 3]\n",
+        run("var l = List(); for (var i = 0; i < 4; i = i + 1) l.append(i);\n"
+            + "var s = l.slice(1, 3); print s; s.set(0, 9); print l;"));
+  }
+
+  @Test
+  public void forEachVisitsElementsAppendedDuringTheLoop() {
+    assertEquals("1\n2\n",
+        run("var l = List(); l.append(1);\n"
+            + "fun f(x) { print x; if (x < 2) l.append(x + 1); }\n"
+            + "l.forEach(f);"));
+  }
+
+  @Test
+  public void badIndexesAreRuntimeErrors() {
+    String setup = "var l = List(); l.append(1);\n";
+    assertEquals("Index must be a number\n[line 2]\n", run(setup + "l.get(\"0\");"));
+    assertEquals("Index must be an integer\n[line 2]\n", run(setup + "l.get(0.5);"));
+    assertEquals("Index out of bounds\n[line 2]\n", run(setup + "l.get(1);"));
+    assertEquals("Index out of bounds\n[line 2]\n", run(setup + "l.set(-1, 0);"));
+    assertEquals("Slice start must not be after its end\n[line 2]\n",
+        run(setup + "l.slice(1, 0);"));
+  }
+
+  private static String run(String source) {
+    return interpret(compile(source, "lox.tiered", "false"));
+  }
+}
@@ -0,0 +1,82 @@
+package com.simonnordberg.lox;
+
+import static com.simonnordberg.lox.Scripts.compile;
+import static com.simonnordberg.lox.Scripts.interpret;
+import static com.simonnordberg.lox.Scripts.named;
+import static com.simonnordberg.lox.Scripts.read;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LoxMapTest {
+
+  @Test
+  public void mapScriptPrintsItsExpectedOutput() throws Exception {
+    assertEquals(read(named("map.expected")), run(read(named("map.lox"))));
+  }
+
+  @Test
+  public void entriesSurviveGrowth() {
+    LoxMap map = new LoxMap();
+    for (int i = 0; i < 1000; i++) {
+      map.put((double) i, "v" + i);
+    }
+    assertEquals(1000, map.size());
+    for (int i = 0; i < 1000; i++) {
+      assertEquals("v" + i, map.get((double) i));
+    }
+  }
+
+  @Test
+  public void keysFoundPastADeletedSlotStayFound() {
+    LoxMap map = new LoxMap();
+    for (int i = 0; i < 6; i++) {
+      map.put((double) i, i);
+    }
+    for (int i = 0; i < 6; i += 2) {
+      assertTrue(map.remove((double) i));
+    }
+    assertFalse(map.remove(0.0));
+    assertEquals(3, map.size());
+    for (int i = 0; i < 6; i++) {
+      assertEquals(i % 2 == 1, map.has((double) i));
+    }
+  }
+
+  @Test
+  public void repeatedPutAndRemoveDoesNotFillTheTable() {
+    LoxMap map = new LoxMap();
+    for (int i = 0; i < 100000; i++) {
+      map.put("key", i);
+      map.remove("key");
+    }
+    assertEquals(0, map.size());
+    map.put("key", 1);
+    assertEquals(1, map.get("key"));
+  }
+
+  @Test
+  public void nilIsAKeyLikeAnyOther() {
+    LoxMap map = new LoxMap();
+    assertFalse(map.has(null));
+    map.put(null, "nil");
+    assertTrue(map.has(null));
+    assertEquals("nil", map.get(null));
+    assertTrue(map.remove(null));
+    assertNull(map.get(null));
+  }
+
+  @Test
+  public void numbersAreKeyedByValueAndInstancesByIdentity() {
+    assertEquals("a\nnil\n",
+        run("var m = Map(); m.set(1, \"a\"); print m.get(2 - 1);\n"
+            + "class K {} m.set(K(), \"k\"); print m.get(K());"));
+  }
+
+  private static String run(String source) {
+    return interpret(compile(source, "lox.tiered", "false"));
+  }
+}
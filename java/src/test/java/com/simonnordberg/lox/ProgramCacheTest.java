@@ -0,0 +1,85 @@
+package com.simonnordberg.lox;
+
+import static com.simonnordberg.lox.Scripts.compile;
+import static com.simonnordberg.lox.Scripts.interpret;
+import static com.simonnordberg.lox.Scripts.read;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ProgramCacheTest {
+
+  private static final String SOURCE = "fun add(a, b) { return a + b; }\nprint add(1, 2);";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void cachedImageMatchesSource() throws Exception {
+    ProgramCache cache = new ProgramCache(folder.getRoot().toPath());
+    for (Path script : Scripts.all()) {
+      String name = script.getFileName().toString();
+      String source = read(script);
+      Program program = compile(source, "lox.tiered", "false");
+      cache.store(source, program.statements());
+      List<Stmt> loaded = cache.load(source);
+      assertNotNull(name, loaded);
+      assertEquals(name, interpret(program), interpret(new Program(loaded)));
+    }
+  }
+
+  @Test
+  public void uncachedSourceIsAMiss() {
+    ProgramCache cache = new ProgramCache(folder.getRoot().toPath());
+    cache.store(SOURCE, compile(SOURCE, "lox.tiered", "false").statements());
+    assertNull(cache.load(SOURCE + "\n"));
+  }
+
+  @Test
+  public void truncatedImageIsAMissAndIsDropped() throws IOException {
+    ProgramCache cache = new ProgramCache(folder.getRoot().toPath());
+    cache.store(SOURCE, compile(SOURCE, "lox.tiered", "false").statements());
+    Path image = onlyImage();
+    byte[] bytes = Files.readAllBytes(image);
+    Files.write(image, Arrays.copyOf(bytes, bytes.length / 2));
+
+    assertNull(cache.load(SOURCE));
+    assertFalse(Files.exists(image));
+  }
+
+  @Test
+  public void cacheIsOffUnlessTurnedOn() {
+    String previous = System.clearProperty("lox.cache");
+    try {
+      assertNull(ProgramCache.fromSystemProperties());
+    } finally {
+      if (previous != null) {
+        System.setProperty("lox.cache", previous);
+      }
+    }
+  }
+
+  private Path onlyImage() throws IOException {
+    Path image = null;
+    try (DirectoryStream<Path> stream =
+        Files.newDirectoryStream(folder.getRoot().toPath(), "*.loxc")) {
+      for (Path path : stream) {
+        assertNull("more than one image", image);
+        image = path;
+      }
+    }
+    assertNotNull("no image", image);
+    return image;
+  }
+}
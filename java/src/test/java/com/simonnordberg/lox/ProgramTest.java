@@ -0,0 +1,85 @@
+package com.simonnordberg.lox;
+
+import static com.simonnordberg.lox.Scripts.compile;
+import static com.simonnordberg.lox.Scripts.interpret;
+import static com.simonnordberg.lox.Scripts.read;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Runs one program from several threads at once, each run in an interpreter of its own.
+ */
+public class ProgramTest {
+
+  private static final int THREADS = 4;
+  private static final int RUNS_PER_THREAD = 5;
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+  @After
+  public void stopThreads() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void concurrentRunsMatchOneRun() throws Exception {
+    for (Path script : Scripts.all()) {
+      String source = read(script);
+      String expected = interpret(compile(source, "lox.tiered", "false"));
+      // Functions get compiled on their first call, while other threads are running them
+      Program program = compile(source, "lox.compileThreshold", "0");
+      for (String output : runConcurrently(program)) {
+        assertEquals(script.getFileName().toString(), expected, output);
+      }
+    }
+  }
+
+  @Test
+  public void concurrentRunsHaveGlobalsOfTheirOwn() throws Exception {
+    Program program = compile(
+        "var n = 0;\nfun bump() { n = n + 1; }\nfor (var i = 0; i < 10000; i = i + 1) bump();\n"
+            + "print n;",
+        "lox.tiered", "false");
+    for (String output : runConcurrently(program)) {
+      assertEquals("10000\n", output);
+    }
+  }
+
+  @Test
+  public void runtimeErrorInOneRunLeavesTheOthersAlone() throws Exception {
+    Program program = compile("var a = 1;\nprint a;\nprint b;", "lox.tiered", "false");
+    for (String output : runConcurrently(program)) {
+      assertEquals("1\nUndefined variable 'b'\n[line 3]\n", output);
+    }
+  }
+
+  private List<String> runConcurrently(final Program program) throws Exception {
+    List<Future<List<String>>> results = new ArrayList<>();
+    for (int i = 0; i < THREADS; i++) {
+      results.add(executor.submit(new Callable<List<String>>() {
+        @Override
+        public List<String> call() {
+          List<String> outputs = new ArrayList<>();
+          for (int run = 0; run < RUNS_PER_THREAD; run++) {
+            outputs.add(interpret(program));
+          }
+          return outputs;
+        }
+      }));
+    }
+    List<String> outputs = new ArrayList<>();
+    for (Future<List<String>> result : results) {
+      outputs.addAll(result.get());
+    }
+    return outputs;
+  }
+}
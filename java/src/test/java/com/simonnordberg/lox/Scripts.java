@@ -0,0 +1,93 @@
+package com.simonnordberg.lox;
+
+import static org.junit.Assert.assertNotNull;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The scripts under src/test/resources/scripts, and ways of compiling and running them that the
+ * tests share.
+ */
+final class Scripts {
+
+  private Scripts() {
+  }
+
+  static List<Path> all() throws IOException, URISyntaxException {
+    Path directory = directory();
+    List<Path> scripts = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.lox")) {
+      for (Path script : stream) {
+        scripts.add(script);
+      }
+    }
+    Collections.sort(scripts);
+    return scripts;
+  }
+
+  /**
+   * The file with the given name, such as a script or the output it is expected to print.
+   */
+  static Path named(String name) throws URISyntaxException {
+    return directory().resolve(name);
+  }
+
+  private static Path directory() throws URISyntaxException {
+    return Paths.get(Scripts.class.getResource("/scripts").toURI());
+  }
+
+  static String read(Path script) throws IOException {
+    return new String(Files.readAllBytes(script), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Compiles source with a system property that the program's tiered compiler reads set for the
+   * duration of the call.
+   */
+  static Program compile(String source, String property, String value) {
+    String previous = System.setProperty(property, value);
+    try {
+      StringWriter errors = new StringWriter();
+      Program program = Program.compile(source, new ErrorReporter(new PrintWriter(errors)));
+      assertNotNull(errors.toString(), program);
+      return program;
+    } finally {
+      if (previous == null) {
+        System.clearProperty(property);
+      } else {
+        System.setProperty(property, previous);
+      }
+    }
+  }
+
+  /**
+   * Runs program in a fresh interpreter and returns what it printed, followed by its runtime
+   * error, if any, the way Lox reports one.
+   */
+  static String interpret(Program program) {
+    StringWriter out = new StringWriter();
+    ErrorReporter reporter = new ErrorReporter(new PrintWriter(new StringWriter()));
+    PrintWriter writer = new PrintWriter(out);
+    program.run(program.newInterpreter(reporter, writer));
+    writer.flush();
+    return result(out.toString(), reporter.runtimeError());
+  }
+
+  static String result(String output, RuntimeError error) {
+    if (error == null) {
+      return output;
+    }
+    return output + error.getMessage() + "\n[line " + error.line + "]\n";
+  }
+}
@@ -0,0 +1,64 @@
+package com.simonnordberg.lox;
+
+import static com.simonnordberg.lox.Scripts.compile;
+import static com.simonnordberg.lox.Scripts.interpret;
+import static com.simonnordberg.lox.Scripts.read;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import org.junit.Test;
+
+public class TieredCompilerTest {
+
+  @Test
+  public void compiledFunctionsMatchInterpreter() throws Exception {
+    for (Path script : Scripts.all()) {
+      String name = script.getFileName().toString();
+      String source = read(script);
+      String expected = interpret(compile(source, "lox.tiered", "false"));
+      // The first run queues every function it calls; the second runs their compiled bodies
+      Program program = compile(source, "lox.compileThreshold", "0");
+      assertEquals(name, expected, interpret(program));
+      TieredCompiler.awaitQueued();
+      assertEquals(name + " compiled", expected, interpret(program));
+    }
+  }
+
+  @Test
+  public void functionIsCompiledOnceItReachesTheThreshold() throws Exception {
+    Program cold = compile("fun f() {}\nf();\nf();", "lox.compileThreshold", "3");
+    interpret(cold);
+    TieredCompiler.awaitQueued();
+    assertNull(tierOfFirstFunction(cold).compiled());
+
+    Program hot = compile("fun f() {}\nf();\nf();\nf();", "lox.compileThreshold", "3");
+    interpret(hot);
+    TieredCompiler.awaitQueued();
+    assertNotNull(tierOfFirstFunction(hot).compiled());
+  }
+
+  @Test
+  public void loopBackEdgesCountTowardsTheThreshold() throws Exception {
+    Program program = compile("fun f() { for (var i = 0; i < 10; i = i + 1) {} }\nf();",
+        "lox.compileThreshold", "5");
+    interpret(program);
+    TieredCompiler.awaitQueued();
+    assertNotNull(tierOfFirstFunction(program).compiled());
+  }
+
+  @Test
+  public void tieringCanBeTurnedOff() {
+    assertNull(tierOfFirstFunction(compile("fun f() {}", "lox.tiered", "false")));
+  }
+
+  // Every interpreter of a program shares its compiler, so a new one sees the same tiers
+  private static TieredCompiler.Tier tierOfFirstFunction(Program program) {
+    PrintWriter discard = new PrintWriter(new StringWriter());
+    Interpreter interpreter = program.newInterpreter(new ErrorReporter(discard), discard);
+    return interpreter.tierFor((Stmt.Function) program.statements().get(0));
+  }
+}